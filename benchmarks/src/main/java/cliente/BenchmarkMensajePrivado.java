@@ -0,0 +1,33 @@
+package cliente;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Interpretación en el cliente de una línea "[Privado] remitente: texto", tal como la hace
+ * {@link ClienteChat} antes de abrir la ventana del chat privado.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkMensajePrivado {
+
+    public String linea = "[Privado] beto: ¿Revisas el despliegue antes de las cinco?";
+
+    @Benchmark
+    public String[] separarPrivado() {
+        return linea.startsWith("[Privado] ") ? ClienteChat.separarPrivado(linea.substring(10)) : null;
+    }
+}
@@ -0,0 +1,150 @@
+package servidor;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Caminos calientes del enrutamiento del servidor con sesiones sin red ({@link SesionFalsa}).
+ * <p>
+ * Cada método mide una operación completa del servidor actual; {@link #difundirOriginal()}
+ * reproduce la difusión original (método sincronizado y un PrintWriter por cliente) como
+ * referencia. Con {@code -t N} varios hilos llaman a la vez y se ve la contención de los
+ * cerrojos; al terminar cada prueba se imprimen los percentiles de retención que anota
+ * {@link MetricasServidor}. Para ver también las esperas, añadir {@code -prof jfr}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkEnrutamiento {
+
+    private static final String TEXTO = "ana: Hola a todos, ¿qué tal va el despliegue de hoy?";
+
+    /** Flujo que descarta todo, como sumidero de la referencia original. */
+    private static final OutputStream SUMIDERO = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"10", "1000", "10000"})
+    public int sesiones;
+
+    private ServidorChat servidor;
+    private SesionFalsa emisor;
+    private String[] nombres;
+    private final Map<String, PrintWriter> escritoresOriginales = new HashMap<>();
+
+    /** Índice del siguiente destinatario privado, propio de cada hilo. */
+    @State(Scope.Thread)
+    public static class Turno {
+        int siguiente;
+    }
+
+    @Setup(Level.Trial)
+    public void preparar() throws InterruptedException {
+        Properties propiedades = new Properties();
+        propiedades.setProperty("chat.diario.directorio", "");
+        propiedades.setProperty("chat.registro.directorio", "");
+        propiedades.setProperty("chat.metricas.jmx", "false");
+        // Una sola ventana de presencia para todas las altas de la preparación.
+        propiedades.setProperty("chat.presencia.ventanaMs", "500");
+        // Sin límites de envío: el emisor manda mucho más de lo que se le permitiría a un cliente.
+        for (String limite : new String[] {"publicosPorSegundo", "privadosPorSegundo", "bytesPorSegundo"}) {
+            propiedades.setProperty("chat.limite." + limite, "0");
+        }
+        servidor = new ServidorChat(new ConfiguracionServidor(propiedades), null);
+
+        nombres = new String[sesiones];
+        for (int i = 0; i < sesiones; i++) {
+            nombres[i] = "usuario" + i;
+            new SesionFalsa(servidor).procesarLinea(nombres[i]); // El mismo registro que un cliente real.
+            escritoresOriginales.put(nombres[i], new PrintWriter(SUMIDERO, true));
+        }
+        emisor = new SesionFalsa(servidor);
+        emisor.procesarLinea("emisor");
+        Thread.sleep(1000); // Deja pasar la ventana de presencia antes de medir.
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() {
+        MetricasServidor metricas = servidor.getMetricas();
+        System.out.println();
+        System.out.println("Retención lock difusión: p99=" + metricas.getRetencionLockDifusionP99Us()
+                + " us, max=" + metricas.getRetencionLockDifusionMaxUs() + " us; lock presencia: p99="
+                + metricas.getRetencionLockPresenciaP99Us() + " us, max=" + metricas.getRetencionLockPresenciaMaxUs()
+                + " us");
+        servidor.detenerServidor();
+    }
+
+    /**
+     * {@link ServidorChat#difundirMensaje(String)}: numerar, anotar en el historial y encolar a todos.
+     */
+    @Benchmark
+    public void difundir() {
+        servidor.difundirMensaje(TEXTO);
+    }
+
+    /**
+     * Referencia: la difusión original, sincronizada y con un println por cliente.
+     */
+    @Benchmark
+    public void difundirOriginal() {
+        synchronized (escritoresOriginales) {
+            for (PrintWriter escritor : escritoresOriginales.values()) {
+                escritor.println(TEXTO);
+            }
+        }
+    }
+
+    /**
+     * {@link ServidorChat#enviarListaUsuarios()}: construir la lista completa y enviarla a todos.
+     */
+    @Benchmark
+    public void enviarListaUsuarios() {
+        servidor.enviarListaUsuarios();
+    }
+
+    /**
+     * {@link ServidorChat#enviarMensajePrivado(String, String, java.util.function.Consumer)}: búsqueda
+     * del destinatario y encolado.
+     */
+    @Benchmark
+    public void enviarMensajePrivado(Turno turno, Blackhole sumidero) {
+        String destinatario = nombres[turno.siguiente++ % nombres.length];
+        servidor.enviarMensajePrivado(destinatario, TEXTO, sumidero::consume);
+    }
+
+    /**
+     * Línea "@usuario texto" del protocolo de texto: interpretación en la sesión más el envío.
+     */
+    @Benchmark
+    public boolean procesarLineaPrivada() {
+        return emisor.procesarLinea("@usuario0 Hola, ¿tienes un momento?");
+    }
+}
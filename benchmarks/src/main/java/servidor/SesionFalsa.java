@@ -0,0 +1,37 @@
+package servidor;
+
+/**
+ * Sesión sin red para los benchmarks: lo que se le encola se da por escrito en el acto,
+ * así que la cola nunca se llena y solo se mide el coste del lado del servidor.
+ */
+final class SesionFalsa extends SesionCliente {
+
+    SesionFalsa(ServidorChat servidor) {
+        super(servidor);
+    }
+
+    @Override
+    protected void notificarSalida() {
+        salida.consumir(Integer.MAX_VALUE);
+    }
+
+    @Override
+    protected void activarDescompresion() {
+        // Nunca negocia capacidades.
+    }
+
+    @Override
+    protected void ejecutarEnLector(Runnable tarea) {
+        tarea.run();
+    }
+
+    @Override
+    protected void reanudarEntrada() {
+        // No lee nada: no hay entrada que reanudar.
+    }
+
+    @Override
+    public void cerrar() {
+        salida.cerrar();
+    }
+}
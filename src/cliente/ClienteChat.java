@@ -1,31 +1,77 @@
 package cliente;
 
 import javax.swing.*;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import utilidades.EstilosUI;
+import utilidades.PanelLog;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import protocolo.Compresion;
+import protocolo.LectorFlujo;
+import protocolo.Trama;
 
 public class ClienteChat extends JFrame {
 
     private static final long serialVersionUID = -1499745239772132863L;
 
-    private JTextArea areaChat;
+    /** Líneas que conserva cada pestaña; las más antiguas dejan sitio a las nuevas. */
+    private static final int LINEAS_CHAT = Integer.getInteger("chat.cliente.lineas", 5000);
+    /** Intervalo mínimo entre repintados de cada pestaña (unos 30 por segundo). */
+    private static final int REFRESCO_CHAT_MS = Integer.getInteger("chat.cliente.refrescoMs", 33);
+    /** Primera espera antes de reconectar; se dobla en cada intento fallido hasta el máximo. */
+    private static final long RECONEXION_INICIAL_MS = Long.getLong("chat.cliente.reconexionMs", 500);
+    private static final long RECONEXION_MAX_MS = Long.getLong("chat.cliente.reconexionMaxMs", 30_000);
+
+    /**
+     * Chat público. El hilo lector solo encola las líneas; el EDT las pasa a la vista por lotes,
+     * como mucho una vez por intervalo, así que un canal muy activo no satura la interfaz.
+     */
+    private PanelLog panelGeneral;
+    /** Pestaña "General" con el chat público y una pestaña más por sala. */
+    private JTabbedPane pestanas;
+    private JComboBox<String> selectorSalas;
+    /** Vista de cada sala por nombre: el hilo lector la consulta, solo el EDT añade y quita. */
+    private Map<String, PanelLog> panelesSala = new ConcurrentHashMap<>();
     private JTextField campoMensaje;
     private JButton btnEnviar;
+    /** Mensajes pendientes de salir o rechazados; lo actualiza el emisor en el EDT. */
+    private JLabel etiquetaEnvio;
     private JList<String> listaUsuarios;
     private DefaultListModel<String> modeloUsuarios;
-    private PrintWriter salida;
-    private BufferedReader entrada;
+    private EmisorMensajes salida;
+    /** Archivos ofrecidos, aceptados y en curso; se crea con el emisor. */
+    private TransferenciaArchivos archivos;
+    private LectorFlujo entrada;
+    /** Descompresor de la conexión actual, o null; solo lo usa el hilo lector. */
+    private Inflater descompresor;
     private String nombreUsuario;
+    /** Secuencia del último mensaje público recibido, para pedir solo lo que falte al reconectar. */
+    private volatile long ultimaSecuencia = 0;
+    /** Token para reanudar la sesión tras una caída; null hasta que el servidor lo envía. */
+    private volatile String tokenReanudacion;
+    /** El usuario escribió "salir": la conexión que se cierre ya no se recupera. */
+    private volatile boolean saliendo = false;
+    /** La conexión actual sustituye a una perdida; solo lo usa el hilo lector. */
+    private boolean reconectado = false;
+    private String direccion;
+    private int puerto;
     private Socket socket;
+    /** Ventanas privadas abiertas por usuario; solo se usa desde el EDT. */
     private Map<String, ClientePrivado> chatsPrivados = new HashMap<>();
 
     public ClienteChat() {
@@ -38,12 +84,27 @@ public class ClienteChat extends JFrame {
         JPanel panelPrincipal = new JPanel(new BorderLayout());
         EstilosUI.estilizarPanel(panelPrincipal, false);
 
-        // **Área de Chat (Texto donde se muestran los mensajes)**
-        areaChat = new JTextArea();
-        areaChat.setEditable(false);
-        EstilosUI.estilizarAreaTexto(areaChat, false);
-        JScrollPane scrollChat = new JScrollPane(areaChat);
-        panelPrincipal.add(scrollChat, BorderLayout.CENTER);
+        // **Área de Chat (acotada y refrescada por lotes)**
+        panelGeneral = new PanelLog(LINEAS_CHAT, REFRESCO_CHAT_MS, false);
+        pestanas = new JTabbedPane();
+        pestanas.addTab("General", panelGeneral);
+        panelPrincipal.add(pestanas, BorderLayout.CENTER);
+
+        // **Panel Superior con el Selector de Salas**
+        JPanel panelSalas = new JPanel(new BorderLayout());
+        selectorSalas = new JComboBox<>();
+        selectorSalas.setEditable(true);
+        selectorSalas.setToolTipText("Escribe o elige una sala");
+        JButton btnUnirse = new JButton("Unirse");
+        JButton btnAbandonar = new JButton("Abandonar");
+        EstilosUI.estilizarBoton(btnUnirse);
+        EstilosUI.estilizarBoton(btnAbandonar);
+        JPanel botonesSalas = new JPanel(new GridLayout(1, 2));
+        botonesSalas.add(btnUnirse);
+        botonesSalas.add(btnAbandonar);
+        panelSalas.add(selectorSalas, BorderLayout.CENTER);
+        panelSalas.add(botonesSalas, BorderLayout.EAST);
+        panelPrincipal.add(panelSalas, BorderLayout.NORTH);
 
         // **Panel Derecho con Lista de Usuarios Conectados**
         JPanel panelUsuarios = new JPanel(new BorderLayout());
@@ -54,8 +115,12 @@ public class ClienteChat extends JFrame {
         JScrollPane scrollUsuarios = new JScrollPane(listaUsuarios);
         scrollUsuarios.setPreferredSize(new Dimension(150, 0));
 
+        JButton btnArchivo = new JButton("Enviar archivo");
+        EstilosUI.estilizarBoton(btnArchivo);
+
         panelUsuarios.add(labelUsuarios, BorderLayout.NORTH);
         panelUsuarios.add(scrollUsuarios, BorderLayout.CENTER);
+        panelUsuarios.add(btnArchivo, BorderLayout.SOUTH);
         panelPrincipal.add(panelUsuarios, BorderLayout.EAST);
 
         // **Panel Inferior con Campo de Mensaje y Botón Enviar**
@@ -66,8 +131,12 @@ public class ClienteChat extends JFrame {
         btnEnviar = new JButton("Enviar");
         EstilosUI.estilizarBoton(btnEnviar);
 
+        etiquetaEnvio = new JLabel(" ");
+        EstilosUI.estilizarEtiqueta(etiquetaEnvio);
+
         panelInferior.add(campoMensaje, BorderLayout.CENTER);
         panelInferior.add(btnEnviar, BorderLayout.EAST);
+        panelInferior.add(etiquetaEnvio, BorderLayout.SOUTH);
         panelPrincipal.add(panelInferior, BorderLayout.SOUTH);
 
         add(panelPrincipal);
@@ -76,6 +145,34 @@ public class ClienteChat extends JFrame {
         btnEnviar.addActionListener(e -> enviarMensaje());
         campoMensaje.addActionListener(e -> enviarMensaje());
 
+        // **Eventos de salas: la pestaña se abre al llegar el aviso de entrada del servidor**
+        btnUnirse.addActionListener(e -> unirseASala());
+        btnAbandonar.addActionListener(e -> abandonarSalaActual());
+        selectorSalas.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                salida.pedirSalas(); // Refresca la lista de salas abiertas.
+            }
+
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            }
+
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
+
+        // **Enviar un archivo al usuario seleccionado**
+        btnArchivo.addActionListener(e -> {
+            String usuarioSeleccionado = listaUsuarios.getSelectedValue();
+            if (usuarioSeleccionado == null) {
+                panelGeneral.anadir("Selecciona en la lista el usuario al que enviar el archivo.");
+            } else {
+                archivos.ofrecer(usuarioSeleccionado);
+            }
+        });
+
         // **Doble clic en usuario para abrir chat privado**
         listaUsuarios.addMouseListener(new MouseAdapter() {
             @Override
@@ -93,7 +190,7 @@ public class ClienteChat extends JFrame {
         conectarAlServidor();
 
         setTitle("Chat Cliente: " + nombreUsuario);
-        setSize(500, 400);
+        setSize(600, 450);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
     }
@@ -104,13 +201,11 @@ public class ClienteChat extends JFrame {
      */
     private void conectarAlServidor() {
         try {
-            String servidor = JOptionPane.showInputDialog(this, "Ingrese la dirección IP del servidor:", "127.0.0.1");
+            direccion = JOptionPane.showInputDialog(this, "Ingrese la dirección IP del servidor:", "127.0.0.1");
             String puertoStr = JOptionPane.showInputDialog(this, "Ingrese el puerto del servidor:", "5003");
-            int puerto = Integer.parseInt(puertoStr);
+            puerto = Integer.parseInt(puertoStr);
 
-            socket = new Socket(servidor, puerto);
-            entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            salida = new PrintWriter(socket.getOutputStream(), true);
+            abrirSocket();
 
             // **Solicitar nombre de usuario**
             nombreUsuario = JOptionPane.showInputDialog(this, "Ingrese su nombre de usuario:");
@@ -123,27 +218,8 @@ public class ClienteChat extends JFrame {
             // **Actualizar el título de la ventana con el nombre del usuario**
             setTitle("Chat Cliente - " + nombreUsuario);
 
-            salida.println(nombreUsuario);
-
-            new Thread(() -> {
-                try {
-                    String mensaje;
-                    while ((mensaje = entrada.readLine()) != null) {
-                        if (mensaje.startsWith("[Usuarios]")) {
-                            actualizarListaUsuarios(mensaje.substring(10));
-                        } else if (mensaje.startsWith("[Privado]")) {
-                            manejarMensajePrivado(mensaje);
-                        } else {
-                            if (mensaje.startsWith(nombreUsuario + ":")) {
-                                mensaje = mensaje.replaceFirst(nombreUsuario + ":", "#Tú:");
-                            }
-                            areaChat.append(mensaje + "\n");
-                        }
-                    }
-                } catch (IOException e) {
-                    areaChat.append("Conexión cerrada.\n");
-                }
-            }).start();
+            presentarse();
+            new Thread(this::escucharServidor, "chat-lector").start();
 
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "No se pudo conectar al servidor.", "Error", JOptionPane.ERROR_MESSAGE);
@@ -151,30 +227,402 @@ public class ClienteChat extends JFrame {
         }
     }
 
+    /**
+     * Abre el socket con el servidor. El emisor se crea con la primera conexión y en las
+     * siguientes solo cambia de socket, así que las ventanas privadas siguen usándolo.
+     */
+    private void abrirSocket() throws IOException {
+        socket = new Socket(direccion, puerto);
+        entrada = new LectorFlujo(socket.getInputStream(), 8192);
+        if (salida == null) {
+            salida = new EmisorMensajes(socket.getOutputStream());
+            salida.anadirEscucha(() -> etiquetaEnvio.setText(salida.describirEstado()));
+            archivos = new TransferenciaArchivos(salida, this, this::avisarUsuario);
+        } else {
+            int perdidos = salida.reconectar(socket.getOutputStream());
+            if (perdidos > 0) {
+                panelGeneral.anadir(perdidos + (perdidos == 1 ? " mensaje no se envió" : " mensajes no se enviaron")
+                        + " al perderse la conexión.");
+            }
+        }
+    }
+
+    /**
+     * Negocia las capacidades y se identifica: con el token de la sesión anterior, si lo hay
+     * (si ya no vale, el servidor registra el nombre sin más), o con el nombre.
+     */
+    private void presentarse() throws IOException {
+        // **Pedir presencia incremental, protocolo binario, compresión, latidos, reanudación, estado de entrega y archivos**
+        salida.enviarLinea("[Capacidades] presencia binario deflate latido reanudar entrega transferencia");
+        negociarCapacidades();
+        if (ultimaSecuencia > 0) {
+            salida.enviarUltimaSecuencia(ultimaSecuencia);
+        }
+        String token = tokenReanudacion;
+        if (token != null) {
+            salida.enviarReanudacion(token, nombreUsuario);
+        } else {
+            salida.enviarNombre(nombreUsuario);
+        }
+        salida.marcarPresentado();
+    }
+
+    /**
+     * Bucle del hilo lector. Si la conexión se pierde sin que el usuario haya salido, vuelve a
+     * conectar y sigue leyendo de la conexión nueva.
+     */
+    private void escucharServidor() {
+        do {
+            try {
+                Trama trama = new Trama();
+                while (true) {
+                    if (salida.isBinario()) {
+                        if (!entrada.leerTrama(trama, Trama.MAX_CARGA_SERVIDOR)) break;
+                        procesarTrama(trama);
+                    } else {
+                        String mensaje = entrada.leerLinea(Trama.MAX_CARGA_SERVIDOR);
+                        if (mensaje == null) break;
+                        procesarLinea(mensaje);
+                    }
+                }
+            } catch (IOException e) {
+                // Cierre o error de protocolo: en ambos casos la conexión ya no sirve.
+            }
+            salida.desconectar();
+            cerrarSocket();
+            if (saliendo) break;
+            panelGeneral.anadir("Conexión perdida. Reconectando...");
+        } while (reconectar());
+        panelGeneral.anadir("Conexión cerrada.");
+    }
+
+    /**
+     * Reintenta la conexión con esperas que se doblan hasta {@link #RECONEXION_MAX_MS}, con una
+     * parte al azar para que, si cae el servidor, sus clientes no vuelvan todos a la vez.
+     *
+     * @return true al reconectar; false si el usuario salió o se interrumpió el hilo.
+     */
+    private boolean reconectar() {
+        long espera = RECONEXION_INICIAL_MS;
+        while (!saliendo) {
+            try {
+                Thread.sleep(espera / 2 + ThreadLocalRandom.current().nextLong(espera / 2 + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            try {
+                reconectado = true;
+                abrirSocket();
+                presentarse();
+                return true;
+            } catch (IOException e) {
+                cerrarSocket();
+                espera = Math.min(espera * 2, RECONEXION_MAX_MS);
+            }
+        }
+        return false;
+    }
+
+    private void cerrarSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ya estaba cerrado.
+        }
+        if (descompresor != null) {
+            descompresor.end();
+            descompresor = null;
+        }
+    }
+
+    /**
+     * Guarda el token de la sesión. Si llega uno nuevo tras reconectar, el servidor no pudo
+     * reanudar la sesión anterior y la trata como nueva: hay que volver a entrar en las salas.
+     *
+     * @param token     Token recibido.
+     * @param reanudada true si el servidor reanudó la sesión anterior.
+     */
+    private void anotarToken(String token, boolean reanudada) {
+        tokenReanudacion = token;
+        if (reanudada) {
+            panelGeneral.anadir("Conexión recuperada.");
+        } else if (reconectado) {
+            for (String sala : panelesSala.keySet()) {
+                salida.unirseASala(sala);
+            }
+        }
+        reconectado = false;
+    }
+
+
+    /**
+     * Lee las líneas previas a la respuesta de la negociación (la solicitud del nombre)
+     * y activa el protocolo binario y la compresión que acepte el servidor.
+     */
+    private void negociarCapacidades() throws IOException {
+        String linea;
+        while ((linea = entrada.leerLinea(Trama.MAX_CARGA_SERVIDOR)) != null) {
+            if (linea.startsWith("[Capacidades]")) {
+                List<String> aceptadas = Arrays.asList(linea.substring(13).trim().split("\\s+"));
+                if (aceptadas.contains("binario")) {
+                    salida.activarBinario();
+                }
+                if (aceptadas.contains("deflate")) {
+                    Inflater nuevo = Compresion.nuevoDescompresor();
+                    descompresor = nuevo;
+                    entrada.envolver(flujo -> new InflaterInputStream(flujo, nuevo, 8192));
+                    salida.activarCompresion();
+                }
+                archivos.setServidor(direccion, aceptadas.contains("transferencia"));
+                return;
+            }
+            if (!reconectado) {
+                panelGeneral.anadir(linea); // Al reconectar, la solicitud del nombre sobra.
+            }
+        }
+        throw new IOException("Conexión cerrada durante la negociación");
+    }
+
+    /**
+     * Procesa una línea del protocolo de texto.
+     *
+     * @param mensaje Línea recibida, sin salto de línea.
+     */
+    private void procesarLinea(String mensaje) {
+        if (mensaje.startsWith("[Usuarios]")) {
+            actualizarListaUsuarios(mensaje.substring(10));
+        } else if (mensaje.startsWith("[Presencia]")) {
+            aplicarCambiosPresencia(mensaje.substring(11));
+        } else if (mensaje.startsWith("[Capacidades]")) {
+            // Respuesta de la negociación: nada que mostrar.
+        } else if (mensaje.equals("[Ping]")) {
+            salida.enviarPong();
+        } else if (mensaje.startsWith("[Reanudar]")) {
+            anotarToken(mensaje.substring(10), false);
+        } else if (mensaje.startsWith("[Reanudada]")) {
+            anotarToken(mensaje.substring(11), true);
+        } else if (mensaje.startsWith("[Entrega]")) {
+            mostrarEntrega(mensaje.substring(9));
+        } else if (mensaje.startsWith("[Transferencia]")) {
+            archivos.procesar(mensaje.substring(15));
+        } else if (mensaje.startsWith("[Privado] ")) {
+            manejarMensajePrivado(mensaje.substring(10));
+        } else if (mensaje.startsWith("[Sala] ")) {
+            manejarMensajeSala(mensaje.substring(7));
+        } else if (mensaje.startsWith("[Salas]")) {
+            actualizarSalas(mensaje.substring(7));
+        } else {
+            mostrarMensaje(mensaje);
+        }
+    }
+
+    /**
+     * Procesa una trama del protocolo binario: el tipo decide qué es, nunca el contenido.
+     *
+     * @param trama Trama recibida.
+     */
+    private void procesarTrama(Trama trama) {
+        String contenido = trama.getTexto();
+        switch (trama.getTipo()) {
+            case USUARIOS:
+                actualizarListaUsuarios(contenido);
+                break;
+            case PRESENCIA:
+                aplicarCambiosPresencia(contenido);
+                break;
+            case PRIVADO:
+                manejarMensajePrivado(contenido);
+                break;
+            case SALA:
+                manejarMensajeSala(contenido);
+                break;
+            case SALAS:
+                actualizarSalas(contenido);
+                break;
+            case PUBLICO:
+                ultimaSecuencia = trama.getSecuencia();
+                mostrarMensaje(contenido);
+                break;
+            case SISTEMA:
+                mostrarMensaje(contenido);
+                break;
+            case PING:
+                salida.enviarPong();
+                break;
+            case REANUDAR:
+                anotarToken(contenido, false);
+                break;
+            case REANUDADA:
+                anotarToken(contenido, true);
+                break;
+            case ENTREGA:
+                mostrarEntrega(contenido);
+                break;
+            case TRANSFERENCIA:
+                archivos.procesar(contenido);
+                break;
+            default:
+                break; // Tipos que solo envía el cliente: se ignoran.
+        }
+    }
 
     /**
-     * Envía un mensaje al servidor si el campo de mensaje no está vacío.
+     * Encola un mensaje para el área de chat, marcando los propios. Se llama desde el hilo lector.
+     *
+     * @param mensaje Mensaje a mostrar.
+     */
+    private void mostrarMensaje(String mensaje) {
+        panelGeneral.anadir(marcarPropio(mensaje));
+    }
+
+    private String marcarPropio(String mensaje) {
+        if (mensaje.startsWith(nombreUsuario + ":")) {
+            return "#Tú:" + mensaje.substring(nombreUsuario.length() + 1);
+        }
+        return mensaje;
+    }
+
+    /**
+     * Envía un mensaje al servidor si el campo de mensaje no está vacío: a la sala de la
+     * pestaña seleccionada o, en "General", tal cual (mensaje público o comando).
+     * Solo se encola, así que nunca espera al socket; si la cola está llena, el texto
+     * se queda en el campo para reintentarlo.
      */
     private void enviarMensaje() {
         String mensaje = campoMensaje.getText().trim();
         if (!mensaje.isEmpty()) {
-            salida.println(mensaje);
-            campoMensaje.setText(""); // Limpiar campo después de enviar
+            int pestana = pestanas.getSelectedIndex();
+            if (pestana == 0 && mensaje.equalsIgnoreCase("salir")) {
+                saliendo = true;
+            }
+            boolean encolado = pestana > 0
+                    ? salida.enviarSala(pestanas.getTitleAt(pestana), mensaje)
+                    : salida.enviarComando(mensaje);
+            if (encolado) {
+                campoMensaje.setText(""); // Limpiar campo después de enviar
+            }
         }
     }
 
     /**
-     * Actualiza la lista de usuarios conectados en la interfaz gráfica.
+     * Pide unirse a la sala escrita o elegida en el selector.
+     */
+    private void unirseASala() {
+        Object elegida = selectorSalas.getEditor().getItem();
+        String sala = elegida == null ? "" : elegida.toString().trim();
+        int dosPuntos = sala.indexOf(':'); // Las opciones de la lista llevan "sala:miembros".
+        if (dosPuntos > 0) {
+            sala = sala.substring(0, dosPuntos);
+        }
+        if (sala.isEmpty()) return;
+        if (panelesSala.containsKey(sala)) {
+            pestanas.setSelectedIndex(pestanas.indexOfTab(sala));
+        } else {
+            salida.unirseASala(sala);
+        }
+    }
+
+    /**
+     * Abandona la sala de la pestaña seleccionada y cierra la pestaña.
+     */
+    private void abandonarSalaActual() {
+        int pestana = pestanas.getSelectedIndex();
+        if (pestana <= 0) return;
+        String sala = pestanas.getTitleAt(pestana);
+        salida.abandonarSala(sala);
+        PanelLog panel = panelesSala.remove(sala);
+        if (panel != null) {
+            panel.detener();
+        }
+        pestanas.removeTabAt(pestana);
+    }
+
+    /**
+     * Encola un mensaje de sala para su pestaña, abriéndola si es el primero. Se llama desde el hilo lector.
+     *
+     * @param contenido Mensaje con el formato "sala usuario: texto".
+     */
+    private void manejarMensajeSala(String contenido) {
+        int espacio = contenido.indexOf(' ');
+        if (espacio <= 0) return;
+        String sala = contenido.substring(0, espacio);
+        String mensaje = marcarPropio(contenido.substring(espacio + 1));
+        PanelLog panel = panelesSala.get(sala);
+        if (panel != null) {
+            panel.anadir(mensaje);
+            return;
+        }
+        // La pestaña se crea en el EDT; mientras no exista, los mensajes pasan por él en orden.
+        SwingUtilities.invokeLater(() -> {
+            PanelLog nuevo = panelesSala.get(sala);
+            if (nuevo == null) {
+                nuevo = new PanelLog(LINEAS_CHAT, REFRESCO_CHAT_MS, false);
+                panelesSala.put(sala, nuevo);
+                pestanas.addTab(sala, nuevo);
+                pestanas.setSelectedIndex(pestanas.getTabCount() - 1);
+            }
+            nuevo.anadir(mensaje);
+        });
+    }
+
+    /**
+     * Rellena el selector con las salas abiertas, conservando lo que el usuario esté escribiendo.
+     *
+     * @param lista Salas en formato "sala1:miembros,sala2:miembros,..."
+     */
+    private void actualizarSalas(String lista) {
+        SwingUtilities.invokeLater(() -> {
+            Object escrito = selectorSalas.getEditor().getItem();
+            selectorSalas.removeAllItems();
+            for (String sala : lista.split(",")) {
+                if (!sala.isEmpty()) {
+                    selectorSalas.addItem(sala);
+                }
+            }
+            selectorSalas.getEditor().setItem(escrito);
+        });
+    }
+
+    /**
+     * Actualiza la lista de usuarios conectados en la interfaz gráfica a partir de una lista completa.
+     * Solo se quitan y añaden las diferencias, sin vaciar el modelo.
      * 
      * @param lista Lista de usuarios en formato "usuario1,usuario2,..."
      */
     private void actualizarListaUsuarios(String lista) {
         SwingUtilities.invokeLater(() -> {
-            modeloUsuarios.clear();
-            String[] usuarios = lista.split(",");
+            Set<String> usuarios = new HashSet<>(Arrays.asList(lista.split(",")));
+            usuarios.remove("");
+            usuarios.remove(nombreUsuario);
+            for (int i = modeloUsuarios.size() - 1; i >= 0; i--) {
+                if (!usuarios.remove(modeloUsuarios.get(i))) {
+                    modeloUsuarios.remove(i);
+                }
+            }
             for (String usuario : usuarios) {
-                if (!usuario.equals(nombreUsuario)) {
-                    modeloUsuarios.addElement(usuario);
+                modeloUsuarios.addElement(usuario);
+            }
+        });
+    }
+
+    /**
+     * Aplica altas y bajas de usuarios sobre la lista actual.
+     * 
+     * @param cambios Cambios en formato "+usuario1,-usuario2,..."
+     */
+    private void aplicarCambiosPresencia(String cambios) {
+        SwingUtilities.invokeLater(() -> {
+            for (String cambio : cambios.split(",")) {
+                if (cambio.length() < 2) continue;
+                String usuario = cambio.substring(1);
+                if (usuario.equals(nombreUsuario)) continue;
+                if (cambio.charAt(0) == '+') {
+                    if (!modeloUsuarios.contains(usuario)) {
+                        modeloUsuarios.addElement(usuario);
+                    }
+                } else if (cambio.charAt(0) == '-') {
+                    modeloUsuarios.removeElement(usuario);
                 }
             }
         });
@@ -188,31 +636,79 @@ public class ClienteChat extends JFrame {
     private void abrirChatPrivado(String usuarioDestino) {
         ClientePrivado chatPrivado = chatsPrivados.get(usuarioDestino);
         if (chatPrivado == null) {
-            chatPrivado = new ClientePrivado(usuarioDestino, salida);
+            chatPrivado = new ClientePrivado(usuarioDestino, salida, archivos);
             chatsPrivados.put(usuarioDestino, chatPrivado);
         }
         chatPrivado.setVisible(true);
     }
 
     /**
-     * Maneja la recepción de un mensaje privado.
+     * Maneja la recepción de un mensaje privado. Se llama desde el hilo lector; las ventanas
+     * privadas se crean y actualizan en el EDT.
      * 
-     * @param mensaje Mensaje recibido con el formato "[Privado] Usuario: contenido"
+     * @param mensaje Mensaje recibido con el formato "Usuario: contenido"
      */
     private void manejarMensajePrivado(String mensaje) {
-        String[] partes = mensaje.split(" ", 3);
-        if (partes.length < 3) return;
+        String[] partes = separarPrivado(mensaje);
+        if (partes == null) return;
 
-        String usuarioRemitente = partes[1].replace(":", ""); // Extraer nombre del remitente
-        String contenido = partes[2]; // Contenido del mensaje
+        String usuarioRemitente = partes[0]; // Extraer nombre del remitente
+        String contenido = partes[1]; // Contenido del mensaje
 
-        ClientePrivado chatPrivado = chatsPrivados.get(usuarioRemitente);
-        if (chatPrivado == null) {
-            chatPrivado = new ClientePrivado(usuarioRemitente, salida);
-            chatsPrivados.put(usuarioRemitente, chatPrivado);
-        }
-        chatPrivado.recibirMensajePrivado(usuarioRemitente + ": " + contenido);
-        chatPrivado.setVisible(true);
+        SwingUtilities.invokeLater(() -> {
+            ClientePrivado chatPrivado = chatsPrivados.get(usuarioRemitente);
+            if (chatPrivado == null) {
+                chatPrivado = new ClientePrivado(usuarioRemitente, salida, archivos);
+                chatsPrivados.put(usuarioRemitente, chatPrivado);
+            }
+            chatPrivado.recibirMensajePrivado(usuarioRemitente + ": " + contenido);
+            chatPrivado.setVisible(true);
+        });
+    }
+
+    /**
+     * Muestra en la ventana privada qué fue del último mensaje enviado, si no llegó en el acto.
+     * Se llama desde el hilo lector.
+     *
+     * @param estado Carga "estado destinatario" (entregado, guardado o rechazado).
+     */
+    private void mostrarEntrega(String estado) {
+        int espacio = estado.indexOf(' ');
+        if (espacio < 0 || estado.startsWith("entregado ")) return;
+        String destinatario = estado.substring(espacio + 1);
+        avisarUsuario(destinatario, estado.startsWith("guardado ")
+                ? "(" + destinatario + " no está conectado: lo recibirá al entrar)"
+                : "(No entregado: " + destinatario + " no está conectado y no se le puede guardar)");
+    }
+
+    /**
+     * Muestra un aviso sobre otro usuario en su ventana privada, si está abierta, o en la
+     * pestaña General. Se puede llamar desde cualquier hilo.
+     *
+     * @param usuario Usuario al que se refiere el aviso.
+     * @param aviso   Texto a mostrar.
+     */
+    private void avisarUsuario(String usuario, String aviso) {
+        SwingUtilities.invokeLater(() -> {
+            ClientePrivado chatPrivado = chatsPrivados.get(usuario);
+            if (chatPrivado != null) {
+                chatPrivado.recibirMensajePrivado(aviso);
+            } else {
+                panelGeneral.anadir(aviso); // Privado escrito con "@usuario" en la pestaña General.
+            }
+        });
+    }
+
+    /**
+     * Separa un mensaje privado "remitente: texto" en sus dos partes.
+     *
+     * @param mensaje Contenido del mensaje privado, sin el prefijo "[Privado] ".
+     * @return Remitente y texto, o null si falta el separador.
+     */
+    static String[] separarPrivado(String mensaje) {
+        int separador = mensaje.indexOf(": ");
+        if (separador < 0) return null;
+        return new String[] {mensaje.substring(0, separador), mensaje.substring(separador + 2)};
     }
 
     /**
@@ -1,9 +1,10 @@
 package cliente;
 
 import java.awt.BorderLayout;
-import java.io.PrintWriter;
+import java.awt.GridLayout;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
@@ -17,18 +18,22 @@ public class ClientePrivado extends JFrame {
     private JTextArea areaChatPrivado;
     private JTextField campoMensajePrivado;
     private JButton btnEnviarPrivado;
+    private JLabel etiquetaEnvio;
     private String usuarioDestino;
-    private PrintWriter salida;
+    private EmisorMensajes salida;
+    private TransferenciaArchivos archivos;
 
     /**
      * Constructor del chat privado.
      * 
      * @param usuarioDestino Usuario con el que se abrirá el chat privado.
-     * @param salida Flujo de salida para enviar mensajes al servidor.
+     * @param salida Emisor compartido para enviar mensajes al servidor.
+     * @param archivos Transferencias compartidas, para ofrecer archivos al usuario.
      */
-    public ClientePrivado(String usuarioDestino, PrintWriter salida) {
+    public ClientePrivado(String usuarioDestino, EmisorMensajes salida, TransferenciaArchivos archivos) {
         this.usuarioDestino = usuarioDestino;
         this.salida = salida;
+        this.archivos = archivos;
 
         // **Aplicar Estilos Correctos**
         EstilosUI.aplicarEstilosGenerales();
@@ -59,9 +64,18 @@ public class ClientePrivado extends JFrame {
 
         btnEnviarPrivado = new JButton("Enviar");
         EstilosUI.estilizarBoton(btnEnviarPrivado);
+        JButton btnArchivo = new JButton("Archivo...");
+        EstilosUI.estilizarBoton(btnArchivo);
+        JPanel botones = new JPanel(new GridLayout(1, 2));
+        botones.add(btnArchivo);
+        botones.add(btnEnviarPrivado);
+
+        etiquetaEnvio = new JLabel(salida.describirEstado());
+        EstilosUI.estilizarEtiqueta(etiquetaEnvio);
 
         panelInferior.add(campoMensajePrivado, BorderLayout.CENTER);
-        panelInferior.add(btnEnviarPrivado, BorderLayout.EAST);
+        panelInferior.add(botones, BorderLayout.EAST);
+        panelInferior.add(etiquetaEnvio, BorderLayout.SOUTH);
 
         panelPrincipal.add(panelInferior, BorderLayout.SOUTH);
 
@@ -70,16 +84,19 @@ public class ClientePrivado extends JFrame {
         // **Eventos para enviar mensajes privados**
         btnEnviarPrivado.addActionListener(e -> enviarMensajePrivado());
         campoMensajePrivado.addActionListener(e -> enviarMensajePrivado());
+        btnArchivo.addActionListener(e -> archivos.ofrecer(usuarioDestino));
+        // **Estado del envío compartido con la ventana principal**
+        salida.anadirEscucha(() -> etiquetaEnvio.setText(salida.describirEstado()));
     }
 
     /**
      * Envía un mensaje privado al usuario seleccionado.
-     * El mensaje se formatea con '@usuarioDestino mensaje' antes de enviarlo al servidor.
+     * En el protocolo de texto se formatea como '@usuarioDestino mensaje'; en el binario va en una trama privada.
+     * Si la cola de envío está llena, el texto se queda en el campo.
      */
     private void enviarMensajePrivado() {
         String mensaje = campoMensajePrivado.getText().trim();
-        if (!mensaje.isEmpty()) {
-            salida.println("@" + usuarioDestino + " " + mensaje);
+        if (!mensaje.isEmpty() && salida.enviarPrivado(usuarioDestino, mensaje)) {
             areaChatPrivado.append("Tú: " + mensaje + "\n"); // Agregar mensaje al área de chat
             campoMensajePrivado.setText(""); // Limpiar el campo después de enviar
         }
@@ -0,0 +1,469 @@
+package cliente;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.swing.SwingUtilities;
+
+import protocolo.Compresion;
+import protocolo.Trama;
+import protocolo.TipoTrama;
+
+/**
+ * Envía al servidor lo que escribe el usuario, en líneas de texto o en tramas binarias
+ * según lo negociado al conectar. Lo comparten la ventana principal y los chats privados.
+ * <p>
+ * Quien envía solo codifica el mensaje y lo deja en una cola acotada; un hilo propio la vacía
+ * y escribe todo lo pendiente con un único flush, así que un socket congestionado no bloquea
+ * la interfaz y varios mensajes seguidos salen en una sola escritura. Si la cola se llena,
+ * el mensaje no se acepta y la ventana puede conservar el texto para reintentarlo.
+ * <p>
+ * Sobrevive a las reconexiones: {@link #reconectar(OutputStream)} lo pasa al socket nuevo, así
+ * que las ventanas que lo comparten no tienen que enterarse. Desde que se pierde la conexión
+ * hasta que termina la presentación en la nueva, lo que envía el usuario no se acepta: así
+ * nada suyo llega al servidor antes que el nombre ni en un formato aún sin negociar.
+ */
+public class EmisorMensajes {
+
+    /** Mensajes que pueden esperar a salir; más allá se rechazan los nuevos. */
+    private static final int CAPACIDAD = Integer.getInteger("chat.cliente.colaEnvio", 256);
+    /** Marca en la cola: lo que venga detrás se comprime. */
+    private static final byte[] ACTIVAR_COMPRESION = new byte[0];
+
+    private final ArrayBlockingQueue<byte[]> cola = new ArrayBlockingQueue<>(CAPACIDAD);
+    /** Mensajes aceptados que aún no se han escrito en el socket (en la cola o en vuelo). */
+    private final AtomicInteger pendientes = new AtomicInteger();
+    private final AtomicLong rechazados = new AtomicLong();
+    private final List<Runnable> escuchas = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean avisoSolicitado = new AtomicBoolean(false);
+    /** Flujo del socket; solo lo usa el hilo escritor. */
+    private OutputStream salida;
+    /** Compresor de la conexión actual, o null; solo lo usa el hilo escritor. */
+    private Deflater compresor;
+    private Thread escritor;
+    private volatile boolean conectado = true;
+    /** La conexión actual ya envió su presentación: se aceptan los mensajes del usuario. */
+    private volatile boolean presentado = false;
+    private volatile boolean binario = false;
+
+    /**
+     * Constructor del emisor. Arranca el hilo que escribe en el socket.
+     *
+     * @param salida Flujo de salida del socket.
+     */
+    public EmisorMensajes(OutputStream salida) {
+        this.salida = new BufferedOutputStream(salida);
+        iniciarEscritor();
+    }
+
+    private void iniciarEscritor() {
+        escritor = new Thread(this::escribirPendientes, "chat-emisor");
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+
+    /**
+     * Pasa a escribir en el socket de una conexión nueva, que empieza sin negociar: en texto y
+     * sin comprimir. Lo que quedara pendiente para la anterior se descarta, porque iba
+     * codificado para ella, y cuenta como no enviado. Se llama con el socket anterior ya cerrado.
+     *
+     * @param salida Flujo de salida del socket nuevo.
+     * @return Mensajes descartados que no llegaron a salir.
+     */
+    public int reconectar(OutputStream salida) {
+        conectado = false;
+        presentado = false;
+        escritor.interrupt();
+        try {
+            escritor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        cola.clear();
+        int perdidos = pendientes.getAndSet(0);
+        rechazados.addAndGet(perdidos);
+        if (compresor != null) {
+            compresor.end();
+            compresor = null;
+        }
+        binario = false;
+        this.salida = new BufferedOutputStream(salida);
+        conectado = true;
+        iniciarEscritor();
+        avisar();
+        return perdidos;
+    }
+
+    /**
+     * Anota que la conexión se perdió: desde ahora no se acepta nada hasta reconectar. Lo llama
+     * el hilo lector al leer el cierre, porque el escritor, parado esperando mensajes, no lo nota.
+     */
+    public void desconectar() {
+        conectado = false;
+        avisar();
+    }
+
+    /**
+     * Anota que ya se encolaron la negociación y el nombre (o la reanudación) de la conexión
+     * actual: lo que envíe el usuario irá detrás y en el formato ya negociado.
+     */
+    public void marcarPresentado() {
+        presentado = true;
+        avisar();
+    }
+
+    /**
+     * A partir de ahora los mensajes se envían como tramas. Se llama al recibir la
+     * respuesta del servidor que acepta el protocolo binario.
+     */
+    public void activarBinario() {
+        binario = true;
+    }
+
+    /**
+     * A partir de ahora se comprime lo que se envía, con un vaciado síncrono tras cada lote
+     * para que el servidor lo reciba entero. Se llama al recibir la respuesta del servidor que
+     * acepta "deflate", antes de enviar nada más; lo ya encolado sale sin comprimir.
+     */
+    public void activarCompresion() {
+        try {
+            cola.put(ACTIVAR_COMPRESION);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isBinario() {
+        return binario;
+    }
+
+    /**
+     * Registra una acción que se ejecuta en el EDT cuando cambia el estado del envío
+     * (mensajes pendientes, rechazados o pérdida de la conexión). Los avisos seguidos se agrupan.
+     *
+     * @param escucha Acción a ejecutar; consulta el estado con los getters.
+     */
+    public void anadirEscucha(Runnable escucha) {
+        escuchas.add(escucha);
+    }
+
+    /**
+     * Mensajes aceptados que todavía no se han escrito en el socket.
+     *
+     * @return Número de mensajes pendientes.
+     */
+    public int getPendientes() {
+        return pendientes.get();
+    }
+
+    /**
+     * Mensajes que no se aceptaron porque la cola estaba llena o la conexión cerrada.
+     *
+     * @return Número de mensajes rechazados desde que se conectó.
+     */
+    public long getRechazados() {
+        return rechazados.get();
+    }
+
+    public boolean isConectado() {
+        return conectado;
+    }
+
+    /**
+     * Describe el estado del envío para mostrarlo bajo el campo de mensaje.
+     *
+     * @return Texto breve, o un espacio si todo se ha enviado.
+     */
+    public String describirEstado() {
+        StringBuilder estado = new StringBuilder();
+        if (!conectado) {
+            estado.append("Sin conexión");
+        } else if (!presentado) {
+            estado.append("Conectando...");
+        } else if (getPendientes() > 0) {
+            estado.append("Enviando ").append(getPendientes()).append(getPendientes() == 1 ? " mensaje..." : " mensajes...");
+        }
+        if (getRechazados() > 0) {
+            estado.append(estado.length() > 0 ? " · " : "").append("No enviados: ").append(getRechazados());
+        }
+        return estado.length() == 0 ? " " : estado.toString();
+    }
+
+    /**
+     * Encola una línea de texto tal cual; solo se usa durante la negociación.
+     *
+     * @param linea Línea sin salto de línea final.
+     * @return true si se encoló.
+     */
+    public boolean enviarLinea(String linea) {
+        return encolar(linea.concat("\n").getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    /**
+     * Envía el nombre de usuario propuesto.
+     *
+     * @param nombre Nombre de usuario.
+     * @return true si se encoló.
+     */
+    public boolean enviarNombre(String nombre) {
+        if (binario) {
+            return enviarTrama(TipoTrama.NOMBRE, nombre);
+        } else {
+            return enviarLinea(nombre);
+        }
+    }
+
+    /**
+     * Indica, antes del nombre, el último mensaje público recibido en una conexión anterior,
+     * para que el servidor solo reenvíe los que faltan.
+     *
+     * @param secuencia Número de secuencia del último mensaje recibido.
+     * @return true si se encoló.
+     */
+    public boolean enviarUltimaSecuencia(long secuencia) {
+        if (binario) {
+            return enviarTrama(TipoTrama.ULTIMA_SECUENCIA, secuencia, "");
+        } else {
+            return enviarLinea("[UltimaSecuencia] " + secuencia);
+        }
+    }
+
+    /**
+     * En lugar del nombre, pide reanudar la sesión de la conexión anterior. Si el token ya no
+     * vale, el servidor registra el nombre como en una conexión nueva.
+     *
+     * @param token  Token recibido del servidor en la conexión anterior.
+     * @param nombre Nombre de usuario.
+     * @return true si se encoló.
+     */
+    public boolean enviarReanudacion(String token, String nombre) {
+        if (binario) {
+            return enviarTrama(TipoTrama.REANUDAR, token + "\n" + nombre);
+        } else {
+            return enviarLinea(TipoTrama.REANUDAR.getPrefijoTexto() + token + " " + nombre);
+        }
+    }
+
+    /**
+     * Envía lo que el usuario escribió en la ventana principal. En el protocolo de texto
+     * el servidor interpreta "@usuario", "#sala", los comandos de salas y "salir"; en el
+     * binario se hace aquí y cada caso viaja con su propio tipo de trama.
+     *
+     * @param mensaje Texto escrito por el usuario.
+     * @return true si se encoló.
+     */
+    public boolean enviarComando(String mensaje) {
+        if (!binario) {
+            return enviarLineaUsuario(mensaje);
+        } else if (mensaje.equalsIgnoreCase("salir")) {
+            return enviarTramaUsuario(TipoTrama.SALIR, "");
+        } else if (mensaje.startsWith("@") && mensaje.indexOf(' ') > 1) {
+            int espacio = mensaje.indexOf(' ');
+            return enviarPrivado(mensaje.substring(1, espacio), mensaje.substring(espacio + 1));
+        } else if (mensaje.startsWith("#") && mensaje.indexOf(' ') > 1) {
+            int espacio = mensaje.indexOf(' ');
+            return enviarSala(mensaje.substring(1, espacio), mensaje.substring(espacio + 1));
+        } else if (mensaje.equalsIgnoreCase("/salas")) {
+            return pedirSalas();
+        } else if (mensaje.toLowerCase().startsWith("/unirse ")) {
+            return unirseASala(mensaje.substring(8).trim());
+        } else if (mensaje.toLowerCase().startsWith("/abandonar ")) {
+            return abandonarSala(mensaje.substring(11).trim());
+        } else {
+            return enviarTramaUsuario(TipoTrama.PUBLICO, mensaje);
+        }
+    }
+
+    /**
+     * Envía un mensaje privado.
+     *
+     * @param destinatario Usuario destinatario.
+     * @param mensaje      Texto del mensaje.
+     * @return true si se encoló.
+     */
+    public boolean enviarPrivado(String destinatario, String mensaje) {
+        if (binario) {
+            return enviarTramaUsuario(TipoTrama.PRIVADO, destinatario + "\n" + mensaje);
+        } else {
+            return enviarLineaUsuario("@" + destinatario + " " + mensaje);
+        }
+    }
+
+    /**
+     * Envía un mensaje a una sala de la que el usuario es miembro.
+     *
+     * @param sala    Nombre de la sala.
+     * @param mensaje Texto del mensaje.
+     * @return true si se encoló.
+     */
+    public boolean enviarSala(String sala, String mensaje) {
+        if (binario) {
+            return enviarTramaUsuario(TipoTrama.SALA, sala + "\n" + mensaje);
+        } else {
+            return enviarLineaUsuario("#" + sala + " " + mensaje);
+        }
+    }
+
+    /**
+     * Pide unirse a una sala; el servidor la crea si no existe.
+     *
+     * @param sala Nombre de la sala.
+     * @return true si se encoló.
+     */
+    public boolean unirseASala(String sala) {
+        if (binario) {
+            return enviarTramaUsuario(TipoTrama.UNIRSE, sala);
+        } else {
+            return enviarLineaUsuario("/unirse " + sala);
+        }
+    }
+
+    /**
+     * Abandona una sala.
+     *
+     * @param sala Nombre de la sala.
+     * @return true si se encoló.
+     */
+    public boolean abandonarSala(String sala) {
+        if (binario) {
+            return enviarTramaUsuario(TipoTrama.ABANDONAR, sala);
+        } else {
+            return enviarLineaUsuario("/abandonar " + sala);
+        }
+    }
+
+    /**
+     * Pide la lista de salas abiertas ("[Salas]").
+     *
+     * @return true si se encoló.
+     */
+    public boolean pedirSalas() {
+        if (binario) {
+            return enviarTramaUsuario(TipoTrama.SALAS, "");
+        } else {
+            return enviarLineaUsuario("/salas");
+        }
+    }
+
+    /**
+     * Responde al "[Ping]" con el que el servidor comprueba que el cliente sigue conectado.
+     *
+     * @return true si se encoló.
+     */
+    public boolean enviarPong() {
+        if (binario) {
+            return enviarTrama(TipoTrama.PONG, "");
+        } else {
+            return enviarLinea(TipoTrama.PONG.getPrefijoTexto());
+        }
+    }
+
+    /**
+     * Envía una orden de transferencia de archivo ("ofrecer ...", "aceptar token"...); los bytes
+     * del archivo no pasan por aquí.
+     *
+     * @param orden Orden con sus argumentos.
+     * @return true si se encoló.
+     */
+    public boolean enviarTransferencia(String orden) {
+        if (binario) {
+            return enviarTramaUsuario(TipoTrama.TRANSFERENCIA, orden);
+        } else {
+            return enviarLineaUsuario(TipoTrama.TRANSFERENCIA.getPrefijoTexto() + orden);
+        }
+    }
+
+    private boolean enviarTrama(TipoTrama tipo, String carga) {
+        return enviarTrama(tipo, 0, carga);
+    }
+
+    private boolean enviarTrama(TipoTrama tipo, long secuencia, String carga) {
+        return encolar(Trama.codificar(tipo, secuencia, carga), false);
+    }
+
+    private boolean enviarTramaUsuario(TipoTrama tipo, String carga) {
+        return encolar(Trama.codificar(tipo, 0, carga), true);
+    }
+
+    private boolean enviarLineaUsuario(String linea) {
+        return encolar(linea.concat("\n").getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    /**
+     * Deja un mensaje ya codificado en la cola sin esperar nunca.
+     *
+     * @param delUsuario Si lo envía el usuario: entonces espera a que acabe la presentación.
+     * @return false si la cola está llena, la conexión cerrada o aún sin presentar.
+     */
+    private boolean encolar(byte[] bytes, boolean delUsuario) {
+        if (!conectado || (delUsuario && !presentado) || !cola.offer(bytes)) {
+            rechazados.incrementAndGet();
+            avisar();
+            return false;
+        }
+        if (pendientes.incrementAndGet() == 1) {
+            avisar();
+        }
+        return true;
+    }
+
+    /**
+     * Bucle del hilo escritor: saca todo lo pendiente, lo escribe seguido y hace un solo flush.
+     */
+    private void escribirPendientes() {
+        List<byte[]> lote = new ArrayList<>();
+        try {
+            while (true) {
+                lote.add(cola.take());
+                cola.drainTo(lote);
+                int escritos = 0;
+                for (byte[] mensaje : lote) {
+                    if (mensaje == ACTIVAR_COMPRESION) {
+                        salida.flush();
+                        compresor = Compresion.nuevoCompresor(Deflater.BEST_SPEED);
+                        salida = new DeflaterOutputStream(salida, compresor, 1024, true);
+                    } else {
+                        salida.write(mensaje);
+                        escritos++;
+                    }
+                }
+                salida.flush();
+                pendientes.addAndGet(-escritos);
+                lote.clear();
+                avisar();
+            }
+        } catch (IOException e) {
+            // El hilo lector detecta el cierre de la conexión y lo muestra.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        conectado = false;
+        avisar();
+    }
+
+    /**
+     * Avisa a las escuchas en el EDT; si ya hay un aviso en camino, este se agrupa con él.
+     */
+    private void avisar() {
+        if (!escuchas.isEmpty() && avisoSolicitado.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                avisoSolicitado.set(false);
+                for (Runnable escucha : escuchas) {
+                    escucha.run();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package cliente;
+
+import java.awt.Component;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Envío y recepción de archivos. La oferta y las respuestas viajan por la conexión del chat
+ * ("[Transferencia]orden argumentos"); los bytes, por una conexión aparte al puerto de
+ * transferencias que indica el servidor al aceptarse la oferta, así que un archivo grande no
+ * retrasa los mensajes. Ambos lados copian entre el archivo y el socket con
+ * {@link FileChannel#transferTo} y {@link FileChannel#transferFrom}: el archivo nunca se carga
+ * entero en memoria.
+ * <p>
+ * Los avisos para el usuario se entregan a una función (usuario, texto) que puede llamarse
+ * desde cualquier hilo.
+ */
+public class TransferenciaArchivos {
+
+    /** Bytes que se piden de una vez al recibir. */
+    private static final long TROZO = 1024 * 1024;
+
+    /** Archivo ofrecido por este cliente. */
+    private static final class Envio {
+        final Path archivo;
+        final String destinatario;
+        final long tamano;
+
+        Envio(Path archivo, String destinatario, long tamano) {
+            this.archivo = archivo;
+            this.destinatario = destinatario;
+            this.tamano = tamano;
+        }
+    }
+
+    /** Archivo ofrecido a este cliente. */
+    private static final class Recepcion {
+        final String remitente;
+        final String archivo;
+        final long tamano;
+        /** Dónde guardarlo; lo elige el usuario al aceptar. */
+        volatile Path destino;
+
+        Recepcion(String remitente, String archivo, long tamano) {
+            this.remitente = remitente;
+            this.archivo = archivo;
+            this.tamano = tamano;
+        }
+    }
+
+    private final EmisorMensajes salida;
+    private final Component padre;
+    private final BiConsumer<String, String> avisos;
+    private volatile String direccion;
+    private volatile boolean disponible = false;
+    /** Ofertas enviadas que aún no tienen token: el servidor responde en el mismo orden. */
+    private final Queue<Envio> sinToken = new ConcurrentLinkedQueue<>();
+    private final Map<String, Envio> envios = new ConcurrentHashMap<>();
+    private final Map<String, Recepcion> recepciones = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor de las transferencias del cliente.
+     *
+     * @param salida Emisor compartido para enviar las órdenes al servidor.
+     * @param padre  Ventana sobre la que se muestran los diálogos.
+     * @param avisos Recibe (usuario, texto) para mostrarlo en su ventana privada o en la general.
+     */
+    public TransferenciaArchivos(EmisorMensajes salida, Component padre, BiConsumer<String, String> avisos) {
+        this.salida = salida;
+        this.padre = padre;
+        this.avisos = avisos;
+    }
+
+    /**
+     * Anota el servidor tras cada negociación. Las ofertas sin respuesta de la conexión anterior
+     * ya no la tendrán.
+     *
+     * @param direccion  Dirección del servidor; el puerto de transferencias llega con cada aceptación.
+     * @param disponible Si el servidor aceptó la capacidad "transferencia".
+     */
+    public void setServidor(String direccion, boolean disponible) {
+        this.direccion = direccion;
+        this.disponible = disponible;
+        sinToken.clear();
+    }
+
+    /**
+     * Pide un archivo al usuario y se lo ofrece a otro. Se llama desde el EDT.
+     *
+     * @param destinatario Usuario al que se ofrece.
+     */
+    public void ofrecer(String destinatario) {
+        if (!disponible) {
+            avisos.accept(destinatario, "(El servidor no admite el envío de archivos)");
+            return;
+        }
+        JFileChooser selector = new JFileChooser();
+        selector.setDialogTitle("Enviar archivo a " + destinatario);
+        if (selector.showOpenDialog(padre) != JFileChooser.APPROVE_OPTION) return;
+        File archivo = selector.getSelectedFile();
+        Envio envio = new Envio(archivo.toPath(), destinatario, archivo.length());
+        sinToken.add(envio);
+        if (!salida.enviarTransferencia("ofrecer " + envio.tamano + " " + destinatario + " " + archivo.getName())) {
+            sinToken.remove(envio);
+            avisos.accept(destinatario, "(No se pudo ofrecer " + archivo.getName() + ": la cola de envío está llena)");
+        }
+    }
+
+    /**
+     * Atiende una orden del servidor. Se llama desde el hilo lector.
+     *
+     * @param orden Carga de "[Transferencia]": "orden token argumentos".
+     */
+    public void procesar(String orden) {
+        String[] partes = orden.split(" ", 3);
+        if (partes.length < 2) return;
+        String token = partes[1];
+        String resto = partes.length == 3 ? partes[2] : "";
+        try {
+            atender(partes[0], token, resto);
+        } catch (NumberFormatException e) {
+            // Orden mal formada: se ignora sin cortar la lectura.
+        }
+    }
+
+    private void atender(String verbo, String token, String resto) {
+        switch (verbo) {
+            case "ofrecida": {
+                Envio envio = sinToken.poll();
+                if (envio != null) {
+                    envios.put(token, envio);
+                    avisos.accept(envio.destinatario, "(Ofreces " + envio.archivo.getFileName() + ", "
+                            + describirTamano(envio.tamano) + "; esperando respuesta)");
+                }
+                break;
+            }
+            case "oferta": {
+                // **"tamaño remitente archivo"**
+                String[] datos = resto.split(" ", 3);
+                if (datos.length < 3) break;
+                Recepcion recepcion = new Recepcion(datos[1], datos[2], Long.parseLong(datos[0]));
+                recepciones.put(token, recepcion);
+                SwingUtilities.invokeLater(() -> preguntar(token, recepcion));
+                break;
+            }
+            case "aceptada": {
+                int puerto = Integer.parseInt(resto.trim());
+                Envio envio = envios.get(token);
+                Recepcion recepcion = recepciones.get(token);
+                if (envio != null) {
+                    iniciarHilo(() -> subir(token, envio, puerto));
+                } else if (recepcion != null) {
+                    iniciarHilo(() -> bajar(token, recepcion, puerto));
+                }
+                break;
+            }
+            case "rechazada": {
+                Envio envio = envios.remove(token);
+                if (envio != null) {
+                    avisos.accept(envio.destinatario, "(" + envio.destinatario + " rechazó " + envio.archivo.getFileName() + ")");
+                }
+                break;
+            }
+            case "completada": {
+                Envio envio = envios.remove(token);
+                if (envio != null) {
+                    avisos.accept(envio.destinatario, "(" + envio.destinatario + " recibió " + envio.archivo.getFileName() + ")");
+                }
+                break; // Quien recibe lo anuncia al terminar de escribir el archivo.
+            }
+            case "fallida":
+                fallida(token, resto);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void fallida(String token, String motivo) {
+        if (token.equals("-")) {
+            // **La oferta más antigua sin respuesta no se admitió**
+            Envio envio = sinToken.poll();
+            if (envio != null) {
+                avisos.accept(envio.destinatario, "(No se pudo ofrecer " + envio.archivo.getFileName() + ": " + motivo + ")");
+            }
+            return;
+        }
+        Envio envio = envios.remove(token);
+        Recepcion recepcion = recepciones.remove(token);
+        if (envio != null) {
+            avisos.accept(envio.destinatario, "(Falló el envío de " + envio.archivo.getFileName() + ": " + motivo + ")");
+        } else if (recepcion != null) {
+            avisos.accept(recepcion.remitente, "(Falló la recepción de " + recepcion.archivo + ": " + motivo + ")");
+        }
+    }
+
+    /**
+     * Pregunta al usuario si acepta un archivo y dónde guardarlo. Se llama desde el EDT.
+     */
+    private void preguntar(String token, Recepcion recepcion) {
+        int respuesta = JOptionPane.showConfirmDialog(padre,
+                recepcion.remitente + " quiere enviarte \"" + recepcion.archivo + "\" (" + describirTamano(recepcion.tamano)
+                        + ").\n¿Aceptar?", "Archivo de " + recepcion.remitente, JOptionPane.YES_NO_OPTION);
+        File destino = null;
+        if (respuesta == JOptionPane.YES_OPTION) {
+            JFileChooser selector = new JFileChooser();
+            selector.setDialogTitle("Guardar archivo de " + recepcion.remitente);
+            selector.setSelectedFile(new File(recepcion.archivo));
+            if (selector.showSaveDialog(padre) == JFileChooser.APPROVE_OPTION) {
+                destino = selector.getSelectedFile();
+            }
+        }
+        if (!recepciones.containsKey(token)) {
+            return; // Caducó o se canceló mientras el usuario decidía.
+        }
+        if (destino == null) {
+            recepciones.remove(token);
+            salida.enviarTransferencia("rechazar " + token);
+        } else {
+            recepcion.destino = destino.toPath();
+            salida.enviarTransferencia("aceptar " + token);
+        }
+    }
+
+    /**
+     * Envía el archivo por el puerto de transferencias, del disco al socket sin pasar por el heap.
+     */
+    private void subir(String token, Envio envio, int puerto) {
+        try (SocketChannel canal = conectar(token, puerto);
+                FileChannel archivo = FileChannel.open(envio.archivo, StandardOpenOption.READ)) {
+            long enviados = 0;
+            while (enviados < envio.tamano) {
+                long n = archivo.transferTo(enviados, envio.tamano - enviados, canal);
+                if (n <= 0) throw new EOFException("el archivo se acortó mientras se enviaba");
+                enviados += n;
+            }
+        } catch (IOException e) {
+            if (envios.containsKey(token)) {
+                avisos.accept(envio.destinatario, "(Error enviando " + envio.archivo.getFileName() + ": " + e.getMessage() + ")");
+                salida.enviarTransferencia("cancelar " + token);
+            }
+        }
+    }
+
+    /**
+     * Recibe el archivo del puerto de transferencias directamente en el archivo de destino.
+     */
+    private void bajar(String token, Recepcion recepcion, int puerto) {
+        try (SocketChannel canal = conectar(token, puerto);
+                FileChannel archivo = FileChannel.open(recepcion.destino, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long recibidos = 0;
+            while (recibidos < recepcion.tamano) {
+                long n = archivo.transferFrom(canal, recibidos, Math.min(TROZO, recepcion.tamano - recibidos));
+                if (n == 0) throw new EOFException("la conexión se cerró antes de tiempo");
+                recibidos += n;
+            }
+            recepciones.remove(token);
+            avisos.accept(recepcion.remitente, "(Recibido " + recepcion.archivo + " de " + recepcion.remitente
+                    + ", guardado en " + recepcion.destino + ")");
+        } catch (IOException e) {
+            if (recepciones.remove(token) != null) {
+                avisos.accept(recepcion.remitente, "(Error recibiendo " + recepcion.archivo + ": " + e.getMessage() + ")");
+                salida.enviarTransferencia("cancelar " + token);
+            }
+        }
+    }
+
+    /**
+     * Abre la conexión de datos y se identifica con el token.
+     */
+    private SocketChannel conectar(String token, int puerto) throws IOException {
+        SocketChannel canal = SocketChannel.open(new InetSocketAddress(direccion, puerto));
+        ByteBuffer linea = ByteBuffer.wrap((token + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (linea.hasRemaining()) {
+            canal.write(linea);
+        }
+        return canal;
+    }
+
+    private static void iniciarHilo(Runnable tarea) {
+        Thread hilo = new Thread(tarea, "chat-archivo");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Tamaño legible: bytes, KB, MB o GB.
+     *
+     * @param bytes Tamaño en bytes.
+     * @return Texto como "12,5 MB".
+     */
+    static String describirTamano(long bytes) {
+        if (bytes < 1024) return bytes + " bytes";
+        String[] unidades = {"KB", "MB", "GB", "TB"};
+        double valor = bytes;
+        int unidad = -1;
+        do {
+            valor /= 1024;
+            unidad++;
+        } while (valor >= 1024 && unidad < unidades.length - 1);
+        return String.format("%.1f %s", valor, unidades[unidad]);
+    }
+}
@@ -0,0 +1,595 @@
+package persistencia;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+
+import protocolo.Trama;
+import protocolo.TipoTrama;
+
+/**
+ * Buzones en disco de los mensajes privados para usuarios sin conexión: un archivo por usuario,
+ * solo de añadidura, cuyos registros son el instante en que se guardó (8 bytes), la trama
+ * privada (ver {@link Trama}) y su CRC-32.
+ * <p>
+ * Un índice en memoria lleva, por buzón, cuántos mensajes y bytes tiene y cuándo se guardó el
+ * más antiguo: las cuotas se comprueban sin tocar el disco, saber si alguien tiene correo no
+ * cuesta nada y entregarlo es una sola lectura secuencial de su archivo. Al abrir se reconstruye
+ * recorriendo los archivos; un registro a medias o corrupto al final se descarta.
+ * <p>
+ * Guardar es una escritura al final del archivo, sin esperar al disco: como en el {@link Diario},
+ * un hilo aparte fuerza los buzones modificados cada pocos milisegundos. El mismo hilo purga los
+ * mensajes caducados, y solo visita los buzones cuyo mensaje más antiguo ya caducó.
+ */
+public class Buzones {
+
+    /** Resultado de {@link #guardar}. */
+    public enum Resultado {
+        /** El mensaje quedó en el buzón. */
+        GUARDADO,
+        /** El destinatario se conectó entretanto y se le entregó directamente. */
+        ENTREGADO,
+        /** Nombre demasiado largo o cuota agotada: el mensaje se pierde. */
+        RECHAZADO
+    }
+
+    /** Mensaje leído de un buzón. */
+    public static final class Guardado {
+        private final long guardadoMs;
+        private final long secuencia;
+        private final String texto;
+
+        Guardado(long guardadoMs, long secuencia, String texto) {
+            this.guardadoMs = guardadoMs;
+            this.secuencia = secuencia;
+            this.texto = texto;
+        }
+
+        /**
+         * Instante en que se guardó.
+         *
+         * @return Milisegundos desde la época.
+         */
+        public long getGuardadoMs() {
+            return guardadoMs;
+        }
+
+        public long getSecuencia() {
+            return secuencia;
+        }
+
+        /**
+         * Mensaje tal como se habría entregado.
+         *
+         * @return Texto "remitente: texto".
+         */
+        public String getTexto() {
+            return texto;
+        }
+    }
+
+    /** Entrada del índice; su cerrojo ordena las escrituras, la entrega y la purga de un buzón. */
+    private static final class Buzon {
+        final ReentrantLock lock = new ReentrantLock();
+        final Path ruta;
+        int mensajes;
+        /** Bytes válidos del archivo; lo que haya detrás es basura de un fallo anterior. */
+        long bytes;
+        long masAntiguoMs;
+        /** Ya se entregó o purgó entero y salió del índice; quien lo tuviera debe buscar otro. */
+        boolean borrado;
+
+        Buzon(Path ruta) {
+            this.ruta = ruta;
+        }
+    }
+
+    private static final String EXTENSION = ".buzon";
+    private static final int TAM_MARCA = 8;
+    private static final int TAM_CRC = 4;
+    /** Bytes de un nombre en UTF-8; el archivo lleva el doble, en hexadecimal. */
+    public static final int MAX_BYTES_NOMBRE = 100;
+
+    private final Path directorio;
+    private final int maxMensajes;
+    private final long maxBytes;
+    private final long maxBytesTotales;
+    private final int maxBuzones;
+    private final long caducidadMs;
+    private final boolean forzarAlEscribir;
+    private final Map<String, Buzon> buzones = new ConcurrentHashMap<>();
+    private final Set<Buzon> porForzar = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService mantenimiento;
+
+    private final AtomicLong bytesTotales = new AtomicLong();
+    private final AtomicLong mensajesTotales = new AtomicLong();
+    private final LongAdder guardados = new LongAdder();
+    private final LongAdder entregados = new LongAdder();
+    private final LongAdder caducados = new LongAdder();
+    private final LongAdder rechazados = new LongAdder();
+    private long recuperados = 0;
+
+    /**
+     * Abre (o crea) el directorio de buzones y reconstruye el índice.
+     *
+     * @param directorio      Directorio de los buzones.
+     * @param maxMensajes     Mensajes que caben en un buzón.
+     * @param maxBytes        Bytes que caben en un buzón.
+     * @param maxBytesTotales Bytes que caben entre todos los buzones.
+     * @param maxBuzones      Buzones con mensajes a la vez.
+     * @param caducidadMs     Tiempo que se guarda un mensaje; 0 = sin caducidad.
+     * @param intervaloSyncMs Cada cuánto se fuerzan a disco los cambios; 0 fuerza tras cada mensaje.
+     * @throws IOException Si no se puede crear o recorrer el directorio.
+     */
+    public Buzones(Path directorio, int maxMensajes, long maxBytes, long maxBytesTotales, int maxBuzones,
+                   long caducidadMs, long intervaloSyncMs) throws IOException {
+        this.directorio = directorio;
+        this.maxMensajes = maxMensajes;
+        this.maxBytes = maxBytes;
+        this.maxBytesTotales = maxBytesTotales;
+        this.maxBuzones = maxBuzones;
+        this.caducidadMs = caducidadMs;
+        this.forzarAlEscribir = intervaloSyncMs <= 0;
+        Files.createDirectories(directorio);
+        recuperar();
+
+        mantenimiento = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "chat-buzones");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        if (intervaloSyncMs > 0) {
+            mantenimiento.scheduleWithFixedDelay(this::forzar, intervaloSyncMs, intervaloSyncMs,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (caducidadMs > 0) {
+            // Un mensaje sigue como mucho una décima de su vida tras caducar, y nunca más de un minuto.
+            long intervaloPurga = Math.max(1000, Math.min(caducidadMs / 10, 60_000));
+            mantenimiento.scheduleWithFixedDelay(this::purgar, intervaloPurga, intervaloPurga,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Guarda un mensaje privado en el buzón de un usuario.
+     * <p>
+     * La alternativa se prueba con el cerrojo del buzón tomado, el mismo que toma
+     * {@link #recoger}, y solo si el buzón está vacío: si el usuario acaba de entrar y aún no
+     * ha recogido lo suyo, el mensaje se guarda detrás y lo recibe con los demás, en orden.
+     *
+     * @param usuario     Destinatario.
+     * @param secuencia   Número de secuencia del mensaje.
+     * @param texto       Mensaje "remitente: texto".
+     * @param alternativa Entrega directa; si devuelve true, no se guarda nada.
+     * @return Qué se hizo con el mensaje.
+     * @throws IOException Si no se puede escribir el buzón; entonces no se guardó nada.
+     */
+    public Resultado guardar(String usuario, long secuencia, String texto, BooleanSupplier alternativa)
+            throws IOException {
+        byte[] registro = codificar(System.currentTimeMillis(), secuencia, texto);
+        if (usuario.getBytes(StandardCharsets.UTF_8).length > MAX_BYTES_NOMBRE || registro.length > maxBytes) {
+            return sinGuardar(alternativa);
+        }
+        while (true) {
+            Buzon buzon = buzones.get(usuario);
+            if (buzon == null) {
+                if (buzones.size() >= maxBuzones) {
+                    return sinGuardar(alternativa);
+                }
+                buzon = buzones.computeIfAbsent(usuario, u -> new Buzon(directorio.resolve(nombreArchivo(u))));
+            }
+            buzon.lock.lock();
+            try {
+                if (buzon.borrado) continue; // Se recogió entretanto: se busca o se crea otro.
+                if (buzon.mensajes == 0 && alternativa.getAsBoolean()) {
+                    soltar(usuario, buzon);
+                    return Resultado.ENTREGADO;
+                }
+                boolean cabe = buzon.mensajes < maxMensajes && buzon.bytes + registro.length <= maxBytes;
+                if (!cabe || bytesTotales.addAndGet(registro.length) > maxBytesTotales) {
+                    if (cabe) {
+                        bytesTotales.addAndGet(-registro.length); // Solo faltaba espacio entre todos.
+                    }
+                    rechazados.increment();
+                    soltarSiVacio(usuario, buzon);
+                    return Resultado.RECHAZADO;
+                }
+                try {
+                    escribir(buzon.ruta, ByteBuffer.wrap(registro), buzon.bytes);
+                } catch (IOException e) {
+                    bytesTotales.addAndGet(-registro.length);
+                    soltarSiVacio(usuario, buzon);
+                    throw e;
+                }
+                if (buzon.mensajes == 0) {
+                    buzon.masAntiguoMs = leerMarca(registro);
+                }
+                buzon.mensajes++;
+                buzon.bytes += registro.length;
+                mensajesTotales.incrementAndGet();
+                guardados.increment();
+            } finally {
+                buzon.lock.unlock();
+            }
+            if (!forzarAlEscribir) {
+                porForzar.add(buzon);
+            }
+            return Resultado.GUARDADO;
+        }
+    }
+
+    /**
+     * Sin sitio para el mensaje: solo queda entregarlo si el usuario acaba de entrar.
+     */
+    private Resultado sinGuardar(BooleanSupplier alternativa) {
+        if (alternativa.getAsBoolean()) {
+            return Resultado.ENTREGADO;
+        }
+        rechazados.increment();
+        return Resultado.RECHAZADO;
+    }
+
+    /**
+     * Entrega el buzón de un usuario: una lectura secuencial del archivo, que se borra si todo
+     * se entregó y, si no, se reescribe con lo que quedó. La entrega se hace con el cerrojo del
+     * buzón tomado, así que ningún mensaje guardado o entregado en directo a la vez puede
+     * adelantarse a los del buzón.
+     *
+     * @param usuario Usuario que acaba de entrar.
+     * @param entrega Recibe los mensajes sin caducar, en el orden en que se guardaron, y devuelve
+     *                cuántos del principio aceptó; no se llama si no hay ninguno. Debe ser breve:
+     *                encolar, nunca esperar a la red.
+     * @return Mensajes entregados.
+     * @throws IOException Si no se puede leer o reescribir el buzón; entonces se conserva para otra vez.
+     */
+    public int recoger(String usuario, ToIntFunction<List<Guardado>> entrega) throws IOException {
+        Buzon buzon = buzones.get(usuario);
+        if (buzon == null) return 0;
+        buzon.lock.lock();
+        try {
+            if (buzon.borrado) return 0;
+            List<Guardado> leidos = new ArrayList<>(buzon.mensajes);
+            if (buzon.mensajes > 0) {
+                recorrer(leer(buzon.ruta, buzon.bytes), leidos);
+            }
+            List<Guardado> vigentes = sinCaducar(leidos, System.currentTimeMillis());
+            int aceptados = vigentes.isEmpty() ? 0 : Math.min(entrega.applyAsInt(vigentes), vigentes.size());
+            if (aceptados < vigentes.size()) {
+                reescribir(buzon, vigentes.subList(aceptados, vigentes.size()));
+            } else {
+                Files.deleteIfExists(buzon.ruta);
+                soltar(usuario, buzon);
+            }
+            caducados.add(leidos.size() - vigentes.size());
+            entregados.add(aceptados);
+            return aceptados;
+        } finally {
+            buzon.lock.unlock();
+        }
+    }
+
+    /**
+     * Indica si un usuario tiene mensajes guardados, sin tocar el disco.
+     *
+     * @param usuario Nombre del usuario.
+     * @return true si su buzón tiene algún mensaje.
+     */
+    public boolean tiene(String usuario) {
+        return buzones.containsKey(usuario);
+    }
+
+    /**
+     * Fuerza a disco los buzones escritos desde la última vez. Lo llama el hilo de mantenimiento.
+     */
+    public void forzar() {
+        for (Buzon buzon : porForzar) {
+            porForzar.remove(buzon);
+            try (FileChannel canal = FileChannel.open(buzon.ruta, StandardOpenOption.WRITE)) {
+                canal.force(false);
+            } catch (IOException e) {
+                // Se entregó y borró entretanto: ya no hay nada que forzar.
+            }
+        }
+    }
+
+    /**
+     * Quita de los buzones los mensajes caducados; un buzón que se queda vacío se borra.
+     */
+    void purgar() {
+        long ahora = System.currentTimeMillis();
+        for (Map.Entry<String, Buzon> entrada : buzones.entrySet()) {
+            Buzon buzon = entrada.getValue();
+            if (buzon.masAntiguoMs + caducidadMs > ahora) continue; // Lectura sin cerrojo: se repite dentro.
+            buzon.lock.lock();
+            try {
+                if (buzon.borrado || buzon.mensajes == 0 || buzon.masAntiguoMs + caducidadMs > ahora) continue;
+                List<Guardado> leidos = new ArrayList<>(buzon.mensajes);
+                recorrer(leer(buzon.ruta, buzon.bytes), leidos);
+                List<Guardado> vigentes = sinCaducar(leidos, ahora);
+                caducados.add(leidos.size() - vigentes.size());
+                if (vigentes.isEmpty()) {
+                    Files.deleteIfExists(buzon.ruta);
+                    soltar(entrada.getKey(), buzon);
+                    continue;
+                }
+                reescribir(buzon, vigentes);
+            } catch (IOException e) {
+                // Se reintenta en la próxima purga; entretanto el buzón sigue como estaba.
+            } finally {
+                buzon.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Detiene el hilo de mantenimiento y fuerza a disco lo pendiente.
+     */
+    public void cerrar() {
+        mantenimiento.shutdownNow();
+        forzar();
+    }
+
+    public Path getDirectorio() {
+        return directorio;
+    }
+
+    /**
+     * Mensajes guardados ahora mismo entre todos los buzones.
+     *
+     * @return Número de mensajes.
+     */
+    public long getMensajes() {
+        return mensajesTotales.get();
+    }
+
+    /**
+     * Bytes ocupados ahora mismo entre todos los buzones, marcas y CRC incluidos.
+     *
+     * @return Número de bytes.
+     */
+    public long getBytes() {
+        return bytesTotales.get();
+    }
+
+    /**
+     * Usuarios con algún mensaje guardado.
+     *
+     * @return Número de buzones.
+     */
+    public int getBuzones() {
+        return buzones.size();
+    }
+
+    public long getGuardados() {
+        return guardados.sum();
+    }
+
+    public long getEntregados() {
+        return entregados.sum();
+    }
+
+    public long getCaducados() {
+        return caducados.sum();
+    }
+
+    public long getRechazados() {
+        return rechazados.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "buzones=" + getBuzones() + ", mensajes=" + getMensajes() + ", bytes=" + getBytes()
+                + ", guardados=" + getGuardados() + ", entregados=" + getEntregados() + ", caducados="
+                + getCaducados() + ", rechazados=" + getRechazados() + ", recuperados=" + recuperados;
+    }
+
+    // **Archivos**
+
+    /**
+     * Reconstruye el índice con los buzones existentes y recorta la basura del final de cada uno.
+     */
+    private void recuperar() throws IOException {
+        List<Path> existentes = new ArrayList<>();
+        try (DirectoryStream<Path> flujo = Files.newDirectoryStream(directorio, "*" + EXTENSION)) {
+            for (Path ruta : flujo) {
+                existentes.add(ruta);
+            }
+        }
+        for (Path ruta : existentes) {
+            String usuario = usuarioDe(ruta);
+            if (usuario == null) continue; // No es de un buzón: no se toca.
+            List<Guardado> leidos = new ArrayList<>();
+            long valido = recorrer(leer(ruta, Files.size(ruta)), leidos);
+            if (leidos.isEmpty()) {
+                Files.deleteIfExists(ruta);
+                continue;
+            }
+            if (valido < Files.size(ruta)) {
+                try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.WRITE)) {
+                    canal.truncate(valido);
+                }
+            }
+            Buzon buzon = new Buzon(ruta);
+            buzon.mensajes = leidos.size();
+            buzon.bytes = valido;
+            buzon.masAntiguoMs = leidos.get(0).guardadoMs;
+            buzones.put(usuario, buzon);
+            bytesTotales.addAndGet(valido);
+            mensajesTotales.addAndGet(leidos.size());
+            recuperados += leidos.size();
+        }
+    }
+
+    /**
+     * Lee registros válidos desde el principio del búfer.
+     *
+     * @return Posición siguiente al último registro válido.
+     */
+    private static int recorrer(ByteBuffer datos, List<Guardado> leidos) {
+        CRC32 crc = new CRC32();
+        int posicion = 0;
+        int limite = datos.limit();
+        while (limite - posicion >= TAM_MARCA + Trama.TAM_CABECERA + TAM_CRC) {
+            if (datos.get(posicion + TAM_MARCA) != TipoTrama.PRIVADO.getCodigo()) break;
+            int longitud = datos.getInt(posicion + TAM_MARCA + 1);
+            int tamRegistro = TAM_MARCA + Trama.TAM_CABECERA + longitud + TAM_CRC;
+            if (longitud < 0 || tamRegistro > limite - posicion) break;
+
+            crc.reset();
+            ByteBuffer registro = datos.duplicate();
+            registro.limit(posicion + tamRegistro - TAM_CRC).position(posicion);
+            crc.update(registro);
+            if ((int) crc.getValue() != datos.getInt(posicion + tamRegistro - TAM_CRC)) break;
+
+            byte[] carga = new byte[longitud];
+            ByteBuffer texto = datos.duplicate();
+            texto.position(posicion + TAM_MARCA + Trama.TAM_CABECERA);
+            texto.get(carga);
+            leidos.add(new Guardado(datos.getLong(posicion), datos.getLong(posicion + TAM_MARCA + 5),
+                    new String(carga, StandardCharsets.UTF_8)));
+            posicion += tamRegistro;
+        }
+        return posicion;
+    }
+
+    /**
+     * Sustituye el archivo de un buzón por otro con solo los mensajes indicados.
+     */
+    private void reescribir(Buzon buzon, List<Guardado> vigentes) throws IOException {
+        ByteBuffer contenido = ByteBuffer.allocate((int) buzon.bytes);
+        for (Guardado guardado : vigentes) {
+            contenido.put(codificar(guardado.guardadoMs, guardado.secuencia, guardado.texto));
+        }
+        contenido.flip();
+        Path temporal = buzon.ruta.resolveSibling(buzon.ruta.getFileName() + ".tmp");
+        try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (contenido.hasRemaining()) {
+                canal.write(contenido);
+            }
+            canal.force(false);
+        }
+        Files.move(temporal, buzon.ruta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bytesTotales.addAndGet(contenido.limit() - buzon.bytes);
+        mensajesTotales.addAndGet(vigentes.size() - buzon.mensajes);
+        buzon.mensajes = vigentes.size();
+        buzon.bytes = contenido.limit();
+        buzon.masAntiguoMs = vigentes.get(0).guardadoMs;
+    }
+
+    /**
+     * Saca del índice un buzón vacío que se acaba de crear para un mensaje que al final no se guardó.
+     */
+    private void soltarSiVacio(String usuario, Buzon buzon) {
+        if (buzon.mensajes == 0) {
+            soltar(usuario, buzon);
+        }
+    }
+
+    /**
+     * Saca un buzón del índice y descuenta lo que ocupaba. Se llama con su cerrojo tomado.
+     */
+    private void soltar(String usuario, Buzon buzon) {
+        bytesTotales.addAndGet(-buzon.bytes);
+        mensajesTotales.addAndGet(-buzon.mensajes);
+        buzon.mensajes = 0;
+        buzon.bytes = 0;
+        buzon.borrado = true;
+        buzones.remove(usuario, buzon);
+        porForzar.remove(buzon);
+    }
+
+    private List<Guardado> sinCaducar(List<Guardado> leidos, long ahora) {
+        if (caducidadMs == 0) return leidos;
+        List<Guardado> vigentes = new ArrayList<>(leidos.size());
+        for (Guardado guardado : leidos) {
+            if (guardado.guardadoMs + caducidadMs > ahora) {
+                vigentes.add(guardado);
+            }
+        }
+        return vigentes;
+    }
+
+    private static byte[] codificar(long guardadoMs, long secuencia, String texto) {
+        byte[] trama = Trama.codificar(TipoTrama.PRIVADO, secuencia, texto);
+        ByteBuffer registro = ByteBuffer.allocate(TAM_MARCA + trama.length + TAM_CRC);
+        registro.putLong(guardadoMs).put(trama);
+        CRC32 crc = new CRC32();
+        crc.update(registro.array(), 0, registro.position());
+        registro.putInt((int) crc.getValue());
+        return registro.array();
+    }
+
+    private static long leerMarca(byte[] registro) {
+        return ByteBuffer.wrap(registro).getLong(0);
+    }
+
+    private static ByteBuffer leer(Path ruta, long bytes) throws IOException {
+        ByteBuffer contenido = ByteBuffer.allocate((int) bytes);
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+            while (contenido.hasRemaining() && canal.read(contenido) >= 0) {
+                // Una sola pasada secuencial; read() puede devolver menos de lo pedido.
+            }
+        }
+        contenido.flip();
+        return contenido;
+    }
+
+    private void escribir(Path ruta, ByteBuffer registro, long posicion) throws IOException {
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long destino = posicion;
+            while (registro.hasRemaining()) {
+                destino += canal.write(registro, destino);
+            }
+            if (forzarAlEscribir) {
+                canal.force(false);
+            }
+        }
+    }
+
+    /**
+     * Nombre del archivo de un usuario: su nombre en UTF-8 y hexadecimal, que vale en cualquier
+     * sistema de archivos y distingue mayúsculas.
+     */
+    private static String nombreArchivo(String usuario) {
+        StringBuilder nombre = new StringBuilder();
+        for (byte b : usuario.getBytes(StandardCharsets.UTF_8)) {
+            nombre.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return nombre.append(EXTENSION).toString();
+    }
+
+    private static String usuarioDe(Path ruta) {
+        String nombre = ruta.getFileName().toString();
+        String hexadecimal = nombre.substring(0, nombre.length() - EXTENSION.length());
+        if (hexadecimal.isEmpty() || hexadecimal.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hexadecimal.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int alto = Character.digit(hexadecimal.charAt(2 * i), 16);
+            int bajo = Character.digit(hexadecimal.charAt(2 * i + 1), 16);
+            if (alto < 0 || bajo < 0) return null;
+            bytes[i] = (byte) (alto << 4 | bajo);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
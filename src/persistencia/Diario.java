@@ -0,0 +1,334 @@
+package persistencia;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import protocolo.Trama;
+import protocolo.TipoTrama;
+
+/**
+ * Diario de mensajes en disco, solo de añadidura. Cada registro es una trama binaria
+ * (ver {@link Trama}) seguida de su CRC-32, escrita en un segmento proyectado en memoria.
+ * <p>
+ * Anotar un mensaje es solo una copia en memoria: un hilo aparte fuerza los segmentos a disco
+ * cada pocos milisegundos (confirmación agrupada), así que el fsync se reparte entre todos los
+ * mensajes de ese intervalo y no añade latencia a la difusión. Si el proceso muere se pierde
+ * como mucho ese intervalo; si muere la máquina, lo que el sistema no hubiera escrito aún.
+ * <p>
+ * Cuando un registro no cabe en el segmento actual se abre otro, y solo se conservan los
+ * últimos segmentos configurados. Al abrir el diario se recorren los segmentos existentes
+ * para recuperar la última secuencia y el punto donde seguir escribiendo; un registro
+ * a medias o corrupto al final marca el final del diario.
+ */
+public class Diario {
+
+    private static final String EXTENSION = ".diario";
+    private static final int TAM_CRC = 4;
+    /** Tamaño mínimo de segmento, para que siempre quepa un mensaje de tamaño máximo. */
+    public static final int TAM_SEGMENTO_MINIMO = 1024 * 1024;
+
+    private final Path directorio;
+    private final int tamSegmento;
+    private final int maxSegmentos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private final Deque<Path> segmentos = new ArrayDeque<>();
+    private final List<MappedByteBuffer> porForzar = new ArrayList<>();
+    private final ScheduledExecutorService sincronizador;
+
+    private MappedByteBuffer actual;
+    private long indiceActual;
+    private long ultimaSecuencia = 0;
+    private boolean sucio = false;
+    private boolean cerrado = false;
+
+    private long registros = 0;
+    private long bytes = 0;
+    private long sincronizaciones = 0;
+    private long registrosRecuperados = 0;
+
+    /**
+     * Abre (o crea) el diario y recupera su estado.
+     *
+     * @param directorio      Directorio de los segmentos.
+     * @param tamSegmento     Tamaño de cada segmento en bytes.
+     * @param maxSegmentos    Número de segmentos que se conservan; los más antiguos se borran.
+     * @param intervaloSyncMs Cada cuánto se fuerzan a disco los cambios; 0 fuerza tras cada mensaje.
+     * @throws IOException Si no se puede crear el directorio o proyectar un segmento.
+     */
+    public Diario(Path directorio, int tamSegmento, int maxSegmentos, long intervaloSyncMs) throws IOException {
+        this.directorio = directorio;
+        this.tamSegmento = Math.max(TAM_SEGMENTO_MINIMO, tamSegmento);
+        this.maxSegmentos = Math.max(1, maxSegmentos);
+        Files.createDirectories(directorio);
+        recuperar();
+
+        if (intervaloSyncMs > 0) {
+            sincronizador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread hilo = new Thread(r, "chat-diario");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            sincronizador.scheduleWithFixedDelay(this::forzar, intervaloSyncMs, intervaloSyncMs,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            sincronizador = null;
+        }
+    }
+
+    /**
+     * Añade una trama al diario.
+     *
+     * @param trama Trama binaria ya codificada (cabecera y carga).
+     * @throws IOException Si el diario está cerrado o no se puede abrir un segmento nuevo.
+     */
+    public void anotar(byte[] trama) throws IOException {
+        lock.lock();
+        try {
+            if (cerrado) throw new IOException("Diario cerrado");
+            int tamRegistro = trama.length + TAM_CRC;
+            if (tamRegistro > tamSegmento) {
+                throw new IOException("Mensaje de " + trama.length + " bytes, mayor que un segmento");
+            }
+            if (actual.remaining() < tamRegistro) {
+                rotar();
+            }
+            crc.reset();
+            crc.update(trama, 0, trama.length);
+            actual.put(trama);
+            actual.putInt((int) crc.getValue());
+            if (actual.hasRemaining()) {
+                actual.put(actual.position(), (byte) 0); // Marca de fin por si quedan restos de antes.
+            }
+            ultimaSecuencia = Math.max(ultimaSecuencia, leerSecuencia(trama));
+            registros++;
+            bytes += tamRegistro;
+            sucio = true;
+        } finally {
+            lock.unlock();
+        }
+        if (sincronizador == null) {
+            forzar();
+        }
+    }
+
+    /**
+     * Fuerza a disco todo lo anotado hasta ahora. Lo llama el hilo de sincronización.
+     */
+    public void forzar() {
+        List<MappedByteBuffer> pendientes;
+        lock.lock();
+        try {
+            if (!sucio && porForzar.isEmpty()) return;
+            pendientes = new ArrayList<>(porForzar);
+            porForzar.clear();
+            if (sucio && !cerrado) {
+                pendientes.add(actual);
+            }
+            sucio = false;
+            sincronizaciones++;
+        } finally {
+            lock.unlock();
+        }
+        // Fuera del cerrojo: quien difunde sigue anotando mientras el disco trabaja.
+        for (MappedByteBuffer segmento : pendientes) {
+            segmento.force();
+        }
+    }
+
+    /**
+     * Detiene el hilo de sincronización y fuerza a disco lo pendiente.
+     */
+    public void cerrar() {
+        if (sincronizador != null) {
+            sincronizador.shutdownNow();
+        }
+        forzar();
+        lock.lock();
+        try {
+            cerrado = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mayor número de secuencia anotado, incluidos los recuperados al abrir.
+     *
+     * @return Última secuencia, 0 si el diario está vacío.
+     */
+    public long getUltimaSecuencia() {
+        lock.lock();
+        try {
+            return ultimaSecuencia;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Path getDirectorio() {
+        return directorio;
+    }
+
+    /**
+     * Bytes anotados desde que se abrió el diario, CRC incluido.
+     *
+     * @return Número de bytes.
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Veces que se forzó el diario a disco. Con la confirmación agrupada es mucho menor
+     * que el número de registros.
+     *
+     * @return Número de sincronizaciones.
+     */
+    public long getSincronizaciones() {
+        lock.lock();
+        try {
+            return sincronizaciones;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "registros=" + registros + ", bytes=" + bytes + ", sincronizaciones=" + sincronizaciones
+                    + ", recuperados=" + registrosRecuperados + ", segmentos=" + segmentos.size()
+                    + ", última secuencia=" + ultimaSecuencia;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // **Segmentos**
+
+    /**
+     * Recorre los segmentos existentes y deja abierto el último en su primera posición libre.
+     */
+    private void recuperar() throws IOException {
+        List<Path> existentes = new ArrayList<>();
+        try (DirectoryStream<Path> flujo = Files.newDirectoryStream(directorio, "*" + EXTENSION)) {
+            for (Path segmento : flujo) {
+                existentes.add(segmento);
+            }
+        }
+        Collections.sort(existentes); // Los nombres llevan el índice con ceros a la izquierda.
+        segmentos.addAll(existentes);
+
+        if (existentes.isEmpty()) {
+            indiceActual = 0;
+            abrirSegmento(1);
+            return;
+        }
+        for (int i = 0; i < existentes.size() - 1; i++) {
+            try (FileChannel canal = FileChannel.open(existentes.get(i))) {
+                recorrer(canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size()));
+            }
+        }
+        Path ultimo = existentes.get(existentes.size() - 1);
+        indiceActual = indiceDe(ultimo);
+        actual = proyectar(ultimo, Math.max(Files.size(ultimo), tamSegmento));
+        actual.position(recorrer(actual.duplicate()));
+    }
+
+    /**
+     * Lee registros válidos desde el principio del búfer.
+     *
+     * @return Posición siguiente al último registro válido.
+     */
+    private int recorrer(ByteBuffer segmento) {
+        int posicion = 0;
+        int limite = segmento.limit();
+        while (limite - posicion >= Trama.TAM_CABECERA + TAM_CRC) {
+            TipoTrama tipo = TipoTrama.desdeCodigo(segmento.get(posicion));
+            if (tipo == null) break; // 0 = fin del diario; cualquier otro código, basura.
+            int longitud = segmento.getInt(posicion + 1);
+            int tamRegistro = Trama.TAM_CABECERA + longitud + TAM_CRC;
+            if (longitud < 0 || tamRegistro > limite - posicion) break;
+
+            crc.reset();
+            ByteBuffer trama = segmento.duplicate();
+            trama.limit(posicion + tamRegistro - TAM_CRC).position(posicion);
+            crc.update(trama);
+            if ((int) crc.getValue() != segmento.getInt(posicion + tamRegistro - TAM_CRC)) break;
+
+            ultimaSecuencia = Math.max(ultimaSecuencia, segmento.getLong(posicion + 5));
+            registrosRecuperados++;
+            posicion += tamRegistro;
+        }
+        return posicion;
+    }
+
+    /**
+     * Cierra el segmento actual (se fuerza en la próxima sincronización), abre el siguiente
+     * y borra los que sobran.
+     */
+    private void rotar() throws IOException {
+        if (actual.hasRemaining()) {
+            actual.put(actual.position(), (byte) 0);
+        }
+        porForzar.add(actual);
+        abrirSegmento(indiceActual + 1);
+        while (segmentos.size() > maxSegmentos) {
+            Files.deleteIfExists(segmentos.removeFirst());
+        }
+    }
+
+    private void abrirSegmento(long indice) throws IOException {
+        Path ruta = directorio.resolve(String.format("%020d%s", indice, EXTENSION));
+        actual = proyectar(ruta, tamSegmento);
+        indiceActual = indice;
+        segmentos.addLast(ruta);
+    }
+
+    private static MappedByteBuffer proyectar(Path ruta, long tamano) throws IOException {
+        try (RandomAccessFile archivo = new RandomAccessFile(ruta.toFile(), "rw")) {
+            // La proyección sigue siendo válida después de cerrar el archivo.
+            return archivo.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, tamano);
+        }
+    }
+
+    private static long indiceDe(Path segmento) {
+        String nombre = segmento.getFileName().toString();
+        try {
+            return Long.parseLong(nombre.substring(0, nombre.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long leerSecuencia(byte[] trama) {
+        long secuencia = 0;
+        for (int i = 5; i < Trama.TAM_CABECERA; i++) {
+            secuencia = (secuencia << 8) | (trama[i] & 0xFF);
+        }
+        return secuencia;
+    }
+}
@@ -0,0 +1,52 @@
+package protocolo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión opcional del flujo de una conexión, negociada con la capacidad "deflate".
+ * <p>
+ * Tras la respuesta a la negociación, cada sentido es un único flujo DEFLATE sin cabeceras
+ * que dura lo que la conexión: la ventana de 32 KB se conserva entre mensajes, así que los
+ * nombres y prefijos que se repiten salen casi gratis. Cada lote de mensajes termina con un
+ * vaciado síncrono ({@link Deflater#SYNC_FLUSH}), de modo que el otro extremo puede
+ * descomprimirlo entero sin esperar al siguiente. Ambos lados arrancan con el mismo
+ * diccionario de textos habituales del protocolo, para que también los primeros mensajes
+ * se compriman bien.
+ */
+public final class Compresion {
+
+    /** Textos frecuentes del protocolo; los más habituales van al final, a menor distancia. */
+    private static final byte[] DICCIONARIO = (
+            "[Salas] se ha unido a la sala. ha salido de la sala.[Sala] [Privado] "
+                    + "Bienvenido al chat, ! Puedes escribir mensajes.[Usuarios][Presencia]+-,"
+                    + "Servidor:  ha salido del chat.")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Compresion() {
+    }
+
+    /**
+     * Crea el compresor de un sentido de la conexión, ya cargado con el diccionario.
+     *
+     * @param nivel Nivel de compresión de {@link Deflater} (1 es el más rápido).
+     * @return Compresor DEFLATE sin cabeceras; hay que liberarlo con {@link Deflater#end()}.
+     */
+    public static Deflater nuevoCompresor(int nivel) {
+        Deflater compresor = new Deflater(nivel, true);
+        compresor.setDictionary(DICCIONARIO);
+        return compresor;
+    }
+
+    /**
+     * Crea el descompresor de un sentido de la conexión, ya cargado con el diccionario.
+     *
+     * @return Descompresor DEFLATE sin cabeceras; hay que liberarlo con {@link Inflater#end()}.
+     */
+    public static Inflater nuevoDescompresor() {
+        Inflater descompresor = new Inflater(true);
+        descompresor.setDictionary(DICCIONARIO);
+        return descompresor;
+    }
+}
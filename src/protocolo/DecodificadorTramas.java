@@ -0,0 +1,58 @@
+package protocolo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodificador incremental de tramas para el motor NIO: se le entregan los bytes según
+ * llegan y avisa cuando tiene una trama completa. La cabecera se acumula en un array fijo;
+ * solo se reserva memoria para la carga.
+ */
+public class DecodificadorTramas {
+
+    private final int maxCarga;
+    private final byte[] cabecera = new byte[Trama.TAM_CABECERA];
+    private int cabeceraLeida = 0;
+    private byte[] carga;
+    private int cargaLeida = 0;
+
+    /**
+     * Constructor del decodificador.
+     *
+     * @param maxCarga Carga máxima admitida por trama.
+     */
+    public DecodificadorTramas(int maxCarga) {
+        this.maxCarga = maxCarga;
+    }
+
+    /**
+     * Consume bytes del búfer hasta completar una trama o agotarlo.
+     *
+     * @param origen  Búfer con los bytes recibidos (en modo lectura).
+     * @param destino Trama a rellenar cuando esté completa.
+     * @return true si {@code destino} contiene una trama completa.
+     * @throws ProtocoloException Si la cabecera no es válida.
+     */
+    public boolean alimentar(ByteBuffer origen, Trama destino) throws ProtocoloException {
+        if (carga == null) {
+            int copiar = Math.min(Trama.TAM_CABECERA - cabeceraLeida, origen.remaining());
+            origen.get(cabecera, cabeceraLeida, copiar);
+            cabeceraLeida += copiar;
+            if (cabeceraLeida < Trama.TAM_CABECERA) {
+                return false;
+            }
+            carga = new byte[destino.leerCabecera(cabecera, 0, maxCarga)];
+            cargaLeida = 0;
+        }
+
+        int copiar = Math.min(carga.length - cargaLeida, origen.remaining());
+        origen.get(carga, cargaLeida, copiar);
+        cargaLeida += copiar;
+        if (cargaLeida < carga.length) {
+            return false;
+        }
+        destino.setCarga(carga);
+        carga = null;
+        cabeceraLeida = 0;
+        return true;
+    }
+}
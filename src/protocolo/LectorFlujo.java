@@ -0,0 +1,143 @@
+package protocolo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+/**
+ * Lector bloqueante que sabe leer tanto líneas de texto como tramas binarias del mismo flujo.
+ * A diferencia de {@link java.io.BufferedReader}, no convierte por adelantado bytes a caracteres,
+ * así que se puede pasar de texto a binario justo después de la negociación sin perder datos.
+ * Las líneas tienen longitud máxima para que un cliente no pueda hacer crecer el búfer sin límite.
+ */
+public class LectorFlujo {
+
+    private InputStream entrada;
+    private final byte[] buffer;
+    private int posicion = 0;
+    private int limite = 0;
+    private long lecturas = 0;
+    private byte[] linea = new byte[128];
+    private final byte[] cabecera = new byte[Trama.TAM_CABECERA];
+
+    /**
+     * Constructor del lector.
+     *
+     * @param entrada   Flujo de entrada del socket.
+     * @param tamBuffer Tamaño del búfer interno.
+     */
+    public LectorFlujo(InputStream entrada, int tamBuffer) {
+        this.entrada = entrada;
+        this.buffer = new byte[tamBuffer];
+    }
+
+    /**
+     * Lee una línea terminada en '\n' (se descarta un '\r' final).
+     *
+     * @param maxBytes Longitud máxima admitida.
+     * @return Línea leída, o null al llegar al final del flujo.
+     * @throws ProtocoloException Si la línea supera la longitud máxima.
+     * @throws IOException        Si falla la lectura.
+     */
+    public String leerLinea(int maxBytes) throws IOException {
+        int longitud = 0;
+        while (true) {
+            if (posicion == limite && !rellenar()) {
+                return longitud == 0 ? null : decodificar(longitud);
+            }
+            byte b = buffer[posicion++];
+            if (b == '\n') {
+                return decodificar(longitud);
+            }
+            if (longitud == maxBytes) {
+                throw new ProtocoloException("Línea de más de " + maxBytes + " bytes");
+            }
+            if (longitud == linea.length) {
+                linea = Arrays.copyOf(linea, Math.min(linea.length * 2, maxBytes));
+            }
+            linea[longitud++] = b;
+        }
+    }
+
+    /**
+     * Lee una trama completa.
+     *
+     * @param destino  Trama que se rellena con la cabecera y la carga leídas.
+     * @param maxCarga Carga máxima admitida.
+     * @return false al llegar al final del flujo entre tramas.
+     * @throws ProtocoloException Si la cabecera no es válida.
+     * @throws IOException        Si falla la lectura o el flujo se corta a mitad de trama.
+     */
+    public boolean leerTrama(Trama destino, int maxCarga) throws IOException {
+        if (posicion == limite && !rellenar()) {
+            return false;
+        }
+        leerCompleto(cabecera, 0, Trama.TAM_CABECERA);
+        int longitud = destino.leerCabecera(cabecera, 0, maxCarga);
+        byte[] carga = new byte[longitud];
+        leerCompleto(carga, 0, longitud);
+        destino.setCarga(carga);
+        return true;
+    }
+
+    /**
+     * Interpone un filtro entre el flujo y el lector, por ejemplo el descompresor que se
+     * activa tras la negociación. Los bytes que ya estaban en el búfer también pasan por él.
+     *
+     * @param filtro Recibe el flujo de entrada actual y devuelve el que se leerá desde ahora.
+     */
+    public void envolver(UnaryOperator<InputStream> filtro) {
+        InputStream actual = entrada;
+        if (posicion < limite) {
+            actual = new SequenceInputStream(
+                    new ByteArrayInputStream(Arrays.copyOfRange(buffer, posicion, limite)), actual);
+        }
+        entrada = filtro.apply(actual);
+        posicion = 0;
+        limite = 0;
+    }
+
+    /**
+     * Número de veces que se ha leído del flujo para rellenar el búfer.
+     *
+     * @return Lecturas desde que se creó el lector.
+     */
+    public long getLecturas() {
+        return lecturas;
+    }
+
+    private void leerCompleto(byte[] destino, int desde, int cantidad) throws IOException {
+        while (cantidad > 0) {
+            if (posicion == limite && !rellenar()) {
+                throw new ProtocoloException("Conexión cerrada a mitad de trama");
+            }
+            int copiar = Math.min(cantidad, limite - posicion);
+            System.arraycopy(buffer, posicion, destino, desde, copiar);
+            posicion += copiar;
+            desde += copiar;
+            cantidad -= copiar;
+        }
+    }
+
+    private boolean rellenar() throws IOException {
+        int leidos = entrada.read(buffer, 0, buffer.length);
+        if (leidos <= 0) {
+            return false;
+        }
+        posicion = 0;
+        limite = leidos;
+        lecturas++;
+        return true;
+    }
+
+    private String decodificar(int longitud) {
+        if (longitud > 0 && linea[longitud - 1] == '\r') {
+            longitud--;
+        }
+        return new String(linea, 0, longitud, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,16 @@
+package protocolo;
+
+import java.io.IOException;
+
+/**
+ * Error de protocolo: trama mal formada, tipo desconocido o línea/trama demasiado larga.
+ * La conexión que lo produce debe cerrarse.
+ */
+public class ProtocoloException extends IOException {
+
+    private static final long serialVersionUID = 4807137356405722194L;
+
+    public ProtocoloException(String mensaje) {
+        super(mensaje);
+    }
+}
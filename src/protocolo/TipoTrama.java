@@ -0,0 +1,122 @@
+package protocolo;
+
+/**
+ * Tipos de trama del protocolo binario. El tipo viaja en la cabecera, así que el contenido
+ * de un mensaje nunca se interpreta como control aunque empiece por "[Privado]" o "[Usuarios]".
+ * <p>
+ * Cada tipo del servidor lleva además el prefijo que tenía en el protocolo de texto, para que
+ * un mismo mensaje se pueda codificar en ambos formatos.
+ */
+public enum TipoTrama {
+
+    // **Servidor → cliente**
+    /** Avisos del servidor: solicitud de nombre, bienvenida, errores. */
+    SISTEMA(1, ""),
+    /** Mensaje público "usuario: texto". */
+    PUBLICO(2, ""),
+    /** Mensaje privado "remitente: texto" (o, del cliente al servidor, "destinatario\ntexto"). */
+    PRIVADO(3, "[Privado] "),
+    /** Lista completa de usuarios "a,b,c,". */
+    USUARIOS(4, "[Usuarios]"),
+    /** Altas y bajas "+a,-b". */
+    PRESENCIA(5, "[Presencia]"),
+    /** Mensaje de una sala "sala usuario: texto" (o, del cliente al servidor, "sala\ntexto"). */
+    SALA(6, "[Sala] "),
+    /** Salas abiertas con su número de miembros "general:12,equipo:3," (del cliente, vacía: la pide). */
+    SALAS(7, "[Salas]"),
+
+    // **En ambos sentidos, si se negoció "latido"**
+    /** Comprobación de que el otro extremo sigue ahí; se responde con {@link #PONG}. */
+    PING(8, "[Ping]"),
+    /** Respuesta a un {@link #PING}. */
+    PONG(9, "[Pong]"),
+
+    // **Reanudación de sesiones, si se negoció "reanudar"**
+    /**
+     * Del servidor, tras registrarse: token para reanudar la sesión. Del cliente, en lugar del
+     * nombre: "token\nnombre" (en texto, "[Reanudar]token nombre").
+     */
+    REANUDAR(10, "[Reanudar]"),
+    /** Del servidor: la sesión se reanudó; la carga es el token nuevo. */
+    REANUDADA(11, "[Reanudada]"),
+
+    // **Estado de entrega de privados, si se negoció "entrega"**
+    /** Del servidor, tras cada privado del cliente: "estado destinatario" (entregado, guardado o rechazado). */
+    ENTREGA(12, "[Entrega]"),
+
+    // **Transferencias de archivos, si se negoció "transferencia"; en ambos sentidos**
+    /**
+     * Control de una transferencia: "orden argumentos" (ofrecer, aceptar, oferta, completada...).
+     * Los bytes del archivo nunca van en tramas: viajan por el puerto de transferencias.
+     */
+    TRANSFERENCIA(13, "[Transferencia]"),
+
+    // **Cliente → servidor**
+    /** Nombre de usuario propuesto. */
+    NOMBRE(16, ""),
+    /** Fin de la sesión. */
+    SALIR(17, ""),
+    /** Antes del nombre: última secuencia recibida, en la cabecera; la carga va vacía. */
+    ULTIMA_SECUENCIA(18, ""),
+    /** Nombre de la sala a la que unirse. */
+    UNIRSE(19, ""),
+    /** Nombre de la sala que abandonar. */
+    ABANDONAR(20, ""),
+
+    // **Entre nodos del clúster (ver servidor.Federacion); nunca las envía un cliente**
+    /** Primera trama de un enlace: identificador del nodo. */
+    NODO_HOLA(24, ""),
+    /** Usuarios con sesión en el nodo que la envía "a,b,c,"; sustituye a lo que se sabía de él. */
+    NODO_USUARIOS(25, ""),
+    /** Usuario registrado en el nodo que la envía. */
+    NODO_ALTA(26, ""),
+    /** Usuario que salió del nodo que la envía. */
+    NODO_BAJA(27, ""),
+    /** Mensaje público "usuario: texto" que el nodo receptor difunde solo a sus sesiones. */
+    NODO_PUBLICO(28, ""),
+    /** Mensaje privado "destinatario\nremitente: texto" para una sesión del nodo receptor. */
+    NODO_PRIVADO(29, ""),
+    /** Petición de reserva de un nombre; la secuencia identifica la petición. */
+    NODO_RESERVA(30, ""),
+    /** Respuesta "si" o "no" a la reserva con la misma secuencia. */
+    NODO_RESPUESTA(31, "");
+
+    private static final TipoTrama[] POR_CODIGO = new TipoTrama[32];
+
+    static {
+        for (TipoTrama tipo : values()) {
+            POR_CODIGO[tipo.codigo] = tipo;
+        }
+    }
+
+    private final byte codigo;
+    private final String prefijoTexto;
+
+    TipoTrama(int codigo, String prefijoTexto) {
+        this.codigo = (byte) codigo;
+        this.prefijoTexto = prefijoTexto;
+    }
+
+    /**
+     * Busca un tipo por su código de cabecera sin reservar memoria.
+     *
+     * @param codigo Byte de tipo leído de la cabecera.
+     * @return Tipo correspondiente, o null si el código no existe.
+     */
+    public static TipoTrama desdeCodigo(int codigo) {
+        return codigo >= 0 && codigo < POR_CODIGO.length ? POR_CODIGO[codigo] : null;
+    }
+
+    public byte getCodigo() {
+        return codigo;
+    }
+
+    /**
+     * Prefijo con el que este tipo se distingue en el protocolo de texto.
+     *
+     * @return Prefijo, vacío si no lleva ninguno.
+     */
+    public String getPrefijoTexto() {
+        return prefijoTexto;
+    }
+}
@@ -0,0 +1,123 @@
+package protocolo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Trama del protocolo binario. Formato de cabecera (big-endian):
+ * <pre>
+ *   tipo (1 byte) | longitud de la carga (4 bytes) | secuencia (8 bytes) | carga (UTF-8)
+ * </pre>
+ * Las instancias se reutilizan al leer: el lector solo rellena los campos y reserva
+ * el array de la carga, nada más.
+ */
+public final class Trama {
+
+    /** Bytes de la cabecera. */
+    public static final int TAM_CABECERA = 13;
+    /** Carga máxima que el servidor acepta de un cliente. */
+    public static final int MAX_CARGA_CLIENTE = 64 * 1024;
+    /** Carga máxima que un cliente acepta del servidor (las listas de usuarios pueden ser largas). */
+    public static final int MAX_CARGA_SERVIDOR = 16 * 1024 * 1024;
+
+    private TipoTrama tipo;
+    private long secuencia;
+    private byte[] carga;
+
+    /**
+     * Codifica una trama completa.
+     *
+     * @param tipo      Tipo de trama.
+     * @param secuencia Número de secuencia (0 si el mensaje no lleva).
+     * @param carga     Bytes de la carga.
+     * @return Cabecera seguida de la carga.
+     */
+    public static byte[] codificar(TipoTrama tipo, long secuencia, byte[] carga) {
+        byte[] trama = new byte[TAM_CABECERA + carga.length];
+        trama[0] = tipo.getCodigo();
+        escribirEntero(trama, 1, carga.length);
+        escribirLargo(trama, 5, secuencia);
+        System.arraycopy(carga, 0, trama, TAM_CABECERA, carga.length);
+        return trama;
+    }
+
+    /**
+     * Codifica una trama cuya carga es texto.
+     *
+     * @param tipo      Tipo de trama.
+     * @param secuencia Número de secuencia (0 si el mensaje no lleva).
+     * @param texto     Texto de la carga.
+     * @return Cabecera seguida de la carga en UTF-8.
+     */
+    public static byte[] codificar(TipoTrama tipo, long secuencia, String texto) {
+        return codificar(tipo, secuencia, texto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Valida una cabecera y rellena la trama con ella.
+     *
+     * @param cabecera  Array que contiene la cabecera.
+     * @param inicio    Posición del primer byte de la cabecera.
+     * @param maxCarga  Carga máxima admitida.
+     * @return Longitud de la carga que sigue a la cabecera.
+     * @throws ProtocoloException Si el tipo es desconocido o la carga excede el máximo.
+     */
+    int leerCabecera(byte[] cabecera, int inicio, int maxCarga) throws ProtocoloException {
+        TipoTrama leido = TipoTrama.desdeCodigo(cabecera[inicio]);
+        if (leido == null) {
+            throw new ProtocoloException("Tipo de trama desconocido: " + cabecera[inicio]);
+        }
+        int longitud = leerEntero(cabecera, inicio + 1);
+        if (longitud < 0 || longitud > maxCarga) {
+            throw new ProtocoloException("Trama de " + longitud + " bytes, máximo " + maxCarga);
+        }
+        this.tipo = leido;
+        this.secuencia = leerLargo(cabecera, inicio + 5);
+        return longitud;
+    }
+
+    void setCarga(byte[] carga) {
+        this.carga = carga;
+    }
+
+    public TipoTrama getTipo() {
+        return tipo;
+    }
+
+    public long getSecuencia() {
+        return secuencia;
+    }
+
+    public byte[] getCarga() {
+        return carga;
+    }
+
+    /**
+     * Decodifica la carga como texto UTF-8.
+     *
+     * @return Texto de la carga.
+     */
+    public String getTexto() {
+        return new String(carga, StandardCharsets.UTF_8);
+    }
+
+    private static void escribirEntero(byte[] destino, int pos, int valor) {
+        destino[pos] = (byte) (valor >>> 24);
+        destino[pos + 1] = (byte) (valor >>> 16);
+        destino[pos + 2] = (byte) (valor >>> 8);
+        destino[pos + 3] = (byte) valor;
+    }
+
+    private static void escribirLargo(byte[] destino, int pos, long valor) {
+        escribirEntero(destino, pos, (int) (valor >>> 32));
+        escribirEntero(destino, pos + 4, (int) valor);
+    }
+
+    private static int leerEntero(byte[] origen, int pos) {
+        return ((origen[pos] & 0xFF) << 24) | ((origen[pos + 1] & 0xFF) << 16)
+                | ((origen[pos + 2] & 0xFF) << 8) | (origen[pos + 3] & 0xFF);
+    }
+
+    private static long leerLargo(byte[] origen, int pos) {
+        return ((long) leerEntero(origen, pos) << 32) | (leerEntero(origen, pos + 4) & 0xFFFFFFFFL);
+    }
+}
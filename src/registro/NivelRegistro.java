@@ -0,0 +1,30 @@
+package registro;
+
+/**
+ * Niveles del registro de eventos, de menor a mayor gravedad.
+ * Un evento se escribe si su nivel es igual o superior al configurado.
+ */
+public enum NivelRegistro {
+    DEPURACION,
+    INFO,
+    AVISO,
+    ERROR,
+    /** Solo como nivel configurado: no se escribe ningún evento. */
+    NINGUNO;
+
+    /**
+     * Interpreta el nombre de un nivel ("depuracion", "info", "aviso", "error" o "ninguno").
+     *
+     * @param valor Texto de la configuración.
+     * @return Nivel indicado.
+     * @throws IllegalArgumentException Si el texto no corresponde a ningún nivel.
+     */
+    public static NivelRegistro desdeTexto(String valor) {
+        for (NivelRegistro nivel : values()) {
+            if (nivel.name().equalsIgnoreCase(valor.trim())) {
+                return nivel;
+            }
+        }
+        throw new IllegalArgumentException("Nivel de registro desconocido: " + valor);
+    }
+}
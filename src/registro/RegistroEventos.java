@@ -0,0 +1,353 @@
+package registro;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registro estructurado de eventos del servidor, asíncrono y fuera del camino de los mensajes.
+ * <p>
+ * Los productores (sesiones, bucles, difusión) reservan una ranura de un anillo preasignado
+ * con una sola operación atómica, copian en ella los campos del evento (referencias y números,
+ * sin construir ningún texto) y la publican. Un único hilo consumidor recorre el anillo en orden,
+ * da formato a cada evento en una línea "clave=valor" y la escribe en {@code eventos.log},
+ * que rota al llegar al tamaño máximo ({@code eventos.1.log}, {@code eventos.2.log}...).
+ * <p>
+ * Ningún productor espera: si el anillo está lleno, el evento se descarta y se cuenta.
+ * Antes de reservar nada se comprueba el nivel, así que un evento desactivado no cuesta
+ * más que una comparación. Ejemplo de línea:
+ * <pre>2026-10-18T09:30:12.345Z INFO registro usuario="ana" ultimaSecuencia=0</pre>
+ */
+public class RegistroEventos {
+
+    private static final String ARCHIVO = "eventos";
+    private static final String EXTENSION = ".log";
+    /** Pausa del consumidor cuando no hay eventos; los productores nunca lo despiertan. */
+    private static final long ESPERA_NANOS = 1_000_000;
+    /** Segundos del instante; los milisegundos se añaden a mano. */
+    private static final DateTimeFormatter SEGUNDOS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.")
+            .withZone(ZoneOffset.UTC);
+    /** Tiempo máximo que {@link #cerrar()} espera a que se escriba lo pendiente. */
+    private static final long ESPERA_CIERRE_MS = 5000;
+
+    /** Ranura del anillo; se reutiliza para siempre. */
+    private static final class Ranura {
+        /** Posición del anillo + 1 cuando la ranura está publicada para esa vuelta. */
+        volatile long publicada;
+        long instante;
+        TipoEvento tipo;
+        String usuario;
+        String detalle;
+        long valor;
+    }
+
+    private final NivelRegistro nivel;
+    private final Ranura[] ranuras;
+    private final int mascara;
+    /** Siguiente posición que reservará un productor. */
+    private final AtomicLong cursor = new AtomicLong();
+    /** Siguiente posición que leerá el consumidor; todo lo anterior se puede reutilizar. */
+    private volatile long consumido = 0;
+    private volatile boolean cerrando = false;
+
+    private final Path directorio;
+    private final long tamArchivo;
+    private final int maxArchivos;
+    private final Thread consumidor;
+    private BufferedWriter escritor;
+    private long bytesArchivo;
+    /** Último segundo formateado; los eventos llegan por ráfagas dentro del mismo segundo. */
+    private long segundoFormateado = -1;
+    private String textoSegundo;
+
+    private final LongAdder descartados = new LongAdder();
+    private long escritos = 0;
+    private long rotaciones = 0;
+    private long erroresEscritura = 0;
+
+    /**
+     * Abre el registro en un directorio y arranca el hilo que escribe los eventos.
+     *
+     * @param directorio  Directorio de los archivos de registro.
+     * @param nivel       Nivel mínimo de los eventos que se escriben.
+     * @param capacidad   Ranuras del anillo; se redondea a potencia de dos.
+     * @param tamArchivo  Tamaño en bytes a partir del cual rota el archivo.
+     * @param maxArchivos Archivos rotados que se conservan además del actual.
+     * @throws IOException Si no se puede crear el directorio o abrir el archivo.
+     */
+    public RegistroEventos(Path directorio, NivelRegistro nivel, int capacidad, long tamArchivo, int maxArchivos)
+            throws IOException {
+        this.nivel = nivel;
+        this.directorio = directorio;
+        this.tamArchivo = Math.max(1024, tamArchivo);
+        this.maxArchivos = Math.max(0, maxArchivos);
+        int tam = Integer.highestOneBit(Math.max(2, capacidad) * 2 - 1);
+        this.ranuras = new Ranura[tam];
+        this.mascara = tam - 1;
+        for (int i = 0; i < tam; i++) {
+            ranuras[i] = new Ranura();
+        }
+
+        Files.createDirectories(directorio);
+        abrirArchivo();
+        consumidor = new Thread(this::consumir, "chat-registro");
+        consumidor.setDaemon(true);
+        consumidor.start();
+    }
+
+    /**
+     * Registro que no escribe nada, para cuando está desactivado.
+     *
+     * @return Registro sin anillo ni hilo.
+     */
+    public static RegistroEventos desactivado() {
+        return new RegistroEventos();
+    }
+
+    private RegistroEventos() {
+        this.nivel = NivelRegistro.NINGUNO;
+        this.ranuras = new Ranura[0];
+        this.mascara = 0;
+        this.directorio = null;
+        this.tamArchivo = 0;
+        this.maxArchivos = 0;
+        this.consumidor = null;
+    }
+
+    /**
+     * Indica si un tipo de evento se escribiría. Conviene consultarlo antes de calcular
+     * un detalle que cueste construir (direcciones, mensajes de error...).
+     *
+     * @param tipo Tipo de evento.
+     * @return true si su nivel está activo.
+     */
+    public boolean activo(TipoEvento tipo) {
+        return tipo.getNivel().compareTo(nivel) >= 0;
+    }
+
+    /**
+     * Registra un evento sin valor numérico.
+     *
+     * @param tipo    Tipo de evento.
+     * @param usuario Usuario afectado, o null.
+     * @param detalle Texto del campo de detalle del tipo, o null.
+     */
+    public void registrar(TipoEvento tipo, String usuario, String detalle) {
+        registrar(tipo, usuario, detalle, 0);
+    }
+
+    /**
+     * Registra un evento. No construye ningún texto ni espera: solo copia los campos
+     * en una ranura del anillo. Si el anillo está lleno, el evento se descarta.
+     *
+     * @param tipo    Tipo de evento.
+     * @param usuario Usuario afectado, o null.
+     * @param detalle Texto del campo de detalle del tipo, o null.
+     * @param valor   Valor del campo numérico del tipo.
+     */
+    public void registrar(TipoEvento tipo, String usuario, String detalle, long valor) {
+        if (!activo(tipo) || cerrando) return;
+        long posicion;
+        do {
+            posicion = cursor.get();
+            if (posicion - consumido >= ranuras.length) {
+                descartados.increment();
+                return;
+            }
+        } while (!cursor.compareAndSet(posicion, posicion + 1));
+
+        Ranura ranura = ranuras[(int) (posicion & mascara)];
+        ranura.instante = System.currentTimeMillis();
+        ranura.tipo = tipo;
+        ranura.usuario = usuario;
+        ranura.detalle = detalle;
+        ranura.valor = valor;
+        ranura.publicada = posicion + 1; // Escritura volátil: publica los campos anteriores.
+    }
+
+    /**
+     * Bucle del hilo consumidor: escribe las ranuras publicadas en orden y vacía el
+     * búfer del archivo cuando se queda sin trabajo.
+     */
+    private void consumir() {
+        long siguiente = consumido;
+        boolean porVaciar = false;
+        while (true) {
+            Ranura ranura = ranuras[(int) (siguiente & mascara)];
+            if (ranura.publicada == siguiente + 1) {
+                escribir(ranura);
+                ranura.usuario = null; // No retener textos hasta la siguiente vuelta.
+                ranura.detalle = null;
+                siguiente++;
+                consumido = siguiente;
+                porVaciar = true;
+            } else {
+                if (porVaciar) {
+                    vaciar();
+                    porVaciar = false;
+                }
+                if (cerrando && cursor.get() == siguiente) {
+                    cerrarArchivo();
+                    return;
+                }
+                LockSupport.parkNanos(ESPERA_NANOS);
+            }
+        }
+    }
+
+    private void escribir(Ranura ranura) {
+        StringBuilder linea = new StringBuilder(96);
+        long segundo = Math.floorDiv(ranura.instante, 1000);
+        if (segundo != segundoFormateado) {
+            segundoFormateado = segundo;
+            textoSegundo = SEGUNDOS.format(Instant.ofEpochSecond(segundo));
+        }
+        int milis = Math.floorMod(ranura.instante, 1000);
+        linea.append(textoSegundo).append((char) ('0' + milis / 100)).append((char) ('0' + milis / 10 % 10))
+                .append((char) ('0' + milis % 10)).append('Z');
+        linea.append(' ').append(ranura.tipo.getNivel()).append(' ').append(ranura.tipo.getNombre());
+        if (ranura.usuario != null) {
+            linea.append(" usuario=");
+            entrecomillar(linea, ranura.usuario);
+        }
+        if (ranura.tipo.getCampoDetalle() != null && ranura.detalle != null) {
+            linea.append(' ').append(ranura.tipo.getCampoDetalle()).append('=');
+            entrecomillar(linea, ranura.detalle);
+        }
+        if (ranura.tipo.getCampoValor() != null) {
+            linea.append(' ').append(ranura.tipo.getCampoValor()).append('=').append(ranura.valor);
+        }
+        linea.append('\n');
+
+        try {
+            if (bytesArchivo + linea.length() > tamArchivo) {
+                rotar();
+            }
+            escritor.append(linea);
+            bytesArchivo += linea.length();
+            escritos++;
+        } catch (IOException e) {
+            erroresEscritura++; // El evento se pierde; el servidor sigue.
+        }
+    }
+
+    private static void entrecomillar(StringBuilder destino, String texto) {
+        destino.append('"');
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    destino.append('\\').append(c);
+                    break;
+                case '\n':
+                    destino.append("\\n");
+                    break;
+                case '\r':
+                    destino.append("\\r");
+                    break;
+                default:
+                    destino.append(c);
+            }
+        }
+        destino.append('"');
+    }
+
+    private void vaciar() {
+        try {
+            escritor.flush();
+        } catch (IOException e) {
+            erroresEscritura++;
+        }
+    }
+
+    // **Archivos**
+
+    private Path archivo(int indice) {
+        return directorio.resolve(indice == 0 ? ARCHIVO + EXTENSION : ARCHIVO + "." + indice + EXTENSION);
+    }
+
+    private void abrirArchivo() throws IOException {
+        Path actual = archivo(0);
+        escritor = Files.newBufferedWriter(actual, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        bytesArchivo = Files.size(actual);
+    }
+
+    /**
+     * Cierra el archivo actual, desplaza los rotados una posición (el más antiguo se borra)
+     * y abre uno nuevo.
+     */
+    private void rotar() throws IOException {
+        escritor.close();
+        if (maxArchivos == 0) {
+            Files.deleteIfExists(archivo(0));
+        } else {
+            Files.deleteIfExists(archivo(maxArchivos));
+            for (int i = maxArchivos - 1; i >= 0; i--) {
+                if (Files.exists(archivo(i))) {
+                    Files.move(archivo(i), archivo(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        rotaciones++;
+        abrirArchivo();
+    }
+
+    private void cerrarArchivo() {
+        try {
+            escritor.close();
+        } catch (IOException e) {
+            erroresEscritura++;
+        }
+    }
+
+    /**
+     * Pide al hilo consumidor que escriba lo pendiente y cierre el archivo, y lo espera
+     * unos segundos como mucho. Los eventos registrados después se ignoran.
+     */
+    public void cerrar() {
+        if (consumidor == null || cerrando) return;
+        cerrando = true;
+        try {
+            consumidor.join(ESPERA_CIERRE_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // **Consultas**
+
+    public NivelRegistro getNivel() {
+        return nivel;
+    }
+
+    public Path getDirectorio() {
+        return directorio;
+    }
+
+    /**
+     * Eventos descartados porque el anillo estaba lleno.
+     *
+     * @return Número de eventos descartados.
+     */
+    public long getDescartados() {
+        return descartados.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "nivel=" + nivel + ", anillo=" + ranuras.length + ", escritos=" + escritos + ", descartados="
+                + descartados.sum() + ", rotaciones=" + rotaciones + ", errores=" + erroresEscritura;
+    }
+}
@@ -0,0 +1,60 @@
+package registro;
+
+/**
+ * Eventos del servidor que se escriben en el registro estructurado, cada uno con su nivel.
+ * Los mensajes de chat son de depuración: con el nivel por defecto no cuestan nada.
+ */
+public enum TipoEvento {
+    CONEXION(NivelRegistro.INFO, "conexion", "origen", null),
+    REGISTRO(NivelRegistro.INFO, "registro", null, "ultimaSecuencia"),
+    PUBLICO(NivelRegistro.DEPURACION, "publico", null, "bytes"),
+    PRIVADO(NivelRegistro.DEPURACION, "privado", "destino", "bytes"),
+    SALA(NivelRegistro.DEPURACION, "sala", "sala", "bytes"),
+    PRIVADO_GUARDADO(NivelRegistro.DEPURACION, "privado_guardado", "destino", "bytes"),
+    DESTINATARIO_DESCONOCIDO(NivelRegistro.AVISO, "destinatario_desconocido", "destino", null),
+    LIMITE(NivelRegistro.AVISO, "limite", "respuesta", "bytes"),
+    DESCONEXION(NivelRegistro.INFO, "desconexion", "motivo", null),
+    REANUDACION(NivelRegistro.INFO, "reanudacion", "resultado", "pendientes"),
+    BUZON(NivelRegistro.INFO, "buzon", "resultado", "mensajes"),
+    TRANSFERENCIA(NivelRegistro.INFO, "transferencia", "resultado", "bytes"),
+    ERROR(NivelRegistro.ERROR, "error", "mensaje", null);
+
+    private final NivelRegistro nivel;
+    private final String nombre;
+    private final String campoDetalle;
+    private final String campoValor;
+
+    /**
+     * @param nivel        Nivel del evento.
+     * @param nombre       Nombre en el archivo.
+     * @param campoDetalle Nombre del campo de texto, o null si el evento no lo usa.
+     * @param campoValor   Nombre del campo numérico, o null si el evento no lo usa.
+     */
+    TipoEvento(NivelRegistro nivel, String nombre, String campoDetalle, String campoValor) {
+        this.nivel = nivel;
+        this.nombre = nombre;
+        this.campoDetalle = campoDetalle;
+        this.campoValor = campoValor;
+    }
+
+    public NivelRegistro getNivel() {
+        return nivel;
+    }
+
+    /**
+     * Nombre del evento tal como aparece en el archivo.
+     *
+     * @return Nombre en minúsculas.
+     */
+    public String getNombre() {
+        return nombre;
+    }
+
+    public String getCampoDetalle() {
+        return campoDetalle;
+    }
+
+    public String getCampoValor() {
+        return campoValor;
+    }
+}
@@ -0,0 +1,81 @@
+package rendimiento;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import persistencia.Diario;
+import protocolo.Trama;
+import protocolo.TipoTrama;
+
+/**
+ * Mide el rendimiento sostenido del {@link Diario}: varios hilos anotan mensajes como lo haría
+ * el servidor al difundir, primero forzando a disco tras cada mensaje y después con la
+ * confirmación agrupada, y al final se reabre el diario para medir la recuperación.
+ * <p>
+ * Uso: {@code java -cp bin rendimiento.BenchmarkDiario [mensajes] [hilos] [syncMs]}
+ */
+public class BenchmarkDiario {
+
+    private static final String TEXTO = "ana: Hola a todos, ¿qué tal va el despliegue de hoy?";
+
+    public static void main(String[] args) throws Exception {
+        int mensajes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int hilos = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long syncMs = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+        System.out.printf("%-22s %12s %14s %10s %18s%n", "modo", "mensajes/s", "MB/s", "fsyncs", "recuperación (ms)");
+        // Con fsync por mensaje se anotan muchos menos: cada uno espera al disco.
+        medir("fsync por mensaje", Math.min(mensajes, 5_000), hilos, 0);
+        medir("agrupado cada " + syncMs + " ms", mensajes, hilos, syncMs);
+    }
+
+    private static void medir(String modo, int mensajes, int hilos, long syncMs) throws Exception {
+        Path directorio = Files.createTempDirectory("diario-benchmark");
+        try {
+            Diario diario = new Diario(directorio, 64 * 1024 * 1024, 4, syncMs);
+            int porHilo = mensajes / hilos;
+            List<Thread> escritores = new ArrayList<>();
+            long inicio = System.nanoTime();
+            for (int h = 0; h < hilos; h++) {
+                long base = (long) h * porHilo;
+                Thread escritor = new Thread(() -> {
+                    try {
+                        for (int i = 1; i <= porHilo; i++) {
+                            diario.anotar(Trama.codificar(TipoTrama.PUBLICO, base + i, TEXTO));
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                escritores.add(escritor);
+                escritor.start();
+            }
+            for (Thread escritor : escritores) {
+                escritor.join();
+            }
+            diario.cerrar();
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            long bytes = diario.getBytes();
+            long fsyncs = diario.getSincronizaciones();
+
+            long inicioRecuperacion = System.nanoTime();
+            Diario recuperado = new Diario(directorio, 64 * 1024 * 1024, 4, 0);
+            double msRecuperacion = (System.nanoTime() - inicioRecuperacion) / 1e6;
+            if (recuperado.getUltimaSecuencia() != (long) porHilo * hilos) {
+                System.out.println("¡Secuencia recuperada incorrecta! " + recuperado);
+            }
+            recuperado.cerrar();
+
+            System.out.printf("%-22s %12.0f %14.1f %10d %18.1f%n", modo, porHilo * hilos / segundos,
+                    bytes / segundos / (1024 * 1024), fsyncs, msRecuperacion);
+        } finally {
+            try (Stream<Path> archivos = Files.list(directorio)) {
+                archivos.forEach(archivo -> archivo.toFile().delete());
+            }
+            Files.deleteIfExists(directorio);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package rendimiento;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import servidor.ColaSalida;
+import servidor.EstadisticasSalida;
+import servidor.Mensaje;
+import servidor.PoliticaConsumidorLento;
+
+/**
+ * Mide la memoria reservada por difusión según el número de destinatarios, comparando
+ * el camino original (un PrintWriter por cliente que vuelve a codificar el texto) con la
+ * difusión codificada una sola vez en un {@link Mensaje} compartido.
+ * <p>
+ * Uso: {@code java -cp bin rendimiento.BenchmarkDifusion [difusiones]}
+ */
+public class BenchmarkDifusion {
+
+    private static final int[] DESTINATARIOS = {10, 100, 1_000, 10_000};
+    private static final String TEXTO = "ana: Hola a todos, ¿qué tal va el despliegue de hoy?";
+
+    /** Flujo que descarta todo, para medir solo el coste del servidor. */
+    private static final OutputStream SUMIDERO = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int difusiones = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        com.sun.management.ThreadMXBean hilos =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.printf("%-12s %22s %22s %16s %16s%n", "destinatarios",
+                "bytes/difusión (orig.)", "bytes/difusión (nueva)", "µs (orig.)", "µs (nueva)");
+        for (int n : DESTINATARIOS) {
+            List<PrintWriter> escritores = new ArrayList<>();
+            List<ColaSalida> colas = new ArrayList<>();
+            EstadisticasSalida estadisticas = new EstadisticasSalida();
+            for (int i = 0; i < n; i++) {
+                escritores.add(new PrintWriter(SUMIDERO, true));
+                colas.add(new ColaSalida(16, PoliticaConsumidorLento.DESCARTAR_ANTIGUO, 5000, estadisticas));
+            }
+            List<byte[]> lote = new ArrayList<>();
+
+            // Calentamiento para que el JIT compile ambos caminos.
+            for (int i = 0; i < difusiones; i++) {
+                difundirOriginal(escritores);
+                difundirCodificado(colas, lote);
+            }
+
+            long hilo = Thread.currentThread().getId();
+            long antes = hilos.getThreadAllocatedBytes(hilo);
+            long inicio = System.nanoTime();
+            for (int i = 0; i < difusiones; i++) {
+                difundirOriginal(escritores);
+            }
+            long tiempoOriginal = System.nanoTime() - inicio;
+            long bytesOriginal = hilos.getThreadAllocatedBytes(hilo) - antes;
+
+            antes = hilos.getThreadAllocatedBytes(hilo);
+            inicio = System.nanoTime();
+            for (int i = 0; i < difusiones; i++) {
+                difundirCodificado(colas, lote);
+            }
+            long tiempoCodificado = System.nanoTime() - inicio;
+            long bytesCodificado = hilos.getThreadAllocatedBytes(hilo) - antes;
+
+            System.out.printf("%-12d %22d %22d %16.1f %16.1f%n", n,
+                    bytesOriginal / difusiones, bytesCodificado / difusiones,
+                    tiempoOriginal / 1000.0 / difusiones, tiempoCodificado / 1000.0 / difusiones);
+        }
+    }
+
+    /**
+     * Camino original: cada PrintWriter codifica y vacía el mismo texto.
+     */
+    private static void difundirOriginal(List<PrintWriter> escritores) {
+        for (PrintWriter escritor : escritores) {
+            escritor.println(TEXTO);
+        }
+    }
+
+    /**
+     * Camino nuevo: se codifica una vez, se encola en cada sesión y cada escritor
+     * vuelca los mismos bytes compartidos.
+     */
+    private static void difundirCodificado(List<ColaSalida> colas, List<byte[]> lote) throws Exception {
+        Mensaje mensaje = new Mensaje(TEXTO);
+        for (ColaSalida cola : colas) {
+            cola.ofrecer(mensaje.codificado(false));
+        }
+        for (ColaSalida cola : colas) {
+            cola.drenar(lote);
+            for (byte[] pendiente : lote) {
+                SUMIDERO.write(pendiente);
+            }
+            lote.clear();
+        }
+    }
+}
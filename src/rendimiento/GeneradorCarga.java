@@ -0,0 +1,487 @@
+package rendimiento;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import metricas.HistogramaLatencias;
+import protocolo.Compresion;
+import protocolo.LectorFlujo;
+import servidor.ModoHilos;
+
+/**
+ * Generador de carga sin interfaz gráfica para dimensionar el servidor.
+ * <p>
+ * Abre miles de sesiones reales contra un {@link servidor.ServidorChat} (saludo "Ingrese su nombre
+ * de usuario:", nombre y bienvenida) y envía tráfico público y privado ({@code @usuario}) a un ritmo
+ * fijo y con un tamaño de mensaje dado. Cada mensaje lleva el instante en que debía enviarse, así
+ * que la latencia se mide desde el plan y no se oculta si el propio emisor se retrasa.
+ * <p>
+ * Al terminar escribe un informe JSON con las latencias de envío a recepción, el retraso por
+ * destinatario (latencia media y máxima de cada sesión), los mensajes perdidos y las
+ * desconexiones, para comparar versiones del servidor.
+ * <p>
+ * Uso: {@code java -cp bin rendimiento.GeneradorCarga [--host=127.0.0.1] [--puerto=5003] [--sesiones=1000]
+ * [--conexionesPorSegundo=500] [--publicosPorSegundo=100] [--privadosPorSegundo=100] [--tamano=100]
+ * [--calentamiento=5] [--duracion=30] [--drenaje=5] [--presencia=true] [--deflate=false] [--hilos=virtuales]
+ * [--informe=informe-carga.json]}
+ */
+public class GeneradorCarga {
+
+    /** Marca inicial de la carga de los mensajes del generador. */
+    private static final char MARCA = '~';
+    private static final int MAX_LINEA = 4 * 1024 * 1024;
+
+    // **Opciones**
+    private final String host;
+    private final int puerto;
+    private final int numSesiones;
+    private final int conexionesPorSegundo;
+    private final double publicosPorSegundo;
+    private final double privadosPorSegundo;
+    private final int tamano;
+    private final int calentamientoS;
+    private final int duracionS;
+    private final int drenajeS;
+    private final boolean presencia;
+    private final boolean deflate;
+    private final ModoHilos modoHilos;
+    private final String informe;
+    private final Map<String, String> opciones;
+
+    /** Identifica los mensajes de esta ejecución frente a los del historial de otras. */
+    private final String idEjecucion = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+    private Sesion[] sesiones;
+    private final AtomicInteger registradas = new AtomicInteger();
+    private final AtomicInteger fallidas = new AtomicInteger();
+    private final AtomicInteger desconectadas = new AtomicInteger();
+    private volatile boolean terminando = false;
+    /** Instante previsto (nanoTime) desde el que los mensajes cuentan para el informe. */
+    private volatile long inicioMedicion = Long.MAX_VALUE;
+    private volatile long finMedicion = Long.MAX_VALUE;
+
+    // **Resultados**
+    private final HistogramaLatencias saludo = new HistogramaLatencias();
+    private final HistogramaLatencias latenciaPublicos = new HistogramaLatencias();
+    private final HistogramaLatencias latenciaPrivados = new HistogramaLatencias();
+    private final HistogramaLatencias retrasoEmisor = new HistogramaLatencias();
+    private final LongAdder recibidosPublicos = new LongAdder();
+    private final LongAdder recibidosPrivados = new LongAdder();
+    private long enviadosPublicos = 0;
+    private long enviadosPrivados = 0;
+    private long esperadosPublicos = 0;
+    private long erroresEnvio = 0;
+
+    /** Una conexión simulada. Solo su hilo lector modifica los contadores de recepción. */
+    private final class Sesion {
+        final int indice;
+        final String nombre;
+        Socket socket;
+        OutputStream salida;
+        volatile boolean activa = false;
+        long recibidos;
+        long sumaLatencia;
+        long maxLatencia;
+
+        Sesion(int indice, String nombre) {
+            this.indice = indice;
+            this.nombre = nombre;
+        }
+    }
+
+    private GeneradorCarga(Map<String, String> opciones) {
+        this.opciones = opciones;
+        host = opcion("host", "127.0.0.1");
+        puerto = Integer.parseInt(opcion("puerto", "5003"));
+        numSesiones = Integer.parseInt(opcion("sesiones", "1000"));
+        conexionesPorSegundo = Integer.parseInt(opcion("conexionesPorSegundo", "500"));
+        publicosPorSegundo = Double.parseDouble(opcion("publicosPorSegundo", "100"));
+        privadosPorSegundo = Double.parseDouble(opcion("privadosPorSegundo", "100"));
+        tamano = Integer.parseInt(opcion("tamano", "100"));
+        calentamientoS = Integer.parseInt(opcion("calentamiento", "5"));
+        duracionS = Integer.parseInt(opcion("duracion", "30"));
+        drenajeS = Integer.parseInt(opcion("drenaje", "5"));
+        presencia = Boolean.parseBoolean(opcion("presencia", "true"));
+        deflate = Boolean.parseBoolean(opcion("deflate", "false"));
+        modoHilos = ModoHilos.desdeTexto(opcion("hilos", "virtuales"));
+        informe = opcion("informe", "informe-carga.json");
+    }
+
+    private String opcion(String clave, String porDefecto) {
+        return opciones.getOrDefault(clave, porDefecto);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opciones = new HashMap<>();
+        for (String arg : args) {
+            int igual = arg.indexOf('=');
+            if (!arg.startsWith("--") || igual < 0) {
+                System.err.println("Argumento no válido: " + arg + " (se espera --clave=valor)");
+                System.exit(2);
+            }
+            opciones.put(arg.substring(2, igual), arg.substring(igual + 1));
+        }
+        new GeneradorCarga(opciones).ejecutar();
+    }
+
+    private void ejecutar() throws Exception {
+        System.out.printf("Conectando %d sesiones a %s:%d (%s)...%n", numSesiones, host, puerto, modoHilos);
+        ExecutorService ejecutor = modoHilos.crearEjecutor();
+        sesiones = new Sesion[numSesiones];
+        CountDownLatch saludos = new CountDownLatch(numSesiones);
+        long inicio = System.nanoTime();
+        for (int i = 0; i < numSesiones; i++) {
+            Sesion sesion = new Sesion(i, "carga" + idEjecucion + "_" + i);
+            sesiones[i] = sesion;
+            // Rampa de conexiones para no desbordar la cola de aceptación del servidor.
+            esperarHasta(inicio + i * 1_000_000_000L / Math.max(1, conexionesPorSegundo));
+            ejecutor.execute(() -> atender(sesion, saludos));
+        }
+        if (!saludos.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Aviso: algunas sesiones no completaron el saludo en 60 s.");
+        }
+        System.out.printf("Sesiones registradas: %d, fallidas: %d, saludo %s%n", registradas.get(),
+                fallidas.get(), saludo);
+        if (registradas.get() == 0) {
+            ejecutor.shutdownNow();
+            return;
+        }
+
+        enviar();
+
+        System.out.printf("Esperando %d s a los mensajes en vuelo...%n", drenajeS);
+        Thread.sleep(drenajeS * 1000L);
+        terminando = true;
+        for (Sesion sesion : sesiones) {
+            cerrar(sesion);
+        }
+        ejecutor.shutdown();
+        ejecutor.awaitTermination(10, TimeUnit.SECONDS);
+
+        String json = informeJson();
+        Files.write(Paths.get(informe), json.getBytes(StandardCharsets.UTF_8));
+        imprimirResumen(System.out);
+        System.out.println("Informe escrito en " + Paths.get(informe).toAbsolutePath());
+    }
+
+    // **Sesiones**
+
+    /**
+     * Conecta una sesión, hace el saludo y se queda leyendo hasta que se cierre.
+     */
+    private void atender(Sesion sesion, CountDownLatch saludos) {
+        long inicio = System.nanoTime();
+        boolean saludada = false;
+        try {
+            sesion.socket = new Socket();
+            sesion.socket.setTcpNoDelay(true);
+            sesion.socket.connect(new InetSocketAddress(host, puerto), 10_000);
+            sesion.salida = sesion.socket.getOutputStream();
+            LectorFlujo lector = new LectorFlujo(sesion.socket.getInputStream(), 8192);
+
+            // **Saludo: capacidades opcionales, nombre y bienvenida**
+            if (presencia || deflate) {
+                escribir(sesion, "[Capacidades]" + (presencia ? " presencia" : "") + (deflate ? " deflate" : ""));
+                if (esperarLinea(lector, "[Capacidades]").contains(" deflate")) {
+                    lector.envolver(flujo -> new InflaterInputStream(flujo, Compresion.nuevoDescompresor(), 8192));
+                    sesion.salida = new DeflaterOutputStream(sesion.salida,
+                            Compresion.nuevoCompresor(Deflater.BEST_SPEED), 1024, true);
+                }
+            } else {
+                esperarLinea(lector, "Ingrese su nombre de usuario:");
+            }
+            escribir(sesion, sesion.nombre);
+            String respuesta = esperarLinea(lector, "Bienvenido", "Nombre");
+            if (!respuesta.startsWith("Bienvenido")) {
+                throw new IOException("Registro rechazado: " + respuesta);
+            }
+            saludo.registrar(System.nanoTime() - inicio);
+            sesion.activa = true;
+            registradas.incrementAndGet();
+            saludos.countDown();
+            saludada = true;
+
+            String linea;
+            while ((linea = lector.leerLinea(MAX_LINEA)) != null) {
+                recibir(sesion, linea);
+            }
+            if (!terminando) {
+                desconectadas.incrementAndGet();
+            }
+        } catch (IOException e) {
+            if (!saludada) {
+                fallidas.incrementAndGet();
+                saludos.countDown();
+            } else if (!terminando) {
+                desconectadas.incrementAndGet();
+            }
+        } finally {
+            sesion.activa = false;
+        }
+    }
+
+    private static String esperarLinea(LectorFlujo lector, String... prefijos) throws IOException {
+        String linea;
+        while ((linea = lector.leerLinea(MAX_LINEA)) != null) {
+            for (String prefijo : prefijos) {
+                if (linea.startsWith(prefijo)) return linea;
+            }
+        }
+        throw new IOException("Conexión cerrada durante el saludo");
+    }
+
+    /**
+     * Interpreta una línea recibida: "remitente: ~..." o "[Privado] remitente: ~...".
+     * El resto (listas, presencia, avisos, historial de otras ejecuciones) se ignora.
+     */
+    private void recibir(Sesion sesion, String linea) {
+        long ahora = System.nanoTime();
+        boolean privado = linea.startsWith("[Privado] ");
+        int separador = linea.indexOf(": " + MARCA);
+        if (separador < 0) return;
+        // Carga: ~idEjecucion instantePrevisto relleno
+        int desde = separador + 3;
+        int espacio1 = linea.indexOf(' ', desde);
+        if (espacio1 - desde != idEjecucion.length() || !linea.startsWith(idEjecucion, desde)) return;
+        int espacio2 = linea.indexOf(' ', espacio1 + 1);
+        long previsto;
+        try {
+            previsto = Long.parseLong(linea.substring(espacio1 + 1, espacio2 < 0 ? linea.length() : espacio2));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (previsto < inicioMedicion || previsto >= finMedicion) return;
+
+        long latencia = ahora - previsto;
+        if (privado) {
+            latenciaPrivados.registrar(latencia);
+            recibidosPrivados.increment();
+        } else {
+            latenciaPublicos.registrar(latencia);
+            recibidosPublicos.increment();
+        }
+        sesion.recibidos++;
+        sesion.sumaLatencia += latencia;
+        sesion.maxLatencia = Math.max(sesion.maxLatencia, latencia);
+    }
+
+    private static void escribir(Sesion sesion, String linea) throws IOException {
+        sesion.salida.write((linea + "\n").getBytes(StandardCharsets.UTF_8));
+        sesion.salida.flush();
+    }
+
+    private void cerrar(Sesion sesion) {
+        try {
+            if (sesion.activa) {
+                escribir(sesion, "salir");
+            }
+        } catch (IOException e) {
+            // La conexión ya estaba rota.
+        }
+        try {
+            if (sesion.socket != null) {
+                sesion.socket.close();
+            }
+        } catch (IOException e) {
+            // Nada más que hacer.
+        }
+    }
+
+    // **Envío**
+
+    /**
+     * Envía el tráfico planificado desde un solo hilo: cada mensaje tiene su instante previsto
+     * y, si el hilo va retrasado, se envía en cuanto puede sin saltarse ninguno.
+     */
+    private void enviar() {
+        List<Sesion> activas = new ArrayList<>();
+        for (Sesion sesion : sesiones) {
+            if (sesion.activa) activas.add(sesion);
+        }
+        Random azar = new Random(42);
+        long intervaloPublico = publicosPorSegundo > 0 ? (long) (1e9 / publicosPorSegundo) : Long.MAX_VALUE;
+        long intervaloPrivado = privadosPorSegundo > 0 ? (long) (1e9 / privadosPorSegundo) : Long.MAX_VALUE;
+        long inicio = System.nanoTime();
+        inicioMedicion = inicio + calentamientoS * 1_000_000_000L;
+        finMedicion = inicioMedicion + duracionS * 1_000_000_000L;
+        System.out.printf("Enviando: %.0f públicos/s y %.0f privados/s de %d bytes (%d s de calentamiento, %d s medidos)%n",
+                publicosPorSegundo, privadosPorSegundo, tamano, calentamientoS, duracionS);
+
+        long siguientePublico = inicio;
+        long siguientePrivado = inicio;
+        char[] relleno = new char[Math.max(0, tamano)];
+        Arrays.fill(relleno, 'x');
+        String textoRelleno = new String(relleno);
+        while (true) {
+            boolean publico = siguientePublico <= siguientePrivado;
+            long previsto = publico ? siguientePublico : siguientePrivado;
+            if (previsto >= finMedicion) break;
+            esperarHasta(previsto);
+            retrasoEmisor.registrar(System.nanoTime() - previsto);
+
+            Sesion emisor = activas.get(azar.nextInt(activas.size()));
+            String carga = MARCA + idEjecucion + " " + previsto + " " + textoRelleno;
+            String linea;
+            if (publico) {
+                linea = carga;
+                siguientePublico += intervaloPublico;
+            } else {
+                Sesion destino = activas.get(azar.nextInt(activas.size()));
+                linea = "@" + destino.nombre + " " + carga;
+                siguientePrivado += intervaloPrivado;
+            }
+            boolean medido = previsto >= inicioMedicion;
+            try {
+                escribir(emisor, linea);
+                if (medido) {
+                    if (publico) {
+                        enviadosPublicos++;
+                        esperadosPublicos += registradas.get(); // El servidor lo difunde también al emisor.
+                    } else {
+                        enviadosPrivados++;
+                    }
+                }
+            } catch (IOException e) {
+                erroresEnvio++;
+            }
+        }
+    }
+
+    private static void esperarHasta(long instante) {
+        long espera;
+        while ((espera = instante - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(espera);
+        }
+    }
+
+    // **Informe**
+
+    private String informeJson() {
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\n");
+        campo(json, 1, "fecha", Instant.now().toString()).append(",\n");
+        json.append("  \"configuracion\": {\n");
+        campo(json, 2, "host", host).append(",\n");
+        campo(json, 2, "puerto", puerto).append(",\n");
+        campo(json, 2, "sesiones", numSesiones).append(",\n");
+        campo(json, 2, "publicosPorSegundo", publicosPorSegundo).append(",\n");
+        campo(json, 2, "privadosPorSegundo", privadosPorSegundo).append(",\n");
+        campo(json, 2, "tamano", tamano).append(",\n");
+        campo(json, 2, "calentamientoS", calentamientoS).append(",\n");
+        campo(json, 2, "duracionS", duracionS).append(",\n");
+        campo(json, 2, "presencia", presencia).append(",\n");
+        campo(json, 2, "deflate", deflate).append(",\n");
+        campo(json, 2, "hilos", modoHilos.name().toLowerCase(Locale.ROOT)).append("\n");
+        json.append("  },\n");
+
+        json.append("  \"sesiones\": {\n");
+        campo(json, 2, "registradas", registradas.get()).append(",\n");
+        campo(json, 2, "fallidas", fallidas.get()).append(",\n");
+        campo(json, 2, "desconectadasDuranteLaPrueba", desconectadas.get()).append(",\n");
+        histograma(json, 2, "saludoUs", saludo).append("\n");
+        json.append("  },\n");
+
+        long perdidosPublicos = Math.max(0, esperadosPublicos - recibidosPublicos.sum());
+        long perdidosPrivados = Math.max(0, enviadosPrivados - recibidosPrivados.sum());
+        json.append("  \"publicos\": {\n");
+        campo(json, 2, "enviados", enviadosPublicos).append(",\n");
+        campo(json, 2, "entregasEsperadas", esperadosPublicos).append(",\n");
+        campo(json, 2, "entregasRecibidas", recibidosPublicos.sum()).append(",\n");
+        campo(json, 2, "perdidos", perdidosPublicos).append(",\n");
+        campo(json, 2, "entregasPorSegundo", duracionS > 0 ? recibidosPublicos.sum() / (double) duracionS : 0)
+                .append(",\n");
+        histograma(json, 2, "latenciaUs", latenciaPublicos).append("\n");
+        json.append("  },\n");
+        json.append("  \"privados\": {\n");
+        campo(json, 2, "enviados", enviadosPrivados).append(",\n");
+        campo(json, 2, "recibidos", recibidosPrivados.sum()).append(",\n");
+        campo(json, 2, "perdidos", perdidosPrivados).append(",\n");
+        histograma(json, 2, "latenciaUs", latenciaPrivados).append("\n");
+        json.append("  },\n");
+
+        json.append("  \"retrasoPorDestinatario\": {\n");
+        HistogramaLatencias medias = new HistogramaLatencias();
+        HistogramaLatencias maximas = new HistogramaLatencias();
+        List<Sesion> conDatos = new ArrayList<>();
+        for (Sesion sesion : sesiones) {
+            if (sesion.recibidos > 0) {
+                medias.registrar(sesion.sumaLatencia / sesion.recibidos);
+                maximas.registrar(sesion.maxLatencia);
+                conDatos.add(sesion);
+            }
+        }
+        histograma(json, 2, "latenciaMediaUs", medias).append(",\n");
+        histograma(json, 2, "latenciaMaximaUs", maximas).append(",\n");
+        conDatos.sort((a, b) -> Long.compare(b.sumaLatencia / b.recibidos, a.sumaLatencia / a.recibidos));
+        json.append("    \"masLentos\": [");
+        for (int i = 0; i < Math.min(5, conDatos.size()); i++) {
+            Sesion sesion = conDatos.get(i);
+            json.append(i == 0 ? "\n" : ",\n").append("      {\"usuario\": \"").append(sesion.nombre)
+                    .append("\", \"recibidos\": ").append(sesion.recibidos)
+                    .append(", \"latenciaMediaUs\": ").append(sesion.sumaLatencia / sesion.recibidos / 1000)
+                    .append(", \"latenciaMaximaUs\": ").append(sesion.maxLatencia / 1000).append('}');
+        }
+        json.append(conDatos.isEmpty() ? "]\n" : "\n    ]\n");
+        json.append("  },\n");
+
+        json.append("  \"emisor\": {\n");
+        campo(json, 2, "erroresEnvio", erroresEnvio).append(",\n");
+        histograma(json, 2, "retrasoUs", retrasoEmisor).append("\n");
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static StringBuilder campo(StringBuilder json, int nivel, String nombre, Object valor) {
+        json.append("  ".repeat(nivel)).append('"').append(nombre).append("\": ");
+        if (valor instanceof String) {
+            json.append('"').append(((String) valor).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else if (valor instanceof Double) {
+            json.append(String.format(Locale.ROOT, "%.1f", (Double) valor));
+        } else {
+            json.append(valor);
+        }
+        return json;
+    }
+
+    private static StringBuilder histograma(StringBuilder json, int nivel, String nombre, HistogramaLatencias h) {
+        return json.append("  ".repeat(nivel)).append('"').append(nombre).append("\": {\"cuenta\": ")
+                .append(h.getCuenta()).append(", \"p50\": ").append(h.percentil(50) / 1000)
+                .append(", \"p90\": ").append(h.percentil(90) / 1000)
+                .append(", \"p99\": ").append(h.percentil(99) / 1000)
+                .append(", \"p999\": ").append(h.percentil(99.9) / 1000)
+                .append(", \"max\": ").append(h.getMaximo() / 1000).append('}');
+    }
+
+    private void imprimirResumen(PrintStream salida) {
+        salida.printf("Públicos: enviados=%d, entregas esperadas=%d, recibidas=%d%n", enviadosPublicos,
+                esperadosPublicos, recibidosPublicos.sum());
+        salida.printf("  latencia %s%n", latenciaPublicos);
+        salida.printf("Privados: enviados=%d, recibidos=%d%n", enviadosPrivados, recibidosPrivados.sum());
+        salida.printf("  latencia %s%n", latenciaPrivados);
+        salida.printf("Desconectadas durante la prueba: %d, retraso del emisor %s%n", desconectadas.get(),
+                retrasoEmisor);
+    }
+}
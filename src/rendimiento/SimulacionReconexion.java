@@ -0,0 +1,61 @@
+package rendimiento;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import servidor.AgregadorPresencia;
+
+/**
+ * Simula una tormenta de reconexiones (todos los usuarios salen y vuelven a entrar en pocos
+ * segundos, como tras un despliegue) contra el {@link AgregadorPresencia} y compara las
+ * tramas de presencia que saldrían hacia los clientes con y sin ventana de agrupación.
+ * <p>
+ * Uso: {@code java -cp bin rendimiento.SimulacionReconexion [usuarios] [ventanaMs] [duracionMs]}
+ */
+public class SimulacionReconexion {
+
+    public static void main(String[] args) throws Exception {
+        int usuarios = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        long ventanaMs = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        int duracionMs = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+
+        System.out.printf("Reconexión de %d usuarios en %d ms%n", usuarios, duracionMs);
+        simular(usuarios, 0, duracionMs);
+        simular(usuarios, ventanaMs, duracionMs);
+    }
+
+    private static void simular(int usuarios, long ventanaMs, int duracionMs) throws InterruptedException {
+        AtomicLong bytesPorCliente = new AtomicLong();
+        AgregadorPresencia agregador = new AgregadorPresencia(ventanaMs, new ReentrantLock(),
+                (Set<String> altas, Set<String> bajas) -> {
+                    if (altas.isEmpty() && bajas.isEmpty()) return;
+                    long bytes = "[Presencia]".length() + 1;
+                    for (String alta : altas) bytes += alta.length() + 2;
+                    for (String baja : bajas) bytes += baja.length() + 2;
+                    bytesPorCliente.addAndGet(bytes);
+                });
+
+        ScheduledExecutorService planificador = Executors.newScheduledThreadPool(4);
+        Random azar = new Random(42);
+        for (int i = 0; i < usuarios; i++) {
+            String nombre = "usuario" + i;
+            long salida = azar.nextInt(duracionMs);
+            long vuelta = salida + 20 + azar.nextInt(300);
+            planificador.schedule(() -> agregador.baja(nombre), salida, TimeUnit.MILLISECONDS);
+            planificador.schedule(() -> agregador.alta(nombre), vuelta, TimeUnit.MILLISECONDS);
+        }
+        planificador.shutdown();
+        planificador.awaitTermination(duracionMs + 10_000L, TimeUnit.MILLISECONDS);
+        agregador.detener();
+
+        long lotes = agregador.getLotesEmitidos();
+        System.out.printf("ventana=%4d ms  %s%n", ventanaMs, agregador);
+        System.out.printf("                tramas hacia %d clientes=%,d  bytes=%,d%n",
+                usuarios, lotes * usuarios, bytesPorCliente.get() * usuarios);
+    }
+}
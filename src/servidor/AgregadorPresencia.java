@@ -0,0 +1,167 @@
+package servidor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Agrupa las altas y bajas de usuarios durante una ventana corta y las emite como un único lote.
+ * Un alta y una baja del mismo usuario dentro de la ventana se anulan entre sí, de modo que
+ * una tormenta de reconexiones se reduce a unas pocas actualizaciones.
+ * <p>
+ * Todas las operaciones, incluida la emisión, se hacen con el cerrojo recibido en el
+ * constructor, que es el mismo con el que el servidor protege el registro de usuarios.
+ */
+public class AgregadorPresencia {
+
+    /**
+     * Receptor de los lotes ya fusionados.
+     */
+    public interface Destino {
+        /**
+         * Recibe un lote de cambios; se invoca con el cerrojo del agregador tomado.
+         *
+         * @param altas Usuarios que entraron durante la ventana.
+         * @param bajas Usuarios que salieron durante la ventana.
+         */
+        void emitir(Set<String> altas, Set<String> bajas);
+    }
+
+    private final long ventanaMs;
+    private final ReentrantLock lock;
+    private final Destino destino;
+    private final ScheduledExecutorService temporizador;
+    /** Cambio pendiente por usuario: true = alta, false = baja. */
+    private final Map<String, Boolean> pendientes = new LinkedHashMap<>();
+    private boolean vaciadoProgramado = false;
+
+    private final LongAdder eventosEntrada = new LongAdder();
+    private final LongAdder eventosAnulados = new LongAdder();
+    private final LongAdder lotesEmitidos = new LongAdder();
+
+    /**
+     * Constructor del agregador.
+     *
+     * @param ventanaMs Duración de la ventana de agrupación; 0 emite cada cambio al momento.
+     * @param lock      Cerrojo compartido con el registro de usuarios.
+     * @param destino   Receptor de los lotes.
+     */
+    public AgregadorPresencia(long ventanaMs, ReentrantLock lock, Destino destino) {
+        this.ventanaMs = ventanaMs;
+        this.lock = lock;
+        this.destino = destino;
+        if (ventanaMs > 0) {
+            this.temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread hilo = new Thread(r, "chat-presencia");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        } else {
+            this.temporizador = null;
+        }
+    }
+
+    /**
+     * Anota la entrada de un usuario.
+     *
+     * @param nombre Nombre del usuario.
+     */
+    public void alta(String nombre) {
+        anotar(nombre, true);
+    }
+
+    /**
+     * Anota la salida de un usuario.
+     *
+     * @param nombre Nombre del usuario.
+     */
+    public void baja(String nombre) {
+        anotar(nombre, false);
+    }
+
+    /**
+     * Emite ya lo que esté pendiente, sin esperar al final de la ventana.
+     */
+    public void vaciar() {
+        lock.lock();
+        try {
+            vaciadoProgramado = false;
+
+            Set<String> altas = new LinkedHashSet<>();
+            Set<String> bajas = new LinkedHashSet<>();
+            for (Map.Entry<String, Boolean> cambio : pendientes.entrySet()) {
+                (cambio.getValue() ? altas : bajas).add(cambio.getKey());
+            }
+            pendientes.clear();
+            if (!altas.isEmpty() || !bajas.isEmpty()) {
+                lotesEmitidos.increment();
+            }
+            // Se emite aunque todo se haya anulado: el destino puede tener trabajo propio pendiente.
+            destino.emitir(Collections.unmodifiableSet(altas), Collections.unmodifiableSet(bajas));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Emite lo pendiente y detiene el temporizador.
+     */
+    public void detener() {
+        vaciar();
+        if (temporizador != null) {
+            temporizador.shutdown();
+        }
+    }
+
+    public long getEventosEntrada() {
+        return eventosEntrada.sum();
+    }
+
+    public long getEventosAnulados() {
+        return eventosAnulados.sum();
+    }
+
+    public long getLotesEmitidos() {
+        return lotesEmitidos.sum();
+    }
+
+    private void anotar(String nombre, boolean esAlta) {
+        eventosEntrada.increment();
+        lock.lock();
+        try {
+            Boolean previo = pendientes.get(nombre);
+            if (previo != null && previo != esAlta) {
+                // Entró y salió (o al revés) dentro de la ventana: no hay nada que contar.
+                pendientes.remove(nombre);
+                eventosAnulados.add(2);
+            } else {
+                pendientes.put(nombre, esAlta);
+            }
+
+            if (temporizador == null) {
+                vaciar();
+            } else if (!vaciadoProgramado) {
+                vaciadoProgramado = true;
+                temporizador.schedule(this::vaciar, ventanaMs, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long lotes = getLotesEmitidos();
+        return "eventos=" + getEventosEntrada()
+                + ", anulados=" + getEventosAnulados()
+                + ", lotes=" + lotes
+                + (lotes > 0 ? String.format(", colapso=%.1f:1", getEventosEntrada() / (double) lotes) : "");
+    }
+}
@@ -0,0 +1,199 @@
+package servidor;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Bucle de eventos del motor NIO. Cada instancia posee un {@link Selector} y atiende
+ * en un único hilo la lectura, escritura y cierre de todas las sesiones que tiene asignadas.
+ * Los demás hilos solo le hacen peticiones a través de colas y {@link Selector#wakeup()}.
+ */
+class BucleEventos implements Runnable {
+
+    private final ServidorChat servidor;
+    private final Selector selector;
+    private final Queue<SocketChannel> nuevosCanales = new ConcurrentLinkedQueue<>();
+    private final Queue<SesionNio> pendientesEscritura = new ConcurrentLinkedQueue<>();
+    /** Tareas que otros hilos piden ejecutar en este, como el final de un registro. */
+    private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+    /** Sesiones que no leen hasta saldar sus límites de envío, por instante de reanudación (solo las toca su hilo). */
+    private final PriorityQueue<SesionNio> pausadas =
+            new PriorityQueue<>(Comparator.comparingLong(SesionNio::getReanudarEn));
+    /** Búfer de escritura compartido por todas las sesiones del bucle (solo lo usa su hilo). */
+    private final ByteBuffer bufferEscritura;
+    private volatile boolean activo = true;
+    private Thread hilo;
+
+    BucleEventos(ServidorChat servidor) {
+        this.servidor = servidor;
+        this.bufferEscritura = ByteBuffer.allocateDirect(servidor.getConfiguracion().getTamBufferEscrituraNio());
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo abrir el selector: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Entrega un canal recién aceptado a este bucle.
+     */
+    void registrar(SocketChannel canal) {
+        nuevosCanales.add(canal);
+        selector.wakeup();
+    }
+
+    /**
+     * Pide al bucle que vacíe la cola de salida de una sesión (o la cierre si está marcada).
+     */
+    void solicitarEscritura(SesionNio sesion) {
+        pendientesEscritura.add(sesion);
+        if (Thread.currentThread() != hilo) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Ejecuta una tarea en el hilo del bucle: en el acto si ya se está en él, o en la siguiente vuelta.
+     */
+    void ejecutar(Runnable tarea) {
+        if (Thread.currentThread() == hilo) {
+            tarea.run();
+            return;
+        }
+        tareas.add(tarea);
+        selector.wakeup();
+    }
+
+    /**
+     * Deja de atender la lectura de una sesión hasta su instante de reanudación.
+     * Solo se llama desde el hilo del bucle.
+     */
+    void pausar(SesionNio sesion) {
+        pausadas.add(sesion);
+    }
+
+    ByteBuffer getBufferEscritura() {
+        return bufferEscritura;
+    }
+
+    void detener() {
+        activo = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        hilo = Thread.currentThread();
+        try {
+            while (activo) {
+                if (pendientesEscritura.isEmpty() && nuevosCanales.isEmpty() && tareas.isEmpty()) {
+                    selector.select(esperaHastaReanudar());
+                } else {
+                    // Peticiones hechas desde este mismo hilo no despiertan al selector.
+                    selector.selectNow();
+                }
+                aceptarPendientes();
+                ejecutarTareas();
+                escribirPendientes();
+                reanudarPausadas();
+
+                Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+                while (claves.hasNext()) {
+                    SelectionKey clave = claves.next();
+                    claves.remove();
+                    SesionNio sesion = (SesionNio) clave.attachment();
+                    if (!clave.isValid()) {
+                        continue;
+                    }
+                    if (clave.isReadable()) {
+                        sesion.leer();
+                    }
+                    if (clave.isValid() && clave.isWritable()) {
+                        sesion.escribir();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            servidor.registrarError("Error en el bucle de eventos", e);
+        } finally {
+            for (SelectionKey clave : selector.keys()) {
+                ((SesionNio) clave.attachment()).cerrarAhora();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ya no queda nada que hacer con el selector.
+            }
+        }
+    }
+
+    private void aceptarPendientes() {
+        SocketChannel canal;
+        while ((canal = nuevosCanales.poll()) != null) {
+            try {
+                canal.configureBlocking(false);
+                // Los clientes que no negocian latidos solo cuentan con el keepalive de TCP.
+                canal.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                SelectionKey clave = canal.register(selector, SelectionKey.OP_READ);
+                SesionNio sesion = new SesionNio(servidor, this, canal, clave);
+                clave.attach(sesion);
+                sesion.anotarConexion(canal.socket().getRemoteSocketAddress());
+                sesion.iniciarSesion();
+            } catch (IOException e) {
+                servidor.registrarError("Error aceptando conexión", e);
+                try {
+                    canal.close();
+                } catch (IOException ignorada) {
+                    // El canal ya estaba roto.
+                }
+            }
+        }
+    }
+
+    /**
+     * Milisegundos que puede bloquearse el selector sin retrasar ninguna reanudación.
+     *
+     * @return 0 (sin límite) si no hay sesiones pausadas; si no, al menos 1.
+     */
+    private long esperaHastaReanudar() {
+        SesionNio primera = pausadas.peek();
+        if (primera == null) {
+            return 0;
+        }
+        long nanos = primera.getReanudarEn() - System.nanoTime();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999_999));
+    }
+
+    private void reanudarPausadas() {
+        long ahora = System.nanoTime();
+        SesionNio sesion;
+        while ((sesion = pausadas.peek()) != null && sesion.getReanudarEn() - ahora <= 0) {
+            pausadas.poll();
+            sesion.reanudar();
+        }
+    }
+
+    private void ejecutarTareas() {
+        Runnable tarea;
+        while ((tarea = tareas.poll()) != null) {
+            tarea.run();
+        }
+    }
+
+    private void escribirPendientes() {
+        SesionNio sesion;
+        while ((sesion = pendientesEscritura.poll()) != null) {
+            sesion.escribir();
+        }
+    }
+}
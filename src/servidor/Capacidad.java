@@ -0,0 +1,75 @@
+package servidor;
+
+/**
+ * Extensiones del protocolo que un cliente puede pedir al conectarse enviando,
+ * antes de su nombre, una línea "[Capacidades] token1 token2 ...".
+ * El servidor responde con la misma cabecera y las que acepta. Los clientes que
+ * no envían esa línea siguen con el protocolo original.
+ */
+public enum Capacidad {
+
+    /** Lista completa al entrar y después solo altas y bajas ("[Presencia]+ana,-beto"). */
+    PRESENCIA("presencia"),
+    /**
+     * Protocolo binario de tramas, versión 1 (ver {@link protocolo.Trama}). Tras la respuesta
+     * a la negociación, ambos extremos dejan de enviar líneas. Una versión futura se
+     * negociaría con otro token, de modo que cada lado elige la más alta que conozcan los dos.
+     */
+    BINARIO("binario"),
+    /**
+     * Compresión DEFLATE de ambos sentidos (ver {@link protocolo.Compresion}). Como con el
+     * protocolo binario, la respuesta a la negociación es lo último que viaja sin comprimir.
+     * Si se negocian las dos, se comprimen las tramas.
+     */
+    DEFLATE("deflate"),
+    /**
+     * Latidos: tras un rato sin recibir nada del cliente, el servidor le envía "[Ping]" y
+     * cierra la conexión si no llega nada (por ejemplo, "[Pong]") antes del plazo. El
+     * cliente también puede enviar "[Ping]" y el servidor le responde "[Pong]".
+     */
+    LATIDO("latido"),
+    /**
+     * Reanudación: tras registrarse, el cliente recibe un token ("[Reanudar]token"). Si pierde
+     * la conexión, al volver envía "[Reanudar]token nombre" en lugar del nombre y recupera su
+     * sesión, sus salas y lo que se le envió mientras tanto, sin que los demás lo vean salir.
+     */
+    REANUDAR("reanudar"),
+    /**
+     * Estado de entrega: tras cada privado, el remitente recibe "[Entrega]estado destinatario",
+     * con estado "entregado", "guardado" (esperará en el buzón del destinatario) o "rechazado".
+     */
+    ENTREGA("entrega"),
+    /**
+     * Transferencias de archivos: ofertas y avisos como "[Transferencia]orden argumentos"; los
+     * bytes van por el puerto de transferencias. Solo se concede si el servidor lo tiene abierto.
+     */
+    TRANSFERENCIA("transferencia");
+
+    /** Cabecera de la línea de negociación, en ambos sentidos. */
+    public static final String CABECERA = "[Capacidades]";
+
+    private final String token;
+
+    Capacidad(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Busca la capacidad correspondiente a un token del protocolo.
+     *
+     * @param token Token recibido del cliente.
+     * @return Capacidad, o null si el servidor no la conoce.
+     */
+    public static Capacidad desdeToken(String token) {
+        for (Capacidad capacidad : values()) {
+            if (capacidad.token.equalsIgnoreCase(token)) {
+                return capacidad;
+            }
+        }
+        return null;
+    }
+
+    public String getToken() {
+        return token;
+    }
+}
@@ -0,0 +1,292 @@
+package servidor;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola de salida acotada de una sesión. Quien difunde un mensaje solo lo encola aquí
+ * y sigue con el siguiente destinatario; el escritor de la sesión la vacía a su ritmo.
+ * <p>
+ * Es un búfer circular con un instante de encolado por posición, de modo que encolar
+ * no reserva memoria y se puede saber cuánto tiempo lleva esperando el mensaje más antiguo.
+ * Cada posición guarda los bytes ya codificados de un {@link Mensaje} en el formato de la sesión,
+ * compartidos con el resto de destinatarios que usan ese formato.
+ */
+public class ColaSalida {
+
+    private final byte[][] elementos;
+    private final long[] instantes;
+    private final PoliticaConsumidorLento politica;
+    private final long retrasoMaximoNanos;
+    private final EstadisticasSalida estadisticas;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition noVacia = lock.newCondition();
+    private int cabeza = 0;
+    private int tamano = 0;
+    private boolean cerrada = false;
+    /** Mensajes del principio que el escritor NIO ya copió al canal: no se pueden descartar. */
+    private int enVuelo = 0;
+
+    /**
+     * Constructor de la cola.
+     *
+     * @param capacidad        Número máximo de mensajes pendientes.
+     * @param politica         Qué hacer cuando el cliente no da abasto.
+     * @param retrasoMaximoMs  Retraso máximo tolerado con la política DESCONECTAR.
+     * @param estadisticas     Contadores del servidor donde anotar cada desenlace.
+     */
+    public ColaSalida(int capacidad, PoliticaConsumidorLento politica, long retrasoMaximoMs,
+            EstadisticasSalida estadisticas) {
+        this.elementos = new byte[Math.max(1, capacidad)][];
+        this.instantes = new long[elementos.length];
+        this.politica = politica;
+        this.retrasoMaximoNanos = retrasoMaximoMs * 1_000_000L;
+        this.estadisticas = estadisticas;
+    }
+
+    /**
+     * Encola un mensaje aplicando la política de consumidor lento.
+     *
+     * @param mensaje Mensaje ya codificado a encolar.
+     * @return false si el cliente debe desconectarse por ir demasiado retrasado.
+     */
+    public boolean ofrecer(byte[] mensaje) {
+        long ahora = System.nanoTime();
+        lock.lock();
+        try {
+            if (cerrada) return true;
+
+            if (politica == PoliticaConsumidorLento.DESCONECTAR && tamano > 0
+                    && ahora - instantes[cabeza] > retrasoMaximoNanos) {
+                return rechazarPorLentitud();
+            }
+            if (tamano == elementos.length) {
+                switch (politica) {
+                    case DESCARTAR_ANTIGUO:
+                        if (!descartarMasAntiguo()) {
+                            estadisticas.registrarDescarteNuevo();
+                            return true;
+                        }
+                        estadisticas.registrarDescarteAntiguo();
+                        break;
+                    case DESCARTAR_NUEVO:
+                        estadisticas.registrarDescarteNuevo();
+                        return true;
+                    default:
+                        return rechazarPorLentitud();
+                }
+            }
+
+            int cola = (cabeza + tamano) % elementos.length;
+            elementos[cola] = mensaje;
+            instantes[cola] = ahora;
+            tamano++;
+            estadisticas.registrarEncolado();
+            noVacia.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encola varios mensajes de una vez, con una sola toma del cerrojo y un solo aviso al
+     * escritor, que los enviará en la misma escritura. Si no caben todos se descartan los
+     * más antiguos de la lista tras los primeros {@code fijos}, que son líneas de control
+     * (bienvenida, reanudación) sin las que el cliente no completa el saludo: es para
+     * ponerse al día, no para tráfico en vivo. Si ni los fijos caben, se encolan los que
+     * quepan desde el principio y el resto no se encola ni se cuenta como descartado: decide
+     * quien llama.
+     *
+     * @param mensajes Mensajes ya codificados, en orden.
+     * @param fijos    Cuántos mensajes del principio no se descartan mientras quepan.
+     * @return Cuántos mensajes se encolaron; 0 si la cola está cerrada.
+     */
+    public int ofrecerTodos(List<byte[]> mensajes, int fijos) {
+        long ahora = System.nanoTime();
+        lock.lock();
+        try {
+            if (cerrada || mensajes.isEmpty()) return 0;
+            int protegidos = Math.min(fijos, mensajes.size());
+            int sobran = Math.max(0, mensajes.size() - (elementos.length - tamano));
+            int finDescarte = protegidos + Math.min(sobran, mensajes.size() - protegidos);
+            int aceptados = 0;
+            for (int i = 0; i < mensajes.size(); i++) {
+                if (tamano == elementos.length && i < protegidos) {
+                    continue; // Sin sitio ni para los fijos: se quedan para quien llama.
+                }
+                if ((i >= protegidos && i < finDescarte) || tamano == elementos.length) {
+                    estadisticas.registrarDescarteNuevo();
+                    continue;
+                }
+                int cola = (cabeza + tamano) % elementos.length;
+                elementos[cola] = mensajes.get(i);
+                instantes[cola] = ahora;
+                tamano++;
+                aceptados++;
+                estadisticas.registrarEncolado();
+            }
+            if (tamano > 0) noVacia.signal();
+            return aceptados;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera a que haya mensajes y los mueve todos a la lista indicada.
+     *
+     * @param destino Lista donde se añaden los mensajes pendientes, en orden.
+     * @return false si la cola está cerrada y ya no quedan mensajes.
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    public boolean drenar(List<byte[]> destino) throws InterruptedException {
+        lock.lock();
+        try {
+            while (tamano == 0 && !cerrada) {
+                noVacia.await();
+            }
+            if (tamano == 0) return false;
+            while (tamano > 0) {
+                destino.add(extraer());
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saca sin esperar todos los mensajes pendientes. Lo usa el escritor NIO de las sesiones
+     * comprimidas, que necesita el lote entero para comprimirlo de una vez.
+     *
+     * @param destino Lista donde se añaden los mensajes pendientes, en orden.
+     * @return Número de mensajes sacados.
+     */
+    public int extraerTodos(List<byte[]> destino) {
+        lock.lock();
+        try {
+            int extraidos = tamano;
+            while (tamano > 0) {
+                destino.add(extraer());
+            }
+            enVuelo = 0;
+            return extraidos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copia en el búfer, sin sacarlos de la cola, todos los mensajes pendientes que quepan.
+     * Lo usa el escritor NIO para agrupar varios mensajes en una sola escritura.
+     *
+     * @param destino      Búfer de escritura.
+     * @param desplazamiento Bytes del primer mensaje que ya se enviaron.
+     * @return Número de bytes copiados.
+     */
+    public int copiar(ByteBuffer destino, int desplazamiento) {
+        lock.lock();
+        try {
+            int copiados = 0;
+            int desde = desplazamiento;
+            int i = 0;
+            for (; i < tamano && destino.hasRemaining(); i++) {
+                byte[] mensaje = elementos[(cabeza + i) % elementos.length];
+                int cantidad = Math.min(mensaje.length - desde, destino.remaining());
+                destino.put(mensaje, desde, cantidad);
+                copiados += cantidad;
+                desde = 0;
+            }
+            enVuelo = i;
+            return copiados;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saca de la cola los mensajes que se terminaron de escribir.
+     *
+     * @param bytes Desplazamiento previo más los bytes que aceptó el canal.
+     * @return Bytes ya enviados del nuevo primer mensaje.
+     */
+    public int consumir(int bytes) {
+        lock.lock();
+        try {
+            int restantes = bytes;
+            while (tamano > 0 && restantes >= elementos[cabeza].length) {
+                restantes -= elementos[cabeza].length;
+                estadisticas.registrarEscrito(extraer());
+            }
+            enVuelo = restantes > 0 ? 1 : 0;
+            return restantes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cierra la cola: se ignoran los mensajes nuevos y se despierta al escritor.
+     */
+    public void cerrar() {
+        lock.lock();
+        try {
+            cerrada = true;
+            noVacia.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Número de mensajes pendientes de escribir.
+     *
+     * @return Profundidad actual de la cola.
+     */
+    public int getTamano() {
+        lock.lock();
+        try {
+            return tamano;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] extraer() {
+        byte[] mensaje = elementos[cabeza];
+        elementos[cabeza] = null;
+        cabeza = (cabeza + 1) % elementos.length;
+        tamano--;
+        return mensaje;
+    }
+
+    /**
+     * Descarta el mensaje más antiguo que todavía no se ha empezado a enviar.
+     *
+     * @return false si todos los pendientes están ya en vuelo y no se puede descartar ninguno.
+     */
+    private boolean descartarMasAntiguo() {
+        if (enVuelo >= tamano) return false;
+        // Los mensajes en vuelo avanzan una posición y ocupan el hueco del descartado.
+        for (int i = enVuelo; i > 0; i--) {
+            int hacia = (cabeza + i) % elementos.length;
+            int desde = (cabeza + i - 1) % elementos.length;
+            elementos[hacia] = elementos[desde];
+            instantes[hacia] = instantes[desde];
+        }
+        elementos[cabeza] = null;
+        cabeza = (cabeza + 1) % elementos.length;
+        tamano--;
+        return true;
+    }
+
+    private boolean rechazarPorLentitud() {
+        cerrada = true;
+        estadisticas.registrarDesconexion();
+        noVacia.signalAll();
+        return false;
+    }
+}
@@ -0,0 +1,124 @@
+package servidor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import protocolo.Compresion;
+
+/**
+ * Compresión del sentido servidor-cliente de una sesión que negoció "deflate".
+ * Solo la usa el escritor de la sesión: recibe cada lote que saca de la cola y devuelve
+ * los bytes que hay que escribir en el socket.
+ * <p>
+ * Los mensajes de una difusión se siguen codificando una sola vez para todos; lo que es
+ * propio de cada conexión es la ventana DEFLATE, así que cada escritor comprime su lote
+ * entero de una vez, fuera de los cerrojos de difusión, y lo cierra con un solo vaciado
+ * síncrono en lugar de uno por mensaje.
+ */
+final class CompresorSalida {
+
+    private static final int TAM_INICIAL = 1024;
+    /** Un búfer que creció por encima de esto (un historial largo) se libera en el lote siguiente. */
+    private static final int TAM_RETENIDO = 64 * 1024;
+
+    private final Deflater compresor;
+    private final EstadisticasCompresion estadisticas;
+    /** Respuesta a la negociación: ella y lo encolado antes salen sin comprimir. */
+    private byte[] ultimoSinComprimir;
+    private byte[] bytes = new byte[TAM_INICIAL];
+    private int longitud = 0;
+
+    /**
+     * Constructor del compresor.
+     *
+     * @param nivel              Nivel de compresión ("chat.compresion.nivel").
+     * @param ultimoSinComprimir Codificación exacta del último mensaje que va sin comprimir.
+     * @param estadisticas       Contadores compartidos del servidor.
+     */
+    CompresorSalida(int nivel, byte[] ultimoSinComprimir, EstadisticasCompresion estadisticas) {
+        this.compresor = Compresion.nuevoCompresor(nivel);
+        this.ultimoSinComprimir = ultimoSinComprimir;
+        this.estadisticas = estadisticas;
+    }
+
+    /**
+     * Prepara un lote para escribirlo.
+     *
+     * @param lote       Mensajes sacados de la cola, en orden.
+     * @param yaEnviados Bytes del primer mensaje que ya se escribieron sin comprimir.
+     * @return Búfer con los bytes a escribir, válidos hasta {@link #getLongitud()}.
+     */
+    byte[] procesar(List<byte[]> lote, int yaEnviados) {
+        if (bytes.length > TAM_RETENIDO) {
+            bytes = new byte[TAM_INICIAL];
+        }
+        longitud = 0;
+        int i = 0;
+        for (; ultimoSinComprimir != null && i < lote.size(); i++) {
+            byte[] mensaje = lote.get(i);
+            int desde = i == 0 ? yaEnviados : 0;
+            asegurarEspacio(mensaje.length - desde);
+            System.arraycopy(mensaje, desde, bytes, longitud, mensaje.length - desde);
+            longitud += mensaje.length - desde;
+            if (mensaje == ultimoSinComprimir) {
+                ultimoSinComprimir = null;
+            }
+        }
+        if (i == lote.size()) {
+            return bytes;
+        }
+
+        long inicio = System.nanoTime();
+        int previos = longitud;
+        long entrada = 0;
+        for (; i < lote.size(); i++) {
+            byte[] mensaje = lote.get(i);
+            entrada += mensaje.length;
+            compresor.setInput(mensaje);
+            while (!compresor.needsInput()) {
+                comprimir(Deflater.NO_FLUSH);
+            }
+        }
+        while (comprimir(Deflater.SYNC_FLUSH)) {
+            // El vaciado llenó el búfer: queda más por sacar.
+        }
+        estadisticas.registrarCompresion(entrada, longitud - previos, System.nanoTime() - inicio);
+        return bytes;
+    }
+
+    /**
+     * Bytes válidos del búfer devuelto por el último {@link #procesar(List, int)}.
+     *
+     * @return Longitud a escribir.
+     */
+    int getLongitud() {
+        return longitud;
+    }
+
+    /**
+     * Libera la memoria nativa del compresor. Solo lo llama el escritor, al terminar.
+     */
+    void liberar() {
+        compresor.end();
+    }
+
+    /**
+     * Comprime lo que quepa en el espacio libre del búfer.
+     *
+     * @return true si se llenó el espacio libre y puede quedar salida pendiente.
+     */
+    private boolean comprimir(int vaciado) {
+        asegurarEspacio(64);
+        int libre = bytes.length - longitud;
+        int producidos = compresor.deflate(bytes, longitud, libre, vaciado);
+        longitud += producidos;
+        return producidos == libre;
+    }
+
+    private void asegurarEspacio(int cantidad) {
+        if (bytes.length - longitud < cantidad) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, longitud + cantidad));
+        }
+    }
+}
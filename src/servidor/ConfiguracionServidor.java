@@ -0,0 +1,702 @@
+package servidor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import registro.NivelRegistro;
+
+/**
+ * Configuración del servidor: puerto, motor de red, modelo de hilos, tamaños de búfer y colas,
+ * presencia, compresión, límites de envío por cliente, latidos, reanudación de sesiones, historial,
+ * salas, diario, buzones de privados, transferencias de archivos, entrega de eventos al observador,
+ * registro de eventos en disco, métricas y federación con otros nodos.
+ * <p>
+ * Cada opción tiene una clave "chat.*". Los valores se toman, de menor a mayor prioridad, de los
+ * valores por defecto, de un archivo de propiedades ({@code --config=archivo}), de las propiedades
+ * del sistema ({@code -Dchat.puerto=5003}) y de los argumentos ({@code --puerto=5003}, es decir,
+ * la clave sin el prefijo "chat.").
+ */
+public class ConfiguracionServidor {
+
+    private static final String PREFIJO = "chat.";
+    /**
+     * Sitio que se deja en la cola de salida, al reanudar, para las líneas de control del lote
+     * (token y lista de usuarios) y las del saludo que aún no hayan salido.
+     */
+    static final int RESERVA_REANUDACION = 4;
+
+    private int puerto;
+    private MotorServidor motor;
+    private ModoHilos modoHilos;
+    private final int buclesNio;
+    private final int tamBufferLectura;
+    private final int tamBufferEscritura;
+    private final int tamBufferLecturaNio;
+    private final int tamBufferEscrituraNio;
+    private final int capacidadCola;
+    private final PoliticaConsumidorLento politica;
+    private final long retrasoMaximoMs;
+    private final long ventanaPresenciaMs;
+    private final int nivelCompresion;
+    private final long limitePublicosPorSegundo;
+    private final long rafagaPublicos;
+    private final long limitePrivadosPorSegundo;
+    private final long rafagaPrivados;
+    private final long limiteBytesPorSegundo;
+    private final long rafagaBytes;
+    private final long limiteGlobalPorSegundo;
+    private final long rafagaGlobal;
+    private final long retrasoMaxLimiteMs;
+    private final int descartesMaxLimite;
+    private final long intervaloLatidoMs;
+    private final long esperaLatidoMs;
+    private final long plazoRegistroMs;
+    private final long ticTemporizadoresMs;
+    private final long graciaReanudacionMs;
+    private final int maxPendientesReanudacion;
+    private final int mensajesHistorial;
+    private final long bytesHistorial;
+    private final int maxSalasPorSesion;
+    private final String directorioDiario;
+    private final int tamSegmentoDiario;
+    private final int segmentosDiario;
+    private final long sincronizacionDiarioMs;
+    private final String directorioBuzones;
+    private final int maxMensajesBuzon;
+    private final long maxBytesBuzon;
+    private final long maxBytesBuzones;
+    private final int maxBuzones;
+    private final long caducidadBuzonMs;
+    private final int puertoTransferencias;
+    private final String directorioTransferencias;
+    private final long maxBytesTransferencia;
+    private final int ventanaTransferencia;
+    private final int maxTransferencias;
+    private final long esperaTransferenciaMs;
+    private final long inactividadTransferenciaMs;
+    private final long bytesPorSegundoTransferencias;
+    private final long intervaloEventosMs;
+    private final int eventosFrecuentesPorIntervalo;
+    private final int maxEventosPendientes;
+    private final String directorioRegistro;
+    private final NivelRegistro nivelRegistro;
+    private final int capacidadRegistro;
+    private final long tamArchivoRegistro;
+    private final int archivosRegistro;
+    private final boolean metricasJmx;
+    private final int puertoMetricas;
+    private final String idNodo;
+    private final int puertoNodo;
+    private final List<InetSocketAddress> paresNodo;
+    private final long esperaReservaMs;
+    private final int capacidadColaNodo;
+
+    /**
+     * Crea la configuración a partir de un conjunto de propiedades "chat.*".
+     * Las que falten toman su valor por defecto.
+     *
+     * @param propiedades Propiedades de configuración.
+     */
+    public ConfiguracionServidor(Properties propiedades) {
+        puerto = entero(propiedades, "puerto", 5003);
+        motor = MotorServidor.desdeTexto(texto(propiedades, "motor", "bloqueante"));
+        modoHilos = ModoHilos.desdeTexto(texto(propiedades, "hilos", "plataforma"));
+        buclesNio = entero(propiedades, "nio.bucles", Runtime.getRuntime().availableProcessors());
+        tamBufferLectura = entero(propiedades, "buffer.lectura", 512);
+        tamBufferEscritura = entero(propiedades, "buffer.escritura", 1024);
+        tamBufferLecturaNio = entero(propiedades, "nio.bufferLectura", 4096);
+        tamBufferEscrituraNio = entero(propiedades, "nio.bufferEscritura", 64 * 1024);
+        capacidadCola = entero(propiedades, "cola.capacidad", 1024);
+        politica = PoliticaConsumidorLento.desdeTexto(texto(propiedades, "cola.politica", "descartar_antiguo"));
+        retrasoMaximoMs = largo(propiedades, "cola.retrasoMaxMs", 5000);
+        ventanaPresenciaMs = largo(propiedades, "presencia.ventanaMs", 100);
+        nivelCompresion = entero(propiedades, "compresion.nivel", 1);
+        if (nivelCompresion < 0 || nivelCompresion > 9) {
+            throw new IllegalArgumentException("chat.compresion.nivel debe estar entre 0 y 9: " + nivelCompresion);
+        }
+        // **Límites de envío por cliente y global (0 = sin límite)**
+        limitePublicosPorSegundo = noNegativo(propiedades, "limite.publicosPorSegundo", 20);
+        rafagaPublicos = noNegativo(propiedades, "limite.rafagaPublicos", 2 * limitePublicosPorSegundo);
+        limitePrivadosPorSegundo = noNegativo(propiedades, "limite.privadosPorSegundo", 20);
+        rafagaPrivados = noNegativo(propiedades, "limite.rafagaPrivados", 2 * limitePrivadosPorSegundo);
+        limiteBytesPorSegundo = noNegativo(propiedades, "limite.bytesPorSegundo", 64 * 1024);
+        rafagaBytes = noNegativo(propiedades, "limite.rafagaBytes", 4 * limiteBytesPorSegundo);
+        limiteGlobalPorSegundo = noNegativo(propiedades, "limite.global.mensajesPorSegundo", 0);
+        rafagaGlobal = noNegativo(propiedades, "limite.global.rafaga", 2 * limiteGlobalPorSegundo);
+        retrasoMaxLimiteMs = noNegativo(propiedades, "limite.retrasoMaxMs", 1000);
+        descartesMaxLimite = (int) noNegativo(propiedades, "limite.descartesMax", 50);
+        // **Latidos y cierre de conexiones inactivas (0 = desactivado)**
+        intervaloLatidoMs = noNegativo(propiedades, "latido.intervaloMs", 30_000);
+        esperaLatidoMs = noNegativo(propiedades, "latido.esperaMs", 15_000);
+        plazoRegistroMs = noNegativo(propiedades, "latido.registroMs", 60_000);
+        ticTemporizadoresMs = Math.max(1, noNegativo(propiedades, "latido.ticMs", 100));
+        // **Reanudación de sesiones tras una caída de la conexión (0 = desactivada)**
+        graciaReanudacionMs = noNegativo(propiedades, "reanudacion.graciaMs", 30_000);
+        mensajesHistorial = entero(propiedades, "historial.mensajes", 100);
+        // El lote de la reanudación (pendientes, historial perdido y control) debe caber entero en la cola.
+        int sitioPendientes = capacidadCola - mensajesHistorial - RESERVA_REANUDACION;
+        maxPendientesReanudacion = (int) noNegativo(propiedades, "reanudacion.maxPendientes",
+                Math.max(0, sitioPendientes));
+        if (graciaReanudacionMs > 0 && maxPendientesReanudacion > sitioPendientes) {
+            throw new IllegalArgumentException("chat.reanudacion.maxPendientes (" + maxPendientesReanudacion
+                    + ") más chat.historial.mensajes (" + mensajesHistorial + ") más " + RESERVA_REANUDACION
+                    + " no caben en chat.cola.capacidad (" + capacidadCola + ")");
+        }
+        bytesHistorial = largo(propiedades, "historial.kb", 64) * 1024;
+        maxSalasPorSesion = entero(propiedades, "salas.maxPorSesion", 32);
+        directorioDiario = texto(propiedades, "diario.directorio", "diario");
+        tamSegmentoDiario = entero(propiedades, "diario.segmentoMb", 16) * 1024 * 1024;
+        segmentosDiario = entero(propiedades, "diario.segmentos", 8);
+        sincronizacionDiarioMs = largo(propiedades, "diario.syncMs", 10);
+        // **Buzones de privados para usuarios sin conexión (directorio vacío = desactivados)**
+        directorioBuzones = texto(propiedades, "buzones.directorio", "buzones");
+        maxMensajesBuzon = (int) noNegativo(propiedades, "buzones.maxMensajes", 100);
+        maxBytesBuzon = noNegativo(propiedades, "buzones.maxKb", 64) * 1024;
+        maxBytesBuzones = noNegativo(propiedades, "buzones.maxMb", 64) * 1024 * 1024;
+        maxBuzones = (int) noNegativo(propiedades, "buzones.max", 10_000);
+        caducidadBuzonMs = noNegativo(propiedades, "buzones.caducidadMs", 7L * 24 * 60 * 60 * 1000);
+        // **Transferencias de archivos por un puerto aparte (-1 = puerto del chat + 1, 0 = desactivadas)**
+        puertoTransferencias = entero(propiedades, "transferencia.puerto", -1);
+        directorioTransferencias = texto(propiedades, "transferencia.directorio", "transferencias");
+        maxBytesTransferencia = noNegativo(propiedades, "transferencia.maxMb", 4096) * 1024 * 1024;
+        ventanaTransferencia = (int) Math.max(1, Math.min(1024, noNegativo(propiedades, "transferencia.ventanaMb", 8)))
+                * 1024 * 1024;
+        maxTransferencias = (int) noNegativo(propiedades, "transferencia.max", 16);
+        esperaTransferenciaMs = noNegativo(propiedades, "transferencia.esperaMs", 120_000);
+        inactividadTransferenciaMs = noNegativo(propiedades, "transferencia.inactividadMs", 30_000);
+        bytesPorSegundoTransferencias = noNegativo(propiedades, "transferencia.kbPorSegundo", 0) * 1024;
+        intervaloEventosMs = largo(propiedades, "eventos.intervaloMs", 100);
+        eventosFrecuentesPorIntervalo = entero(propiedades, "eventos.frecuentesPorIntervalo", 50);
+        maxEventosPendientes = entero(propiedades, "eventos.maxPendientes", 10_000);
+        directorioRegistro = texto(propiedades, "registro.directorio", "registro");
+        nivelRegistro = NivelRegistro.desdeTexto(texto(propiedades, "registro.nivel", "info"));
+        capacidadRegistro = entero(propiedades, "registro.capacidad", 8192);
+        tamArchivoRegistro = largo(propiedades, "registro.archivoMb", 8) * 1024 * 1024;
+        archivosRegistro = entero(propiedades, "registro.archivos", 5);
+        metricasJmx = Boolean.parseBoolean(texto(propiedades, "metricas.jmx", "true").trim());
+        puertoMetricas = entero(propiedades, "metricas.puerto", 0);
+        idNodo = texto(propiedades, "nodo.id", "").trim();
+        puertoNodo = entero(propiedades, "nodo.puerto", 0);
+        paresNodo = direcciones(texto(propiedades, "nodo.pares", ""));
+        esperaReservaMs = largo(propiedades, "nodo.reservaMs", 500);
+        capacidadColaNodo = entero(propiedades, "nodo.cola", 65_536);
+    }
+
+    /**
+     * Configuración a partir de las propiedades del sistema.
+     *
+     * @return Configuración con los valores "-Dchat.*" indicados al arrancar.
+     */
+    public static ConfiguracionServidor desdePropiedades() {
+        return new ConfiguracionServidor(propiedadesDelSistema(new Properties()));
+    }
+
+    /**
+     * Configuración a partir de los argumentos de la línea de comandos.
+     *
+     * @param args Argumentos "--clave=valor"; "--config=archivo" carga antes un archivo de propiedades.
+     * @return Configuración resultante.
+     * @throws IOException              Si no se puede leer el archivo de configuración.
+     * @throws IllegalArgumentException Si un argumento no tiene la forma "--clave=valor".
+     */
+    public static ConfiguracionServidor desdeArgumentos(String[] args) throws IOException {
+        Properties propiedades = new Properties();
+        for (String arg : args) {
+            if (arg.startsWith("--config=")) {
+                try (InputStream entrada = Files.newInputStream(Paths.get(arg.substring(9)))) {
+                    propiedades.load(entrada);
+                }
+            }
+        }
+        propiedadesDelSistema(propiedades);
+        for (String arg : args) {
+            int igual = arg.indexOf('=');
+            if (!arg.startsWith("--") || igual < 0) {
+                throw new IllegalArgumentException("Argumento no válido: " + arg + " (se espera --clave=valor)");
+            }
+            if (!arg.startsWith("--config=")) {
+                propiedades.setProperty(PREFIJO + arg.substring(2, igual), arg.substring(igual + 1));
+            }
+        }
+        return new ConfiguracionServidor(propiedades);
+    }
+
+    private static Properties propiedadesDelSistema(Properties destino) {
+        for (String clave : System.getProperties().stringPropertyNames()) {
+            if (clave.startsWith(PREFIJO)) {
+                destino.setProperty(clave, System.getProperty(clave));
+            }
+        }
+        return destino;
+    }
+
+    private static String texto(Properties propiedades, String clave, String porDefecto) {
+        return propiedades.getProperty(PREFIJO + clave, porDefecto);
+    }
+
+    private static int entero(Properties propiedades, String clave, int porDefecto) {
+        String valor = propiedades.getProperty(PREFIJO + clave);
+        try {
+            return valor == null ? porDefecto : Integer.parseInt(valor.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valor no numérico para " + PREFIJO + clave + ": " + valor);
+        }
+    }
+
+    private static long largo(Properties propiedades, String clave, long porDefecto) {
+        String valor = propiedades.getProperty(PREFIJO + clave);
+        try {
+            return valor == null ? porDefecto : Long.parseLong(valor.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valor no numérico para " + PREFIJO + clave + ": " + valor);
+        }
+    }
+
+    private static long noNegativo(Properties propiedades, String clave, long porDefecto) {
+        long valor = largo(propiedades, clave, porDefecto);
+        if (valor < 0) {
+            throw new IllegalArgumentException(PREFIJO + clave + " no puede ser negativo: " + valor);
+        }
+        return valor;
+    }
+
+    /**
+     * Interpreta una lista "host:puerto,host:puerto".
+     *
+     * @throws IllegalArgumentException Si una dirección no tiene puerto o no es numérico.
+     */
+    private static List<InetSocketAddress> direcciones(String lista) {
+        List<InetSocketAddress> direcciones = new ArrayList<>();
+        for (String direccion : lista.split(",")) {
+            direccion = direccion.trim();
+            if (direccion.isEmpty()) continue;
+            int dosPuntos = direccion.lastIndexOf(':');
+            try {
+                if (dosPuntos <= 0) throw new NumberFormatException();
+                direcciones.add(InetSocketAddress.createUnresolved(direccion.substring(0, dosPuntos),
+                        Integer.parseInt(direccion.substring(dosPuntos + 1))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Dirección no válida en " + PREFIJO + "nodo.pares: " + direccion);
+            }
+        }
+        return direcciones;
+    }
+
+    // **Opciones que la interfaz gráfica permite cambiar antes de iniciar**
+
+    public void setPuerto(int puerto) {
+        this.puerto = puerto;
+    }
+
+    public void setMotor(MotorServidor motor) {
+        this.motor = motor;
+    }
+
+    public void setModoHilos(ModoHilos modoHilos) {
+        this.modoHilos = modoHilos;
+    }
+
+    // **Consultas**
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    public MotorServidor getMotor() {
+        return motor;
+    }
+
+    public ModoHilos getModoHilos() {
+        return modoHilos;
+    }
+
+    public int getBuclesNio() {
+        return buclesNio;
+    }
+
+    public int getTamBufferLectura() {
+        return tamBufferLectura;
+    }
+
+    public int getTamBufferEscritura() {
+        return tamBufferEscritura;
+    }
+
+    public int getTamBufferLecturaNio() {
+        return tamBufferLecturaNio;
+    }
+
+    public int getTamBufferEscrituraNio() {
+        return tamBufferEscrituraNio;
+    }
+
+    public int getCapacidadCola() {
+        return capacidadCola;
+    }
+
+    public PoliticaConsumidorLento getPolitica() {
+        return politica;
+    }
+
+    public long getRetrasoMaximoMs() {
+        return retrasoMaximoMs;
+    }
+
+    public long getVentanaPresenciaMs() {
+        return ventanaPresenciaMs;
+    }
+
+    /**
+     * Nivel DEFLATE para los clientes que piden compresión ("chat.compresion.nivel", 1 por defecto,
+     * el más rápido). Con 0 el servidor no acepta la capacidad "deflate".
+     *
+     * @return Nivel entre 0 y 9.
+     */
+    public int getNivelCompresion() {
+        return nivelCompresion;
+    }
+
+    public long getLimitePublicosPorSegundo() {
+        return limitePublicosPorSegundo;
+    }
+
+    public long getRafagaPublicos() {
+        return rafagaPublicos;
+    }
+
+    public long getLimitePrivadosPorSegundo() {
+        return limitePrivadosPorSegundo;
+    }
+
+    public long getRafagaPrivados() {
+        return rafagaPrivados;
+    }
+
+    public long getLimiteBytesPorSegundo() {
+        return limiteBytesPorSegundo;
+    }
+
+    public long getRafagaBytes() {
+        return rafagaBytes;
+    }
+
+    public long getLimiteGlobalPorSegundo() {
+        return limiteGlobalPorSegundo;
+    }
+
+    public long getRafagaGlobal() {
+        return rafagaGlobal;
+    }
+
+    /**
+     * Espera máxima con la que se paga un exceso antes de descartar ("chat.limite.retrasoMaxMs").
+     *
+     * @return Milisegundos.
+     */
+    public long getRetrasoMaxLimiteMs() {
+        return retrasoMaxLimiteMs;
+    }
+
+    /**
+     * Descartes seguidos tolerados antes de desconectar ("chat.limite.descartesMax"; 0 = nunca).
+     *
+     * @return Descartes; se recupera uno por segundo.
+     */
+    public int getDescartesMaxLimite() {
+        return descartesMaxLimite;
+    }
+
+    /**
+     * Silencio del cliente tras el que se le envía "[Ping]" ("chat.latido.intervaloMs"; 0 = nunca).
+     *
+     * @return Milisegundos.
+     */
+    public long getIntervaloLatidoMs() {
+        return intervaloLatidoMs;
+    }
+
+    /**
+     * Plazo para recibir algo tras el "[Ping]" antes de cerrar la conexión ("chat.latido.esperaMs").
+     *
+     * @return Milisegundos.
+     */
+    public long getEsperaLatidoMs() {
+        return esperaLatidoMs;
+    }
+
+    /**
+     * Tiempo máximo entre la conexión y el registro del nombre ("chat.latido.registroMs"; 0 = sin límite).
+     *
+     * @return Milisegundos.
+     */
+    public long getPlazoRegistroMs() {
+        return plazoRegistroMs;
+    }
+
+    /**
+     * Resolución de la rueda de temporizadores ("chat.latido.ticMs").
+     *
+     * @return Milisegundos por tic.
+     */
+    public long getTicTemporizadoresMs() {
+        return ticTemporizadoresMs;
+    }
+
+    /**
+     * Tiempo que se guarda la sesión de un cliente que negoció "reanudar" tras perder la
+     * conexión ("chat.reanudacion.graciaMs"; 0 = no se guarda y no se ofrece la capacidad).
+     *
+     * @return Milisegundos.
+     */
+    public long getGraciaReanudacionMs() {
+        return graciaReanudacionMs;
+    }
+
+    /**
+     * Mensajes que se guardan para una sesión suspendida ("chat.reanudacion.maxPendientes");
+     * si llegan más, la sesión se da por terminada. Por defecto, los que caben en la cola de
+     * salida junto al historial, para que el lote de la reanudación nunca se recorte.
+     *
+     * @return Número máximo de mensajes.
+     */
+    public int getMaxPendientesReanudacion() {
+        return maxPendientesReanudacion;
+    }
+
+    public int getMensajesHistorial() {
+        return mensajesHistorial;
+    }
+
+    public long getBytesHistorial() {
+        return bytesHistorial;
+    }
+
+    public int getMaxSalasPorSesion() {
+        return maxSalasPorSesion;
+    }
+
+    public String getDirectorioDiario() {
+        return directorioDiario;
+    }
+
+    public int getTamSegmentoDiario() {
+        return tamSegmentoDiario;
+    }
+
+    public int getSegmentosDiario() {
+        return segmentosDiario;
+    }
+
+    public long getSincronizacionDiarioMs() {
+        return sincronizacionDiarioMs;
+    }
+
+    /**
+     * Directorio de los buzones de mensajes privados ("chat.buzones.directorio"); vacío los desactiva
+     * y los privados a usuarios sin conexión se rechazan como antes.
+     *
+     * @return Ruta del directorio, o cadena vacía.
+     */
+    public String getDirectorioBuzones() {
+        return directorioBuzones;
+    }
+
+    /**
+     * Mensajes que caben en el buzón de un usuario ("chat.buzones.maxMensajes").
+     *
+     * @return Número máximo de mensajes.
+     */
+    public int getMaxMensajesBuzon() {
+        return maxMensajesBuzon;
+    }
+
+    /**
+     * Bytes que caben en el buzón de un usuario ("chat.buzones.maxKb").
+     *
+     * @return Bytes.
+     */
+    public long getMaxBytesBuzon() {
+        return maxBytesBuzon;
+    }
+
+    /**
+     * Bytes que caben entre todos los buzones ("chat.buzones.maxMb").
+     *
+     * @return Bytes.
+     */
+    public long getMaxBytesBuzones() {
+        return maxBytesBuzones;
+    }
+
+    /**
+     * Usuarios que pueden tener mensajes guardados a la vez ("chat.buzones.max"), para que
+     * escribir a muchos nombres inventados no llene el directorio.
+     *
+     * @return Número máximo de buzones.
+     */
+    public int getMaxBuzones() {
+        return maxBuzones;
+    }
+
+    /**
+     * Tiempo que un mensaje espera en un buzón antes de caducar ("chat.buzones.caducidadMs";
+     * 0 = no caduca).
+     *
+     * @return Milisegundos.
+     */
+    public long getCaducidadBuzonMs() {
+        return caducidadBuzonMs;
+    }
+
+    /**
+     * Puerto por el que viajan los bytes de las transferencias de archivos
+     * ("chat.transferencia.puerto"; por defecto el del chat + 1, 0 las desactiva).
+     *
+     * @return Puerto, o 0 si no hay transferencias.
+     */
+    public int getPuertoTransferencias() {
+        return puertoTransferencias < 0 ? puerto + 1 : puertoTransferencias;
+    }
+
+    /**
+     * Directorio de los archivos de paso de las transferencias ("chat.transferencia.directorio").
+     *
+     * @return Ruta del directorio.
+     */
+    public String getDirectorioTransferencias() {
+        return directorioTransferencias;
+    }
+
+    /**
+     * Tamaño máximo de un archivo transferido ("chat.transferencia.maxMb").
+     *
+     * @return Bytes.
+     */
+    public long getMaxBytesTransferencia() {
+        return maxBytesTransferencia;
+    }
+
+    /**
+     * Ventana de cada transferencia ("chat.transferencia.ventanaMb", entre 1 y 1024): lo que el
+     * remitente puede adelantarse al receptor, y lo que ocupa como mucho su archivo de paso.
+     *
+     * @return Bytes.
+     */
+    public int getVentanaTransferencia() {
+        return ventanaTransferencia;
+    }
+
+    /**
+     * Transferencias ofrecidas o en curso a la vez ("chat.transferencia.max").
+     *
+     * @return Número máximo de transferencias.
+     */
+    public int getMaxTransferencias() {
+        return maxTransferencias;
+    }
+
+    /**
+     * Tiempo que una oferta espera a ser aceptada ("chat.transferencia.esperaMs").
+     *
+     * @return Milisegundos.
+     */
+    public long getEsperaTransferenciaMs() {
+        return esperaTransferenciaMs;
+    }
+
+    /**
+     * Tiempo sin mover un byte tras el que se abandona una transferencia aceptada
+     * ("chat.transferencia.inactividadMs").
+     *
+     * @return Milisegundos.
+     */
+    public long getInactividadTransferenciaMs() {
+        return inactividadTransferenciaMs;
+    }
+
+    /**
+     * Ancho de banda total de las transferencias ("chat.transferencia.kbPorSegundo"; 0 = sin límite).
+     *
+     * @return Bytes por segundo.
+     */
+    public long getBytesPorSegundoTransferencias() {
+        return bytesPorSegundoTransferencias;
+    }
+
+    public long getIntervaloEventosMs() {
+        return intervaloEventosMs;
+    }
+
+    public int getEventosFrecuentesPorIntervalo() {
+        return eventosFrecuentesPorIntervalo;
+    }
+
+    public int getMaxEventosPendientes() {
+        return maxEventosPendientes;
+    }
+
+    public String getDirectorioRegistro() {
+        return directorioRegistro;
+    }
+
+    public NivelRegistro getNivelRegistro() {
+        return nivelRegistro;
+    }
+
+    public int getCapacidadRegistro() {
+        return capacidadRegistro;
+    }
+
+    public long getTamArchivoRegistro() {
+        return tamArchivoRegistro;
+    }
+
+    public int getArchivosRegistro() {
+        return archivosRegistro;
+    }
+
+    public boolean isMetricasJmx() {
+        return metricasJmx;
+    }
+
+    public int getPuertoMetricas() {
+        return puertoMetricas;
+    }
+
+    /**
+     * Identificador del nodo en el clúster; debe ser distinto en cada nodo.
+     *
+     * @return "chat.nodo.id", o "nodo-" y el puerto de clientes si no se indicó.
+     */
+    public String getIdNodo() {
+        return idNodo.isEmpty() ? "nodo-" + puerto : idNodo;
+    }
+
+    public int getPuertoNodo() {
+        return puertoNodo;
+    }
+
+    public List<InetSocketAddress> getParesNodo() {
+        return paresNodo;
+    }
+
+    public long getEsperaReservaMs() {
+        return esperaReservaMs;
+    }
+
+    public int getCapacidadColaNodo() {
+        return capacidadColaNodo;
+    }
+
+    @Override
+    public String toString() {
+        return "puerto=" + puerto + ", motor=" + motor + ", hilos=" + modoHilos + ", cola=" + capacidadCola
+                + " (" + politica + ")";
+    }
+}
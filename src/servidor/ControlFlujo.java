@@ -0,0 +1,185 @@
+package servidor;
+
+/**
+ * Control de flujo de lo que envía un cliente: cubos de tokens para mensajes públicos (también
+ * los de sala), privados y bytes totales, más el presupuesto global del servidor si lo hay.
+ * <p>
+ * La respuesta es gradual. Lo que cabe en la ráfaga pasa sin más; lo que la excede pero se
+ * paga en "chat.limite.retrasoMaxMs" pasa dejando deuda, y el motor deja de leer del cliente
+ * hasta saldarla; lo que ni así cabe se descarta con un aviso, y quien acumula demasiados
+ * descartes seguidos ("chat.limite.descartesMax", que se recuperan a uno por segundo) es
+ * desconectado. Solo lo usa el hilo lector de la sesión.
+ */
+final class ControlFlujo {
+
+    /** Respuesta a un mensaje o a unos bytes recibidos. */
+    enum Veredicto {
+        ADMITIDO, RETRASADO, DESCARTADO, DESCONECTAR
+    }
+
+    /** Límite que frenó el último mensaje, para las estadísticas. */
+    enum Limite {
+        PUBLICOS("publicos"), PRIVADOS("privados"), BYTES("bytes"), GLOBAL("global");
+
+        private final String nombre;
+
+        Limite(String nombre) {
+            this.nombre = nombre;
+        }
+
+        String getNombre() {
+            return nombre;
+        }
+    }
+
+    private static final long NANOS_ENTRE_AVISOS = 1_000_000_000L;
+
+    private final CuboTokens publicos;
+    private final CuboTokens privados;
+    private final CuboTokens bytes;
+    /** Compartido por todas las sesiones; null si no hay presupuesto global. */
+    private final CuboTokens global;
+    /** Descartes tolerados antes de desconectar; null si nunca se desconecta. */
+    private final CuboTokens descartes;
+    private final CuboTokens[] cubos;
+    private final long retrasoMaxMs;
+    private Limite limitante;
+    private long ultimoAviso;
+
+    private ControlFlujo(ConfiguracionServidor config, CuboTokens global) {
+        this.publicos = cubo(config.getLimitePublicosPorSegundo(), config.getRafagaPublicos());
+        this.privados = cubo(config.getLimitePrivadosPorSegundo(), config.getRafagaPrivados());
+        this.bytes = cubo(config.getLimiteBytesPorSegundo(), config.getRafagaBytes());
+        this.global = global;
+        this.descartes = config.getDescartesMaxLimite() > 0 ? new CuboTokens(1, config.getDescartesMaxLimite()) : null;
+        this.cubos = new CuboTokens[] {publicos, privados, bytes, global};
+        this.retrasoMaxMs = config.getRetrasoMaxLimiteMs();
+        this.ultimoAviso = System.nanoTime() - NANOS_ENTRE_AVISOS;
+    }
+
+    /**
+     * Crea el control de una sesión.
+     *
+     * @param config Configuración con los límites "chat.limite.*".
+     * @param global Cubo global del servidor, o null.
+     * @return Control de flujo, o null si no hay ningún límite configurado.
+     */
+    static ControlFlujo crear(ConfiguracionServidor config, CuboTokens global) {
+        if (global == null && config.getLimitePublicosPorSegundo() == 0 && config.getLimitePrivadosPorSegundo() == 0
+                && config.getLimiteBytesPorSegundo() == 0) {
+            return null;
+        }
+        return new ControlFlujo(config, global);
+    }
+
+    /**
+     * Crea el cubo global del servidor.
+     *
+     * @param config Configuración con "chat.limite.global.*".
+     * @return Cubo compartido, o null si no hay presupuesto global.
+     */
+    static CuboTokens crearGlobal(ConfiguracionServidor config) {
+        return cubo(config.getLimiteGlobalPorSegundo(), config.getRafagaGlobal());
+    }
+
+    private static CuboTokens cubo(long porSegundo, long rafaga) {
+        return porSegundo > 0 ? new CuboTokens(porSegundo, rafaga) : null;
+    }
+
+    /**
+     * Cobra los bytes de una línea o trama recibida, antes de interpretarla.
+     *
+     * @param cantidad Bytes recibidos.
+     * @return Veredicto para la línea o trama.
+     */
+    Veredicto admitirBytes(int cantidad) {
+        if (bytes == null) {
+            return Veredicto.ADMITIDO;
+        }
+        long ahora = System.nanoTime();
+        if (!bytes.retirar(cantidad, bytes.deudaEn(retrasoMaxMs), ahora)) {
+            return rechazar(Limite.BYTES, ahora);
+        }
+        return resultado(Limite.BYTES, bytes, ahora);
+    }
+
+    /**
+     * Cobra un mensaje público, de sala o privado y, si lo hay, su parte del presupuesto global.
+     *
+     * @param privado true para un mensaje privado.
+     * @return Veredicto para el mensaje.
+     */
+    Veredicto admitirMensaje(boolean privado) {
+        long ahora = System.nanoTime();
+        Limite limite = privado ? Limite.PRIVADOS : Limite.PUBLICOS;
+        CuboTokens propio = privado ? privados : publicos;
+        // El cubo propio se consulta antes de tocar el global, para no gastar de este en balde.
+        if (propio != null && !propio.puedeRetirar(1, propio.deudaEn(retrasoMaxMs), ahora)) {
+            return rechazar(limite, ahora);
+        }
+        if (global != null && !global.retirar(1, global.deudaEn(retrasoMaxMs), ahora)) {
+            return rechazar(Limite.GLOBAL, ahora);
+        }
+        if (propio != null) {
+            propio.retirar(1, propio.deudaEn(retrasoMaxMs), ahora);
+        }
+        Veredicto veredicto = resultado(limite, propio, ahora);
+        return veredicto == Veredicto.ADMITIDO ? resultado(Limite.GLOBAL, global, ahora) : veredicto;
+    }
+
+    private Veredicto resultado(Limite limite, CuboTokens cubo, long ahora) {
+        if (cubo == null || cubo.esperaNanos(ahora) == 0) {
+            return Veredicto.ADMITIDO;
+        }
+        limitante = limite;
+        return Veredicto.RETRASADO;
+    }
+
+    private Veredicto rechazar(Limite limite, long ahora) {
+        limitante = limite;
+        if (descartes != null && !descartes.retirar(1, 0, ahora)) {
+            return Veredicto.DESCONECTAR;
+        }
+        return Veredicto.DESCARTADO;
+    }
+
+    /**
+     * Tiempo que el motor debe dejar de leer del cliente para saldar la deuda de sus cubos.
+     *
+     * @return Nanosegundos de espera; 0 si puede seguir leyendo.
+     */
+    long esperaNanos() {
+        long ahora = System.nanoTime();
+        long espera = 0;
+        for (CuboTokens cubo : cubos) {
+            if (cubo != null) {
+                espera = Math.max(espera, cubo.esperaNanos(ahora));
+            }
+        }
+        return espera;
+    }
+
+    /**
+     * Indica si toca avisar al cliente de un descarte: como mucho un aviso por segundo,
+     * para que los avisos no sean otra inundación.
+     *
+     * @return true si hay que avisar ahora.
+     */
+    boolean debeAvisar() {
+        long ahora = System.nanoTime();
+        if (ahora - ultimoAviso < NANOS_ENTRE_AVISOS) {
+            return false;
+        }
+        ultimoAviso = ahora;
+        return true;
+    }
+
+    /**
+     * Límite que frenó el último mensaje retrasado, descartado o desconectado.
+     *
+     * @return Límite, o null si ninguno ha frenado todavía a la sesión.
+     */
+    Limite getLimitante() {
+        return limitante;
+    }
+}
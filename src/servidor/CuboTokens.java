@@ -0,0 +1,106 @@
+package servidor;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cubo de tokens: se rellena a ritmo constante hasta un máximo (la ráfaga) y cada uso retira
+ * tantos tokens como cuesta. Se admite un saldo negativo acotado, la deuda, que el que lo usa
+ * paga esperando a que el cubo se rellene.
+ * <p>
+ * Los cubos de una sesión solo los usa su hilo lector; el global lo comparten todas, de ahí
+ * el cerrojo (sin contención apenas cuesta, y no ancla hilos virtuales).
+ */
+final class CuboTokens {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final double porNano;
+    private final double capacidad;
+    private double tokens;
+    private long ultimoRelleno;
+
+    /**
+     * Constructor del cubo, que empieza lleno.
+     *
+     * @param porSegundo Tokens que se añaden por segundo.
+     * @param rafaga     Tokens que caben en el cubo; si es menor que el ritmo, se usa este.
+     */
+    CuboTokens(double porSegundo, double rafaga) {
+        this.porNano = porSegundo / 1e9;
+        this.capacidad = Math.max(rafaga, porSegundo);
+        this.tokens = capacidad;
+        this.ultimoRelleno = System.nanoTime();
+    }
+
+    /**
+     * Indica si se pueden retirar tokens sin pasar de la deuda máxima, sin retirarlos.
+     *
+     * @param cantidad    Tokens que cuesta el uso.
+     * @param deudaMaxima Saldo negativo admitido.
+     * @param ahora       Instante actual, de {@link System#nanoTime()}.
+     * @return true si la retirada cabría.
+     */
+    boolean puedeRetirar(double cantidad, double deudaMaxima, long ahora) {
+        lock.lock();
+        try {
+            rellenar(ahora);
+            return tokens - cantidad >= -deudaMaxima;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retira tokens si el saldo no baja de la deuda máxima.
+     *
+     * @param cantidad    Tokens que cuesta el uso.
+     * @param deudaMaxima Saldo negativo admitido.
+     * @param ahora       Instante actual, de {@link System#nanoTime()}.
+     * @return false si no había bastantes; entonces el cubo no cambia.
+     */
+    boolean retirar(double cantidad, double deudaMaxima, long ahora) {
+        lock.lock();
+        try {
+            rellenar(ahora);
+            if (tokens - cantidad < -deudaMaxima) {
+                return false;
+            }
+            tokens -= cantidad;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tiempo que falta para saldar la deuda.
+     *
+     * @param ahora Instante actual, de {@link System#nanoTime()}.
+     * @return Nanosegundos hasta que el saldo vuelva a ser cero; 0 si no hay deuda.
+     */
+    long esperaNanos(long ahora) {
+        lock.lock();
+        try {
+            rellenar(ahora);
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / porNano);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rellenar(long ahora) {
+        if (ahora > ultimoRelleno) {
+            tokens = Math.min(capacidad, tokens + (ahora - ultimoRelleno) * porNano);
+            ultimoRelleno = ahora;
+        }
+    }
+
+    /**
+     * Deuda máxima que se paga en el tiempo indicado.
+     *
+     * @param esperaMs Espera máxima en milisegundos.
+     * @return Tokens que se rellenan en ese tiempo.
+     */
+    double deudaEn(long esperaMs) {
+        return porNano * esperaMs * 1e6;
+    }
+}
@@ -0,0 +1,129 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Entrega los eventos del servidor a su {@link ObservadorServidor} por lotes, desde un hilo propio.
+ * Registrar un evento solo lo añade a una lista: nadie en el camino de los mensajes espera
+ * al observador ni programa una tarea por evento.
+ * <p>
+ * Los eventos normales (conexiones, errores) se conservan mientras quepan en la lista de pendientes.
+ * Los frecuentes (uno por mensaje) se muestrean: por intervalo solo pasan los primeros N
+ * y del resto solo se cuenta cuántos hubo.
+ */
+class DistribuidorEventos {
+
+    private final ObservadorServidor observador;
+    private final int frecuentesPorIntervalo;
+    private final int maxPendientes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService temporizador;
+    private List<String> pendientes = new ArrayList<>();
+    private int frecuentesEnIntervalo = 0;
+    private long omitidos = 0;
+
+    /**
+     * Constructor del distribuidor.
+     *
+     * @param observador Receptor de los lotes; null descarta todos los eventos.
+     * @param config     Intervalo, muestreo y límite de pendientes ("chat.eventos.*").
+     */
+    DistribuidorEventos(ObservadorServidor observador, ConfiguracionServidor config) {
+        this.observador = observador;
+        this.frecuentesPorIntervalo = config.getEventosFrecuentesPorIntervalo();
+        this.maxPendientes = config.getMaxEventosPendientes();
+        if (observador != null) {
+            temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread hilo = new Thread(r, "chat-eventos");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            long intervalo = Math.max(1, config.getIntervaloEventosMs());
+            temporizador.scheduleWithFixedDelay(this::entregar, intervalo, intervalo, TimeUnit.MILLISECONDS);
+        } else {
+            temporizador = null;
+        }
+    }
+
+    /**
+     * Registra un evento que no se muestrea.
+     *
+     * @param evento Línea del log.
+     */
+    void evento(String evento) {
+        anotar(evento, null, false);
+    }
+
+    /**
+     * Registra un evento frecuente, que bajo carga se muestrea. El texto se recibe en dos partes
+     * y solo se une si el evento pasa el muestreo: uno omitido no construye ninguna cadena.
+     *
+     * @param prefijo Comienzo fijo de la línea.
+     * @param detalle Resto de la línea.
+     */
+    void eventoFrecuente(String prefijo, String detalle) {
+        anotar(prefijo, detalle, true);
+    }
+
+    private void anotar(String evento, String detalle, boolean frecuente) {
+        if (observador == null) return;
+        lock.lock();
+        try {
+            if (pendientes.size() >= maxPendientes
+                    || (frecuente && frecuentesEnIntervalo++ >= frecuentesPorIntervalo)) {
+                omitidos++;
+            } else {
+                pendientes.add(detalle == null ? evento : evento + detalle);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Entrega el lote acumulado. Lo llama el temporizador y, al detenerse, el propio servidor.
+     */
+    void entregar() {
+        List<String> lote;
+        long omitidosLote;
+        lock.lock();
+        try {
+            if (pendientes.isEmpty() && omitidos == 0) {
+                frecuentesEnIntervalo = 0;
+                return;
+            }
+            lote = pendientes;
+            omitidosLote = omitidos;
+            pendientes = new ArrayList<>();
+            frecuentesEnIntervalo = 0;
+            omitidos = 0;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            observador.registrarEventos(lote, omitidosLote);
+        } catch (RuntimeException e) {
+            // Un fallo del observador no debe parar la entrega de los lotes siguientes.
+        }
+    }
+
+    /**
+     * Entrega lo pendiente y detiene el hilo de entrega.
+     */
+    void detener() {
+        if (temporizador != null) {
+            temporizador.shutdown();
+            try {
+                temporizador.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            entregar();
+        }
+    }
+}
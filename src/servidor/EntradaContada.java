@@ -0,0 +1,37 @@
+package servidor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Flujo de entrada que suma a las métricas los bytes leídos del socket.
+ * Se cuenta una vez por lectura del búfer, no por byte.
+ */
+class EntradaContada extends FilterInputStream {
+
+    private final MetricasServidor metricas;
+
+    EntradaContada(InputStream entrada, MetricasServidor metricas) {
+        super(entrada);
+        this.metricas = metricas;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            metricas.bytesLeidos(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] destino, int desde, int cantidad) throws IOException {
+        int leidos = super.read(destino, desde, cantidad);
+        if (leidos > 0) {
+            metricas.bytesLeidos(leidos);
+        }
+        return leidos;
+    }
+}
@@ -0,0 +1,58 @@
+package servidor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import protocolo.Compresion;
+import protocolo.ProtocoloException;
+
+/**
+ * Flujo que descomprime lo que envía un cliente que negoció "deflate" (motor bloqueante).
+ * Suma a las estadísticas el tiempo de descompresión, sin contar el que pasa esperando
+ * al socket.
+ */
+class EntradaDescomprimida extends InflaterInputStream {
+
+    private final EstadisticasCompresion estadisticas;
+    private long nanosEspera = 0;
+    private long comprimidos = 0;
+
+    EntradaDescomprimida(InputStream entrada, int tamBuffer, EstadisticasCompresion estadisticas) {
+        super(entrada, Compresion.nuevoDescompresor(), tamBuffer);
+        this.estadisticas = estadisticas;
+    }
+
+    @Override
+    public int read(byte[] destino, int desde, int cantidad) throws IOException {
+        long inicio = System.nanoTime();
+        nanosEspera = 0;
+        comprimidos = 0;
+        int leidos;
+        try {
+            leidos = super.read(destino, desde, cantidad);
+        } catch (ZipException e) {
+            throw new ProtocoloException("Datos comprimidos no válidos: " + e.getMessage());
+        }
+        if (leidos > 0) {
+            estadisticas.registrarDescompresion(comprimidos, leidos, System.nanoTime() - inicio - nanosEspera);
+        }
+        return leidos;
+    }
+
+    @Override
+    protected void fill() throws IOException {
+        long inicio = System.nanoTime();
+        super.fill();
+        nanosEspera += System.nanoTime() - inicio;
+        comprimidos += len;
+    }
+
+    /**
+     * Libera la memoria nativa del descompresor. Solo lo llama el hilo lector, al terminar.
+     */
+    void liberar() {
+        inf.end();
+    }
+}
@@ -0,0 +1,104 @@
+package servidor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores compartidos por todas las sesiones que negociaron la compresión "deflate":
+ * bytes antes y después de comprimir en cada sentido y tiempo de CPU gastado en ello,
+ * para poder comparar lo que se ahorra en la red con lo que cuesta.
+ */
+public class EstadisticasCompresion {
+
+    private final LongAdder sesiones = new LongAdder();
+    private final LongAdder bytesSinComprimir = new LongAdder();
+    private final LongAdder bytesComprimidos = new LongAdder();
+    private final LongAdder nanosCompresion = new LongAdder();
+    private final LongAdder bytesRecibidosComprimidos = new LongAdder();
+    private final LongAdder bytesDescomprimidos = new LongAdder();
+    private final LongAdder nanosDescompresion = new LongAdder();
+
+    void registrarSesion() {
+        sesiones.increment();
+    }
+
+    /**
+     * Anota un lote comprimido para un cliente.
+     *
+     * @param entrada Bytes de los mensajes del lote.
+     * @param salida  Bytes comprimidos que se escriben en el socket.
+     * @param nanos   Tiempo dedicado a comprimir.
+     */
+    void registrarCompresion(long entrada, long salida, long nanos) {
+        bytesSinComprimir.add(entrada);
+        bytesComprimidos.add(salida);
+        nanosCompresion.add(nanos);
+    }
+
+    /**
+     * Anota bytes descomprimidos de lo recibido de un cliente.
+     *
+     * @param entrada Bytes comprimidos leídos del socket.
+     * @param salida  Bytes obtenidos al descomprimirlos.
+     * @param nanos   Tiempo dedicado a descomprimir, sin contar la espera del socket.
+     */
+    void registrarDescompresion(long entrada, long salida, long nanos) {
+        bytesRecibidosComprimidos.add(entrada);
+        bytesDescomprimidos.add(salida);
+        nanosDescompresion.add(nanos);
+    }
+
+    public long getSesiones() {
+        return sesiones.sum();
+    }
+
+    public long getBytesSinComprimir() {
+        return bytesSinComprimir.sum();
+    }
+
+    public long getBytesComprimidos() {
+        return bytesComprimidos.sum();
+    }
+
+    public long getNanosCompresion() {
+        return nanosCompresion.sum();
+    }
+
+    public long getBytesRecibidosComprimidos() {
+        return bytesRecibidosComprimidos.sum();
+    }
+
+    public long getBytesDescomprimidos() {
+        return bytesDescomprimidos.sum();
+    }
+
+    public long getNanosDescompresion() {
+        return nanosDescompresion.sum();
+    }
+
+    /**
+     * Bytes que no pasaron por la red gracias a la compresión, en ambos sentidos.
+     *
+     * @return Diferencia entre los bytes sin comprimir y los comprimidos.
+     */
+    public long getBytesAhorrados() {
+        return getBytesSinComprimir() - getBytesComprimidos() + getBytesDescomprimidos() - getBytesRecibidosComprimidos();
+    }
+
+    /**
+     * Tiempo de CPU total de compresión y descompresión.
+     *
+     * @return Milisegundos.
+     */
+    public double getCpuMs() {
+        return (getNanosCompresion() + getNanosDescompresion()) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        long sinComprimir = getBytesSinComprimir();
+        return "sesiones=" + getSesiones() + ", salida " + sinComprimir + " -> " + getBytesComprimidos() + " bytes"
+                + (sinComprimir > 0 ? " (" + (100 * getBytesComprimidos() / sinComprimir) + " %)" : "")
+                + ", entrada " + getBytesRecibidosComprimidos() + " -> " + getBytesDescomprimidos() + " bytes"
+                + ", ahorrados=" + getBytesAhorrados() + ", cpu=" + Math.round(getCpuMs()) + " ms";
+    }
+}
@@ -0,0 +1,111 @@
+package servidor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores del control de flujo: mensajes retrasados, descartados y sesiones desconectadas,
+ * en total, por límite y por usuario, para saber quién inunda el chat y con qué.
+ * <p>
+ * Solo se anota a los usuarios que alguna vez chocaron con un límite, y como mucho
+ * {@value #MAX_USUARIOS}; a partir de ahí se suman todos en "(otros)" para que un ataque
+ * con muchos nombres no haga crecer la memoria.
+ */
+public class EstadisticasLimites {
+
+    /** Usuarios distintos que se cuentan por separado. */
+    static final int MAX_USUARIOS = 1000;
+    static final String OTROS = "(otros)";
+    static final String SIN_NOMBRE = "(sin registrar)";
+
+    /** Contadores de un usuario. */
+    static final class PorUsuario {
+        final LongAdder retrasos = new LongAdder();
+        final LongAdder descartes = new LongAdder();
+        final LongAdder desconexiones = new LongAdder();
+    }
+
+    private final LongAdder retrasos = new LongAdder();
+    private final LongAdder descartes = new LongAdder();
+    private final LongAdder desconexiones = new LongAdder();
+    private final LongAdder[] porLimite = new LongAdder[ControlFlujo.Limite.values().length];
+    private final Map<String, PorUsuario> porUsuario = new ConcurrentHashMap<>();
+
+    EstadisticasLimites() {
+        for (int i = 0; i < porLimite.length; i++) {
+            porLimite[i] = new LongAdder();
+        }
+    }
+
+    void registrarRetraso(String usuario, ControlFlujo.Limite limite) {
+        retrasos.increment();
+        porLimite[limite.ordinal()].increment();
+        de(usuario).retrasos.increment();
+    }
+
+    void registrarDescarte(String usuario, ControlFlujo.Limite limite) {
+        descartes.increment();
+        porLimite[limite.ordinal()].increment();
+        de(usuario).descartes.increment();
+    }
+
+    void registrarDesconexion(String usuario, ControlFlujo.Limite limite) {
+        desconexiones.increment();
+        porLimite[limite.ordinal()].increment();
+        de(usuario).desconexiones.increment();
+    }
+
+    private PorUsuario de(String usuario) {
+        String clave = usuario == null ? SIN_NOMBRE : usuario;
+        PorUsuario contadores = porUsuario.get(clave);
+        if (contadores != null) {
+            return contadores;
+        }
+        if (porUsuario.size() >= MAX_USUARIOS) {
+            clave = OTROS;
+        }
+        return porUsuario.computeIfAbsent(clave, k -> new PorUsuario());
+    }
+
+    public long getRetrasos() {
+        return retrasos.sum();
+    }
+
+    public long getDescartes() {
+        return descartes.sum();
+    }
+
+    public long getDesconexiones() {
+        return desconexiones.sum();
+    }
+
+    /**
+     * Veces que un límite concreto frenó un mensaje, con cualquier respuesta.
+     *
+     * @param limite Límite a consultar.
+     * @return Retrasos, descartes y desconexiones causados por ese límite.
+     */
+    long getPorLimite(ControlFlujo.Limite limite) {
+        return porLimite[limite.ordinal()].sum();
+    }
+
+    /**
+     * Contadores de cada usuario que chocó con algún límite.
+     *
+     * @return Vista concurrente por nombre de usuario.
+     */
+    Map<String, PorUsuario> getPorUsuario() {
+        return porUsuario;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder texto = new StringBuilder("retrasos=").append(getRetrasos()).append(", descartes=")
+                .append(getDescartes()).append(", desconexiones=").append(getDesconexiones());
+        for (ControlFlujo.Limite limite : ControlFlujo.Limite.values()) {
+            texto.append(", ").append(limite.getNombre()).append('=').append(getPorLimite(limite));
+        }
+        return texto.append(", usuarios=").append(porUsuario.size()).toString();
+    }
+}
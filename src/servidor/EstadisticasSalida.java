@@ -0,0 +1,161 @@
+package servidor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import metricas.HistogramaLatencias;
+
+/**
+ * Contadores compartidos por todas las colas de salida del servidor:
+ * mensajes encolados, cada uno de los desenlaces de la política de consumidor lento
+ * y bytes escritos a los clientes.
+ * <p>
+ * También mide la latencia de difusión, desde que se empieza a encolar un mensaje público
+ * hasta que el último destinatario lo ha escrito en su socket. Se sigue una difusión cada vez:
+ * mientras una está en curso, las siguientes no se miden, así que el coste en el camino
+ * de escritura es una lectura volátil y una comparación de referencias por mensaje.
+ */
+public class EstadisticasSalida {
+
+    /** Tiempo tras el que se abandona una difusión seguida (algún destinatario la descartó o se fue). */
+    private static final long ABANDONO_NANOS = 10_000_000_000L;
+
+    /** Difusión en curso de medición. */
+    static final class Seguimiento {
+        private final Mensaje mensaje;
+        private final long inicio = System.nanoTime();
+        /** Escrituras pendientes, más una mientras se sigue encolando. */
+        private final AtomicInteger pendientes = new AtomicInteger(1);
+
+        private Seguimiento(Mensaje mensaje) {
+            this.mensaje = mensaje;
+        }
+
+        /**
+         * Anota un destinatario más al que se encola el mensaje.
+         */
+        void anadirDestinatario() {
+            pendientes.incrementAndGet();
+        }
+    }
+
+    private final LongAdder encolados = new LongAdder();
+    private final LongAdder descartadosAntiguos = new LongAdder();
+    private final LongAdder descartadosNuevos = new LongAdder();
+    private final LongAdder desconexiones = new LongAdder();
+    private final LongAdder mensajesEscritos = new LongAdder();
+    private final LongAdder bytesEscritos = new LongAdder();
+    private final AtomicReference<Seguimiento> seguimiento = new AtomicReference<>();
+    private final HistogramaLatencias latenciaDifusion = new HistogramaLatencias();
+    private final LongAdder seguimientosAbandonados = new LongAdder();
+
+    void registrarEncolado() {
+        encolados.increment();
+    }
+
+    void registrarDescarteAntiguo() {
+        descartadosAntiguos.increment();
+    }
+
+    void registrarDescarteNuevo() {
+        descartadosNuevos.increment();
+    }
+
+    void registrarDesconexion() {
+        desconexiones.increment();
+    }
+
+    /**
+     * Anota un mensaje que se terminó de escribir en el socket de un cliente.
+     *
+     * @param mensaje Bytes del mensaje escrito.
+     */
+    void registrarEscrito(byte[] mensaje) {
+        mensajesEscritos.increment();
+        bytesEscritos.add(mensaje.length);
+        Seguimiento actual = seguimiento.get();
+        if (actual != null && actual.mensaje.esCodificacion(mensaje)) {
+            terminarDestinatario(actual);
+        }
+    }
+
+    /**
+     * Empieza a medir una difusión si no hay otra en curso.
+     *
+     * @param mensaje Mensaje que se va a encolar a todos.
+     * @return Seguimiento al que anotar cada destinatario, o null si esta difusión no se mide.
+     */
+    Seguimiento iniciarSeguimiento(Mensaje mensaje) {
+        Seguimiento actual = seguimiento.get();
+        if (actual != null) {
+            if (System.nanoTime() - actual.inicio < ABANDONO_NANOS || !seguimiento.compareAndSet(actual, null)) {
+                return null;
+            }
+            seguimientosAbandonados.increment();
+        }
+        Seguimiento nuevo = new Seguimiento(mensaje);
+        return seguimiento.compareAndSet(null, nuevo) ? nuevo : null;
+    }
+
+    /**
+     * Termina de encolar una difusión seguida; si ya se escribió en todos, se anota la latencia.
+     *
+     * @param seguido Seguimiento devuelto por {@link #iniciarSeguimiento(Mensaje)}.
+     */
+    void terminarSeguimiento(Seguimiento seguido) {
+        terminarDestinatario(seguido);
+    }
+
+    private void terminarDestinatario(Seguimiento seguido) {
+        // Un recién llegado que recibe el mensaje en su historial puede restar de más: se ignora.
+        if (seguido.pendientes.decrementAndGet() == 0 && seguimiento.compareAndSet(seguido, null)) {
+            latenciaDifusion.registrar(System.nanoTime() - seguido.inicio);
+        }
+    }
+
+    public long getEncolados() {
+        return encolados.sum();
+    }
+
+    public long getDescartadosAntiguos() {
+        return descartadosAntiguos.sum();
+    }
+
+    public long getDescartadosNuevos() {
+        return descartadosNuevos.sum();
+    }
+
+    public long getDesconexiones() {
+        return desconexiones.sum();
+    }
+
+    public long getMensajesEscritos() {
+        return mensajesEscritos.sum();
+    }
+
+    public long getBytesEscritos() {
+        return bytesEscritos.sum();
+    }
+
+    /**
+     * Latencias de difusión medidas: de empezar a encolar a la última escritura.
+     *
+     * @return Histograma en nanosegundos.
+     */
+    public HistogramaLatencias getLatenciaDifusion() {
+        return latenciaDifusion;
+    }
+
+    public long getSeguimientosAbandonados() {
+        return seguimientosAbandonados.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "encolados=" + getEncolados()
+                + ", descartados antiguos=" + getDescartadosAntiguos()
+                + ", descartados nuevos=" + getDescartadosNuevos()
+                + ", desconexiones por lentitud=" + getDesconexiones();
+    }
+}
@@ -0,0 +1,32 @@
+package servidor;
+
+/**
+ * Qué fue de un mensaje privado; el remitente lo recibe como "[Entrega]estado destinatario"
+ * si negoció la capacidad "entrega".
+ */
+public enum EstadoEntrega {
+
+    /** El destinatario estaba conectado, en este nodo o en otro del clúster. */
+    ENTREGADO("entregado"),
+
+    /** El destinatario no estaba conectado: el mensaje espera en su buzón. */
+    GUARDADO("guardado"),
+
+    /** El destinatario no estaba conectado y el mensaje no se pudo guardar. */
+    RECHAZADO("rechazado");
+
+    private final String nombre;
+
+    EstadoEntrega(String nombre) {
+        this.nombre = nombre;
+    }
+
+    /**
+     * Nombre del estado en el protocolo.
+     *
+     * @return Nombre en minúsculas.
+     */
+    public String getNombre() {
+        return nombre;
+    }
+}
@@ -0,0 +1,907 @@
+package servidor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import protocolo.LectorFlujo;
+import protocolo.ProtocoloException;
+import protocolo.TipoTrama;
+import protocolo.Trama;
+
+/**
+ * Federación de varios servidores de chat en un clúster.
+ * <p>
+ * Cada nodo escucha en "chat.nodo.puerto" y se enlaza por TCP con los de "chat.nodo.pares";
+ * basta con que de cada par de nodos uno conozca al otro, y cada nodo debe acabar enlazado con
+ * todos los demás (malla completa). Por los enlaces viajan tramas del protocolo binario con
+ * tipos propios ({@link TipoTrama#NODO_HOLA} y siguientes):
+ * <ul>
+ * <li>Presencia: al enlazarse, cada nodo envía sus usuarios y después sus altas y bajas, así que
+ * todos ven la lista del clúster completo.</li>
+ * <li>Mensajes públicos: se reenvían una vez a cada nodo, que los difunde solo a sus sesiones;
+ * nunca una vez por usuario remoto.</li>
+ * <li>Mensajes privados: se envían solo al nodo que tiene la sesión del destinatario.</li>
+ * <li>Nombres: antes de registrar un nombre se reserva en todos los nodos enlazados, sin que nadie
+ * espere a la respuesta. Si dos nodos lo piden a la vez, gana el de identificador menor. Si un
+ * nodo no responde a tiempo se da por concedido; si al reenlazarse tras una partición aparece un nombre repetido, conserva la
+ * sesión el nodo de identificador menor y el otro la cierra.</li>
+ * </ul>
+ * Las salas son locales a cada nodo. Cada enlace tiene una cola de salida acotada
+ * ("chat.nodo.cola"); si se llena, el enlace se cierra y al reconectar se resincroniza. Los
+ * privados que no llegaron a salir por un enlace cerrado se quedan en este nodo, en el buzón de
+ * su destinatario.
+ */
+public class Federacion {
+
+    private static final long REINTENTO_MS = 1000;
+    private static final int TIEMPO_CONEXION_MS = 1000;
+    /** Búfer de escritura de un enlace; un lote nunca lo supera, así que sale en una sola escritura. */
+    private static final int TAM_LOTE = 64 * 1024;
+
+    private final ServidorChat servidor;
+    /** Cerrojo del registro de usuarios del servidor: ordena la presencia local y remota. */
+    private final ReentrantLock lockPresencia;
+    private final String idLocal;
+    private final int puerto;
+    private final List<InetSocketAddress> pares;
+    private final long esperaReservaMs;
+    /** Rueda del servidor, que da por concedidas las reservas sin respuesta a tiempo. */
+    private final RuedaTemporizadores rueda;
+    private final int capacidadCola;
+    private final boolean activa;
+
+    /** Enlace vigente con cada nodo, por identificador. */
+    private final Map<String, Enlace> enlaces = new ConcurrentHashMap<>();
+    /** Usuario de otro nodo → identificador de ese nodo. Se modifica con lockPresencia tomado. */
+    private final Map<String, String> remotos = new ConcurrentHashMap<>();
+
+    // **Reservas de nombres, con lockReservas**
+    private final ReentrantLock lockReservas = new ReentrantLock();
+    private final Map<String, Reserva> reservasPropias = new HashMap<>();
+    private final Map<String, Concesion> concedidas = new HashMap<>();
+    private final Map<Long, Reserva> reservasPorId = new ConcurrentHashMap<>();
+    private final AtomicLong ultimaReserva = new AtomicLong();
+
+    private volatile boolean enMarcha = false;
+    private ServerSocket serverSocket;
+
+    // **Contadores**
+    private final LongAdder publicosReenviados = new LongAdder();
+    private final LongAdder publicosRecibidos = new LongAdder();
+    private final LongAdder privadosEnrutados = new LongAdder();
+    private final LongAdder reservas = new LongAdder();
+    private final LongAdder reservasRechazadas = new LongAdder();
+    private final LongAdder conflictos = new LongAdder();
+
+    /** Reserva de un nombre pedida por este nodo. */
+    private final class Reserva {
+        final long id;
+        final String nombre;
+        /** Nodos que aún no han respondido. */
+        final AtomicInteger faltan;
+        final Consumer<Boolean> resultado;
+        /** Vence a los "chat.nodo.reservaMs" y da la reserva por concedida. */
+        final RuedaTemporizadores.Temporizador plazo;
+        /** El resultado ya se entregó: respuestas y plazo posteriores no cuentan. */
+        final AtomicBoolean resuelta = new AtomicBoolean(false);
+        volatile boolean rechazada = false;
+        /** Ya respondieron todos: desde aquí no se cede ante nadie. Con lockReservas. */
+        boolean ganada = false;
+
+        Reserva(long id, String nombre, int nodos, Consumer<Boolean> resultado) {
+            this.id = id;
+            this.nombre = nombre;
+            this.faltan = new AtomicInteger(nodos);
+            this.resultado = resultado;
+            this.plazo = new RuedaTemporizadores.Temporizador(() -> vencerReserva(this));
+        }
+    }
+
+    /** Nombre concedido a otro nodo que aún no ha anunciado el alta. */
+    private static final class Concesion {
+        final String nodo;
+        final long caducidad;
+
+        Concesion(String nodo, long caducidad) {
+            this.nodo = nodo;
+            this.caducidad = caducidad;
+        }
+    }
+
+    /**
+     * Constructor de la federación.
+     *
+     * @param servidor      Servidor local.
+     * @param config        Configuración ("chat.nodo.*").
+     * @param lockPresencia Cerrojo con el que el servidor protege su registro de usuarios.
+     * @param rueda         Rueda de temporizadores del servidor; no puede ser null si hay pares o puerto.
+     */
+    Federacion(ServidorChat servidor, ConfiguracionServidor config, ReentrantLock lockPresencia,
+            RuedaTemporizadores rueda) {
+        this.servidor = servidor;
+        this.lockPresencia = lockPresencia;
+        this.rueda = rueda;
+        this.idLocal = config.getIdNodo();
+        this.puerto = config.getPuertoNodo();
+        this.pares = config.getParesNodo();
+        this.esperaReservaMs = config.getEsperaReservaMs();
+        this.capacidadCola = config.getCapacidadColaNodo();
+        this.activa = puerto > 0 || !pares.isEmpty();
+    }
+
+    /**
+     * Abre el puerto de nodos y empieza a enlazarse con los pares. Sin puerto ni pares no hace nada.
+     */
+    void iniciar() {
+        if (!activa) return;
+        enMarcha = true;
+        if (puerto > 0) {
+            try {
+                serverSocket = new ServerSocket(puerto);
+                iniciarHilo(this::aceptar, "chat-nodos");
+            } catch (IOException e) {
+                servidor.registrarError("No se pudo abrir el puerto de nodos " + puerto, e);
+            }
+        }
+        for (InetSocketAddress par : pares) {
+            iniciarHilo(() -> conectar(par), "chat-nodo-" + par.getHostString() + ":" + par.getPort());
+        }
+        StringBuilder evento = new StringBuilder("Nodo ").append(idLocal).append(" del clúster");
+        if (puerto > 0) {
+            evento.append(", puerto de nodos ").append(puerto);
+        }
+        for (int i = 0; i < pares.size(); i++) {
+            InetSocketAddress par = pares.get(i);
+            evento.append(i == 0 ? ", pares " : ",").append(par.getHostString()).append(':').append(par.getPort());
+        }
+        servidor.registrarEvento(evento.toString());
+    }
+
+    /**
+     * Cierra el puerto de nodos y todos los enlaces.
+     */
+    void detener() {
+        if (!activa) return;
+        enMarcha = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Se está cerrando de todos modos.
+        }
+        for (Enlace enlace : enlaces.values()) {
+            enlace.cerrar();
+        }
+    }
+
+    private static void iniciarHilo(Runnable tarea, String nombre) {
+        Thread hilo = new Thread(tarea, nombre);
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    private void aceptar() {
+        while (enMarcha) {
+            try {
+                Socket socket = serverSocket.accept();
+                iniciarHilo(() -> new Enlace(socket, false).ejecutar(), "chat-nodo-entrante");
+            } catch (IOException e) {
+                if (enMarcha) {
+                    servidor.registrarError("Error aceptando un nodo", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mantiene el enlace saliente con un par: conecta, atiende el enlace mientras dure y reintenta.
+     * Si el par ya está enlazado por su propia conexión, espera a que esa caiga.
+     */
+    private void conectar(InetSocketAddress par) {
+        while (enMarcha) {
+            String idRemoto = null;
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(par.getHostString(), par.getPort()), TIEMPO_CONEXION_MS);
+                idRemoto = new Enlace(socket, true).ejecutar();
+            } catch (IOException e) {
+                cerrarSocket(socket); // El par aún no escucha: se reintenta.
+            }
+            try {
+                do {
+                    Thread.sleep(REINTENTO_MS);
+                } while (enMarcha && idRemoto != null && enlaces.containsKey(idRemoto));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void cerrarSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nada más que hacer.
+        }
+    }
+
+    // **Llamadas desde el servidor**
+
+    /**
+     * Reserva un nombre en todo el clúster antes de registrarlo, sin esperar: envía la petición a
+     * los nodos enlazados y entrega el resultado cuando todos han respondido o, como mucho, a los
+     * "chat.nodo.reservaMs"; quien no responde a tiempo no lo impide. Si el resultado es true,
+     * hay que llamar después a {@link #liberar(String)}.
+     *
+     * @param nombre    Nombre propuesto.
+     * @param resultado Recibe false si el nombre está en uso o reservado en otro nodo. Se llama
+     *                  en el acto, desde el hilo de un enlace o desde la rueda: debe ser breve.
+     */
+    void reservar(String nombre, Consumer<Boolean> resultado) {
+        if (!activa) {
+            resultado.accept(true);
+            return;
+        }
+        Reserva reserva = null;
+        List<Enlace> destinos = null;
+        lockReservas.lock();
+        try {
+            if (!servidor.getClientes().containsKey(nombre) && !remotos.containsKey(nombre)
+                    && !reservasPropias.containsKey(nombre) && !concedidoAOtro(nombre, null)) {
+                destinos = new ArrayList<>(enlaces.values());
+                reserva = new Reserva(ultimaReserva.incrementAndGet(), nombre, destinos.size(), resultado);
+                reservasPropias.put(nombre, reserva);
+            }
+        } finally {
+            lockReservas.unlock();
+        }
+        if (reserva == null) {
+            resultado.accept(false);
+            return;
+        }
+        reservas.increment();
+
+        if (destinos.isEmpty()) {
+            resolver(reserva);
+            return;
+        }
+        reservasPorId.put(reserva.id, reserva);
+        rueda.programar(reserva.plazo, esperaReservaMs);
+        for (Enlace enlace : destinos) {
+            enlace.enviar(TipoTrama.NODO_RESERVA, reserva.id, nombre);
+        }
+    }
+
+    /**
+     * Plazo de una reserva vencido: los nodos que faltan no la impiden. Se ejecuta en la rueda.
+     */
+    private void vencerReserva(Reserva reserva) {
+        if (!reserva.resuelta.get()) {
+            servidor.registrarEvento("Reserva de " + reserva.nombre + " sin respuesta de todos los nodos, se concede.");
+        }
+        resolver(reserva);
+    }
+
+    /**
+     * Entrega el resultado de una reserva, una sola vez: concedida salvo que algún nodo la
+     * rechazara o que este nodo cediera el nombre a otro.
+     */
+    private void resolver(Reserva reserva) {
+        if (!reserva.resuelta.compareAndSet(false, true)) return;
+        rueda.cancelar(reserva.plazo);
+        reservasPorId.remove(reserva.id);
+        boolean concedida;
+        lockReservas.lock();
+        try {
+            concedida = !reserva.rechazada;
+            if (concedida) {
+                reserva.ganada = true;
+            } else {
+                reservasPropias.remove(reserva.nombre);
+                reservasRechazadas.increment();
+            }
+        } finally {
+            lockReservas.unlock();
+        }
+        reserva.resultado.accept(concedida);
+    }
+
+    /**
+     * Termina una reserva concedida, cuando el nombre ya está registrado o no se pudo registrar.
+     *
+     * @param nombre Nombre reservado.
+     */
+    void liberar(String nombre) {
+        if (!activa) return;
+        lockReservas.lock();
+        try {
+            reservasPropias.remove(nombre);
+        } finally {
+            lockReservas.unlock();
+        }
+    }
+
+    /**
+     * Indica si un usuario tiene su sesión en otro nodo.
+     *
+     * @param nombre Nombre del usuario.
+     * @return true si es un usuario remoto.
+     */
+    boolean esRemoto(String nombre) {
+        return remotos.containsKey(nombre);
+    }
+
+    /**
+     * Nombres de los usuarios conectados a otros nodos.
+     *
+     * @return Vista de solo lectura que cambia con la presencia.
+     */
+    Set<String> getUsuariosRemotos() {
+        return remotos.keySet();
+    }
+
+    /**
+     * Anuncia un alta local a los nodos. Se invoca con lockPresencia tomado.
+     *
+     * @param nombre Usuario registrado en este nodo.
+     */
+    void anunciarAlta(String nombre) {
+        enviarATodos(TipoTrama.NODO_ALTA, nombre);
+    }
+
+    /**
+     * Anuncia una baja local a los nodos. Se invoca con lockPresencia tomado.
+     *
+     * @param nombre Usuario que salió de este nodo.
+     */
+    void anunciarBaja(String nombre) {
+        enviarATodos(TipoTrama.NODO_BAJA, nombre);
+    }
+
+    /**
+     * Reenvía un mensaje público, una vez por nodo. Se invoca con el cerrojo de difusión
+     * tomado, así que cada nodo recibe los mensajes de este en el mismo orden que sus sesiones.
+     *
+     * @param mensaje Mensaje "usuario: texto".
+     */
+    void reenviarPublico(String mensaje) {
+        if (enlaces.isEmpty()) return;
+        publicosReenviados.add(enviarATodos(TipoTrama.NODO_PUBLICO, mensaje));
+    }
+
+    /**
+     * Envía un mensaje privado al nodo que tiene la sesión del destinatario.
+     *
+     * @param destinatario Usuario de otro nodo.
+     * @param mensaje      Mensaje "remitente: texto".
+     * @return false si el destinatario no está en ningún nodo enlazado, o si el enlace no
+     *         admitió el mensaje.
+     */
+    boolean enrutarPrivado(String destinatario, String mensaje) {
+        String nodo = remotos.get(destinatario);
+        Enlace enlace = nodo == null ? null : enlaces.get(nodo);
+        if (enlace == null || !enlace.enviar(TipoTrama.NODO_PRIVADO, 0, destinatario + "\n" + mensaje)) {
+            return false;
+        }
+        privadosEnrutados.increment();
+        return true;
+    }
+
+    private int enviarATodos(TipoTrama tipo, String carga) {
+        int enviados = 0;
+        for (Enlace enlace : enlaces.values()) {
+            enlace.enviar(tipo, 0, carga);
+            enviados++;
+        }
+        return enviados;
+    }
+
+    // **Tramas recibidas de otros nodos**
+
+    private void atender(Enlace origen, Trama trama) throws ProtocoloException {
+        String texto = trama.getTexto();
+        switch (trama.getTipo()) {
+            case NODO_USUARIOS:
+                aplicarUsuarios(origen.idRemoto, texto);
+                break;
+            case NODO_ALTA:
+                lockPresencia.lock();
+                try {
+                    altaRemota(origen.idRemoto, texto);
+                } finally {
+                    lockPresencia.unlock();
+                }
+                break;
+            case NODO_BAJA:
+                bajaRemota(origen.idRemoto, texto);
+                break;
+            case NODO_PUBLICO:
+                publicosRecibidos.increment();
+                servidor.difundirLocal(texto);
+                break;
+            case NODO_PRIVADO: {
+                int separador = texto.indexOf('\n');
+                if (separador > 0) {
+                    servidor.recibirPrivadoRemoto(texto.substring(0, separador), texto.substring(separador + 1));
+                }
+                break;
+            }
+            case NODO_RESERVA:
+                atenderReserva(origen, trama.getSecuencia(), texto);
+                break;
+            case NODO_RESPUESTA: {
+                Reserva reserva = reservasPorId.get(trama.getSecuencia());
+                if (reserva != null) {
+                    if (!texto.equals("si")) {
+                        reserva.rechazada = true;
+                        resolver(reserva);
+                    } else if (reserva.faltan.decrementAndGet() == 0) {
+                        resolver(reserva);
+                    }
+                }
+                break;
+            }
+            default:
+                throw new ProtocoloException("Trama no admitida de un nodo: " + trama.getTipo());
+        }
+    }
+
+    /**
+     * Responde a la reserva de otro nodo. Se concede si el nombre no está en uso aquí ni concedido
+     * a un tercero; si este nodo también lo está reservando, gana el identificador menor.
+     */
+    private void atenderReserva(Enlace origen, long id, String nombre) {
+        boolean concede;
+        Reserva cedida = null;
+        lockReservas.lock();
+        try {
+            Reserva propia = reservasPropias.get(nombre);
+            String titular = remotos.get(nombre);
+            if (servidor.getClientes().containsKey(nombre) || (titular != null && !titular.equals(origen.idRemoto))
+                    || concedidoAOtro(nombre, origen.idRemoto)) {
+                concede = false;
+            } else if (propia != null) {
+                concede = !propia.ganada && idLocal.compareTo(origen.idRemoto) > 0;
+                if (concede) {
+                    propia.rechazada = true; // Este nodo cede: su propia reserva fracasa.
+                    cedida = propia;
+                }
+            } else {
+                concede = true;
+            }
+            if (concede) {
+                long vigencia = TimeUnit.MILLISECONDS.toNanos(2 * esperaReservaMs + REINTENTO_MS);
+                concedidas.put(nombre, new Concesion(origen.idRemoto, System.nanoTime() + vigencia));
+            }
+        } finally {
+            lockReservas.unlock();
+        }
+        if (cedida != null) {
+            resolver(cedida);
+        }
+        origen.enviar(TipoTrama.NODO_RESPUESTA, id, concede ? "si" : "no");
+    }
+
+    /**
+     * Indica si un nombre está concedido a un nodo distinto del indicado. Se invoca con lockReservas.
+     */
+    private boolean concedidoAOtro(String nombre, String excepto) {
+        Concesion concesion = concedidas.get(nombre);
+        if (concesion == null) return false;
+        if (System.nanoTime() - concesion.caducidad > 0) {
+            concedidas.remove(nombre);
+            return false;
+        }
+        return !concesion.nodo.equals(excepto);
+    }
+
+    /**
+     * Sustituye lo que se sabía de los usuarios de un nodo por su lista completa.
+     */
+    private void aplicarUsuarios(String nodo, String lista) {
+        Set<String> usuarios = new HashSet<>(Arrays.asList(lista.split(",")));
+        usuarios.remove("");
+        lockPresencia.lock();
+        try {
+            for (Iterator<Map.Entry<String, String>> it = remotos.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, String> remoto = it.next();
+                if (remoto.getValue().equals(nodo) && !usuarios.contains(remoto.getKey())) {
+                    it.remove();
+                    servidor.cambioUsuarioRemoto(remoto.getKey(), false);
+                }
+            }
+            for (String usuario : usuarios) {
+                altaRemota(nodo, usuario);
+            }
+        } finally {
+            lockPresencia.unlock();
+        }
+    }
+
+    /**
+     * Anota un usuario de otro nodo. Si el nombre ya está en uso aquí o en un tercer nodo
+     * (tras una partición), se queda con él el nodo de identificador menor. Con lockPresencia.
+     */
+    private void altaRemota(String nodo, String nombre) {
+        lockReservas.lock();
+        try {
+            Concesion concesion = concedidas.get(nombre);
+            if (concesion != null && concesion.nodo.equals(nodo)) {
+                concedidas.remove(nombre);
+            }
+        } finally {
+            lockReservas.unlock();
+        }
+
+        if (servidor.getClientes().containsKey(nombre)) {
+            conflictos.increment();
+            if (idLocal.compareTo(nodo) < 0) return; // Se queda la sesión local; el otro nodo cierra la suya.
+            remotos.put(nombre, nodo);
+            servidor.expulsarPorConflicto(nombre);
+            return;
+        }
+        String anterior = remotos.get(nombre);
+        if (anterior == null) {
+            remotos.put(nombre, nodo);
+            servidor.cambioUsuarioRemoto(nombre, true);
+        } else if (!anterior.equals(nodo)) {
+            conflictos.increment();
+            if (nodo.compareTo(anterior) < 0) {
+                remotos.put(nombre, nodo); // El nombre sigue en la lista: no hay cambio que anunciar.
+            }
+        }
+    }
+
+    private void bajaRemota(String nodo, String nombre) {
+        lockPresencia.lock();
+        try {
+            if (remotos.remove(nombre, nodo) && !servidor.getClientes().containsKey(nombre)) {
+                servidor.cambioUsuarioRemoto(nombre, false);
+            }
+        } finally {
+            lockPresencia.unlock();
+        }
+    }
+
+    // **Ciclo de vida de los enlaces**
+
+    /**
+     * Da de alta un enlace recién saludado y le encola la lista de usuarios locales, con
+     * lockPresencia tomado para que ningún alta o baja quede antes de la lista o se pierda.
+     * Si ya había un enlace con ese nodo, se conserva el abierto por el nodo de identificador
+     * menor (ambos extremos eligen el mismo); entre dos del mismo origen, el más reciente.
+     *
+     * @return false si el enlace sobra y debe cerrarse.
+     */
+    private boolean enlazar(Enlace enlace) {
+        lockPresencia.lock();
+        try {
+            Enlace existente = enlaces.get(enlace.idRemoto);
+            if (existente != null) {
+                String preferido = idLocal.compareTo(enlace.idRemoto) < 0 ? idLocal : enlace.idRemoto;
+                if (!enlace.getIniciador().equals(existente.getIniciador())
+                        && !enlace.getIniciador().equals(preferido)) {
+                    return false;
+                }
+                existente.cerrar(); // Ya no es el enlace del nodo: su cierre no borra sus usuarios.
+            }
+            enlaces.put(enlace.idRemoto, enlace);
+            StringBuilder usuarios = new StringBuilder();
+            for (String usuario : servidor.getClientes().keySet()) {
+                usuarios.append(usuario).append(',');
+            }
+            enlace.enviar(TipoTrama.NODO_USUARIOS, 0, usuarios.toString());
+            return true;
+        } finally {
+            lockPresencia.unlock();
+        }
+    }
+
+    /**
+     * Da por caído un nodo si el enlace cerrado era el vigente: sus usuarios salen de la lista.
+     */
+    private void nodoCaido(Enlace enlace) {
+        if (!enlaces.remove(enlace.idRemoto, enlace)) return;
+        int usuarios = 0;
+        lockPresencia.lock();
+        try {
+            for (Iterator<Map.Entry<String, String>> it = remotos.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, String> remoto = it.next();
+                if (remoto.getValue().equals(enlace.idRemoto)) {
+                    it.remove();
+                    usuarios++;
+                    if (!servidor.getClientes().containsKey(remoto.getKey())) {
+                        servidor.cambioUsuarioRemoto(remoto.getKey(), false);
+                    }
+                }
+            }
+        } finally {
+            lockPresencia.unlock();
+        }
+        servidor.registrarEvento("Nodo desenlazado: " + enlace.idRemoto + " (" + usuarios + " usuarios)");
+    }
+
+    /**
+     * Conexión con otro nodo: el hilo que la crea lee y un hilo propio escribe lo encolado.
+     */
+    private final class Enlace {
+        private final Socket socket;
+        private final boolean saliente;
+        private final BlockingQueue<byte[]> cola = new ArrayBlockingQueue<>(capacidadCola);
+        /** Lote que el escritor está enviando; quien cierre el enlace se lo queda si no salió. */
+        private final AtomicReference<List<byte[]>> enVuelo = new AtomicReference<>();
+        private final ReentrantLock lockRescate = new ReentrantLock();
+        private volatile String idRemoto;
+        private volatile boolean cerrado = false;
+        private Thread escritor;
+
+        Enlace(Socket socket, boolean saliente) {
+            this.socket = socket;
+            this.saliente = saliente;
+        }
+
+        /** Nodo que abrió la conexión. */
+        String getIniciador() {
+            return saliente ? idLocal : idRemoto;
+        }
+
+        /**
+         * Saluda, se da de alta y atiende las tramas del otro nodo hasta que el enlace se cierra.
+         *
+         * @return Identificador del otro nodo, o null si no llegó a saludar.
+         */
+        String ejecutar() {
+            try {
+                socket.setTcpNoDelay(true);
+                LectorFlujo entrada = new LectorFlujo(socket.getInputStream(), 64 * 1024);
+                OutputStream salida = new BufferedOutputStream(socket.getOutputStream(), TAM_LOTE);
+                salida.write(Trama.codificar(TipoTrama.NODO_HOLA, 0, idLocal));
+                salida.flush();
+
+                Trama trama = new Trama();
+                if (!entrada.leerTrama(trama, Trama.MAX_CARGA_SERVIDOR) || trama.getTipo() != TipoTrama.NODO_HOLA) {
+                    throw new ProtocoloException("El otro extremo no es un nodo del clúster");
+                }
+                idRemoto = trama.getTexto();
+                if (idRemoto.equals(idLocal)) {
+                    servidor.registrarEvento("Se descarta un enlace con el mismo identificador de nodo: " + idLocal);
+                    idRemoto = null;
+                    return null;
+                }
+                escritor = new Thread(() -> escribir(salida), "chat-nodo-" + idRemoto);
+                escritor.setDaemon(true);
+                if (!enlazar(this)) {
+                    return idRemoto; // Ya hay un enlace preferido con ese nodo.
+                }
+                escritor.start();
+                servidor.registrarEvento("Nodo enlazado: " + idRemoto + (saliente ? " (saliente)" : " (entrante)"));
+
+                while (!cerrado && entrada.leerTrama(trama, Trama.MAX_CARGA_SERVIDOR)) {
+                    atender(this, trama);
+                }
+            } catch (IOException e) {
+                if (!cerrado && enMarcha && idRemoto != null) {
+                    servidor.registrarEvento("Enlace con el nodo " + idRemoto + " perdido: " + e.getMessage());
+                }
+            } finally {
+                cerrar();
+                if (idRemoto != null) {
+                    nodoCaido(this);
+                }
+            }
+            return idRemoto;
+        }
+
+        /**
+         * Encola una trama para el otro nodo sin esperar. Si la cola está llena, el nodo no da
+         * abasto y el enlace se cierra; al reconectar se resincroniza la presencia.
+         *
+         * @return false si el enlace está cerrado o se acaba de cerrar por esta trama.
+         */
+        boolean enviar(TipoTrama tipo, long secuencia, String carga) {
+            if (cerrado) {
+                rescatar(null); // Espera al rescate en curso: lo que se haga con esta trama va detrás.
+                return false;
+            }
+            if (!cola.offer(Trama.codificar(tipo, secuencia, carga))) {
+                servidor.registrarEvento("Nodo " + idRemoto + " demasiado lento, se cierra el enlace.");
+                cerrar();
+                return false;
+            }
+            if (cerrado) {
+                rescatar(null); // Se cerró entretanto: que no se quede en la cola.
+            }
+            return true;
+        }
+
+        private void escribir(OutputStream salida) {
+            List<byte[]> lote = null;
+            try {
+                while (!cerrado) {
+                    lote = new ArrayList<>();
+                    lote.add(cola.take());
+                    int bytes = lote.get(0).length;
+                    byte[] siguiente;
+                    while (lote.size() < 1024 && (siguiente = cola.peek()) != null
+                            && bytes + siguiente.length <= TAM_LOTE && cola.remove(siguiente)) {
+                        lote.add(siguiente);
+                        bytes += siguiente.length;
+                    }
+                    enVuelo.set(lote);
+                    if (cerrado) break;
+                    for (byte[] trama : lote) {
+                        salida.write(trama);
+                    }
+                    salida.flush(); // Un flush por lote, no por trama.
+                    enVuelo.compareAndSet(lote, null);
+                }
+            } catch (InterruptedException e) {
+                // Cierre del enlace.
+            } catch (IOException e) {
+                cerrar();
+            }
+            // El lote sale en una sola escritura, así que si el enlace se cerró antes no salió
+            // nada; si cayó a mitad, algún privado puede llegar dos veces, pero no se pierde.
+            // Lo normal es que lo rescate cerrar(), antes que lo que siga en la cola.
+            rescatar(lote);
+        }
+
+        void cerrar() {
+            cerrado = true;
+            cerrarSocket(socket);
+            if (escritor != null) {
+                escritor.interrupt();
+            }
+            rescatar(null);
+        }
+
+        /**
+         * Rescata, en orden, el lote en vuelo y lo que quede en la cola. Lo pueden llamar a la
+         * vez quien cierra y el escritor: el cerrojo evita que uno adelante al otro.
+         *
+         * @param propio Lote del escritor que llama, o null; solo se rescata si sigue en vuelo.
+         */
+        private void rescatar(List<byte[]> propio) {
+            lockRescate.lock();
+            try {
+                List<byte[]> lote = propio == null ? enVuelo.getAndSet(null)
+                        : enVuelo.compareAndSet(propio, null) ? propio : null;
+                List<byte[]> pendientes = new ArrayList<>();
+                if (lote != null) {
+                    pendientes.addAll(lote);
+                }
+                cola.drainTo(pendientes);
+                rescatarPrivados(pendientes);
+            } finally {
+                lockRescate.unlock();
+            }
+        }
+
+        /**
+         * Deja en este nodo los privados que ya no saldrán por el enlace: a sus destinatarios,
+         * que el cierre da por desconectados, les esperan en el buzón.
+         */
+        private void rescatarPrivados(List<byte[]> tramas) {
+            int rescatados = 0;
+            for (byte[] trama : tramas) {
+                if (trama[0] != TipoTrama.NODO_PRIVADO.getCodigo()) continue;
+                String texto = new String(trama, Trama.TAM_CABECERA, trama.length - Trama.TAM_CABECERA,
+                        StandardCharsets.UTF_8);
+                int separador = texto.indexOf('\n');
+                servidor.recibirPrivadoRemoto(texto.substring(0, separador), texto.substring(separador + 1));
+                rescatados++;
+            }
+            if (rescatados > 0) {
+                servidor.registrarEvento("Enlace con el nodo " + idRemoto + " cerrado con " + rescatados
+                        + " privado(s) sin enviar; se quedan en este nodo.");
+            }
+        }
+    }
+
+    // **Consulta**
+
+    /**
+     * Indica si se configuró un puerto de nodos o algún par.
+     *
+     * @return true si el servidor forma parte de un clúster.
+     */
+    public boolean isActiva() {
+        return activa;
+    }
+
+    /**
+     * Identificador de este nodo ("chat.nodo.id").
+     *
+     * @return Identificador con el que se presenta a los demás nodos.
+     */
+    public String getIdNodo() {
+        return idLocal;
+    }
+
+    /**
+     * Nodos con un enlace vigente.
+     *
+     * @return Número de nodos enlazados.
+     */
+    public int getNodosEnlazados() {
+        return enlaces.size();
+    }
+
+    /**
+     * Usuarios conectados a otros nodos del clúster.
+     *
+     * @return Número de usuarios remotos.
+     */
+    public int getNumeroUsuariosRemotos() {
+        return remotos.size();
+    }
+
+    /**
+     * Mensajes públicos locales reenviados a otros nodos, contando una vez por nodo.
+     *
+     * @return Total de reenvíos.
+     */
+    public long getPublicosReenviados() {
+        return publicosReenviados.sum();
+    }
+
+    /**
+     * Mensajes públicos recibidos de otros nodos.
+     *
+     * @return Total de mensajes recibidos.
+     */
+    public long getPublicosRecibidos() {
+        return publicosRecibidos.sum();
+    }
+
+    /**
+     * Mensajes privados enviados al nodo del destinatario.
+     *
+     * @return Total de privados enrutados.
+     */
+    public long getPrivadosEnrutados() {
+        return privadosEnrutados.sum();
+    }
+
+    /**
+     * Nombres repetidos que aparecieron al reenlazarse tras una partición.
+     *
+     * @return Total de conflictos resueltos.
+     */
+    public long getConflictos() {
+        return conflictos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "nodo=" + idLocal + ", enlazados=" + getNodosEnlazados() + ", usuarios remotos="
+                + getNumeroUsuariosRemotos() + ", públicos reenviados=" + getPublicosReenviados() + ", recibidos="
+                + getPublicosRecibidos() + ", privados enrutados=" + getPrivadosEnrutados() + ", reservas="
+                + reservas.sum() + " (rechazadas " + reservasRechazadas.sum() + "), conflictos=" + getConflictos();
+    }
+}
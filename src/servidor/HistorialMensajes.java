@@ -0,0 +1,103 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Últimos mensajes públicos, para ponérselos al día a quien entra en el chat.
+ * Está acotado a la vez en número de mensajes y en bytes: al pasarse de cualquiera
+ * de los dos límites se descartan los más antiguos.
+ * <p>
+ * Es un búfer circular con un solo escritor a la vez. Leer no toma ningún cerrojo:
+ * el escritor avanza {@code inicio} antes de reutilizar una posición, y el lector, después
+ * de copiar, vuelve a leer {@code inicio} y desecha lo que pudo quedar sobrescrito.
+ */
+public class HistorialMensajes {
+
+    private final AtomicReferenceArray<Mensaje> ranuras;
+    private final int[] tamanos;
+    private final long maxBytes;
+    private final ReentrantLock lockEscritura = new ReentrantLock();
+    /** Índice absoluto del mensaje más antiguo que se conserva. */
+    private volatile long inicio = 0;
+    /** Índice absoluto del siguiente mensaje que se anotará. */
+    private volatile long fin = 0;
+    private long bytes = 0;
+
+    /**
+     * Constructor del historial.
+     *
+     * @param maxMensajes Número máximo de mensajes; 0 lo desactiva.
+     * @param maxBytes    Tamaño máximo en bytes de los mensajes codificados.
+     */
+    public HistorialMensajes(int maxMensajes, long maxBytes) {
+        this.ranuras = new AtomicReferenceArray<>(Math.max(0, maxMensajes));
+        this.tamanos = new int[ranuras.length()];
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Añade un mensaje, descartando los más antiguos si hace falta.
+     *
+     * @param mensaje Mensaje público ya difundido.
+     */
+    public void anotar(Mensaje mensaje) {
+        int capacidad = ranuras.length();
+        int tamano = mensaje.codificado(false).length;
+        if (capacidad == 0 || tamano > maxBytes) return;
+
+        lockEscritura.lock();
+        try {
+            while (fin - inicio == capacidad || bytes + tamano > maxBytes) {
+                bytes -= tamanos[(int) (inicio % capacidad)];
+                inicio = inicio + 1; // Se publica antes de reutilizar la posición.
+            }
+            int posicion = (int) (fin % capacidad);
+            tamanos[posicion] = tamano;
+            ranuras.set(posicion, mensaje);
+            bytes += tamano;
+            fin = fin + 1;
+        } finally {
+            lockEscritura.unlock();
+        }
+    }
+
+    /**
+     * Copia, sin bloquear al escritor, los mensajes posteriores a una secuencia.
+     *
+     * @param despuesDe Última secuencia que ya tiene el cliente; 0 para todo el historial.
+     * @return Mensajes en orden de difusión.
+     */
+    public List<Mensaje> instantanea(long despuesDe) {
+        int capacidad = ranuras.length();
+        if (capacidad == 0) return new ArrayList<>();
+
+        long desde = inicio;
+        long hasta = fin;
+        List<Mensaje> copia = new ArrayList<>((int) (hasta - desde));
+        for (long i = desde; i < hasta; i++) {
+            copia.add(ranuras.get((int) (i % capacidad)));
+        }
+        // Lo que el escritor descartó mientras se copiaba puede estar ya sobrescrito.
+        long descartados = Math.min(inicio - desde, copia.size());
+        List<Mensaje> resultado = new ArrayList<>(copia.size());
+        for (int i = (int) descartados; i < copia.size(); i++) {
+            Mensaje mensaje = copia.get(i);
+            if (mensaje.getSecuencia() > despuesDe) {
+                resultado.add(mensaje);
+            }
+        }
+        return resultado;
+    }
+
+    /**
+     * Número de mensajes que se conservan ahora mismo.
+     *
+     * @return Mensajes en el historial.
+     */
+    public int getTamano() {
+        return (int) (fin - inicio);
+    }
+}
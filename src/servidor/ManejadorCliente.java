@@ -1,18 +1,36 @@
 package servidor;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-public class ManejadorCliente implements Runnable {
+import protocolo.LectorFlujo;
+import protocolo.ProtocoloException;
+import protocolo.Trama;
+
+/**
+ * Sesión del motor bloqueante: un hilo por cliente (de plataforma o virtual, según el
+ * ejecutor del servidor) que lee líneas o tramas con {@link LectorFlujo}, y otro que vacía
+ * la cola de salida en el socket para que un cliente lento no frene a los demás.
+ */
+public class ManejadorCliente extends SesionCliente implements Runnable {
+
+    /** Longitud máxima de una línea; una línea más larga cierra la conexión. */
+    private static final int MAX_LINEA = 8192;
 
     private Socket socket;
-    private ServidorChat servidor;
-    private PrintWriter escritor;
-    private BufferedReader lector;
-    private String nombreUsuario;
+    private OutputStream escritor;
+    private LectorFlujo lector;
+    private EntradaDescomprimida descompresor;
+    private Thread hiloLector;
+    /** Tareas para el hilo lector, que las espera mientras el registro está pendiente. */
+    private final BlockingQueue<Runnable> tareasLector = new LinkedBlockingQueue<>();
 
     /**
      * Constructor del manejador de cliente.
@@ -21,8 +39,8 @@ public class ManejadorCliente implements Runnable {
      * @param servidor Instancia del servidor para gestionar la comunicación.
      */
     public ManejadorCliente(Socket socket, ServidorChat servidor) {
+        super(servidor);
         this.socket = socket;
-        this.servidor = servidor;
     }
 
     /**
@@ -31,68 +49,132 @@ public class ManejadorCliente implements Runnable {
      */
     @Override
     public void run() {
+        anotarConexion(socket.getRemoteSocketAddress());
+        hiloLector = Thread.currentThread();
         try {
-            lector = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            escritor = new PrintWriter(socket.getOutputStream(), true);
+            ConfiguracionServidor config = servidor.getConfiguracion();
+            // Los clientes que no negocian latidos solo cuentan con el keepalive de TCP.
+            socket.setKeepAlive(true);
+            // Búferes pequeños: con miles de conexiones inactivas la memoria por sesión manda.
+            lector = new LectorFlujo(new EntradaContada(socket.getInputStream(), servidor.getMetricas()),
+                    config.getTamBufferLectura());
+            // Los mensajes llegan ya codificados: se escriben sus bytes tal cual, sin PrintWriter.
+            escritor = new BufferedOutputStream(socket.getOutputStream(), config.getTamBufferEscritura());
+            servidor.getEjecutor().execute(this::escribirSalida);
 
-            // **Solicitar y validar el nombre de usuario**
-            escritor.println("Ingrese su nombre de usuario:");
+            // **Solicitar el nombre de usuario y escuchar los mensajes del cliente**
+            iniciarSesion();
+            Trama trama = new Trama();
+            long lecturasVistas = 0;
             while (true) {
-                nombreUsuario = lector.readLine();
-                if (nombreUsuario == null || nombreUsuario.trim().isEmpty()) {
-                    escritor.println("Nombre no válido. Intente de nuevo:");
-                } else if (servidor.getClientes().containsKey(nombreUsuario)) {
-                    escritor.println("Nombre en uso. Elija otro:");
+                // El formato puede cambiar tras la negociación, así que se consulta en cada vuelta.
+                if (entradaBinaria) {
+                    if (!lector.leerTrama(trama, Trama.MAX_CARGA_CLIENTE) || !procesarTrama(trama)) {
+                        break;
+                    }
                 } else {
-                    synchronized (servidor) {
-                        servidor.registrarCliente(nombreUsuario, escritor);
-                        servidor.getGui().actualizarLog("Nuevo cliente conectado: " + nombreUsuario);
+                    String linea = lector.leerLinea(MAX_LINEA);
+                    if (linea == null || !procesarLinea(linea)) {
+                        break;
                     }
-                    break;
                 }
-            }
-
-            escritor.println("Bienvenido al chat, " + nombreUsuario + "! Puedes escribir mensajes.");
-
-            // **Escuchar y procesar mensajes del cliente**
-            String mensaje;
-            while ((mensaje = lector.readLine()) != null) {
-                mensaje = mensaje.trim();
-                if (mensaje.isEmpty()) continue;
-
-                // **Si el usuario escribe "salir", se desconecta**
-                if (mensaje.equalsIgnoreCase("salir")) {
-                    break;
+                // Lo que venga detrás del nombre espera a que se resuelva su reserva.
+                while (isRegistroEnCurso()) {
+                    tareasLector.take().run();
                 }
-
-                // **Si el mensaje es privado (@usuario mensaje)**
-                if (mensaje.startsWith("@")) {
-                    String[] partes = mensaje.split(" ", 2);
-                    if (partes.length == 2) {
-                        String destinatario = partes[0].substring(1);
-                        servidor.enviarMensajePrivado(destinatario, nombreUsuario + ": " + partes[1]);
-                    } else {
-                        escritor.println("Formato incorrecto. Usa: @usuario mensaje");
+                // Tras cada lectura del socket se deja de leer hasta saldar la deuda de los límites.
+                if (lector.getLecturas() != lecturasVistas) {
+                    lecturasVistas = lector.getLecturas();
+                    long espera = esperaPorLimite();
+                    if (espera > 0) {
+                        TimeUnit.NANOSECONDS.sleep(espera);
                     }
-                } else {
-                    // **Si el mensaje es público, se envía a todos los clientes**
-                    servidor.difundirMensaje(nombreUsuario + ": " + mensaje);
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ProtocoloException e) {
+            errorDeProtocolo(e);
         } catch (IOException e) {
-            servidor.getGui().actualizarLog("Cliente desconectado: " + nombreUsuario);
+            conexionPerdida();
         } finally {
             // **Desconectar al usuario y cerrar recursos**
-            try {
-                if (nombreUsuario != null) {
-                    servidor.eliminarCliente(nombreUsuario);
+            finalizarSesion();
+            cerrar();
+            if (descompresor != null) {
+                descompresor.liberar();
+            }
+        }
+    }
+
+    /**
+     * Bucle del escritor: vacía la cola de salida por lotes y hace un solo flush por lote.
+     */
+    private void escribirSalida() {
+        EstadisticasSalida estadisticas = servidor.getEstadisticasSalida();
+        List<byte[]> lote = new ArrayList<>();
+        try {
+            while (salida.drenar(lote)) {
+                CompresorSalida compresor = this.compresor;
+                if (compresor == null) {
+                    for (byte[] mensaje : lote) {
+                        escritor.write(mensaje);
+                    }
+                } else {
+                    escritor.write(compresor.procesar(lote, 0), 0, compresor.getLongitud());
                 }
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
+                escritor.flush();
+                for (byte[] mensaje : lote) {
+                    estadisticas.registrarEscrito(mensaje);
                 }
-            } catch (IOException e) {
-                servidor.getGui().actualizarLog("Error cerrando conexión con " + nombreUsuario + ": " + e.getMessage());
+                lote.clear();
+            }
+        } catch (IOException e) {
+            // El socket ya no admite escrituras: el hilo lector verá el cierre.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cerrar();
+            if (compresor != null) {
+                compresor.liberar();
             }
         }
     }
+
+    @Override
+    protected void activarDescompresion() {
+        lector.envolver(entrada -> descompresor = new EntradaDescomprimida(entrada,
+                servidor.getConfiguracion().getTamBufferLectura(), servidor.getEstadisticasCompresion()));
+    }
+
+    @Override
+    protected void ejecutarEnLector(Runnable tarea) {
+        if (Thread.currentThread() == hiloLector) {
+            tarea.run();
+        } else {
+            tareasLector.add(tarea);
+        }
+    }
+
+    @Override
+    protected void reanudarEntrada() {
+        // El hilo lector vuelve a leer en cuanto termina la tarea que resolvió el registro.
+    }
+
+    @Override
+    protected void notificarSalida() {
+        // El escritor espera en la condición de la cola; encolar ya lo despierta.
+    }
+
+    @Override
+    public void cerrar() {
+        salida.cerrar();
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            servidor.registrarEvento("Error cerrando conexión con " + nombreUsuario + ": " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,107 @@
+package servidor;
+
+import java.nio.charset.StandardCharsets;
+
+import protocolo.Trama;
+import protocolo.TipoTrama;
+
+/**
+ * Mensaje de salida con su tipo y su número de secuencia. Se codifica como mucho una vez
+ * por formato (línea de texto o trama binaria) y los mismos bytes se comparten entre todos
+ * los destinatarios que usan ese formato, así que una difusión cuesta una codificación por
+ * formato en total y no una por cliente.
+ * <p>
+ * Es inmutable: los bytes nunca se exponen para escritura fuera del paquete.
+ */
+public final class Mensaje {
+
+    private final TipoTrama tipo;
+    private final String contenido;
+    private final long secuencia;
+    // Si dos hilos codifican a la vez, ambos obtienen los mismos bytes: la carrera es inocua.
+    private volatile byte[] linea;
+    private volatile byte[] trama;
+
+    /**
+     * Crea un aviso del servidor sin número de secuencia.
+     *
+     * @param texto Línea de texto sin salto de línea final.
+     */
+    public Mensaje(String texto) {
+        this(TipoTrama.SISTEMA, texto, 0);
+    }
+
+    /**
+     * Crea un mensaje tipado.
+     *
+     * @param tipo      Tipo de trama.
+     * @param contenido Contenido sin el prefijo del protocolo de texto.
+     * @param secuencia Número de secuencia, 0 si el mensaje no lleva.
+     */
+    public Mensaje(TipoTrama tipo, String contenido, long secuencia) {
+        this.tipo = tipo;
+        this.contenido = contenido;
+        this.secuencia = secuencia;
+    }
+
+    /**
+     * Bytes del mensaje en el formato indicado, codificados la primera vez que se piden.
+     *
+     * @param binario true para la trama binaria, false para la línea de texto.
+     * @return Bytes compartidos; no deben modificarse.
+     */
+    public byte[] codificado(boolean binario) {
+        if (binario) {
+            byte[] bytes = trama;
+            if (bytes == null) {
+                trama = bytes = Trama.codificar(tipo, secuencia, contenido);
+            }
+            return bytes;
+        }
+        byte[] bytes = linea;
+        if (bytes == null) {
+            byte[] texto = getTexto().getBytes(StandardCharsets.UTF_8);
+            bytes = new byte[texto.length + 1];
+            System.arraycopy(texto, 0, bytes, 0, texto.length);
+            bytes[texto.length] = '\n';
+            linea = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Indica si unos bytes son una de las codificaciones ya hechas de este mensaje.
+     *
+     * @param bytes Bytes a comparar (por referencia, no por contenido).
+     * @return true si son la línea o la trama de este mensaje.
+     */
+    boolean esCodificacion(byte[] bytes) {
+        return bytes == linea || bytes == trama;
+    }
+
+    public TipoTrama getTipo() {
+        return tipo;
+    }
+
+    public String getContenido() {
+        return contenido;
+    }
+
+    public long getSecuencia() {
+        return secuencia;
+    }
+
+    /**
+     * Texto del mensaje tal como se envía en el protocolo de líneas.
+     *
+     * @return Prefijo del tipo seguido del contenido, sin salto de línea.
+     */
+    public String getTexto() {
+        return tipo.getPrefijoTexto() + contenido;
+    }
+
+    @Override
+    public String toString() {
+        return getTexto();
+    }
+}
@@ -0,0 +1,600 @@
+package servidor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import metricas.HistogramaLatencias;
+import persistencia.Buzones;
+
+/**
+ * Métricas del servidor de chat. Los caminos calientes solo incrementan contadores
+ * {@link LongAdder} (repartidos entre hilos, sin contención) o registran en un
+ * {@link HistogramaLatencias}; las tasas, profundidades de cola y percentiles se calculan
+ * solo cuando alguien los consulta.
+ * <p>
+ * Se publican por JMX ({@code chat:type=ServidorChat,puerto=N}, "chat.metricas.jmx") y,
+ * si se indica un puerto ("chat.metricas.puerto"), como texto plano en
+ * {@code http://127.0.0.1:puerto/metricas}, una métrica por línea.
+ */
+public class MetricasServidor implements MetricasServidorMBean {
+
+    private final ServidorChat servidor;
+
+    // **Contadores**
+    private final LongAdder conexiones = new LongAdder();
+    private final LongAdder conexionesCerradas = new LongAdder();
+    private final LongAdder registros = new LongAdder();
+    private final LongAdder mensajesPublicos = new LongAdder();
+    private final LongAdder mensajesPrivados = new LongAdder();
+    private final LongAdder mensajesSala = new LongAdder();
+    private final LongAdder bytesEntrada = new LongAdder();
+    private final LongAdder pingsEnviados = new LongAdder();
+    private final LongAdder conexionesInactivas = new LongAdder();
+    private final LongAdder suspensiones = new LongAdder();
+    private final LongAdder reanudaciones = new LongAdder();
+    private final LongAdder reanudacionesFallidas = new LongAdder();
+    private final LongAdder suspensionesCaducadas = new LongAdder();
+    /** Sesiones suspendidas ahora mismo, a la espera de que su cliente vuelva. */
+    private final LongAdder suspendidas = new LongAdder();
+
+    // **Histogramas**
+    private final HistogramaLatencias retencionLockDifusion = new HistogramaLatencias();
+    private final HistogramaLatencias retencionLockPresencia = new HistogramaLatencias();
+
+    // **Tasas del último segundo, calculadas por el muestreador**
+    private final Tasa tasaRegistros = new Tasa();
+    private final Tasa tasaPublicos = new Tasa();
+    private final Tasa tasaPrivados = new Tasa();
+    private final Tasa tasaSala = new Tasa();
+    private final Tasa tasaBytesEntrada = new Tasa();
+    private final Tasa tasaBytesSalida = new Tasa();
+
+    private ScheduledExecutorService muestreador;
+    private ObjectName nombreJmx;
+    private HttpServer servidorHttp;
+
+    /** Diferencia por segundo entre dos lecturas de un contador. */
+    private static final class Tasa {
+        private long anterior;
+        private volatile double porSegundo;
+
+        void actualizar(long valor, long nanos) {
+            porSegundo = (valor - anterior) * 1e9 / Math.max(1, nanos);
+            anterior = valor;
+        }
+    }
+
+    /**
+     * Constructor de las métricas.
+     *
+     * @param servidor Servidor del que se leen sesiones, colas y contadores propios.
+     */
+    MetricasServidor(ServidorChat servidor) {
+        this.servidor = servidor;
+    }
+
+    // **Registro desde el servidor y las sesiones**
+
+    void conexionAbierta() {
+        conexiones.increment();
+    }
+
+    void conexionCerrada() {
+        conexionesCerradas.increment();
+    }
+
+    void registro() {
+        registros.increment();
+    }
+
+    void mensajePublico() {
+        mensajesPublicos.increment();
+    }
+
+    void mensajePrivado() {
+        mensajesPrivados.increment();
+    }
+
+    void mensajeSala() {
+        mensajesSala.increment();
+    }
+
+    void bytesLeidos(long bytes) {
+        bytesEntrada.add(bytes);
+    }
+
+    void pingEnviado() {
+        pingsEnviados.increment();
+    }
+
+    void conexionInactivaCerrada() {
+        conexionesInactivas.increment();
+    }
+
+    void sesionSuspendida() {
+        suspensiones.increment();
+        suspendidas.increment();
+    }
+
+    /**
+     * Anota una sesión que pasó a una conexión nueva.
+     *
+     * @param estabaSuspendida false si el cliente volvió antes de que se notara la caída.
+     */
+    void sesionReanudada(boolean estabaSuspendida) {
+        reanudaciones.increment();
+        if (estabaSuspendida) {
+            suspendidas.decrement();
+        }
+    }
+
+    void reanudacionFallida() {
+        reanudacionesFallidas.increment();
+    }
+
+    void suspensionCaducada() {
+        suspensionesCaducadas.increment();
+        suspendidas.decrement();
+    }
+
+    void retencionLockDifusion(long nanos) {
+        retencionLockDifusion.registrar(nanos);
+    }
+
+    void retencionLockPresencia(long nanos) {
+        retencionLockPresencia.registrar(nanos);
+    }
+
+    // **Publicación**
+
+    /**
+     * Arranca el cálculo de tasas y publica las métricas por JMX y HTTP según la configuración.
+     * Un fallo al publicar se anota y el servidor sigue sin esa vía.
+     */
+    void iniciar() {
+        ConfiguracionServidor config = servidor.getConfiguracion();
+        muestreador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "chat-metricas");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        long[] ultimo = {System.nanoTime()};
+        muestreador.scheduleAtFixedRate(() -> {
+            long ahora = System.nanoTime();
+            long transcurrido = ahora - ultimo[0];
+            ultimo[0] = ahora;
+            tasaRegistros.actualizar(registros.sum(), transcurrido);
+            tasaPublicos.actualizar(mensajesPublicos.sum(), transcurrido);
+            tasaPrivados.actualizar(mensajesPrivados.sum(), transcurrido);
+            tasaSala.actualizar(mensajesSala.sum(), transcurrido);
+            tasaBytesEntrada.actualizar(bytesEntrada.sum(), transcurrido);
+            tasaBytesSalida.actualizar(servidor.getEstadisticasSalida().getBytesEscritos(), transcurrido);
+        }, 1, 1, TimeUnit.SECONDS);
+
+        if (config.isMetricasJmx()) {
+            try {
+                MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+                nombreJmx = new ObjectName("chat:type=ServidorChat,puerto=" + config.getPuerto());
+                mbeans.registerMBean(this, nombreJmx);
+            } catch (JMException e) {
+                nombreJmx = null;
+                servidor.registrarEvento("No se pudieron publicar las métricas por JMX: " + e.getMessage());
+            }
+        }
+        if (config.getPuertoMetricas() > 0) {
+            try {
+                // Solo en la interfaz local: las métricas incluyen nombres de usuario.
+                servidorHttp = HttpServer.create(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getPuertoMetricas()), 0);
+                servidorHttp.createContext("/metricas", this::responder);
+                servidorHttp.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                    Thread hilo = new Thread(r, "chat-metricas-http");
+                    hilo.setDaemon(true);
+                    return hilo;
+                }));
+                servidorHttp.start();
+                servidor.registrarEvento("Métricas en http://127.0.0.1:" + config.getPuertoMetricas() + "/metricas");
+            } catch (IOException e) {
+                servidorHttp = null;
+                servidor.registrarEvento("No se pudo abrir el puerto de métricas: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retira las métricas de JMX y HTTP y detiene el cálculo de tasas.
+     */
+    void detener() {
+        if (muestreador != null) {
+            muestreador.shutdownNow();
+        }
+        if (nombreJmx != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(nombreJmx);
+            } catch (JMException e) {
+                // Ya no estaba registrado.
+            }
+            nombreJmx = null;
+        }
+        if (servidorHttp != null) {
+            servidorHttp.stop(0);
+            servidorHttp = null;
+        }
+    }
+
+    private void responder(HttpExchange intercambio) throws IOException {
+        byte[] cuerpo = texto().getBytes(StandardCharsets.UTF_8);
+        intercambio.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        intercambio.sendResponseHeaders(200, cuerpo.length);
+        try (OutputStream salida = intercambio.getResponseBody()) {
+            salida.write(cuerpo);
+        }
+    }
+
+    /**
+     * Todas las métricas en texto plano, una por línea ("nombre valor" o "nombre{etiqueta} valor").
+     *
+     * @return Texto para el punto HTTP.
+     */
+    public String texto() {
+        StringBuilder texto = new StringBuilder(2048);
+        EstadisticasSalida salida = servidor.getEstadisticasSalida();
+        linea(texto, "chat_sesiones_abiertas", getSesionesAbiertas());
+        linea(texto, "chat_usuarios_conectados", getUsuariosConectados());
+        linea(texto, "chat_conexiones_total", getConexiones());
+        linea(texto, "chat_registros_total", getRegistros());
+        linea(texto, "chat_registros_por_segundo", getRegistrosPorSegundo());
+        linea(texto, "chat_mensajes_publicos_total", getMensajesPublicos());
+        linea(texto, "chat_mensajes_publicos_por_segundo", getMensajesPublicosPorSegundo());
+        linea(texto, "chat_mensajes_privados_total", getMensajesPrivados());
+        linea(texto, "chat_mensajes_privados_por_segundo", getMensajesPrivadosPorSegundo());
+        linea(texto, "chat_mensajes_sala_total", getMensajesSala());
+        linea(texto, "chat_mensajes_sala_por_segundo", getMensajesSalaPorSegundo());
+        linea(texto, "chat_salas_abiertas", getSalasAbiertas());
+        linea(texto, "chat_bytes_entrada_total", getBytesEntrada());
+        linea(texto, "chat_bytes_entrada_por_segundo", getBytesEntradaPorSegundo());
+        linea(texto, "chat_bytes_salida_total", getBytesSalida());
+        linea(texto, "chat_bytes_salida_por_segundo", getBytesSalidaPorSegundo());
+        linea(texto, "chat_mensajes_encolados_total", salida.getEncolados());
+        linea(texto, "chat_mensajes_escritos_total", salida.getMensajesEscritos());
+        linea(texto, "chat_descartados_antiguos_total", salida.getDescartadosAntiguos());
+        linea(texto, "chat_descartados_nuevos_total", salida.getDescartadosNuevos());
+        linea(texto, "chat_desconexiones_lentitud_total", salida.getDesconexiones());
+        EstadisticasCompresion compresion = servidor.getEstadisticasCompresion();
+        linea(texto, "chat_compresion_sesiones_total", compresion.getSesiones());
+        linea(texto, "chat_compresion_bytes_sin_comprimir_total", compresion.getBytesSinComprimir());
+        linea(texto, "chat_compresion_bytes_comprimidos_total", compresion.getBytesComprimidos());
+        linea(texto, "chat_descompresion_bytes_comprimidos_total", compresion.getBytesRecibidosComprimidos());
+        linea(texto, "chat_descompresion_bytes_descomprimidos_total", compresion.getBytesDescomprimidos());
+        linea(texto, "chat_compresion_bytes_ahorrados_total", getBytesAhorradosCompresion());
+        linea(texto, "chat_compresion_cpu_ms_total", getCpuCompresionMs());
+        linea(texto, "chat_compresion_bytes_ahorrados_por_ms_cpu", getCpuCompresionMs() > 0
+                ? getBytesAhorradosCompresion() / getCpuCompresionMs() : 0.0);
+        EstadisticasLimites limites = servidor.getEstadisticasLimites();
+        linea(texto, "chat_limite_retrasos_total", limites.getRetrasos());
+        linea(texto, "chat_limite_descartes_total", limites.getDescartes());
+        linea(texto, "chat_limite_desconexiones_total", limites.getDesconexiones());
+        for (ControlFlujo.Limite limite : ControlFlujo.Limite.values()) {
+            texto.append("chat_limite_excedido_total{limite=\"").append(limite.getNombre()).append("\"} ")
+                    .append(limites.getPorLimite(limite)).append('\n');
+        }
+        for (Map.Entry<String, EstadisticasLimites.PorUsuario> entrada : limites.getPorUsuario().entrySet()) {
+            EstadisticasLimites.PorUsuario usuario = entrada.getValue();
+            String etiqueta = "{usuario=\"" + entrada.getKey() + "\"} ";
+            texto.append("chat_limite_retrasos").append(etiqueta).append(usuario.retrasos.sum()).append('\n');
+            texto.append("chat_limite_descartes").append(etiqueta).append(usuario.descartes.sum()).append('\n');
+            texto.append("chat_limite_desconexiones").append(etiqueta).append(usuario.desconexiones.sum()).append('\n');
+        }
+        linea(texto, "chat_latido_pings_total", pingsEnviados.sum());
+        linea(texto, "chat_conexiones_inactivas_cerradas_total", getConexionesInactivasCerradas());
+        RuedaTemporizadores rueda = servidor.getRuedaTemporizadores();
+        linea(texto, "chat_temporizadores_activos", rueda != null ? rueda.getActivos() : 0);
+        linea(texto, "chat_sesiones_suspendidas", getSesionesSuspendidas());
+        linea(texto, "chat_suspensiones_total", suspensiones.sum());
+        linea(texto, "chat_reanudaciones_total", getReanudaciones());
+        linea(texto, "chat_reanudaciones_fallidas_total", reanudacionesFallidas.sum());
+        linea(texto, "chat_suspensiones_caducadas_total", suspensionesCaducadas.sum());
+        linea(texto, "chat_tramas_presencia_total", servidor.getTramasPresencia());
+        linea(texto, "chat_registro_eventos_descartados_total", servidor.getRegistro().getDescartados());
+        Buzones buzones = servidor.getBuzones();
+        if (buzones != null) {
+            linea(texto, "chat_buzones", buzones.getBuzones());
+            linea(texto, "chat_buzones_mensajes", buzones.getMensajes());
+            linea(texto, "chat_buzones_bytes", buzones.getBytes());
+            linea(texto, "chat_privados_guardados_total", buzones.getGuardados());
+            linea(texto, "chat_privados_guardados_entregados_total", buzones.getEntregados());
+            linea(texto, "chat_privados_guardados_caducados_total", buzones.getCaducados());
+            linea(texto, "chat_privados_rechazados_total", buzones.getRechazados());
+        }
+        Federacion federacion = servidor.getFederacion();
+        if (federacion.isActiva()) {
+            linea(texto, "chat_nodos_enlazados", federacion.getNodosEnlazados());
+            linea(texto, "chat_usuarios_remotos", federacion.getNumeroUsuariosRemotos());
+            linea(texto, "chat_publicos_reenviados_total", federacion.getPublicosReenviados());
+            linea(texto, "chat_publicos_de_otros_nodos_total", federacion.getPublicosRecibidos());
+            linea(texto, "chat_privados_enrutados_total", federacion.getPrivadosEnrutados());
+            linea(texto, "chat_conflictos_nombre_total", federacion.getConflictos());
+        }
+        Transferencias transferencias = servidor.getTransferencias();
+        if (transferencias.isActiva()) {
+            linea(texto, "chat_transferencias_activas", transferencias.getActivas());
+            linea(texto, "chat_transferencias_ofrecidas_total", transferencias.getOfrecidas());
+            linea(texto, "chat_transferencias_completadas_total", transferencias.getCompletadas());
+            linea(texto, "chat_transferencias_rechazadas_total", transferencias.getRechazadas());
+            linea(texto, "chat_transferencias_fallidas_total", transferencias.getFallidas());
+            linea(texto, "chat_transferencias_bytes_total", transferencias.getBytes());
+        }
+
+        long total = 0;
+        int maxima = 0;
+        for (SesionCliente sesion : servidor.getClientes().values()) {
+            int pendientes = sesion.getMensajesPendientes();
+            total += pendientes;
+            maxima = Math.max(maxima, pendientes);
+            texto.append("chat_cola_salida{usuario=\"").append(sesion.getNombreUsuario()).append("\"} ")
+                    .append(pendientes).append('\n');
+        }
+        linea(texto, "chat_cola_salida_total", total);
+        linea(texto, "chat_cola_salida_maxima", maxima);
+
+        histograma(texto, "chat_latencia_difusion_us", salida.getLatenciaDifusion());
+        linea(texto, "chat_difusiones_no_completadas_total", salida.getSeguimientosAbandonados());
+        histograma(texto, "chat_retencion_lock_difusion_us", retencionLockDifusion);
+        histograma(texto, "chat_retencion_lock_presencia_us", retencionLockPresencia);
+        return texto.toString();
+    }
+
+    private static void linea(StringBuilder texto, String nombre, long valor) {
+        texto.append(nombre).append(' ').append(valor).append('\n');
+    }
+
+    private static void linea(StringBuilder texto, String nombre, double valor) {
+        texto.append(nombre).append(' ').append(String.format(Locale.ROOT, "%.1f", valor)).append('\n');
+    }
+
+    private static void histograma(StringBuilder texto, String nombre, HistogramaLatencias histograma) {
+        for (String percentil : new String[] {"50", "90", "99", "99.9"}) {
+            texto.append(nombre).append("{percentil=\"").append(percentil).append("\"} ")
+                    .append(histograma.percentil(Double.parseDouble(percentil)) / 1000).append('\n');
+        }
+        linea(texto, nombre + "_max", histograma.getMaximo() / 1000);
+        linea(texto, nombre + "_cuenta", histograma.getCuenta());
+    }
+
+    // **Consultas (también por JMX)**
+
+    @Override
+    public int getSesionesAbiertas() {
+        return (int) (conexiones.sum() - conexionesCerradas.sum());
+    }
+
+    @Override
+    public int getUsuariosConectados() {
+        return servidor.getClientes().size();
+    }
+
+    @Override
+    public long getConexiones() {
+        return conexiones.sum();
+    }
+
+    @Override
+    public long getRegistros() {
+        return registros.sum();
+    }
+
+    @Override
+    public double getRegistrosPorSegundo() {
+        return tasaRegistros.porSegundo;
+    }
+
+    @Override
+    public long getMensajesPublicos() {
+        return mensajesPublicos.sum();
+    }
+
+    @Override
+    public double getMensajesPublicosPorSegundo() {
+        return tasaPublicos.porSegundo;
+    }
+
+    @Override
+    public long getMensajesPrivados() {
+        return mensajesPrivados.sum();
+    }
+
+    @Override
+    public double getMensajesPrivadosPorSegundo() {
+        return tasaPrivados.porSegundo;
+    }
+
+    @Override
+    public long getMensajesSala() {
+        return mensajesSala.sum();
+    }
+
+    @Override
+    public double getMensajesSalaPorSegundo() {
+        return tasaSala.porSegundo;
+    }
+
+    @Override
+    public int getSalasAbiertas() {
+        return servidor.getNumeroSalas();
+    }
+
+    @Override
+    public int getNodosEnlazados() {
+        return servidor.getFederacion().getNodosEnlazados();
+    }
+
+    @Override
+    public int getUsuariosRemotos() {
+        return servidor.getFederacion().getNumeroUsuariosRemotos();
+    }
+
+    @Override
+    public long getBytesEntrada() {
+        return bytesEntrada.sum();
+    }
+
+    @Override
+    public double getBytesEntradaPorSegundo() {
+        return tasaBytesEntrada.porSegundo;
+    }
+
+    @Override
+    public long getBytesSalida() {
+        return servidor.getEstadisticasSalida().getBytesEscritos();
+    }
+
+    @Override
+    public double getBytesSalidaPorSegundo() {
+        return tasaBytesSalida.porSegundo;
+    }
+
+    @Override
+    public long getBytesAhorradosCompresion() {
+        return servidor.getEstadisticasCompresion().getBytesAhorrados();
+    }
+
+    @Override
+    public double getCpuCompresionMs() {
+        return servidor.getEstadisticasCompresion().getCpuMs();
+    }
+
+    @Override
+    public long getConexionesInactivasCerradas() {
+        return conexionesInactivas.sum();
+    }
+
+    @Override
+    public long getSesionesSuspendidas() {
+        return suspendidas.sum();
+    }
+
+    @Override
+    public long getReanudaciones() {
+        return reanudaciones.sum();
+    }
+
+    @Override
+    public long getMensajesEnBuzones() {
+        Buzones buzones = servidor.getBuzones();
+        return buzones != null ? buzones.getMensajes() : 0;
+    }
+
+    @Override
+    public int getTransferenciasActivas() {
+        return servidor.getTransferencias().getActivas();
+    }
+
+    @Override
+    public long getRetrasosPorLimite() {
+        return servidor.getEstadisticasLimites().getRetrasos();
+    }
+
+    @Override
+    public long getDescartesPorLimite() {
+        return servidor.getEstadisticasLimites().getDescartes();
+    }
+
+    @Override
+    public long getDesconexionesPorLimite() {
+        return servidor.getEstadisticasLimites().getDesconexiones();
+    }
+
+    @Override
+    public long getColaSalidaTotal() {
+        long total = 0;
+        for (SesionCliente sesion : servidor.getClientes().values()) {
+            total += sesion.getMensajesPendientes();
+        }
+        return total;
+    }
+
+    @Override
+    public int getColaSalidaMaxima() {
+        int maxima = 0;
+        for (SesionCliente sesion : servidor.getClientes().values()) {
+            maxima = Math.max(maxima, sesion.getMensajesPendientes());
+        }
+        return maxima;
+    }
+
+    @Override
+    public long getLatenciaDifusionP50Us() {
+        return servidor.getEstadisticasSalida().getLatenciaDifusion().percentil(50) / 1000;
+    }
+
+    @Override
+    public long getLatenciaDifusionP99Us() {
+        return servidor.getEstadisticasSalida().getLatenciaDifusion().percentil(99) / 1000;
+    }
+
+    @Override
+    public long getLatenciaDifusionP999Us() {
+        return servidor.getEstadisticasSalida().getLatenciaDifusion().percentil(99.9) / 1000;
+    }
+
+    @Override
+    public long getLatenciaDifusionMaxUs() {
+        return servidor.getEstadisticasSalida().getLatenciaDifusion().getMaximo() / 1000;
+    }
+
+    @Override
+    public long getRetencionLockDifusionP99Us() {
+        return retencionLockDifusion.percentil(99) / 1000;
+    }
+
+    @Override
+    public long getRetencionLockDifusionMaxUs() {
+        return retencionLockDifusion.getMaximo() / 1000;
+    }
+
+    @Override
+    public long getRetencionLockPresenciaP99Us() {
+        return retencionLockPresencia.percentil(99) / 1000;
+    }
+
+    @Override
+    public long getRetencionLockPresenciaMaxUs() {
+        return retencionLockPresencia.getMaximo() / 1000;
+    }
+
+    @Override
+    public void reiniciarHistogramas() {
+        servidor.getEstadisticasSalida().getLatenciaDifusion().reiniciar();
+        retencionLockDifusion.reiniciar();
+        retencionLockPresencia.reiniciar();
+    }
+
+    @Override
+    public String toString() {
+        return "sesiones=" + getSesionesAbiertas() + ", públicos=" + getMensajesPublicos() + ", privados="
+                + getMensajesPrivados() + ", de sala=" + getMensajesSala() + ", bytes entrada=" + getBytesEntrada()
+                + ", bytes salida=" + getBytesSalida() + ", ahorrados por compresión=" + getBytesAhorradosCompresion()
+                + ", descartes por límite=" + getDescartesPorLimite()
+                + ", inactivas cerradas=" + getConexionesInactivasCerradas()
+                + ", reanudaciones=" + getReanudaciones()
+                + ", difusión: " + servidor.getEstadisticasSalida().getLatenciaDifusion()
+                + ", lock difusión: " + retencionLockDifusion;
+    }
+}
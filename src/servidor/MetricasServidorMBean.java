@@ -0,0 +1,89 @@
+package servidor;
+
+/**
+ * Interfaz JMX de {@link MetricasServidor}. Las tasas son por segundo, medidas en el último
+ * segundo completo; las latencias, en microsegundos desde el arranque o el último reinicio.
+ */
+public interface MetricasServidorMBean {
+
+    int getSesionesAbiertas();
+
+    int getUsuariosConectados();
+
+    long getConexiones();
+
+    long getRegistros();
+
+    double getRegistrosPorSegundo();
+
+    long getMensajesPublicos();
+
+    double getMensajesPublicosPorSegundo();
+
+    long getMensajesPrivados();
+
+    double getMensajesPrivadosPorSegundo();
+
+    long getMensajesSala();
+
+    double getMensajesSalaPorSegundo();
+
+    int getSalasAbiertas();
+
+    int getNodosEnlazados();
+
+    int getUsuariosRemotos();
+
+    long getBytesEntrada();
+
+    double getBytesEntradaPorSegundo();
+
+    long getBytesSalida();
+
+    double getBytesSalidaPorSegundo();
+
+    long getBytesAhorradosCompresion();
+
+    double getCpuCompresionMs();
+
+    long getConexionesInactivasCerradas();
+
+    long getSesionesSuspendidas();
+
+    long getReanudaciones();
+
+    long getMensajesEnBuzones();
+
+    int getTransferenciasActivas();
+
+    long getRetrasosPorLimite();
+
+    long getDescartesPorLimite();
+
+    long getDesconexionesPorLimite();
+
+    long getColaSalidaTotal();
+
+    int getColaSalidaMaxima();
+
+    long getLatenciaDifusionP50Us();
+
+    long getLatenciaDifusionP99Us();
+
+    long getLatenciaDifusionP999Us();
+
+    long getLatenciaDifusionMaxUs();
+
+    long getRetencionLockDifusionP99Us();
+
+    long getRetencionLockDifusionMaxUs();
+
+    long getRetencionLockPresenciaP99Us();
+
+    long getRetencionLockPresenciaMaxUs();
+
+    /**
+     * Vacía los histogramas de latencia y de retención de cerrojos.
+     */
+    void reiniciarHistogramas();
+}
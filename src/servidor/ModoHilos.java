@@ -0,0 +1,87 @@
+package servidor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tipo de hilo con el que el motor bloqueante ejecuta cada {@link ManejadorCliente}.
+ */
+public enum ModoHilos {
+
+    /** Hilos de plataforma reutilizados mediante un pool sin límite. */
+    PLATAFORMA("Hilos de plataforma"),
+
+    /** Un hilo virtual por conexión (requiere Java 21 o superior). */
+    VIRTUALES("Hilos virtuales");
+
+    private final String descripcion;
+
+    ModoHilos(String descripcion) {
+        this.descripcion = descripcion;
+    }
+
+    /**
+     * Lee el modo de la propiedad del sistema "chat.hilos" (plataforma o virtuales).
+     *
+     * @return Modo configurado, o PLATAFORMA si no se indica ninguno.
+     */
+    public static ModoHilos desdePropiedades() {
+        return desdeTexto(System.getProperty("chat.hilos", "plataforma"));
+    }
+
+    /**
+     * Interpreta el nombre de un modo de hilos (plataforma o virtuales).
+     *
+     * @param valor Texto de la configuración.
+     * @return Modo indicado, o PLATAFORMA si no se reconoce.
+     */
+    public static ModoHilos desdeTexto(String valor) {
+        return valor.trim().equalsIgnoreCase("virtuales") ? VIRTUALES : PLATAFORMA;
+    }
+
+    /**
+     * Indica si la JVM en uso admite hilos virtuales.
+     *
+     * @return true si existe Executors.newVirtualThreadPerTaskExecutor().
+     */
+    public static boolean virtualesDisponibles() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Crea el ejecutor correspondiente a este modo.
+     * Se usa reflexión para que el proyecto siga compilando con versiones anteriores a Java 21;
+     * si los hilos virtuales no están disponibles se vuelve a hilos de plataforma.
+     *
+     * @return Ejecutor para lanzar los manejadores de cliente.
+     */
+    public ExecutorService crearEjecutor() {
+        if (this == VIRTUALES && virtualesDisponibles()) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("No se pudo crear el ejecutor de hilos virtuales", e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Descripción del modo que se usará de verdad: si se piden hilos virtuales y la JVM no los
+     * tiene, se indica que se vuelve a hilos de plataforma.
+     *
+     * @return Descripción para la interfaz y el log.
+     */
+    @Override
+    public String toString() {
+        if (this == VIRTUALES && !virtualesDisponibles()) {
+            return descripcion + " (no disponible: plataforma)";
+        }
+        return descripcion;
+    }
+}
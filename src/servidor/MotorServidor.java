@@ -0,0 +1,43 @@
+package servidor;
+
+/**
+ * Motores de red disponibles para el servidor de chat.
+ */
+public enum MotorServidor {
+
+    /** Un hilo por conexión con sockets bloqueantes (motor original). */
+    BLOQUEANTE("Bloqueante (hilo por cliente)"),
+
+    /** Selectores NIO con un bucle de eventos por núcleo. */
+    NIO("NIO (bucles de eventos)");
+
+    private final String descripcion;
+
+    MotorServidor(String descripcion) {
+        this.descripcion = descripcion;
+    }
+
+    /**
+     * Lee el motor de la propiedad del sistema "chat.motor" (bloqueante o nio).
+     *
+     * @return Motor configurado, o BLOQUEANTE si no se indica ninguno.
+     */
+    public static MotorServidor desdePropiedades() {
+        return desdeTexto(System.getProperty("chat.motor", "bloqueante"));
+    }
+
+    /**
+     * Interpreta el nombre de un motor (bloqueante o nio).
+     *
+     * @param valor Texto de la configuración.
+     * @return Motor indicado, o BLOQUEANTE si no se reconoce.
+     */
+    public static MotorServidor desdeTexto(String valor) {
+        return valor.trim().equalsIgnoreCase("nio") ? NIO : BLOQUEANTE;
+    }
+
+    @Override
+    public String toString() {
+        return descripcion;
+    }
+}
@@ -0,0 +1,51 @@
+package servidor;
+
+import java.io.PrintStream;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Observador para el servidor sin interfaz gráfica: escribe los lotes de eventos en la
+ * salida estándar con la hora, y de los usuarios solo el recuento de altas y bajas.
+ */
+public class ObservadorConsola implements ObservadorServidor {
+
+    private static final DateTimeFormatter HORA = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private final PrintStream salida;
+
+    /**
+     * Constructor del observador.
+     *
+     * @param salida Flujo donde escribir el log.
+     */
+    public ObservadorConsola(PrintStream salida) {
+        this.salida = salida;
+    }
+
+    @Override
+    public void registrarEventos(List<String> eventos, long omitidos) {
+        String hora = LocalTime.now().format(HORA);
+        StringBuilder texto = new StringBuilder();
+        for (String evento : eventos) {
+            texto.append(hora).append(' ').append(evento).append(System.lineSeparator());
+        }
+        if (omitidos > 0) {
+            texto.append(hora).append(" (").append(omitidos).append(" eventos omitidos)").append(System.lineSeparator());
+        }
+        salida.print(texto); // Una sola escritura por lote.
+        salida.flush();
+    }
+
+    @Override
+    public void actualizarUsuarios(Set<String> altas, Set<String> bajas) {
+        registrarEventos(List.of("Usuarios: +" + altas.size() + " -" + bajas.size()), 0);
+    }
+
+    @Override
+    public void actualizarUsuarios(Set<String> usuarios) {
+        registrarEventos(List.of("Usuarios conectados: " + usuarios.size()), 0);
+    }
+}
@@ -0,0 +1,37 @@
+package servidor;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Receptor opcional de lo que ocurre en el servidor: la interfaz gráfica, la consola
+ * o nada en absoluto. El servidor no depende de Swing ni espera a que el observador termine.
+ * <p>
+ * Los eventos llegan por lotes desde un único hilo, como mucho una vez por intervalo; bajo
+ * carga, los eventos frecuentes (uno por mensaje) se muestrean y solo se cuenta cuántos se omitieron.
+ */
+public interface ObservadorServidor {
+
+    /**
+     * Recibe un lote de eventos del log.
+     *
+     * @param eventos  Líneas del log, en orden.
+     * @param omitidos Eventos descartados por muestreo o por exceso desde el lote anterior.
+     */
+    void registrarEventos(List<String> eventos, long omitidos);
+
+    /**
+     * Recibe un lote de altas y bajas de usuarios, ya agrupado por la ventana de presencia.
+     *
+     * @param altas Usuarios que entraron.
+     * @param bajas Usuarios que salieron.
+     */
+    void actualizarUsuarios(Set<String> altas, Set<String> bajas);
+
+    /**
+     * Recibe la lista completa de usuarios conectados (resincronización).
+     *
+     * @param usuarios Usuarios conectados.
+     */
+    void actualizarUsuarios(Set<String> usuarios);
+}
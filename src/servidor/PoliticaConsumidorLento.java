@@ -0,0 +1,40 @@
+package servidor;
+
+/**
+ * Qué hacer cuando un cliente no lee tan rápido como le llegan mensajes
+ * y su cola de salida se llena.
+ */
+public enum PoliticaConsumidorLento {
+
+    /** Descarta el mensaje más antiguo de la cola para hacer sitio al nuevo. */
+    DESCARTAR_ANTIGUO,
+
+    /** Descarta el mensaje nuevo y conserva los que ya estaban en cola. */
+    DESCARTAR_NUEVO,
+
+    /** Desconecta al cliente si la cola se llena o si va más de N ms por detrás. */
+    DESCONECTAR;
+
+    /**
+     * Lee la política de la propiedad del sistema "chat.cola.politica".
+     *
+     * @return Política configurada, o DESCARTAR_ANTIGUO si no se indica ninguna.
+     */
+    public static PoliticaConsumidorLento desdePropiedades() {
+        return desdeTexto(System.getProperty("chat.cola.politica", "descartar_antiguo"));
+    }
+
+    /**
+     * Interpreta el nombre de una política (descartar_antiguo, descartar_nuevo o desconectar).
+     *
+     * @param valor Texto de la configuración.
+     * @return Política indicada, o DESCARTAR_ANTIGUO si no se reconoce.
+     */
+    public static PoliticaConsumidorLento desdeTexto(String valor) {
+        try {
+            return valueOf(valor.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return DESCARTAR_ANTIGUO;
+        }
+    }
+}
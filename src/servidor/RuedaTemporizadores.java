@@ -0,0 +1,202 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rueda de temporizadores con reparto por dispersión: un anillo de ranuras, cada una con una
+ * lista doblemente enlazada de temporizadores, que un hilo propio recorre a razón de una ranura
+ * por tic. Programar y cancelar cuestan O(1) y cada tic solo visita su ranura, así que cien
+ * mil sesiones no suponen recorrer cien mil entradas. Un plazo más largo que una vuelta
+ * entera guarda cuántas vueltas le faltan.
+ * <p>
+ * Las acciones vencidas se ejecutan en el hilo de la rueda, fuera de su cerrojo, y deben
+ * ser breves: encolar un mensaje o pedir un cierre, nunca esperar a la red.
+ */
+final class RuedaTemporizadores {
+
+    /** Entrada de la rueda; se reutiliza cada vez que su dueño la vuelve a programar. */
+    static final class Temporizador {
+        private final Runnable accion;
+        private int ranura = -1;
+        private long vueltas;
+        private Temporizador anterior;
+        private Temporizador siguiente;
+
+        Temporizador(Runnable accion) {
+            this.accion = accion;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long nanosPorTic;
+    private final long milisPorTic;
+    private final Temporizador[] ranuras;
+    private final int mascara;
+    private final long inicio = System.nanoTime();
+    /** Último tic procesado; se lee sin cerrojo como reloj grueso de las sesiones. */
+    private volatile long tic = 0;
+    private int activos = 0;
+    private ScheduledExecutorService reloj;
+
+    /**
+     * Constructor de la rueda.
+     *
+     * @param milisPorTic Resolución en milisegundos.
+     * @param ranuras     Número de ranuras; se redondea a la siguiente potencia de dos.
+     */
+    RuedaTemporizadores(long milisPorTic, int ranuras) {
+        this.milisPorTic = Math.max(1, milisPorTic);
+        this.nanosPorTic = TimeUnit.MILLISECONDS.toNanos(this.milisPorTic);
+        this.ranuras = new Temporizador[Integer.highestOneBit(Math.max(2, ranuras) * 2 - 1)];
+        this.mascara = this.ranuras.length - 1;
+    }
+
+    /**
+     * Arranca el hilo que hace avanzar la rueda.
+     */
+    void iniciar() {
+        reloj = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "chat-temporizadores");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        reloj.scheduleAtFixedRate(this::avanzar, milisPorTic, milisPorTic, TimeUnit.MILLISECONDS);
+    }
+
+    void detener() {
+        if (reloj != null) {
+            reloj.shutdownNow();
+        }
+    }
+
+    /**
+     * Programa (o reprograma) un temporizador.
+     *
+     * @param temporizador Temporizador a programar; si ya estaba programado, se mueve.
+     * @param retrasoMs    Milisegundos hasta que venza; se redondea al tic siguiente.
+     */
+    void programar(Temporizador temporizador, long retrasoMs) {
+        long tics = Math.max(1, (retrasoMs + milisPorTic - 1) / milisPorTic);
+        lock.lock();
+        try {
+            if (temporizador.ranura >= 0) {
+                quitar(temporizador);
+            }
+            temporizador.vueltas = (tics - 1) / ranuras.length;
+            temporizador.ranura = (int) ((tic + tics) & mascara);
+            temporizador.siguiente = ranuras[temporizador.ranura];
+            if (temporizador.siguiente != null) {
+                temporizador.siguiente.anterior = temporizador;
+            }
+            ranuras[temporizador.ranura] = temporizador;
+            activos++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancela un temporizador; no hace nada si no estaba programado.
+     *
+     * @param temporizador Temporizador a cancelar.
+     */
+    void cancelar(Temporizador temporizador) {
+        lock.lock();
+        try {
+            if (temporizador.ranura >= 0) {
+                quitar(temporizador);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void quitar(Temporizador temporizador) {
+        if (temporizador.anterior != null) {
+            temporizador.anterior.siguiente = temporizador.siguiente;
+        } else {
+            ranuras[temporizador.ranura] = temporizador.siguiente;
+        }
+        if (temporizador.siguiente != null) {
+            temporizador.siguiente.anterior = temporizador.anterior;
+        }
+        temporizador.anterior = null;
+        temporizador.siguiente = null;
+        temporizador.ranura = -1;
+        activos--;
+    }
+
+    /**
+     * Procesa los tics transcurridos; si el hilo se retrasó, se pone al día de una vez.
+     */
+    private void avanzar() {
+        long objetivo = (System.nanoTime() - inicio) / nanosPorTic;
+        List<Temporizador> vencidos = new ArrayList<>();
+        while (tic < objetivo) {
+            lock.lock();
+            try {
+                long siguienteTic = tic + 1;
+                Temporizador temporizador = ranuras[(int) (siguienteTic & mascara)];
+                while (temporizador != null) {
+                    Temporizador siguiente = temporizador.siguiente;
+                    if (temporizador.vueltas == 0) {
+                        quitar(temporizador);
+                        vencidos.add(temporizador);
+                    } else {
+                        temporizador.vueltas--;
+                    }
+                    temporizador = siguiente;
+                }
+                tic = siguienteTic;
+            } finally {
+                lock.unlock();
+            }
+            for (Temporizador temporizador : vencidos) {
+                try {
+                    temporizador.accion.run();
+                } catch (RuntimeException e) {
+                    // Un fallo de una sesión no debe parar la rueda de las demás.
+                }
+            }
+            vencidos.clear();
+        }
+    }
+
+    /**
+     * Reloj grueso, sin cerrojo: vale para anotar actividad en cada mensaje sin llamar al sistema.
+     *
+     * @return Último tic procesado.
+     */
+    long getTic() {
+        return tic;
+    }
+
+    /**
+     * Milisegundos transcurridos desde un tic anterior.
+     *
+     * @param desde Tic obtenido con {@link #getTic()}.
+     * @return Tiempo aproximado, con la resolución de la rueda.
+     */
+    long milisDesde(long desde) {
+        return (tic - desde) * milisPorTic;
+    }
+
+    /**
+     * Temporizadores programados en este momento.
+     *
+     * @return Número de temporizadores pendientes.
+     */
+    int getActivos() {
+        lock.lock();
+        try {
+            return activos;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
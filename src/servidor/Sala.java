@@ -0,0 +1,137 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sala de chat con nombre: un tema al que se suscriben algunas sesiones.
+ * <p>
+ * Cada sala tiene su propio cerrojo, que ordena sus mensajes entre sí y con las altas y bajas
+ * de miembros; una sala muy concurrida no frena a las demás ni a las difusiones públicas.
+ * Cuando sale el último miembro la sala se cierra y desaparece del índice del servidor;
+ * quien intente unirse a una sala cerrada debe volver a buscarla.
+ */
+final class Sala {
+
+    /** Longitud máxima del nombre de una sala. */
+    static final int MAX_NOMBRE = 32;
+
+    private final String nombre;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Miembros en orden de llegada; solo se lee y modifica con el cerrojo tomado. */
+    private final List<SesionCliente> miembros = new ArrayList<>();
+    private boolean cerrada = false;
+    /** Número de miembros, para listar las salas sin tomar su cerrojo. */
+    private volatile int tamano = 0;
+
+    Sala(String nombre) {
+        this.nombre = nombre;
+    }
+
+    /**
+     * Indica si un nombre de sala es válido: letras, dígitos, "-" o "_", hasta {@link #MAX_NOMBRE}.
+     *
+     * @param nombre Nombre propuesto.
+     * @return true si se puede usar.
+     */
+    static boolean nombreValido(String nombre) {
+        if (nombre.isEmpty() || nombre.length() > MAX_NOMBRE) return false;
+        for (int i = 0; i < nombre.length(); i++) {
+            char c = nombre.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Añade un miembro y avisa a la sala, incluido el recién llegado.
+     *
+     * @param sesion Sesión que se une; no debe ser ya miembro.
+     * @param aviso  Aviso de entrada.
+     * @return false si la sala se cerró entretanto y hay que buscarla de nuevo.
+     */
+    boolean unir(SesionCliente sesion, Mensaje aviso) {
+        lock.lock();
+        try {
+            if (cerrada) return false;
+            miembros.add(sesion);
+            tamano = miembros.size();
+            difundirBloqueado(aviso);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Quita un miembro y avisa a los que quedan. Si no queda nadie, la sala se cierra.
+     *
+     * @param sesion Sesión que sale.
+     * @param aviso  Aviso de salida.
+     * @return true si la sala quedó vacía y cerrada.
+     */
+    boolean salir(SesionCliente sesion, Mensaje aviso) {
+        lock.lock();
+        try {
+            if (!miembros.remove(sesion)) return false;
+            tamano = miembros.size();
+            if (miembros.isEmpty()) {
+                cerrada = true;
+                return true;
+            }
+            difundirBloqueado(aviso);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pone una sesión en el lugar de otra sin avisar a nadie: la del mismo cliente tras reanudar.
+     *
+     * @param anterior Sesión que deja la sala.
+     * @param nueva    Sesión que ocupa su lugar.
+     * @return false si la sesión anterior ya no era miembro.
+     */
+    boolean reemplazar(SesionCliente anterior, SesionCliente nueva) {
+        lock.lock();
+        try {
+            int posicion = miembros.indexOf(anterior);
+            if (posicion < 0) return false;
+            miembros.set(posicion, nueva);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encola un mensaje a todos los miembros, en el mismo orden para todos.
+     *
+     * @param mensaje Mensaje ya codificable.
+     */
+    void difundir(Mensaje mensaje) {
+        lock.lock();
+        try {
+            difundirBloqueado(mensaje);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void difundirBloqueado(Mensaje mensaje) {
+        // Un miembro demasiado lento se cierra dentro de enviar() y sale después por su hilo.
+        for (int i = 0; i < miembros.size(); i++) {
+            miembros.get(i).enviar(mensaje);
+        }
+    }
+
+    String getNombre() {
+        return nombre;
+    }
+
+    int getTamano() {
+        return tamano;
+    }
+}
@@ -1,64 +1,423 @@
 package servidor;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import persistencia.Buzones;
+import persistencia.Diario;
+import protocolo.Trama;
+import protocolo.TipoTrama;
+import registro.NivelRegistro;
+import registro.RegistroEventos;
+import registro.TipoEvento;
 
 /**
  * Clase que representa el servidor de chat.
  * Maneja la conexión de clientes, envío de mensajes y la actualización de la lista de usuarios.
+ * <p>
+ * No usa monitores {@code synchronized}: el mapa de clientes es concurrente y solo las
+ * altas, bajas y listas de usuarios se serializan con un {@link ReentrantLock}, de modo que
+ * los hilos virtuales no quedan anclados a su hilo portador mientras escriben en sockets.
+ * <p>
+ * Además del chat general hay salas con nombre ({@link Sala}): un índice sala → miembros
+ * hace que un mensaje de sala solo recorra a sus suscriptores, con el cerrojo de esa sala.
+ * <p>
+ * Varios servidores pueden formar un clúster ({@link Federacion}): comparten la lista de usuarios,
+ * los nombres son únicos en todo el clúster y los mensajes llegan a usuarios de otros nodos.
+ * <p>
+ * Un cliente que negoció "reanudar" y pierde la conexión puede volver con su token: la sesión
+ * pasa a la conexión nueva sin que los demás lo vean salir y entrar.
+ * <p>
+ * Los mensajes privados para usuarios sin conexión esperan en su buzón en disco ({@link Buzones})
+ * y se le entregan al registrarse, en lotes que caben en su cola de salida. Un hilo propio hace
+ * las lecturas y escrituras de los buzones, así que el disco nunca detiene a un lector ni a un
+ * bucle NIO.
  */
 public class ServidorChat {
-    private static final int PUERTO = 5003;
-    private Map<String, PrintWriter> clientes = new HashMap<>();
+    /** Ranuras de la rueda de temporizadores: con tics de 100 ms, una vuelta dura unos 100 s. */
+    private static final int RANURAS_RUEDA = 1024;
+    /** Espera antes de volver a intentar la parte de un buzón que no cupo en la cola de salida. */
+    private static final long REINTENTO_BUZON_MS = 200;
+
+    private final ConfiguracionServidor config;
+    private final Map<String, SesionCliente> clientes = new ConcurrentHashMap<>();
+    private final ReentrantLock lockPresencia = new ReentrantLock();
+    /** Sesiones registradas en la ventana actual que aún esperan su lista completa. */
+    private final Set<SesionCliente> pendientesDeLista = new HashSet<>();
+    private final AgregadorPresencia agregadorPresencia;
+    private final LongAdder tramasPresencia = new LongAdder();
+    /** Número de secuencia de los mensajes de chat, público y privados, en orden de envío. */
+    private final AtomicLong secuencia = new AtomicLong();
+    /**
+     * Ordena las difusiones entre sí y con el registro de usuarios: cada mensaje público
+     * se numera, se anota y se encola a todos antes del siguiente, y quien entra recibe el
+     * historial sin que ningún mensaje le llegue dos veces o se le pierda.
+     */
+    private final ReentrantLock lockDifusion = new ReentrantLock();
+    private final HistorialMensajes historial;
+    /** Salas abiertas por nombre; una sala vacía se cierra y se quita. */
+    private final Map<String, Sala> salas = new ConcurrentHashMap<>();
+    /** Sesiones que se pueden reanudar, por su token; incluye las suspendidas. */
+    private final Map<String, SesionCliente> sesionesPorToken = new ConcurrentHashMap<>();
+    private final SecureRandom generadorTokens = new SecureRandom();
+    /** Diario en disco de los mensajes enrutados; null si está desactivado o no se pudo abrir. */
+    private volatile Diario diario;
+    /** Buzones de los privados para usuarios sin conexión; null si están desactivados o no se pudieron abrir. */
+    private volatile Buzones buzones;
+    /**
+     * Hilo que lee y escribe los buzones, para que ni el lector de una sesión ni un bucle NIO
+     * esperen al disco; null si no hay buzones. Al ser uno solo, guarda y entrega en orden.
+     */
+    private volatile ScheduledExecutorService hiloBuzones;
+    /**
+     * Privados encolados para guardar y aún sin escribir, por destinatario. Mientras haya alguno,
+     * lo siguiente para él también va al buzón, para que no se adelante a lo que espera.
+     */
+    private final Map<String, Integer> privadosPorGuardar = new ConcurrentHashMap<>();
+    /** Registro estructurado en disco ("chat.registro.*"); nunca null, aunque puede no escribir nada. */
+    private volatile RegistroEventos registro = RegistroEventos.desactivado();
     private ServerSocket serverSocket;
-    private ServidorChatGUI gui;
-    private boolean servidorActivo = true;
+    private ServidorNio servidorNio;
+    /** Interfaz gráfica, consola o ninguno; solo recibe lotes, nunca un aviso por mensaje. */
+    private final ObservadorServidor observador;
+    private final DistribuidorEventos eventos;
+    private final ExecutorService ejecutor;
+    private final EstadisticasSalida estadisticasSalida = new EstadisticasSalida();
+    private final EstadisticasCompresion estadisticasCompresion = new EstadisticasCompresion();
+    private final EstadisticasLimites estadisticasLimites = new EstadisticasLimites();
+    /** Presupuesto de mensajes de todo el servidor ("chat.limite.global.*"), o null si no hay. */
+    private final CuboTokens limiteGlobal;
+    /** Latidos, plazos y gracia de reanudación de las sesiones, o null si no hay ninguno. */
+    private final RuedaTemporizadores rueda;
+    private final MetricasServidor metricas = new MetricasServidor(this);
+    private final Federacion federacion;
+    private final Transferencias transferencias;
+    private volatile boolean servidorActivo = true;
+
+    /**
+     * Constructor del servidor de chat sin observador, con la configuración de las propiedades "chat.*".
+     */
+    public ServidorChat() {
+        this(ConfiguracionServidor.desdePropiedades(), null);
+    }
+
+    /**
+     * Constructor del servidor de chat con el ejecutor del modo de hilos configurado.
+     *
+     * @param config     Configuración del servidor.
+     * @param observador Receptor de eventos y cambios de usuarios, o null si no hay ninguno.
+     */
+    public ServidorChat(ConfiguracionServidor config, ObservadorServidor observador) {
+        this(config, observador, config.getModoHilos().crearEjecutor());
+    }
 
     /**
      * Constructor del servidor de chat.
      *
-     * @param gui Interfaz gráfica del servidor.
+     * @param config     Configuración del servidor.
+     * @param observador Receptor de eventos y cambios de usuarios, o null si no hay ninguno.
+     * @param ejecutor   Ejecutor en el que el motor bloqueante lanza cada {@link ManejadorCliente}.
      */
-    public ServidorChat(ServidorChatGUI gui) {
-        this.gui = gui;
+    public ServidorChat(ConfiguracionServidor config, ObservadorServidor observador, ExecutorService ejecutor) {
+        this.config = config;
+        this.observador = observador;
+        this.ejecutor = ejecutor;
+        this.eventos = new DistribuidorEventos(observador, config);
+        this.agregadorPresencia = new AgregadorPresencia(config.getVentanaPresenciaMs(), lockPresencia,
+                this::emitirPresencia);
+        this.historial = new HistorialMensajes(config.getMensajesHistorial(), config.getBytesHistorial());
+        this.limiteGlobal = ControlFlujo.crearGlobal(config);
+        this.rueda = config.getIntervaloLatidoMs() > 0 || config.getPlazoRegistroMs() > 0
+                || config.getGraciaReanudacionMs() > 0 || config.getPuertoTransferencias() > 0
+                || config.getPuertoNodo() > 0 || !config.getParesNodo().isEmpty()
+                ? new RuedaTemporizadores(config.getTicTemporizadoresMs(), RANURAS_RUEDA) : null;
+        this.federacion = new Federacion(this, config, lockPresencia, rueda);
+        this.transferencias = new Transferencias(this, config, rueda);
     }
 
     /**
      * Inicia el servidor y espera conexiones de clientes.
      */
     public void iniciarServidor() {
+        abrirRegistro();
+        abrirDiario();
+        abrirBuzones();
+        metricas.iniciar();
+        if (rueda != null) {
+            rueda.iniciar();
+        }
+        federacion.iniciar();
+        transferencias.iniciar();
+        if (config.getMotor() == MotorServidor.NIO) {
+            iniciarServidorNio();
+        } else {
+            iniciarServidorBloqueante();
+        }
+    }
+
+    /**
+     * Abre el registro de eventos (propiedades "chat.registro.*"; un directorio vacío
+     * o el nivel "ninguno" lo desactivan).
+     */
+    private void abrirRegistro() {
+        if (config.getDirectorioRegistro().isEmpty() || config.getNivelRegistro() == NivelRegistro.NINGUNO) return;
         try {
-            serverSocket = new ServerSocket(PUERTO);
-            gui.actualizarLog("Servidor iniciado en el puerto " + PUERTO);
+            registro = new RegistroEventos(Paths.get(config.getDirectorioRegistro()), config.getNivelRegistro(),
+                    config.getCapacidadRegistro(), config.getTamArchivoRegistro(), config.getArchivosRegistro());
+        } catch (IOException e) {
+            registrarEvento("No se pudo abrir el registro de eventos: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abre el diario de mensajes (propiedades "chat.diario.*"; un directorio vacío lo desactiva)
+     * y continúa la secuencia desde la última recuperada.
+     */
+    private void abrirDiario() {
+        if (config.getDirectorioDiario().isEmpty()) return;
+        try {
+            diario = new Diario(Paths.get(config.getDirectorioDiario()), config.getTamSegmentoDiario(),
+                    config.getSegmentosDiario(), config.getSincronizacionDiarioMs());
+            secuencia.set(diario.getUltimaSecuencia());
+            registrarEvento("Diario abierto en " + diario.getDirectorio().toAbsolutePath() + " (" + diario + ")");
+        } catch (IOException e) {
+            registrarEvento("No se pudo abrir el diario, los mensajes no se guardarán: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abre los buzones de mensajes privados (propiedades "chat.buzones.*"; un directorio vacío los
+     * desactiva). Se fuerzan a disco con el mismo intervalo que el diario.
+     */
+    private void abrirBuzones() {
+        if (config.getDirectorioBuzones().isEmpty()) return;
+        try {
+            buzones = new Buzones(Paths.get(config.getDirectorioBuzones()), config.getMaxMensajesBuzon(),
+                    config.getMaxBytesBuzon(), config.getMaxBytesBuzones(), config.getMaxBuzones(),
+                    config.getCaducidadBuzonMs(), config.getSincronizacionDiarioMs());
+            hiloBuzones = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread hilo = new Thread(r, "chat-buzones-es");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            registrarEvento("Buzones abiertos en " + buzones.getDirectorio().toAbsolutePath() + " (" + buzones + ")");
+        } catch (IOException e) {
+            registrarEvento("No se pudieron abrir los buzones, los privados a usuarios sin conexión se perderán: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Añade una trama al diario, si está activo. Solo copia en memoria: el fsync es agrupado.
+     *
+     * @param trama Trama binaria del mensaje.
+     */
+    private void anotarEnDiario(byte[] trama) {
+        Diario activo = diario;
+        if (activo == null) return;
+        try {
+            activo.anotar(trama);
+        } catch (IOException e) {
+            registrarError("Error escribiendo en el diario", e);
+        }
+    }
+
+    /**
+     * Motor original: un hilo por cliente con sockets bloqueantes.
+     */
+    private void iniciarServidorBloqueante() {
+        try {
+            serverSocket = new ServerSocket(config.getPuerto());
+            registrarEvento("Servidor iniciado en el puerto " + config.getPuerto() + " [" + config.getMotor() + "]");
 
             while (servidorActivo) {
                 Socket socket = serverSocket.accept();
 
-                // Crea un manejador de cliente y lo ejecuta en un nuevo hilo.
+                // Crea un manejador de cliente y lo ejecuta en un hilo del ejecutor.
                 ManejadorCliente manejador = new ManejadorCliente(socket, this);
-                new Thread(manejador).start();
+                ejecutor.execute(manejador);
             }
         } catch (IOException e) {
             if (servidorActivo) {
-                gui.actualizarLog("Error en el servidor: " + e.getMessage());
+                registrarError("Error en el servidor", e);
             }
         }
     }
 
     /**
-     * Registra un nuevo cliente en el servidor.
+     * Motor NIO: bucles de eventos con selectores, uno por núcleo disponible.
+     */
+    private void iniciarServidorNio() {
+        int bucles = config.getBuclesNio();
+        servidorNio = new ServidorNio(this, bucles);
+        try {
+            registrarEvento("Servidor iniciado en el puerto " + config.getPuerto() + " [" + config.getMotor() + ", "
+                    + bucles + " bucles]");
+            servidorNio.iniciar(config.getPuerto());
+        } catch (IOException e) {
+            if (servidorActivo) {
+                registrarError("Error en el servidor", e);
+            }
+        }
+    }
+
+    /**
+     * Reserva un nombre antes de registrarlo; en un clúster, en los demás nodos, sin esperar a
+     * que respondan. Si se concede, hay que pasarlo después a {@link #registrarCliente} o, si la
+     * sesión ya no lo necesita, a {@link #liberarNombre}.
+     *
+     * @param nombre    Nombre propuesto.
+     * @param resultado Recibe si se concedió; puede llamarse desde otro hilo y debe ser breve.
+     */
+    void reservarNombre(String nombre, Consumer<Boolean> resultado) {
+        federacion.reservar(nombre, resultado);
+    }
+
+    /**
+     * Suelta un nombre reservado que no se llegó a registrar.
+     *
+     * @param nombre Nombre reservado.
+     */
+    void liberarNombre(String nombre) {
+        federacion.liberar(nombre);
+    }
+
+    /**
+     * Registra un nuevo cliente en el servidor y le envía la bienvenida con el historial
+     * y, después, los mensajes privados que le esperaban en su buzón.
+     * La comprobación y la inserción son atómicas, así que dos conexiones no pueden
+     * quedarse con el mismo nombre; en un clúster, el nombre llega ya reservado con
+     * {@link #reservarNombre} en los demás nodos, y aquí se libera la reserva.
+     *
+     * @param nombre               Nombre del usuario, ya reservado.
+     * @param sesion               Sesión por la que se envían los mensajes al cliente.
+     * @param ultimaSecuenciaVista Último mensaje público que ya tiene el cliente, 0 si ninguno.
+     * @return true si se registró, false si el nombre ya estaba en uso.
+     */
+    public boolean registrarCliente(String nombre, SesionCliente sesion, long ultimaSecuenciaVista) {
+        lockDifusion.lock();
+        long desde = System.nanoTime();
+        try {
+            if (!anadirCliente(nombre, sesion)) {
+                return false;
+            }
+            // La instantánea no bloquea a nadie; el cerrojo solo evita difusiones a medias.
+            sesion.darBienvenida(historial.instantanea(ultimaSecuenciaVista));
+        } finally {
+            metricas.retencionLockDifusion(System.nanoTime() - desde);
+            lockDifusion.unlock();
+            federacion.liberar(nombre);
+        }
+        entregarBuzon(nombre, sesion); // Lee del disco en el hilo de los buzones.
+        return true;
+    }
+
+    /**
+     * Indica si un usuario tiene privados en su buzón o camino de él.
+     *
+     * @param activos Buzones del servidor.
+     * @param nombre  Nombre del usuario.
+     * @return true si lo que le llegue debe ir detrás, por el buzón.
+     */
+    private boolean tieneCorreo(Buzones activos, String nombre) {
+        return activos.tiene(nombre) || privadosPorGuardar.containsKey(nombre);
+    }
+
+    /**
+     * Programa la entrega a un usuario recién registrado de los privados de su buzón: una lectura
+     * secuencial del archivo, en el hilo de los buzones, y un lote a su cola, precedido de
+     * un aviso con cuántos son (o varios, si no cabe entero). Va detrás de los privados que estuvieran por guardar.
+     *
+     * @param nombre Nombre del usuario.
+     * @param sesion Sesión recién registrada.
+     */
+    private void entregarBuzon(String nombre, SesionCliente sesion) {
+        Buzones activos = buzones;
+        if (activos == null || !tieneCorreo(activos, nombre)) return;
+        try {
+            hiloBuzones.execute(() -> recogerBuzon(activos, nombre, sesion, true));
+        } catch (RejectedExecutionException e) {
+            // El servidor se está deteniendo: el buzón se conserva para la próxima vez.
+        }
+    }
+
+    /**
+     * Lee el buzón y lo encola a la sesión, si sigue siendo la del usuario; si no, se conserva.
+     * Lo que no cabe en su cola se queda en el buzón y se reintenta poco después, así que un
+     * buzón grande llega en varios lotes, en orden, sin perder nada. Se ejecuta en el hilo de
+     * los buzones.
      *
-     * @param nombre   Nombre del usuario.
-     * @param escritor Objeto PrintWriter para enviar mensajes al cliente.
+     * @param avisar Si el lote debe ir precedido del aviso con cuántos mensajes hay.
      */
-    public synchronized void registrarCliente(String nombre, PrintWriter escritor) {
-        if (!clientes.containsKey(nombre)) { // Evita registrar el mismo usuario dos veces.
-            clientes.put(nombre, escritor);
-            actualizarListaUsuarios(); // Actualiza la lista de usuarios en el chat.
+    private void recogerBuzon(Buzones activos, String nombre, SesionCliente sesion, boolean avisar) {
+        if (clientes.get(nombre) != sesion) return;
+        boolean[] avisado = {false};
+        try {
+            int entregados = activos.recoger(nombre, guardados -> {
+                List<Mensaje> lote = new ArrayList<>(guardados.size() + 1);
+                if (avisar) {
+                    lote.add(new Mensaje("Mensajes privados recibidos mientras no estabas: " + guardados.size()));
+                }
+                for (Buzones.Guardado guardado : guardados) {
+                    lote.add(new Mensaje(TipoTrama.PRIVADO, guardado.getTexto(), guardado.getSecuencia()));
+                }
+                int aceptados = sesion.enviarTodos(lote, lote.size());
+                if (avisar && aceptados > 0) {
+                    avisado[0] = true;
+                    aceptados--;
+                }
+                return aceptados;
+            });
+            if (entregados > 0) {
+                registro.registrar(TipoEvento.BUZON, nombre, "entregado", entregados);
+                registrarEvento("Buzón entregado a " + nombre + ": " + entregados + " mensaje(s)");
+            }
+            if (activos.tiene(nombre)) {
+                boolean falta = avisar && !avisado[0];
+                hiloBuzones.schedule(() -> recogerBuzon(activos, nombre, sesion, falta),
+                        REINTENTO_BUZON_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            registrarError("Error leyendo el buzón de " + nombre, e);
+        } catch (RejectedExecutionException e) {
+            // El servidor se está deteniendo: lo que queda se conserva para la próxima vez.
+        }
+    }
+
+    private boolean anadirCliente(String nombre, SesionCliente sesion) {
+        lockPresencia.lock();
+        long desde = System.nanoTime();
+        try {
+            if (federacion.esRemoto(nombre) || clientes.putIfAbsent(nombre, sesion) != null) {
+                return false; // Evita registrar el mismo usuario dos veces.
+            }
+            pendientesDeLista.add(sesion);
+            agregadorPresencia.alta(nombre); // Actualiza la lista de usuarios en el chat.
+            federacion.anunciarAlta(nombre);
+            return true;
+        } finally {
+            metricas.retencionLockPresencia(System.nanoTime() - desde);
+            lockPresencia.unlock();
         }
     }
 
@@ -67,57 +426,473 @@ public class ServidorChat {
      *
      * @param nombre Nombre del usuario a eliminar.
      */
-    public synchronized void eliminarCliente(String nombre) {
-        if (clientes.containsKey(nombre)) { // Verifica si el usuario está registrado antes de eliminarlo.
-            clientes.remove(nombre);
-            actualizarListaUsuarios();
+    public void eliminarCliente(String nombre) {
+        boolean sigueEnOtroNodo;
+        lockPresencia.lock();
+        long desde = System.nanoTime();
+        try {
+            SesionCliente sesion = clientes.remove(nombre);
+            if (sesion == null) { // Verifica si el usuario está registrado antes de eliminarlo.
+                return;
+            }
+            pendientesDeLista.remove(sesion);
+            federacion.anunciarBaja(nombre);
+            sigueEnOtroNodo = federacion.esRemoto(nombre); // Tras un conflicto de nombres en el clúster.
+            if (!sigueEnOtroNodo) {
+                agregadorPresencia.baja(nombre);
+            }
+        } finally {
+            metricas.retencionLockPresencia(System.nanoTime() - desde);
+            lockPresencia.unlock();
+        }
+        if (!sigueEnOtroNodo) {
             difundirMensaje("Servidor: " + nombre + " ha salido del chat."); // Notifica a los demás usuarios.
         }
     }
 
     /**
-     * Difunde un mensaje a todos los clientes conectados.
+     * Genera un token de reanudación para una sesión recién registrada.
+     *
+     * @param sesion Sesión registrada.
+     * @return Token aleatorio de 128 bits, en Base64 para URL.
+     */
+    String emitirTokenReanudacion(SesionCliente sesion) {
+        String token = generarToken();
+        sesionesPorToken.put(token, sesion);
+        return token;
+    }
+
+    /**
+     * Invalida el token de una sesión que sale del chat.
+     *
+     * @param token Token de la sesión.
+     */
+    void olvidarTokenReanudacion(String token) {
+        sesionesPorToken.remove(token);
+    }
+
+    private String generarToken() {
+        byte[] bytes = new byte[16];
+        generadorTokens.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Pasa a una conexión nueva la sesión de un cliente que presentó su token de reanudación.
+     * La sesión anterior, suspendida o con una caída aún sin detectar, le cede su nombre y lo
+     * que se le envió mientras tanto; para los demás no hay ninguna baja ni alta. Con los dos
+     * cerrojos tomados, ninguna difusión ni cambio de presencia queda entre el lote de lo
+     * pendiente y el tráfico en vivo.
+     *
+     * @param token                Token presentado por el cliente.
+     * @param nueva                Sesión de la conexión nueva, con el nombre ya asignado.
+     * @param ultimaSecuenciaVista Último mensaje público que tiene el cliente, 0 si no lo indicó.
+     * @return Sesión anterior, de la que la nueva hereda las salas; null si el token no vale.
+     */
+    SesionCliente reanudarCliente(String token, SesionCliente nueva, long ultimaSecuenciaVista) {
+        String nombre = nueva.getNombreUsuario();
+        SesionCliente anterior = sesionesPorToken.get(token);
+        if (anterior == null || !nombre.equals(anterior.getNombreUsuario())) {
+            return null;
+        }
+        String tokenNuevo = generarToken();
+        lockDifusion.lock();
+        long desde = System.nanoTime();
+        try {
+            lockPresencia.lock();
+            try {
+                if (clientes.get(nombre) != anterior) {
+                    return null;
+                }
+                List<Mensaje> recientes = ultimaSecuenciaVista > 0 ? historial.instantanea(ultimaSecuenciaVista)
+                        : Collections.<Mensaje>emptyList();
+                if (!anterior.traspasar(nueva, tokenNuevo, construirListaUsuarios(), recientes)) {
+                    return null;
+                }
+                clientes.put(nombre, nueva);
+                pendientesDeLista.remove(anterior); // La nueva ya recibió la lista completa.
+                sesionesPorToken.remove(token);
+                sesionesPorToken.put(tokenNuevo, nueva);
+                return anterior;
+            } finally {
+                lockPresencia.unlock();
+            }
+        } finally {
+            metricas.retencionLockDifusion(System.nanoTime() - desde);
+            lockDifusion.unlock();
+        }
+    }
+
+    /**
+     * Pone la sesión nueva de un cliente reanudado en el lugar de la anterior dentro de una sala.
+     *
+     * @param nombreSala Nombre de la sala.
+     * @param anterior   Sesión que cede su lugar.
+     * @param nueva      Sesión que lo ocupa.
+     * @return false si la sala ya no existe o la sesión anterior no era miembro.
+     */
+    boolean reemplazarEnSala(String nombreSala, SesionCliente anterior, SesionCliente nueva) {
+        Sala sala = salas.get(nombreSala);
+        return sala != null && sala.reemplazar(anterior, nueva);
+    }
+
+    /**
+     * Anota el alta o la baja de un usuario de otro nodo, que se emite junto a las locales.
+     * La invoca la {@link Federacion} con lockPresencia tomado.
+     *
+     * @param nombre Usuario remoto.
+     * @param alta   true si entró, false si salió.
+     */
+    void cambioUsuarioRemoto(String nombre, boolean alta) {
+        if (alta) {
+            agregadorPresencia.alta(nombre);
+        } else {
+            agregadorPresencia.baja(nombre);
+        }
+    }
+
+    /**
+     * Cierra la sesión local de un nombre que, tras reenlazarse con otro nodo, resultó estar
+     * también en él y se le asignó a ese nodo.
+     *
+     * @param nombre Nombre repetido.
+     */
+    void expulsarPorConflicto(String nombre) {
+        SesionCliente sesion = clientes.get(nombre);
+        if (sesion == null) return;
+        registrarEvento("Nombre repetido en otro nodo del clúster, se cierra la sesión local: " + nombre);
+        sesion.enviar("Nombre en uso en otro nodo del clúster, se cierra la sesión.");
+        sesion.cerrar();
+    }
+
+    /**
+     * Emite un lote de altas y bajas ya fusionado por el {@link AgregadorPresencia}.
+     * Los clientes con presencia incremental reciben solo los cambios ("[Presencia]+ana,-beto");
+     * los recién llegados y los clientes antiguos reciben la lista completa, que solo se
+     * construye si alguien la necesita. Se invoca con lockPresencia tomado.
+     *
+     * @param altas Usuarios que entraron durante la ventana.
+     * @param bajas Usuarios que salieron durante la ventana.
+     */
+    private void emitirPresencia(Set<String> altas, Set<String> bajas) {
+        boolean hayCambios = !altas.isEmpty() || !bajas.isEmpty();
+        if (!hayCambios && pendientesDeLista.isEmpty()) return;
+        long desde = System.nanoTime();
+
+        if (observador != null && hayCambios) {
+            observador.actualizarUsuarios(altas, bajas); // Un aviso por ventana de presencia, no por usuario.
+        }
+        Mensaje delta = hayCambios ? new Mensaje(TipoTrama.PRESENCIA, unirCambios(altas, bajas), 0) : null;
+        Mensaje lista = null;
+        for (SesionCliente sesion : clientes.values()) {
+            boolean nueva = pendientesDeLista.contains(sesion);
+            if (nueva || (hayCambios && !sesion.tiene(Capacidad.PRESENCIA))) {
+                if (lista == null) {
+                    lista = construirListaUsuarios();
+                }
+                sesion.enviar(lista);
+            } else if (hayCambios) {
+                sesion.enviar(delta);
+            } else {
+                continue;
+            }
+            tramasPresencia.increment();
+        }
+        pendientesDeLista.clear();
+        metricas.retencionLockPresencia(System.nanoTime() - desde);
+    }
+
+    private static String unirCambios(Set<String> altas, Set<String> bajas) {
+        StringBuilder cambios = new StringBuilder();
+        for (String alta : altas) {
+            cambios.append('+').append(alta).append(',');
+        }
+        for (String baja : bajas) {
+            cambios.append('-').append(baja).append(',');
+        }
+        cambios.setLength(cambios.length() - 1);
+        return cambios.toString();
+    }
+
+    /**
+     * Difunde un mensaje a todos los clientes conectados, también a los de otros nodos.
      *
      * @param mensaje Mensaje a enviar.
      */
-    public synchronized void difundirMensaje(String mensaje) {
+    public void difundirMensaje(String mensaje) {
+        difundir(mensaje, true);
+    }
+
+    /**
+     * Difunde a las sesiones de este nodo un mensaje público que llegó de otro nodo.
+     *
+     * @param mensaje Mensaje "usuario: texto".
+     */
+    void difundirLocal(String mensaje) {
+        difundir(mensaje, false);
+    }
+
+    private void difundir(String mensaje, boolean reenviar) {
         if (mensaje.startsWith("[Privado]")) {
             return; // No enviar mensajes privados a todos los clientes.
         }
-        for (PrintWriter escritor : clientes.values()) {
-            escritor.println(mensaje);
+        lockDifusion.lock();
+        long desde = System.nanoTime();
+        try {
+            // Se codifica una sola vez por formato para todos.
+            Mensaje codificado = new Mensaje(TipoTrama.PUBLICO, mensaje, secuencia.incrementAndGet());
+            anotarEnDiario(codificado.codificado(true)); // La misma trama que reciben los clientes binarios.
+            historial.anotar(codificado);
+            // Como mucho una difusión a la vez se sigue hasta su última escritura.
+            EstadisticasSalida.Seguimiento seguimiento = estadisticasSalida.iniciarSeguimiento(codificado);
+            for (SesionCliente sesion : clientes.values()) {
+                if (seguimiento != null) {
+                    seguimiento.anadirDestinatario();
+                }
+                sesion.enviar(codificado);
+            }
+            if (seguimiento != null) {
+                estadisticasSalida.terminarSeguimiento(seguimiento);
+            }
+            if (reenviar) {
+                federacion.reenviarPublico(mensaje); // Una vez por nodo, no por usuario remoto.
+            }
+        } finally {
+            metricas.retencionLockDifusion(System.nanoTime() - desde);
+            lockDifusion.unlock();
         }
-        gui.actualizarLog("Mensaje público: " + mensaje);
+        eventos.eventoFrecuente("Mensaje público: ", mensaje);
     }
 
     /**
-     * Envía un mensaje privado a un usuario específico.
+     * Envía un mensaje privado a un usuario específico, en este nodo o en el que tenga su sesión.
+     *
+     * Si no está conectado en ningún nodo, el mensaje se guarda en su buzón.
+     * Mientras el buzón tenga mensajes, también se guardan ahí los que le lleguen
+     * justo al entrar, para que los reciba todos en orden.
      *
      * @param destinatario Nombre del usuario destinatario.
      * @param mensaje      Mensaje a enviar.
+     * @param resultado    Recibe si se entregó, se guardó o se perdió: en el acto si el destinatario
+     *                     está conectado, o desde el hilo de los buzones si hubo que guardarlo.
      */
-    public synchronized void enviarMensajePrivado(String destinatario, String mensaje) {
-        PrintWriter escritor = clientes.get(destinatario);
-        if (escritor != null) {
-            escritor.println("[Privado] " + mensaje);
-        } else {
-            gui.actualizarLog("Intento de enviar mensaje privado a usuario no conectado: " + destinatario);
+    public void enviarMensajePrivado(String destinatario, String mensaje, Consumer<EstadoEntrega> resultado) {
+        Buzones activos = buzones;
+        boolean conCorreo = activos != null && tieneCorreo(activos, destinatario);
+        if ((!conCorreo && entregarPrivado(destinatario, mensaje)) || federacion.enrutarPrivado(destinatario, mensaje)) {
+            resultado.accept(EstadoEntrega.ENTREGADO);
+            return;
+        }
+        if (activos != null && SesionCliente.nombreValido(destinatario)) {
+            encolarPrivado(activos, destinatario, mensaje, resultado);
+            return;
+        }
+        eventos.eventoFrecuente("Intento de enviar mensaje privado a usuario no conectado: ", destinatario);
+        resultado.accept(EstadoEntrega.RECHAZADO);
+    }
+
+    /**
+     * Pasa un privado al hilo de los buzones para guardarlo. Se numera ya, en el orden de llegada.
+     *
+     * @param activos      Buzones del servidor.
+     * @param destinatario Nombre del usuario destinatario.
+     * @param mensaje      Mensaje "remitente: texto".
+     * @param resultado    Recibe el desenlace desde el hilo de los buzones.
+     */
+    private void encolarPrivado(Buzones activos, String destinatario, String mensaje,
+            Consumer<EstadoEntrega> resultado) {
+        long numero = secuencia.incrementAndGet();
+        privadosPorGuardar.merge(destinatario, 1, Integer::sum);
+        try {
+            hiloBuzones.execute(() -> {
+                EstadoEntrega estado;
+                try {
+                    estado = guardarPrivado(activos, destinatario, numero, mensaje);
+                } finally {
+                    privadosPorGuardar.computeIfPresent(destinatario, (nombre, n) -> n == 1 ? null : n - 1);
+                }
+                resultado.accept(estado);
+            });
+        } catch (RejectedExecutionException e) {
+            privadosPorGuardar.computeIfPresent(destinatario, (nombre, n) -> n == 1 ? null : n - 1);
+            resultado.accept(EstadoEntrega.RECHAZADO);
+        }
+    }
+
+    /**
+     * Guarda un privado en el buzón de su destinatario, o se lo entrega si entró entretanto.
+     * Se anota en el diario como los entregados. Se ejecuta en el hilo de los buzones.
+     *
+     * @param activos      Buzones del servidor.
+     * @param destinatario Nombre del usuario destinatario.
+     * @param numero       Número de secuencia del mensaje.
+     * @param mensaje      Mensaje "remitente: texto".
+     * @return Si se entregó, se guardó o se perdió por falta de sitio.
+     */
+    private EstadoEntrega guardarPrivado(Buzones activos, String destinatario, long numero, String mensaje) {
+        try {
+            switch (activos.guardar(destinatario, numero, mensaje, () -> entregarPrivado(destinatario, mensaje))) {
+                case GUARDADO:
+                    anotarEnDiario(Trama.codificar(TipoTrama.PRIVADO, numero, destinatario + "\n" + mensaje));
+                    eventos.eventoFrecuente("Mensaje privado guardado en el buzón de ", destinatario);
+                    return EstadoEntrega.GUARDADO;
+                case ENTREGADO:
+                    return EstadoEntrega.ENTREGADO;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            registrarError("Error guardando un mensaje privado para " + destinatario, e);
         }
+        eventos.eventoFrecuente("Buzón lleno, se pierde un mensaje privado para ", destinatario);
+        return EstadoEntrega.RECHAZADO;
+    }
+
+    /**
+     * Entrega un mensaje privado a una sesión de este nodo, sin buscar en otros.
+     *
+     * @param destinatario Nombre del usuario destinatario.
+     * @param mensaje      Mensaje "remitente: texto".
+     * @return true si el destinatario tiene su sesión aquí.
+     */
+    boolean entregarPrivado(String destinatario, String mensaje) {
+        SesionCliente sesion = clientes.get(destinatario);
+        if (sesion == null) return false;
+        long numero = secuencia.incrementAndGet();
+        // En el diario la carga lleva también el destinatario: "destinatario\nremitente: texto".
+        anotarEnDiario(Trama.codificar(TipoTrama.PRIVADO, numero, destinatario + "\n" + mensaje));
+        sesion.enviar(new Mensaje(TipoTrama.PRIVADO, mensaje, numero));
+        return true;
+    }
+
+    /**
+     * Entrega un privado que llegó de otro nodo, o que no llegó a salir hacia él. Si el
+     * destinatario ya no tiene aquí su sesión (salió mientras el mensaje viajaba, o la presencia
+     * del otro nodo iba atrasada), se guarda en su buzón como cualquier privado a un usuario sin
+     * conexión; sin buzones o sin sitio en él, se pierde y queda anotado. Nunca se reenvía a
+     * otro nodo.
+     *
+     * @param destinatario Nombre del usuario destinatario.
+     * @param mensaje      Mensaje "remitente: texto".
+     */
+    void recibirPrivadoRemoto(String destinatario, String mensaje) {
+        Buzones activos = buzones;
+        boolean conCorreo = activos != null && tieneCorreo(activos, destinatario);
+        if (!conCorreo && entregarPrivado(destinatario, mensaje)) return;
+        if (activos != null && SesionCliente.nombreValido(destinatario)) {
+            encolarPrivado(activos, destinatario, mensaje, estado -> {
+                if (estado == EstadoEntrega.RECHAZADO) {
+                    perderPrivadoRemoto(destinatario);
+                }
+            });
+            return;
+        }
+        perderPrivadoRemoto(destinatario);
+    }
+
+    private void perderPrivadoRemoto(String destinatario) {
+        eventos.eventoFrecuente("Mensaje privado de otro nodo sin destinatario, se pierde: ", destinatario);
+        registro.registrar(TipoEvento.DESTINATARIO_DESCONOCIDO, null, destinatario);
+    }
+
+    /**
+     * Une una sesión a una sala, creándola si no existe, y avisa a sus miembros.
+     * Solo se toma el cerrojo de esa sala: el resto de salas y el chat general siguen a lo suyo.
+     *
+     * @param nombreSala Nombre de la sala, ya validado.
+     * @param sesion     Sesión que se une; no debe ser ya miembro.
+     */
+    void unirseASala(String nombreSala, SesionCliente sesion) {
+        Mensaje aviso = new Mensaje(TipoTrama.SALA,
+                nombreSala + " Servidor: " + sesion.getNombreUsuario() + " se ha unido a la sala.", 0);
+        while (true) {
+            Sala sala = salas.computeIfAbsent(nombreSala, Sala::new);
+            if (sala.unir(sesion, aviso)) return;
+            salas.remove(nombreSala, sala); // Se vació y cerró entretanto: se abre otra.
+        }
+    }
+
+    /**
+     * Saca una sesión de una sala y avisa a los que quedan; la sala se cierra si queda vacía.
+     *
+     * @param nombreSala Nombre de la sala.
+     * @param sesion     Sesión que sale.
+     */
+    void abandonarSala(String nombreSala, SesionCliente sesion) {
+        Sala sala = salas.get(nombreSala);
+        if (sala == null) return;
+        Mensaje aviso = new Mensaje(TipoTrama.SALA,
+                nombreSala + " Servidor: " + sesion.getNombreUsuario() + " ha salido de la sala.", 0);
+        if (sala.salir(sesion, aviso)) {
+            salas.remove(nombreSala, sala);
+        }
+    }
+
+    /**
+     * Envía un mensaje a los miembros de una sala. Se numera y se anota en el diario
+     * como los privados, pero no entra en el historial del chat general.
+     *
+     * @param nombreSala Nombre de la sala.
+     * @param mensaje    Mensaje "remitente: texto".
+     * @return false si la sala no existe.
+     */
+    boolean difundirEnSala(String nombreSala, String mensaje) {
+        Sala sala = salas.get(nombreSala);
+        if (sala == null) return false;
+        Mensaje codificado = new Mensaje(TipoTrama.SALA, nombreSala + " " + mensaje, secuencia.incrementAndGet());
+        anotarEnDiario(codificado.codificado(true));
+        sala.difundir(codificado);
+        eventos.eventoFrecuente("Mensaje en sala: ", codificado.getContenido());
+        return true;
+    }
+
+    /**
+     * Construye la lista de salas abiertas "[Salas]general:12,equipo:3,".
+     *
+     * @return Mensaje con cada sala y su número de miembros.
+     */
+    Mensaje construirListaSalas() {
+        StringBuilder lista = new StringBuilder();
+        for (Sala sala : salas.values()) {
+            lista.append(sala.getNombre()).append(':').append(sala.getTamano()).append(',');
+        }
+        return new Mensaje(TipoTrama.SALAS, lista.toString(), 0);
+    }
+
+    /**
+     * Número de salas abiertas.
+     *
+     * @return Salas con al menos un miembro.
+     */
+    public int getNumeroSalas() {
+        return salas.size();
     }
 
     /**
      * Envía la lista de usuarios conectados a todos los clientes.
      */
-    public synchronized void enviarListaUsuarios() {
-        StringBuilder lista = new StringBuilder("[Usuarios]");
+    public void enviarListaUsuarios() {
+        Mensaje listaUsuarios = construirListaUsuarios();
+
+        for (SesionCliente sesion : clientes.values()) {
+            sesion.enviar(listaUsuarios);
+        }
+    }
+
+    /**
+     * Construye la lista completa "[Usuarios]a,b,c,", con los usuarios de otros nodos al final.
+     */
+    private Mensaje construirListaUsuarios() {
+        StringBuilder lista = new StringBuilder();
         for (String usuario : clientes.keySet()) {
             lista.append(usuario).append(",");
         }
-        String listaUsuarios = lista.toString();
-
-        for (PrintWriter escritor : clientes.values()) {
-            escritor.println(listaUsuarios);
+        for (String usuario : federacion.getUsuariosRemotos()) {
+            if (!clientes.containsKey(usuario)) {
+                lista.append(usuario).append(",");
+            }
         }
+        return new Mensaje(TipoTrama.USUARIOS, lista.toString(), 0);
     }
 
     /**
@@ -129,36 +904,240 @@ public class ServidorChat {
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (servidorNio != null) {
+                servidorNio.detener();
+            }
         } catch (IOException e) {
-            gui.actualizarLog("Error al detener el servidor: " + e.getMessage());
+            registrarEvento("Error al detener el servidor: " + e.getMessage());
+        }
+        ejecutor.shutdown(); // Las sesiones abiertas terminan por su cuenta.
+        federacion.detener();
+        transferencias.detener();
+        metricas.detener();
+        if (rueda != null) {
+            rueda.detener();
+        }
+        agregadorPresencia.detener();
+        if (diario != null) {
+            diario.cerrar();
+            registrarEvento("Diario: " + diario);
+        }
+        if (hiloBuzones != null) {
+            hiloBuzones.shutdown(); // Lo ya encolado se escribe antes de cerrar los buzones.
+            try {
+                hiloBuzones.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (buzones != null) {
+            buzones.cerrar();
+            registrarEvento("Buzones: " + buzones);
+        }
+        registrarEvento("Colas de salida: " + estadisticasSalida);
+        if (estadisticasCompresion.getSesiones() > 0) {
+            registrarEvento("Compresión: " + estadisticasCompresion);
+        }
+        if (estadisticasLimites.getRetrasos() + estadisticasLimites.getDescartes() > 0) {
+            registrarEvento("Límites de envío: " + estadisticasLimites);
+        }
+        registrarEvento("Métricas: " + metricas);
+        registrarEvento("Presencia: " + agregadorPresencia + ", tramas enviadas=" + tramasPresencia.sum());
+        if (federacion.isActiva()) {
+            registrarEvento("Federación: " + federacion);
+        }
+        if (transferencias.getPuerto() > 0) {
+            registrarEvento("Transferencias: " + transferencias);
         }
+        registro.cerrar();
+        if (registro.getDirectorio() != null) {
+            registrarEvento("Registro de eventos: " + registro);
+        }
+        eventos.detener(); // Entrega lo pendiente, incluidos los contadores anteriores.
+    }
+
+    /**
+     * Crea la cola de salida de una nueva sesión con la capacidad y la política configuradas
+     * ("chat.cola.capacidad", "chat.cola.politica" y "chat.cola.retrasoMaxMs").
+     *
+     * @return Cola acotada que comparte los contadores del servidor.
+     */
+    ColaSalida crearColaSalida() {
+        return new ColaSalida(config.getCapacidadCola(), config.getPolitica(), config.getRetrasoMaximoMs(),
+                estadisticasSalida);
+    }
+
+    /**
+     * Crea el control de flujo de una nueva sesión con los límites "chat.limite.*".
+     *
+     * @return Control que comparte el presupuesto global, o null si no hay límites.
+     */
+    ControlFlujo crearControlFlujo() {
+        return ControlFlujo.crear(config, limiteGlobal);
+    }
+
+    /**
+     * Rueda con los temporizadores de latido de las sesiones.
+     *
+     * @return Rueda compartida, o null si los latidos y el plazo de registro están desactivados.
+     */
+    RuedaTemporizadores getRuedaTemporizadores() {
+        return rueda;
+    }
+
+    /**
+     * Obtiene los contadores de las colas de salida.
+     *
+     * @return Estadísticas de encolados, descartes y desconexiones por lentitud.
+     */
+    public EstadisticasSalida getEstadisticasSalida() {
+        return estadisticasSalida;
+    }
+
+    /**
+     * Obtiene los contadores de las sesiones comprimidas.
+     *
+     * @return Bytes antes y después de comprimir y CPU gastada en cada sentido.
+     */
+    public EstadisticasCompresion getEstadisticasCompresion() {
+        return estadisticasCompresion;
+    }
+
+    /**
+     * Obtiene los contadores del control de flujo.
+     *
+     * @return Retrasos, descartes y desconexiones por límite y por usuario.
+     */
+    public EstadisticasLimites getEstadisticasLimites() {
+        return estadisticasLimites;
+    }
+
+    /**
+     * Obtiene las métricas del servidor (también publicadas por JMX y, si se configura, por HTTP).
+     *
+     * @return Métricas del servidor.
+     */
+    public MetricasServidor getMetricas() {
+        return metricas;
+    }
+
+    /**
+     * Obtiene los buzones de mensajes privados para usuarios sin conexión.
+     *
+     * @return Buzones, o null si están desactivados o no se pudieron abrir.
+     */
+    public Buzones getBuzones() {
+        return buzones;
+    }
+
+    /**
+     * Obtiene la federación con otros nodos del clúster.
+     *
+     * @return Federación, inactiva si no se configuró ningún puerto ni par.
+     */
+    public Federacion getFederacion() {
+        return federacion;
+    }
+
+    /**
+     * Obtiene el gestor de transferencias de archivos.
+     *
+     * @return Transferencias, inactivas si el puerto es 0 o no se pudo abrir.
+     */
+    public Transferencias getTransferencias() {
+        return transferencias;
+    }
+
+    /**
+     * Obtiene el agregador de altas y bajas, con sus contadores de eventos y lotes.
+     *
+     * @return Agregador de presencia del servidor.
+     */
+    public AgregadorPresencia getAgregadorPresencia() {
+        return agregadorPresencia;
+    }
+
+    /**
+     * Número de mensajes de presencia (listas o cambios) encolados a clientes.
+     *
+     * @return Tramas de presencia enviadas.
+     */
+    public long getTramasPresencia() {
+        return tramasPresencia.sum();
+    }
+
+    /**
+     * Obtiene el ejecutor en el que corren los hilos de las sesiones bloqueantes.
+     *
+     * @return Ejecutor de plataforma o de hilos virtuales.
+     */
+    public ExecutorService getEjecutor() {
+        return ejecutor;
     }
 
     /**
      * Obtiene el mapa de clientes conectados.
      *
-     * @return Mapa con los nombres de usuario y sus respectivos PrintWriter.
+     * @return Mapa concurrente con los nombres de usuario y sus respectivas sesiones.
      */
-    public synchronized Map<String, PrintWriter> getClientes() {
+    public Map<String, SesionCliente> getClientes() {
         return clientes;
     }
 
     /**
-     * Obtiene la interfaz gráfica del servidor.
+     * Obtiene la configuración con la que se creó el servidor.
+     *
+     * @return Configuración del servidor.
+     */
+    public ConfiguracionServidor getConfiguracion() {
+        return config;
+    }
+
+    /**
+     * Anota un evento para el observador; se le entregará en el próximo lote.
+     *
+     * @param evento Línea del log.
+     */
+    public void registrarEvento(String evento) {
+        eventos.evento(evento);
+    }
+
+    /**
+     * Anota un error para el observador y en el registro de eventos.
+     *
+     * @param descripcion Qué se estaba haciendo.
+     * @param e           Error producido.
+     */
+    void registrarError(String descripcion, Exception e) {
+        String evento = descripcion + ": " + e.getMessage();
+        eventos.evento(evento);
+        registro.registrar(TipoEvento.ERROR, null, evento);
+    }
+
+    /**
+     * Obtiene el registro estructurado de eventos.
      *
-     * @return Objeto ServidorChatGUI.
+     * @return Registro activo, o uno que no escribe nada si está desactivado.
      */
-    public ServidorChatGUI getGui() {
-        return gui;
+    public RegistroEventos getRegistro() {
+        return registro;
     }
 
     /**
-     * Actualiza la lista de usuarios en la GUI del servidor y la envía a los clientes.
+     * Actualiza la lista de usuarios en la GUI del servidor y envía la lista completa a todos
+     * los clientes, también a los de presencia incremental (resincronización).
+     * Las actualizaciones se serializan para que ningún cliente reciba una lista
+     * antigua después de una más reciente.
      */
-    public synchronized void actualizarListaUsuarios() {
-        if (gui != null) { 
-            gui.actualizarUsuarios(clientes.keySet()); // Actualiza la lista en la interfaz del servidor.
+    public void actualizarListaUsuarios() {
+        lockPresencia.lock();
+        try {
+            if (observador != null) {
+                observador.actualizarUsuarios(clientes.keySet()); // Actualiza la lista en la interfaz del servidor.
+            }
+            enviarListaUsuarios(); // Envia la lista de usuarios a los clientes.
+        } finally {
+            lockPresencia.unlock();
         }
-        enviarListaUsuarios(); // Envia la lista de usuarios a los clientes.
     }
 }
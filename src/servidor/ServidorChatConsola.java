@@ -0,0 +1,42 @@
+package servidor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Punto de entrada del servidor sin interfaz gráfica, para máquinas sin pantalla.
+ * Toda la configuración llega por argumentos, archivo de propiedades o "-Dchat.*"
+ * (ver {@link ConfiguracionServidor}).
+ * <p>
+ * Uso: {@code java -cp bin servidor.ServidorChatConsola [--config=chat.properties] [--puerto=5003]
+ * [--motor=nio] [--hilos=virtuales] [--cola.capacidad=1024] [--silencioso=true] ...}
+ */
+public class ServidorChatConsola {
+
+    public static void main(String[] args) {
+        boolean silencioso = false;
+        ConfiguracionServidor config;
+        try {
+            // "--silencioso=true" no es una opción del servidor: solo decide si hay observador.
+            List<String> opciones = new ArrayList<>();
+            for (String arg : args) {
+                if (arg.startsWith("--silencioso=")) {
+                    silencioso = Boolean.parseBoolean(arg.substring(13));
+                } else {
+                    opciones.add(arg);
+                }
+            }
+            config = ConfiguracionServidor.desdeArgumentos(opciones.toArray(new String[0]));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Configuración no válida: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        ServidorChat servidor = new ServidorChat(config, silencioso ? null : new ObservadorConsola(System.out));
+        Runtime.getRuntime().addShutdownHook(new Thread(servidor::detenerServidor, "chat-parada"));
+        System.out.println("Iniciando servidor de chat (" + config + ")");
+        servidor.iniciarServidor();
+    }
+}
@@ -2,24 +2,34 @@ package servidor;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.util.List;
 import java.util.Set;
 import javax.swing.*;
 
 import utilidades.EstilosUI;
+import utilidades.PanelLog;
 
 /**
  * Interfaz gráfica del servidor de chat.
  * Permite iniciar y detener el servidor, mostrar los usuarios conectados
- * y visualizar los mensajes del log.
+ * y visualizar los mensajes del log. Es un {@link ObservadorServidor} opcional:
+ * el servidor también funciona sin ella (ver {@link ServidorChatConsola}).
  */
-public class ServidorChatGUI extends JFrame {
+public class ServidorChatGUI extends JFrame implements ObservadorServidor {
 
     private static final long serialVersionUID = 3911460067349997490L;
 
-    private JTextArea logTextArea;
+    /** Líneas que conserva la vista del log ("-Dchat.gui.log.lineas"). */
+    private static final int LINEAS_LOG = Integer.getInteger("chat.gui.log.lineas", 5000);
+    /** Intervalo mínimo entre refrescos del log ("-Dchat.gui.log.refrescoMs"). */
+    private static final int REFRESCO_LOG_MS = Integer.getInteger("chat.gui.log.refrescoMs", 100);
+
+    private PanelLog panelLog;
     private JList<String> listaUsuarios;
     private DefaultListModel<String> modeloUsuarios;
     private JButton btnIniciar;
+    private JComboBox<MotorServidor> comboMotor;
+    private JComboBox<ModoHilos> comboHilos;
     private ServidorChat servidor;
     private boolean servidorIniciado = false;
 
@@ -41,12 +51,9 @@ public class ServidorChatGUI extends JFrame {
         JPanel panelPrincipal = new JPanel(new BorderLayout());
         EstilosUI.estilizarPanel(panelPrincipal, false); // **Fondo claro**
 
-        // **Área de Log**
-        logTextArea = new JTextArea();
-        logTextArea.setEditable(false);
-        JScrollPane scrollLog = new JScrollPane(logTextArea);
-        panelPrincipal.add(scrollLog, BorderLayout.CENTER);
-        EstilosUI.estilizarAreaTexto(logTextArea, false);
+        // **Área de Log (acotada y refrescada por lotes)**
+        panelLog = new PanelLog(LINEAS_LOG, REFRESCO_LOG_MS, false);
+        panelPrincipal.add(panelLog, BorderLayout.CENTER);
 
         // **Panel Derecho - Lista de Usuarios**
         JPanel panelUsuarios = new JPanel(new BorderLayout());
@@ -74,14 +81,27 @@ public class ServidorChatGUI extends JFrame {
             }
         });
 
+        // **Selector del motor de red (el bloqueante se mantiene para comparar)**
+        comboMotor = new JComboBox<>(MotorServidor.values());
+        comboMotor.setSelectedItem(MotorServidor.desdePropiedades());
+
+        // **Selector del tipo de hilo para el motor bloqueante**
+        comboHilos = new JComboBox<>(ModoHilos.values());
+        comboHilos.setSelectedItem(ModoHilos.desdePropiedades());
+        comboHilos.setEnabled(comboMotor.getSelectedItem() == MotorServidor.BLOQUEANTE);
+        comboMotor.addActionListener(e -> comboHilos.setEnabled(comboMotor.getSelectedItem() == MotorServidor.BLOQUEANTE));
+
         // **Panel del Botón**
         JPanel panelBoton = new JPanel();
+        panelBoton.add(comboMotor);
+        panelBoton.add(comboHilos);
         panelBoton.add(btnIniciar);
         panelPrincipal.add(panelBoton, BorderLayout.SOUTH);
 
         // **Aplicar estilos adicionales**
         EstilosUI.estilizarPanel(panelPrincipal, false); // Fondo claro
         EstilosUI.estilizarPanel(panelUsuarios, false);
+        EstilosUI.estilizarPanel(panelLog, false);
         EstilosUI.estilizarPanel(panelBoton, false);
         EstilosUI.estilizarBoton(btnIniciar);
 
@@ -92,8 +112,17 @@ public class ServidorChatGUI extends JFrame {
      * Inicia el servidor de chat en un hilo separado.
      */
     public void iniciarServidor() {
-        servidor = new ServidorChat(this);
+        ModoHilos modoHilos = (ModoHilos) comboHilos.getSelectedItem();
+        if (modoHilos == ModoHilos.VIRTUALES && !ModoHilos.virtualesDisponibles()) {
+            actualizarLog("Hilos virtuales no disponibles en esta JVM (requiere Java 21); se usan hilos de plataforma.");
+        }
+        ConfiguracionServidor config = ConfiguracionServidor.desdePropiedades();
+        config.setMotor((MotorServidor) comboMotor.getSelectedItem());
+        config.setModoHilos(modoHilos);
+        servidor = new ServidorChat(config, this);
         btnIniciar.setEnabled(false);
+        comboMotor.setEnabled(false);
+        comboHilos.setEnabled(false);
 
         SwingWorker<Void, String> worker = new SwingWorker<>() {
             @Override
@@ -105,6 +134,8 @@ public class ServidorChatGUI extends JFrame {
             @Override
             protected void done() {
                 btnIniciar.setEnabled(true);
+                comboMotor.setEnabled(true);
+                comboHilos.setEnabled(comboMotor.getSelectedItem() == MotorServidor.BLOQUEANTE);
                 servidorIniciado = false;
             }
         };
@@ -129,12 +160,27 @@ public class ServidorChatGUI extends JFrame {
     }
 
     /**
-     * Agrega un mensaje al área de log de la interfaz.
+     * Agrega un mensaje al log de la interfaz. Se puede llamar desde cualquier hilo:
+     * la línea se muestra en el siguiente refresco del panel.
      *
      * @param mensaje Mensaje a mostrar en el log.
      */
     public void actualizarLog(String mensaje) {
-        SwingUtilities.invokeLater(() -> logTextArea.append(mensaje + "\n"));
+        panelLog.anadir(mensaje);
+    }
+
+    /**
+     * Añade al log un lote de eventos del servidor.
+     *
+     * @param eventos  Líneas del log.
+     * @param omitidos Eventos que no llegaron por muestreo.
+     */
+    @Override
+    public void registrarEventos(List<String> eventos, long omitidos) {
+        panelLog.anadirTodas(eventos);
+        if (omitidos > 0) {
+            panelLog.anadir("(" + omitidos + " eventos omitidos)");
+        }
     }
 
     /**
@@ -142,6 +188,7 @@ public class ServidorChatGUI extends JFrame {
      *
      * @param usuarios Conjunto de nombres de usuario conectados.
      */
+    @Override
     public void actualizarUsuarios(Set<String> usuarios) {
         SwingUtilities.invokeLater(() -> {
             modeloUsuarios.clear();
@@ -151,6 +198,26 @@ public class ServidorChatGUI extends JFrame {
         });
     }
 
+    /**
+     * Aplica un lote de altas y bajas a la lista de usuarios conectados.
+     *
+     * @param altas Usuarios que entraron.
+     * @param bajas Usuarios que salieron.
+     */
+    @Override
+    public void actualizarUsuarios(Set<String> altas, Set<String> bajas) {
+        SwingUtilities.invokeLater(() -> {
+            for (String usuario : bajas) {
+                modeloUsuarios.removeElement(usuario);
+            }
+            for (String usuario : altas) {
+                if (!modeloUsuarios.contains(usuario)) {
+                    modeloUsuarios.addElement(usuario);
+                }
+            }
+        });
+    }
+
     /**
      * Método principal para ejecutar la interfaz del servidor.
      *
@@ -0,0 +1,77 @@
+package servidor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Motor de red no bloqueante basado en {@link ServerSocketChannel} y {@link java.nio.channels.Selector}.
+ * El hilo que llama a {@link #iniciar(int)} acepta conexiones y las reparte en turno rotatorio
+ * entre un número fijo de bucles de eventos (uno por núcleo por defecto).
+ */
+public class ServidorNio {
+
+    private final ServidorChat servidor;
+    private final BucleEventos[] bucles;
+    private ServerSocketChannel canalServidor;
+    private volatile boolean activo = true;
+
+    /**
+     * Constructor del motor NIO.
+     *
+     * @param servidor  Servidor que recibe los mensajes de las sesiones.
+     * @param numBucles Número de bucles de eventos (hilos) a utilizar.
+     */
+    public ServidorNio(ServidorChat servidor, int numBucles) {
+        this.servidor = servidor;
+        this.bucles = new BucleEventos[Math.max(1, numBucles)];
+    }
+
+    /**
+     * Abre el puerto, arranca los bucles de eventos y acepta conexiones hasta que se detenga.
+     *
+     * @param puerto Puerto de escucha.
+     * @throws IOException Si no se puede abrir el puerto o falla la aceptación.
+     */
+    public void iniciar(int puerto) throws IOException {
+        canalServidor = ServerSocketChannel.open();
+        canalServidor.bind(new InetSocketAddress(puerto));
+
+        for (int i = 0; i < bucles.length; i++) {
+            bucles[i] = new BucleEventos(servidor);
+            Thread hilo = new Thread(bucles[i], "chat-nio-" + i);
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+
+        int siguiente = 0;
+        try {
+            while (activo) {
+                SocketChannel canal = canalServidor.accept();
+                bucles[siguiente].registrar(canal);
+                siguiente = (siguiente + 1) % bucles.length;
+            }
+        } catch (ClosedChannelException e) {
+            // El canal se cerró desde detener(): fin normal del bucle de aceptación.
+        }
+    }
+
+    /**
+     * Detiene la aceptación de conexiones y cierra todos los bucles de eventos.
+     *
+     * @throws IOException Si falla el cierre del canal del servidor.
+     */
+    public void detener() throws IOException {
+        activo = false;
+        for (BucleEventos bucle : bucles) {
+            if (bucle != null) {
+                bucle.detener();
+            }
+        }
+        if (canalServidor != null) {
+            canalServidor.close();
+        }
+    }
+}
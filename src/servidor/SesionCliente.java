@@ -0,0 +1,1044 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocolo.ProtocoloException;
+import protocolo.TipoTrama;
+import protocolo.Trama;
+import registro.RegistroEventos;
+import registro.TipoEvento;
+
+/**
+ * Estado de una sesión de chat, independiente del motor de red que la transporta.
+ * Contiene la lógica del protocolo de líneas (registro del nombre, "@usuario", "#sala",
+ * "/unirse", "/abandonar", "/salas", "salir"), la de los latidos, la de la reanudación
+ * y la del protocolo binario de tramas, para que el motor bloqueante y el motor NIO
+ * respondan exactamente igual.
+ * <p>
+ * Si el cliente negoció "reanudar" y la conexión se pierde, la sesión no sale del chat: queda
+ * suspendida durante "chat.reanudacion.graciaMs", guardando lo que se le envía, hasta que una
+ * conexión nueva presenta su token y la sustituye, o hasta que caduca.
+ */
+public abstract class SesionCliente {
+
+    /** Línea opcional, antes del nombre, con la que un cliente que reconecta pide solo lo que se perdió. */
+    public static final String CABECERA_ULTIMA_SECUENCIA = "[UltimaSecuencia]";
+    /** Latidos compartidos por todas las sesiones: cada formato se codifica una sola vez. */
+    private static final Mensaje PING = new Mensaje(TipoTrama.PING, "", 0);
+    private static final Mensaje PONG = new Mensaje(TipoTrama.PONG, "", 0);
+
+    protected final ServidorChat servidor;
+    protected final ColaSalida salida;
+    protected String nombreUsuario;
+    /** Lo escribe el hilo lector y lo consulta la rueda de temporizadores. */
+    private volatile boolean registrado = false;
+    /** Último mensaje público que el cliente dice haber recibido en una conexión anterior. */
+    private long ultimaSecuenciaVista = 0;
+    private final Set<Capacidad> capacidades = EnumSet.noneOf(Capacidad.class);
+    /** Formato en que se codifica lo que se encola; cambia una vez, tras responder a la negociación. */
+    private volatile boolean salidaBinaria = false;
+    /** Compresor de lo que sale, si se negoció "deflate"; solo lo usa el escritor del motor. */
+    protected volatile CompresorSalida compresor;
+    /** Formato en que se interpreta lo que llega; solo lo consulta el hilo lector. */
+    protected boolean entradaBinaria = false;
+    /**
+     * Salas a las que pertenece la sesión. Las cambia el hilo lector, pero al reanudar las
+     * recorre la conexión nueva mientras el lector anterior puede seguir vivo; se recorren
+     * sobre una copia y los cambios, raros, copian el conjunto.
+     */
+    private final Set<String> salas = new CopyOnWriteArraySet<>();
+    /** Límites de envío del cliente, o null si no hay ninguno; solo lo usa el hilo lector. */
+    private final ControlFlujo control;
+    /** El cliente agotó los descartes tolerados: lo que quede por leer ya no se procesa. */
+    private boolean expulsada = false;
+    /** Rueda de los latidos, o null si están desactivados, y la entrada de esta sesión. */
+    private final RuedaTemporizadores rueda;
+    private final RuedaTemporizadores.Temporizador latido = new RuedaTemporizadores.Temporizador(this::comprobarLatido);
+    /** Tic de la rueda en que llegó lo último del cliente; lo escribe el lector y lo lee la rueda. */
+    private volatile long ultimaActividad;
+    private long ticConexion;
+    /** Estado del "[Ping]" sin respuesta; solo lo usa el hilo de la rueda. */
+    private boolean pingPendiente = false;
+    private long ticPing;
+    private volatile boolean terminada = false;
+    /** El nombre espera la respuesta de la reserva: el motor no procesa nada más hasta entonces. */
+    private boolean registroEnCurso = false;
+    /** Token con el que el cliente puede reanudar la sesión; null si no negoció "reanudar". */
+    private volatile String tokenReanudacion;
+    /** Ordena la suspensión, la reanudación y la caducidad entre sí y con lo que se envía a la sesión. */
+    private final ReentrantLock lockReanudacion = new ReentrantLock();
+    /** Lo enviado ya no va a la cola de salida: la sesión está suspendida, caducada o sustituida. */
+    private volatile boolean desviada = false;
+    /** Mensajes guardados mientras está suspendida, o null; solo con lockReanudacion. */
+    private List<Mensaje> pendientes;
+    /** Sesión de la conexión que sustituyó a esta, a la que se reenvía lo que llegue tarde. */
+    private SesionCliente sucesora;
+    private boolean caducada = false;
+    private final RuedaTemporizadores.Temporizador gracia = new RuedaTemporizadores.Temporizador(this::caducar);
+    /** Primera causa conocida del cierre, para el registro; null si el cliente salió sin más. */
+    private volatile String motivoCierre;
+
+    /**
+     * Constructor de la sesión.
+     *
+     * @param servidor Instancia del servidor para gestionar la comunicación.
+     */
+    protected SesionCliente(ServidorChat servidor) {
+        this.servidor = servidor;
+        this.salida = servidor.crearColaSalida();
+        this.control = servidor.crearControlFlujo();
+        this.rueda = servidor.getRuedaTemporizadores();
+    }
+
+    /**
+     * Encola una línea de texto para el cliente y vuelve enseguida.
+     * Si el cliente va tan retrasado que la política indica desconectarlo, se cierra la sesión.
+     *
+     * @param mensaje Mensaje a enviar (sin salto de línea final).
+     */
+    public final void enviar(String mensaje) {
+        enviar(new Mensaje(mensaje));
+    }
+
+    /**
+     * Encola un mensaje en el formato de la sesión; la codificación se comparte con
+     * el resto de destinatarios que usan el mismo formato.
+     *
+     * @param mensaje Mensaje a enviar.
+     */
+    public final void enviar(Mensaje mensaje) {
+        if (desviada) {
+            desviar(mensaje);
+        } else if (salida.ofrecer(mensaje.codificado(salidaBinaria))) {
+            notificarSalida();
+        } else {
+            servidor.registrarEvento("Cliente demasiado lento, se desconecta: " + nombreUsuario);
+            anotarMotivoCierre("lento");
+            cerrar();
+        }
+    }
+
+    /**
+     * Encola varios mensajes de una vez para que salgan en una sola escritura.
+     *
+     * @param mensajes Mensajes a enviar, en orden.
+     */
+    public final void enviarTodos(List<Mensaje> mensajes) {
+        enviarTodos(mensajes, 0);
+    }
+
+    /**
+     * Encola varios mensajes de una vez protegiendo los primeros: si el lote no cabe en la
+     * cola se recortan los que vienen detrás, y el recorte queda anotado en el registro. Si se
+     * protege el lote entero no se recorta nada: lo que no quepa se queda sin encolar y quien
+     * llama sabe, por el resultado, desde dónde volver a intentarlo.
+     *
+     * @param mensajes Mensajes a enviar, en orden.
+     * @param fijos    Cuántos mensajes del principio (líneas de control) no se descartan.
+     * @return Cuántos mensajes del principio del lote se encolaron (o se desviaron a la sesión
+     *         que sustituye a esta); 0 si la sesión ya está cerrada.
+     */
+    public final int enviarTodos(List<Mensaje> mensajes, int fijos) {
+        if (desviada) {
+            for (Mensaje mensaje : mensajes) {
+                desviar(mensaje);
+            }
+            return mensajes.size();
+        }
+        List<byte[]> codificados = new ArrayList<>(mensajes.size());
+        for (Mensaje mensaje : mensajes) {
+            codificados.add(mensaje.codificado(salidaBinaria));
+        }
+        int aceptados = salida.ofrecerTodos(codificados, fijos);
+        int descartados = Math.min(mensajes.size() - aceptados, Math.max(0, mensajes.size() - fijos));
+        if (descartados > 0 && !terminada) {
+            servidor.registrarEvento("Cola de salida llena al ponerse al día " + nombreUsuario + ": "
+                    + descartados + " mensaje(s) descartados");
+        }
+        notificarSalida();
+        return aceptados;
+    }
+
+    /**
+     * Entrega un mensaje a una sesión que ya no tiene conexión: a la que la sustituyó, si la hay,
+     * o a los pendientes mientras está suspendida. Las listas y cambios de presencia no se
+     * guardan, porque al reanudar se envía la lista completa. Si se acumulan demasiados
+     * pendientes, la sesión caduca en el siguiente tic de la rueda.
+     */
+    private void desviar(Mensaje mensaje) {
+        SesionCliente destino;
+        lockReanudacion.lock();
+        try {
+            destino = sucesora;
+            if (destino == null) {
+                if (pendientes == null || mensaje.getTipo() == TipoTrama.USUARIOS
+                        || mensaje.getTipo() == TipoTrama.PRESENCIA) {
+                    return;
+                }
+                if (pendientes.size() < servidor.getConfiguracion().getMaxPendientesReanudacion()) {
+                    pendientes.add(mensaje);
+                } else {
+                    pendientes = null;
+                    caducada = true;
+                    rueda.programar(gracia, 0);
+                }
+                return;
+            }
+        } finally {
+            lockReanudacion.unlock();
+        }
+        destino.enviar(mensaje);
+    }
+
+    /**
+     * Avisa al escritor del motor de que hay mensajes nuevos en la cola de salida.
+     */
+    protected abstract void notificarSalida();
+
+    /**
+     * Empieza a descomprimir lo que llega del cliente. Lo llama el hilo lector justo después
+     * de responder a una negociación que incluye "deflate".
+     */
+    protected abstract void activarDescompresion();
+
+    /**
+     * Ejecuta una tarea en el hilo que procesa lo que llega del cliente: en el acto si ya se
+     * está en él, o en cuanto ese hilo pueda. Así sigue el registro al conocerse la reserva
+     * del nombre, que puede resolverse en otro hilo.
+     *
+     * @param tarea Tarea a ejecutar.
+     */
+    protected abstract void ejecutarEnLector(Runnable tarea);
+
+    /**
+     * Vuelve a procesar lo que llega del cliente tras un registro pendiente. Lo llama el hilo lector.
+     */
+    protected abstract void reanudarEntrada();
+
+    /**
+     * Cierra la conexión con el cliente.
+     */
+    public abstract void cerrar();
+
+    /**
+     * Número de mensajes pendientes de enviar a este cliente.
+     *
+     * @return Profundidad de la cola de salida.
+     */
+    public int getMensajesPendientes() {
+        return salida.getTamano();
+    }
+
+    /**
+     * Indica si el cliente negoció una extensión del protocolo.
+     *
+     * @param capacidad Extensión a consultar.
+     * @return true si el cliente la pidió y el servidor la aceptó.
+     */
+    public boolean tiene(Capacidad capacidad) {
+        return capacidades.contains(capacidad);
+    }
+
+    /**
+     * Obtiene el nombre con el que se registró el usuario.
+     *
+     * @return Nombre de usuario, o null si todavía no se ha registrado.
+     */
+    public String getNombreUsuario() {
+        return nombreUsuario;
+    }
+
+    /**
+     * Anota en el registro una conexión aceptada. La dirección solo se convierte
+     * en texto si el evento está activo.
+     *
+     * @param origen Dirección remota del cliente.
+     */
+    protected final void anotarConexion(Object origen) {
+        servidor.getMetricas().conexionAbierta();
+        RegistroEventos registro = servidor.getRegistro();
+        if (registro.activo(TipoEvento.CONEXION)) {
+            registro.registrar(TipoEvento.CONEXION, null, String.valueOf(origen));
+        }
+    }
+
+    /**
+     * Guarda la causa del cierre si todavía no se conocía ninguna.
+     *
+     * @param motivo Causa breve ("conexion", "protocolo", "lento"...).
+     */
+    protected final void anotarMotivoCierre(String motivo) {
+        if (motivoCierre == null) {
+            motivoCierre = motivo;
+        }
+    }
+
+    /**
+     * Anota que la conexión se perdió al leer o escribir.
+     */
+    protected final void conexionPerdida() {
+        servidor.registrarEvento("Cliente desconectado: " + nombreUsuario);
+        anotarMotivoCierre("conexion");
+    }
+
+    /**
+     * Anota un error de protocolo del cliente, tras el que se cierra la conexión.
+     *
+     * @param e Error detectado al interpretar lo recibido.
+     */
+    protected final void errorDeProtocolo(ProtocoloException e) {
+        servidor.registrarEvento("Error de protocolo de " + nombreUsuario + ", se cierra la conexión: "
+                + e.getMessage());
+        servidor.getRegistro().registrar(TipoEvento.ERROR, nombreUsuario, e.getMessage());
+        anotarMotivoCierre("protocolo");
+    }
+
+    /**
+     * Se invoca al aceptar la conexión: solicita el nombre de usuario.
+     */
+    protected void iniciarSesion() {
+        if (rueda != null) {
+            ticConexion = ultimaActividad = rueda.getTic();
+            long plazo = servidor.getConfiguracion().getPlazoRegistroMs();
+            rueda.programar(latido, plazo > 0 ? plazo : servidor.getConfiguracion().getIntervaloLatidoMs());
+        }
+        enviar("Ingrese su nombre de usuario:");
+    }
+
+    /**
+     * Anota que ha llegado algo del cliente. Solo escribe si cambió el tic, para no ensuciar
+     * la caché en cada mensaje de un cliente muy activo.
+     */
+    private void anotarActividad() {
+        if (rueda != null) {
+            long tic = rueda.getTic();
+            if (tic != ultimaActividad) {
+                ultimaActividad = tic;
+            }
+        }
+    }
+
+    /**
+     * Se ejecuta en el hilo de la rueda cuando vence el temporizador de la sesión: cierra la
+     * conexión que no se registró a tiempo o que no respondió al "[Ping]", envía el "[Ping]"
+     * tras un silencio de "chat.latido.intervaloMs" y, si hubo actividad, vuelve a programarse.
+     * Los clientes que no negociaron "latido" no sabrían responder: registrados, no se les
+     * hace nada más (queda el keepalive de TCP).
+     */
+    private void comprobarLatido() {
+        if (terminada || desviada) return;
+        ConfiguracionServidor config = servidor.getConfiguracion();
+        if (!registrado) {
+            long plazo = config.getPlazoRegistroMs();
+            long transcurrido = rueda.milisDesde(ticConexion);
+            if (plazo > 0 && transcurrido >= plazo) {
+                cerrarPorInactividad("Conexión sin registrarse a tiempo, se cierra");
+            } else {
+                rueda.programar(latido, plazo > 0 ? plazo - transcurrido : config.getIntervaloLatidoMs());
+            }
+            return;
+        }
+        long intervalo = config.getIntervaloLatidoMs();
+        if (intervalo == 0 || !tiene(Capacidad.LATIDO)) return;
+        if (pingPendiente && ultimaActividad >= ticPing) {
+            pingPendiente = false; // Respondió (con "[Pong]" o con cualquier otra cosa).
+        }
+        long inactivo = rueda.milisDesde(ultimaActividad);
+        if (inactivo < intervalo) {
+            rueda.programar(latido, intervalo - inactivo);
+        } else if (!pingPendiente) {
+            pingPendiente = true;
+            ticPing = rueda.getTic();
+            enviar(PING);
+            servidor.getMetricas().pingEnviado();
+            rueda.programar(latido, config.getEsperaLatidoMs());
+        } else {
+            cerrarPorInactividad("Cliente sin responder al latido, se cierra: " + nombreUsuario);
+        }
+    }
+
+    private void cerrarPorInactividad(String evento) {
+        servidor.registrarEvento(evento);
+        anotarMotivoCierre("inactiva");
+        servidor.getMetricas().conexionInactivaCerrada();
+        cerrar();
+    }
+
+    /**
+     * Tiempo que el motor debe dejar de leer del cliente para respetar sus límites de envío.
+     * Los motores lo consultan tras procesar lo que trajo cada lectura del socket.
+     *
+     * @return Nanosegundos de pausa; 0 si puede seguir leyendo.
+     */
+    protected final long esperaPorLimite() {
+        return control == null ? 0 : control.esperaNanos();
+    }
+
+    /**
+     * Indica si el nombre espera la respuesta de la reserva; mientras tanto el motor deja de
+     * procesar lo que llegue, que va detrás del nombre. Solo lo consulta el hilo lector.
+     *
+     * @return true si hay un registro pendiente.
+     */
+    protected final boolean isRegistroEnCurso() {
+        return registroEnCurso;
+    }
+
+    /**
+     * Procesa una línea recibida del cliente.
+     *
+     * @param linea Línea recibida, sin salto de línea.
+     * @return false si la sesión debe cerrarse.
+     */
+    protected boolean procesarLinea(String linea) {
+        if (desviada) return false; // Otra conexión reanudó la sesión.
+        anotarActividad();
+        // La longitud en caracteres basta como aproximación de los bytes recibidos.
+        if (control != null && !aplicarLimite(control.admitirBytes(linea.length() + 1), linea.length())) {
+            return !expulsada;
+        }
+        return interpretarLinea(linea) && !expulsada;
+    }
+
+    private boolean interpretarLinea(String linea) {
+        // **Latidos: "[Pong]" solo cuenta como actividad; a "[Ping]" se responde**
+        if (tiene(Capacidad.LATIDO)) {
+            if (linea.equals(PONG.getTexto())) {
+                return true;
+            }
+            if (linea.equals(PING.getTexto())) {
+                enviar(PONG);
+                return true;
+            }
+        }
+        if (!registrado) {
+            if (linea.startsWith(Capacidad.CABECERA)) {
+                negociarCapacidades(linea.substring(Capacidad.CABECERA.length()));
+            } else if (linea.startsWith(CABECERA_ULTIMA_SECUENCIA)) {
+                try {
+                    ultimaSecuenciaVista = Long.parseLong(linea.substring(CABECERA_ULTIMA_SECUENCIA.length()).trim());
+                } catch (NumberFormatException e) {
+                    enviar("Secuencia no válida, se enviará el historial completo.");
+                }
+            } else if (tiene(Capacidad.REANUDAR) && linea.startsWith(TipoTrama.REANUDAR.getPrefijoTexto())) {
+                // **"[Reanudar]token nombre"**
+                String resto = linea.substring(TipoTrama.REANUDAR.getPrefijoTexto().length());
+                int espacio = resto.indexOf(' ');
+                if (espacio <= 0) {
+                    enviar("Formato incorrecto. Usa: [Reanudar]token nombre");
+                } else {
+                    procesarReanudacion(resto.substring(0, espacio), resto.substring(espacio + 1));
+                }
+            } else {
+                procesarNombre(linea);
+            }
+            return true;
+        }
+
+        String mensaje = linea.trim();
+        if (mensaje.isEmpty()) return true;
+
+        // **Si el usuario escribe "salir", se desconecta**
+        if (mensaje.equalsIgnoreCase("salir")) {
+            return false;
+        }
+
+        // **Si el mensaje es privado (@usuario mensaje)**
+        if (mensaje.startsWith("@")) {
+            String[] partes = mensaje.split(" ", 2);
+            if (partes.length == 2) {
+                enviarPrivado(partes[0].substring(1), partes[1]);
+            } else {
+                enviar("Formato incorrecto. Usa: @usuario mensaje");
+            }
+        } else if (mensaje.startsWith("#")) {
+            // **Si el mensaje es para una sala (#sala mensaje)**
+            String[] partes = mensaje.split(" ", 2);
+            if (partes.length == 2) {
+                publicarEnSala(partes[0].substring(1), partes[1]);
+            } else {
+                enviar("Formato incorrecto. Usa: #sala mensaje");
+            }
+        } else if (mensaje.startsWith("/") && procesarComandoSala(mensaje)) {
+            // **Comando de salas (/unirse, /abandonar, /salas)**
+        } else if (tiene(Capacidad.TRANSFERENCIA) && mensaje.startsWith(TipoTrama.TRANSFERENCIA.getPrefijoTexto())) {
+            // **Control de una transferencia de archivo ("[Transferencia]orden argumentos")**
+            transferencia(mensaje.substring(TipoTrama.TRANSFERENCIA.getPrefijoTexto().length()));
+        } else {
+            // **Si el mensaje es público, se envía a todos los clientes**
+            publicar(mensaje);
+        }
+        return true;
+    }
+
+    /**
+     * Interpreta "/unirse sala", "/abandonar sala" y "/salas". Cualquier otra línea que empiece
+     * por "/" no es un comando y se publica como siempre.
+     *
+     * @param mensaje Línea sin espacios a los lados.
+     * @return true si era un comando de salas.
+     */
+    private boolean procesarComandoSala(String mensaje) {
+        String[] partes = mensaje.split("\\s+", 2);
+        String comando = partes[0].toLowerCase();
+        if (comando.equals("/salas") && partes.length == 1) {
+            enviar(servidor.construirListaSalas());
+        } else if (comando.equals("/unirse") || comando.equals("/abandonar")) {
+            if (partes.length < 2) {
+                enviar("Formato incorrecto. Usa: " + comando + " sala");
+            } else if (comando.equals("/unirse")) {
+                unirseASala(partes[1]);
+            } else {
+                abandonarSala(partes[1]);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Procesa una trama recibida de un cliente que negoció el protocolo binario.
+     * Como el tipo va en la cabecera, el contenido nunca se interpreta: un mensaje
+     * público que empiece por "@" o por "[Privado]" se difunde tal cual.
+     *
+     * @param trama Trama recibida.
+     * @return false si la sesión debe cerrarse.
+     * @throws ProtocoloException Si el tipo no es válido en el estado actual.
+     */
+    protected boolean procesarTrama(Trama trama) throws ProtocoloException {
+        if (desviada) return false;
+        anotarActividad();
+        int bytes = Trama.TAM_CABECERA + trama.getCarga().length;
+        if (control != null && !aplicarLimite(control.admitirBytes(bytes), bytes)) {
+            return !expulsada;
+        }
+        return interpretarTrama(trama) && !expulsada;
+    }
+
+    private boolean interpretarTrama(Trama trama) throws ProtocoloException {
+        if (trama.getTipo() == TipoTrama.PONG) {
+            return true;
+        }
+        if (trama.getTipo() == TipoTrama.PING) {
+            enviar(PONG);
+            return true;
+        }
+        if (!registrado) {
+            if (trama.getTipo() == TipoTrama.ULTIMA_SECUENCIA) {
+                ultimaSecuenciaVista = trama.getSecuencia();
+                return true;
+            }
+            if (trama.getTipo() == TipoTrama.REANUDAR && tiene(Capacidad.REANUDAR)) {
+                // **Carga "token\nnombre"**
+                String carga = trama.getTexto();
+                int separador = carga.indexOf('\n');
+                if (separador <= 0) {
+                    throw new ProtocoloException("Reanudación sin token o sin nombre");
+                }
+                procesarReanudacion(carga.substring(0, separador), carga.substring(separador + 1));
+                return true;
+            }
+            if (trama.getTipo() != TipoTrama.NOMBRE) {
+                throw new ProtocoloException("Se esperaba el nombre de usuario, llegó " + trama.getTipo());
+            }
+            procesarNombre(trama.getTexto());
+            return true;
+        }
+
+        switch (trama.getTipo()) {
+            case SALIR:
+                return false;
+            case PUBLICO: {
+                String mensaje = trama.getTexto();
+                if (!mensaje.trim().isEmpty()) {
+                    publicar(mensaje);
+                }
+                return true;
+            }
+            case PRIVADO: {
+                // **Carga "destinatario\ntexto"**
+                String carga = trama.getTexto();
+                int separador = carga.indexOf('\n');
+                if (separador <= 0 || separador == carga.length() - 1) {
+                    enviar("Formato incorrecto. Usa: @usuario mensaje");
+                } else {
+                    enviarPrivado(carga.substring(0, separador), carga.substring(separador + 1));
+                }
+                return true;
+            }
+            case SALA: {
+                // **Carga "sala\ntexto"**
+                String carga = trama.getTexto();
+                int separador = carga.indexOf('\n');
+                if (separador <= 0 || separador == carga.length() - 1) {
+                    enviar("Formato incorrecto. Usa: #sala mensaje");
+                } else {
+                    publicarEnSala(carga.substring(0, separador), carga.substring(separador + 1));
+                }
+                return true;
+            }
+            case SALAS:
+                enviar(servidor.construirListaSalas());
+                return true;
+            case UNIRSE:
+                unirseASala(trama.getTexto());
+                return true;
+            case ABANDONAR:
+                abandonarSala(trama.getTexto());
+                return true;
+            case TRANSFERENCIA:
+                if (!tiene(Capacidad.TRANSFERENCIA)) {
+                    throw new ProtocoloException("Transferencia sin negociar la capacidad");
+                }
+                transferencia(trama.getTexto());
+                return true;
+            default:
+                throw new ProtocoloException("Trama no admitida del cliente: " + trama.getTipo());
+        }
+    }
+
+    private void publicar(String mensaje) {
+        if (control != null && !aplicarLimite(control.admitirMensaje(false), mensaje.length())) {
+            return;
+        }
+        servidor.getMetricas().mensajePublico();
+        servidor.getRegistro().registrar(TipoEvento.PUBLICO, nombreUsuario, null, mensaje.length());
+        servidor.difundirMensaje(nombreUsuario + ": " + mensaje);
+    }
+
+    private void enviarPrivado(String destinatario, String mensaje) {
+        if (control != null && !aplicarLimite(control.admitirMensaje(true), mensaje.length())) {
+            return;
+        }
+        int bytes = mensaje.length();
+        servidor.enviarMensajePrivado(destinatario, nombreUsuario + ": " + mensaje,
+                estado -> anotarEntrega(destinatario, estado, bytes));
+    }
+
+    /**
+     * Anota el desenlace de un privado y se lo cuenta al remitente. Si hubo que guardarlo, se
+     * llama desde el hilo de los buzones.
+     *
+     * @param destinatario Nombre del usuario destinatario.
+     * @param estado       Resultado del envío.
+     * @param bytes        Tamaño del mensaje, para el registro.
+     */
+    private void anotarEntrega(String destinatario, EstadoEntrega estado, int bytes) {
+        TipoEvento evento;
+        if (estado == EstadoEntrega.ENTREGADO) {
+            servidor.getMetricas().mensajePrivado();
+            evento = TipoEvento.PRIVADO;
+        } else {
+            evento = estado == EstadoEntrega.GUARDADO ? TipoEvento.PRIVADO_GUARDADO : TipoEvento.DESTINATARIO_DESCONOCIDO;
+        }
+        servidor.getRegistro().registrar(evento, nombreUsuario, destinatario, bytes);
+        avisarEntrega(destinatario, estado);
+    }
+
+    /**
+     * Cuenta al remitente qué fue de su privado: con "entrega", siempre y con una trama propia;
+     * a los demás clientes, con un aviso de texto y solo si no llegó en el acto.
+     *
+     * @param destinatario Nombre del usuario destinatario.
+     * @param estado       Resultado del envío.
+     */
+    private void avisarEntrega(String destinatario, EstadoEntrega estado) {
+        if (tiene(Capacidad.ENTREGA)) {
+            enviar(new Mensaje(TipoTrama.ENTREGA, estado.getNombre() + " " + destinatario, 0));
+        } else if (estado == EstadoEntrega.GUARDADO) {
+            enviar(destinatario + " no está conectado: recibirá tu mensaje al entrar.");
+        } else if (estado == EstadoEntrega.RECHAZADO) {
+            enviar("No se pudo entregar tu mensaje a " + destinatario + ": no está conectado y no se le puede guardar.");
+        }
+    }
+
+    /**
+     * Pasa una orden de transferencia al gestor. Las ofertas cuentan como privados para el
+     * control de envíos: cada una acaba en un aviso al destinatario.
+     */
+    private void transferencia(String orden) {
+        if (control != null && !aplicarLimite(control.admitirMensaje(true), orden.length())) {
+            return;
+        }
+        servidor.getTransferencias().atender(this, orden);
+    }
+
+    private void unirseASala(String sala) {
+        if (!Sala.nombreValido(sala)) {
+            enviar("Nombre de sala no válido: usa letras, dígitos, - o _ (máximo " + Sala.MAX_NOMBRE + ").");
+        } else if (salas.contains(sala)) {
+            enviar("Ya estás en la sala " + sala + ".");
+        } else if (salas.size() >= servidor.getConfiguracion().getMaxSalasPorSesion()) {
+            enviar("No puedes estar en más de " + servidor.getConfiguracion().getMaxSalasPorSesion() + " salas.");
+        } else {
+            salas.add(sala);
+            servidor.unirseASala(sala, this);
+        }
+    }
+
+    private void abandonarSala(String sala) {
+        if (salas.remove(sala)) {
+            servidor.abandonarSala(sala, this);
+        } else {
+            enviar("No estás en la sala " + sala + ".");
+        }
+    }
+
+    private void publicarEnSala(String sala, String mensaje) {
+        if (control != null && !aplicarLimite(control.admitirMensaje(false), mensaje.length())) {
+            return;
+        }
+        if (!salas.contains(sala) || !servidor.difundirEnSala(sala, nombreUsuario + ": " + mensaje)) {
+            enviar("No estás en la sala " + sala + ". Usa: /unirse " + sala);
+            return;
+        }
+        servidor.getMetricas().mensajeSala();
+        servidor.getRegistro().registrar(TipoEvento.SALA, nombreUsuario, sala, mensaje.length());
+    }
+
+    /**
+     * Aplica la respuesta del control de flujo: un retraso solo se cuenta (el motor pausa la
+     * lectura después), un descarte se avisa como mucho una vez por segundo y una desconexión
+     * hace que el motor cierre la sesión sin procesar nada más.
+     *
+     * @param veredicto Respuesta del control de flujo.
+     * @param bytes     Tamaño de lo recibido, para el registro.
+     * @return true si el mensaje sigue adelante.
+     */
+    private boolean aplicarLimite(ControlFlujo.Veredicto veredicto, int bytes) {
+        EstadisticasLimites estadisticas = servidor.getEstadisticasLimites();
+        switch (veredicto) {
+            case ADMITIDO:
+                return true;
+            case RETRASADO:
+                estadisticas.registrarRetraso(nombreUsuario, control.getLimitante());
+                return true;
+            case DESCARTADO:
+                estadisticas.registrarDescarte(nombreUsuario, control.getLimitante());
+                servidor.getRegistro().registrar(TipoEvento.LIMITE, nombreUsuario,
+                        "descarte:" + control.getLimitante().getNombre(), bytes);
+                if (control.debeAvisar()) {
+                    enviar("Servidor: vas demasiado rápido; se han descartado mensajes.");
+                }
+                return false;
+            default:
+                estadisticas.registrarDesconexion(nombreUsuario, control.getLimitante());
+                servidor.getRegistro().registrar(TipoEvento.LIMITE, nombreUsuario,
+                        "desconexion:" + control.getLimitante().getNombre(), bytes);
+                servidor.registrarEvento("Cliente demasiado rápido, se desconecta: " + nombreUsuario);
+                anotarMotivoCierre("limite");
+                expulsada = true;
+                return false;
+        }
+    }
+
+    /**
+     * Se invoca una sola vez al terminar la conexión, por cualquier motivo.
+     */
+    protected void finalizarSesion() {
+        terminada = true;
+        if (rueda != null) {
+            rueda.cancelar(latido);
+        }
+        servidor.getMetricas().conexionCerrada();
+        servidor.getRegistro().registrar(TipoEvento.DESCONEXION, nombreUsuario, motivoCierre);
+        if (registrado && !suspender()) {
+            terminar();
+        }
+    }
+
+    /**
+     * Da de baja al usuario: sale de sus salas y del chat, y los demás lo ven salir.
+     */
+    private void terminar() {
+        registrado = false;
+        if (tokenReanudacion != null) {
+            servidor.olvidarTokenReanudacion(tokenReanudacion);
+        }
+        for (String sala : salas) {
+            servidor.abandonarSala(sala, this);
+        }
+        salas.clear();
+        servidor.eliminarCliente(nombreUsuario);
+    }
+
+    /**
+     * Si la conexión de un cliente que negoció "reanudar" se perdió (error de red o falta de
+     * respuesta a los latidos, no "salir" ni una expulsión), guarda la sesión en lugar de darla
+     * de baja: sigue en la lista de usuarios y en sus salas, y lo que se le envíe se guarda.
+     *
+     * @return true si la sesión queda suspendida o ya la sustituyó otra conexión.
+     */
+    private boolean suspender() {
+        lockReanudacion.lock();
+        try {
+            if (sucesora != null) return true; // La conexión nueva llegó antes de notar la caída.
+            if (tokenReanudacion == null || !("conexion".equals(motivoCierre) || "inactiva".equals(motivoCierre))) {
+                return false;
+            }
+            pendientes = new ArrayList<>();
+            desviada = true;
+            rueda.programar(gracia, servidor.getConfiguracion().getGraciaReanudacionMs());
+        } finally {
+            lockReanudacion.unlock();
+        }
+        servidor.getMetricas().sesionSuspendida();
+        servidor.registrarEvento("Conexión perdida, se guarda la sesión de " + nombreUsuario + " para reanudarla");
+        servidor.getRegistro().registrar(TipoEvento.REANUDACION, nombreUsuario, "suspendida");
+        return true;
+    }
+
+    /**
+     * Se ejecuta en el hilo de la rueda cuando una sesión suspendida no se reanudó a tiempo
+     * o acumuló demasiados pendientes: el usuario sale del chat como en cualquier desconexión.
+     */
+    private void caducar() {
+        int guardados;
+        lockReanudacion.lock();
+        try {
+            if (sucesora != null) return;
+            guardados = pendientes == null ? 0 : pendientes.size();
+            caducada = true;
+            pendientes = null;
+        } finally {
+            lockReanudacion.unlock();
+        }
+        servidor.getMetricas().suspensionCaducada();
+        servidor.registrarEvento("Sesión de " + nombreUsuario + " no reanudada a tiempo, sale del chat");
+        servidor.getRegistro().registrar(TipoEvento.REANUDACION, nombreUsuario, "caducada", guardados);
+        terminar();
+    }
+
+    /**
+     * Cede la sesión a la conexión nueva de su cliente. Le encola en un solo lote el token nuevo,
+     * la lista de usuarios, los mensajes públicos que se perdieron con la conexión (si el cliente
+     * indicó el último que vio) y lo guardado durante la suspensión; desde ese momento, lo que
+     * aún llegue a esta sesión se reenvía a la nueva. El servidor la invoca sin difusiones ni
+     * cambios de presencia en curso, así que nada se cuela entre el lote y el tráfico en vivo.
+     * El lote no se recorta: el límite de pendientes deja sitio para él en la cola.
+     *
+     * @param nueva     Sesión de la conexión nueva.
+     * @param token     Token que sustituye al anterior.
+     * @param lista     Lista completa de usuarios.
+     * @param recientes Mensajes públicos del historial que el cliente no ha visto.
+     * @return false si la sesión ya caducó o ya se había cedido.
+     */
+    final boolean traspasar(SesionCliente nueva, String token, Mensaje lista, List<Mensaje> recientes) {
+        boolean estabaSuspendida;
+        int recuperados;
+        lockReanudacion.lock();
+        try {
+            if (caducada || sucesora != null) return false;
+            estabaSuspendida = pendientes != null;
+            List<Mensaje> lote = new ArrayList<>();
+            lote.add(new Mensaje(TipoTrama.REANUDADA, token, 0));
+            lote.add(lista);
+            // Los públicos anteriores a la suspensión, que pudieron perderse en vuelo, salen del historial.
+            long primerPendiente = Long.MAX_VALUE;
+            if (estabaSuspendida) {
+                for (Mensaje mensaje : pendientes) {
+                    if (mensaje.getTipo() == TipoTrama.PUBLICO) {
+                        primerPendiente = mensaje.getSecuencia();
+                        break;
+                    }
+                }
+            }
+            for (Mensaje mensaje : recientes) {
+                if (mensaje.getSecuencia() < primerPendiente) {
+                    lote.add(mensaje);
+                }
+            }
+            if (estabaSuspendida) {
+                lote.addAll(pendientes);
+                rueda.cancelar(gracia);
+            }
+            recuperados = lote.size() - 2;
+            nueva.tokenReanudacion = token;
+            // La configuración garantiza que el lote cabe; si aun así no, que quede constancia.
+            int sinSitio = lote.size() - nueva.enviarTodos(lote, lote.size());
+            if (sinSitio > 0) {
+                servidor.registrarEvento("Cola de salida llena al reanudar la sesión de " + nombreUsuario + ": "
+                        + sinSitio + " mensaje(s) sin entregar");
+            }
+            pendientes = null;
+            sucesora = nueva;
+            desviada = true;
+        } finally {
+            lockReanudacion.unlock();
+        }
+        servidor.getMetricas().sesionReanudada(estabaSuspendida);
+        servidor.getRegistro().registrar(TipoEvento.REANUDACION, nombreUsuario, "reanudada", recuperados);
+        return true;
+    }
+
+    /**
+     * Acepta las extensiones que el servidor conoce y responde con la lista aceptada.
+     * Si se acepta el protocolo binario o la compresión, la respuesta es lo último que viaja
+     * como línea de texto sin comprimir en ambos sentidos: lo que se encola después ya sale
+     * en el nuevo formato.
+     */
+    private void negociarCapacidades(String tokens) {
+        int nivelCompresion = servidor.getConfiguracion().getNivelCompresion();
+        boolean comprimir = false;
+        StringBuilder respuesta = new StringBuilder(Capacidad.CABECERA);
+        for (String token : tokens.trim().split("\\s+")) {
+            Capacidad capacidad = Capacidad.desdeToken(token);
+            if ((capacidad == Capacidad.DEFLATE && nivelCompresion == 0)
+                    || (capacidad == Capacidad.REANUDAR && servidor.getConfiguracion().getGraciaReanudacionMs() == 0)
+                    || (capacidad == Capacidad.TRANSFERENCIA && !servidor.getTransferencias().isActiva())) {
+                continue;
+            }
+            if (capacidad != null && capacidades.add(capacidad)) {
+                respuesta.append(' ').append(capacidad.getToken());
+                comprimir |= capacidad == Capacidad.DEFLATE;
+            }
+        }
+        Mensaje mensaje = new Mensaje(respuesta.toString());
+        if (comprimir) {
+            // El escritor reconoce la respuesta por su codificación y comprime todo lo posterior.
+            compresor = new CompresorSalida(nivelCompresion, mensaje.codificado(salidaBinaria),
+                    servidor.getEstadisticasCompresion());
+        }
+        enviar(mensaje);
+        if (capacidades.contains(Capacidad.BINARIO)) {
+            salidaBinaria = true;
+            entradaBinaria = true;
+        }
+        if (comprimir) {
+            servidor.getEstadisticasCompresion().registrarSesion();
+            activarDescompresion();
+        }
+    }
+
+    /**
+     * Valida el nombre propuesto y, si es correcto, registra al cliente.
+     * Las comas y los corchetes iniciales se rechazan porque romperían las listas de usuarios
+     * y la negociación de capacidades.
+     */
+    private void procesarNombre(String nombre) {
+        if (!nombreValido(nombre)) {
+            enviar("Nombre no válido. Intente de nuevo:");
+            return;
+        }
+        nombreUsuario = nombre;
+        // En un clúster la reserva espera a los demás nodos: el hilo lector no se queda esperando.
+        registroEnCurso = true;
+        servidor.reservarNombre(nombre, concedido -> ejecutarEnLector(() -> terminarRegistro(nombre, concedido)));
+    }
+
+    /**
+     * Completa el registro al conocerse la reserva del nombre y vuelve a procesar la entrada.
+     * Se ejecuta en el hilo lector.
+     *
+     * @param nombre    Nombre reservado.
+     * @param concedido Si la reserva se concedió.
+     */
+    private void terminarRegistro(String nombre, boolean concedido) {
+        registroEnCurso = false;
+        if (terminada) {
+            if (concedido) {
+                servidor.liberarNombre(nombre); // La conexión se cerró mientras tanto.
+            }
+            return;
+        }
+        if (!concedido || !servidor.registrarCliente(nombre, this, ultimaSecuenciaVista)) {
+            nombreUsuario = null;
+            enviar("Nombre en uso. Elija otro:");
+        } else {
+            completarRegistro();
+        }
+        reanudarEntrada();
+    }
+
+    /**
+     * Marca la sesión como registrada: latidos, token de reanudación y registro del alta.
+     */
+    private void completarRegistro() {
+        registrado = true;
+        programarLatidoRegistrado();
+        if (tiene(Capacidad.REANUDAR)) {
+            tokenReanudacion = servidor.emitirTokenReanudacion(this);
+            enviar(new Mensaje(TipoTrama.REANUDAR, tokenReanudacion, 0));
+        }
+        servidor.registrarEvento("Nuevo cliente conectado: " + nombreUsuario);
+        servidor.getRegistro().registrar(TipoEvento.REGISTRO, nombreUsuario, null, ultimaSecuenciaVista);
+        servidor.getMetricas().registro();
+    }
+
+    /**
+     * Indica si un nombre de usuario es válido: no vacío, sin comas (separan la lista de
+     * usuarios) y sin empezar por "[" (se confundiría con un mensaje de control).
+     *
+     * @param nombre Nombre propuesto.
+     * @return true si se puede usar.
+     */
+    static boolean nombreValido(String nombre) {
+        return !nombre.trim().isEmpty() && nombre.indexOf(',') < 0 && !nombre.startsWith("[");
+    }
+
+    /**
+     * Ya registrado, deja de contar el plazo de registro: solo quedan los latidos, si los negoció.
+     */
+    private void programarLatidoRegistrado() {
+        if (rueda == null) return;
+        long intervalo = servidor.getConfiguracion().getIntervaloLatidoMs();
+        if (intervalo > 0 && tiene(Capacidad.LATIDO)) {
+            rueda.programar(latido, intervalo);
+        } else {
+            rueda.cancelar(latido);
+        }
+    }
+
+    /**
+     * Reanuda la sesión de una conexión anterior del cliente con su token. Si el token ya no vale
+     * (caducó, o el servidor se reinició), el nombre se registra como en una conexión nueva.
+     */
+    private void procesarReanudacion(String token, String nombre) {
+        if (!nombreValido(nombre)) {
+            enviar("Nombre no válido. Intente de nuevo:");
+            return;
+        }
+        nombreUsuario = nombre;
+        SesionCliente anterior = servidor.reanudarCliente(token, this, ultimaSecuenciaVista);
+        if (anterior == null) {
+            nombreUsuario = null;
+            servidor.getMetricas().reanudacionFallida();
+            servidor.getRegistro().registrar(TipoEvento.REANUDACION, nombre, "fallida");
+            procesarNombre(nombre);
+            return;
+        }
+        registrado = true;
+        programarLatidoRegistrado();
+        // Hasta que la sala cambia de miembro, lo que llega a la sesión anterior se reenvía a esta.
+        for (String sala : anterior.salas) {
+            if (servidor.reemplazarEnSala(sala, anterior, this)) {
+                salas.add(sala);
+            }
+        }
+        // Si la caída aún no se había notado, la conexión anterior sigue abierta.
+        anterior.anotarMotivoCierre("reanudada");
+        anterior.cerrar();
+        servidor.registrarEvento("Sesión reanudada: " + nombreUsuario);
+    }
+
+    /**
+     * Envía la bienvenida seguida de los mensajes que el cliente se perdió, todo en un lote.
+     * El servidor la invoca al registrar la sesión, sin difusiones en curso, para que ningún
+     * mensaje llegue dos veces ni se pierda entre el historial y el tráfico en vivo. Si el
+     * historial no cabe en la cola se recorta por lo más antiguo; la bienvenida siempre sale.
+     *
+     * @param historial Mensajes públicos posteriores a la última secuencia vista.
+     */
+    void darBienvenida(List<Mensaje> historial) {
+        List<Mensaje> lote = new ArrayList<>(historial.size() + 1);
+        lote.add(new Mensaje("Bienvenido al chat, " + nombreUsuario + "! Puedes escribir mensajes."));
+        lote.addAll(historial);
+        enviarTodos(lote, 1);
+    }
+}
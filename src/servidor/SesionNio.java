@@ -0,0 +1,399 @@
+package servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import protocolo.Compresion;
+import protocolo.DecodificadorTramas;
+import protocolo.ProtocoloException;
+import protocolo.Trama;
+
+/**
+ * Sesión del motor NIO. Decodifica líneas o tramas a partir de los bytes leídos del canal;
+ * su cola de salida solo la vacía su {@link BucleEventos}.
+ */
+class SesionNio extends SesionCliente {
+
+    /** Longitud máxima de una línea; una línea más larga cierra la conexión. */
+    private static final int MAX_LINEA = 8192;
+    /** Bytes que se guardan tras un nombre pendiente de reserva; más cierra la conexión. */
+    private static final int MAX_RETENIDOS = 64 * 1024;
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private final BucleEventos bucle;
+    private final SocketChannel canal;
+    private final SelectionKey clave;
+    private final ByteBuffer lectura;
+    private byte[] linea = new byte[256];
+    private int longitudLinea = 0;
+    private final DecodificadorTramas decodificador = new DecodificadorTramas(Trama.MAX_CARGA_CLIENTE);
+    private final Trama trama = new Trama();
+
+    /** Descompresor de lo que llega, si se negoció "deflate", y su búfer de salida. */
+    private Inflater descompresor;
+    private ByteBuffer descomprimidos;
+    /** Lote comprimido en curso de escritura y los mensajes que contiene. */
+    private ByteBuffer comprimidosPendientes;
+    private final List<byte[]> loteComprimido = new ArrayList<>();
+
+    /** Bytes del primer mensaje de la cola que ya se escribieron en el canal. */
+    private int desplazamiento = 0;
+    private final AtomicBoolean escrituraSolicitada = new AtomicBoolean(false);
+    /** Los límites de envío pidieron dejar de leer hasta {@link #reanudarEn}; solo lo usa el bucle. */
+    private boolean lecturaPausada = false;
+    private long reanudarEn;
+    /** Se dejó de leer hasta resolver la reserva del nombre; lo ya leído espera en {@link #retenidos}. */
+    private boolean lecturaRetenida = false;
+    /** Bytes leídos tras el nombre, ya descomprimidos si hace falta; null si no hay ninguno. */
+    private ByteBuffer retenidos;
+    private volatile boolean cerrando = false;
+    private boolean cerrada = false;
+
+    SesionNio(ServidorChat servidor, BucleEventos bucle, SocketChannel canal, SelectionKey clave) {
+        super(servidor);
+        this.bucle = bucle;
+        this.canal = canal;
+        this.clave = clave;
+        this.lectura = ByteBuffer.allocate(servidor.getConfiguracion().getTamBufferLecturaNio());
+    }
+
+    @Override
+    protected void notificarSalida() {
+        if (escrituraSolicitada.compareAndSet(false, true)) {
+            bucle.solicitarEscritura(this);
+        }
+    }
+
+    /**
+     * Pide al bucle que cierre la conexión en cuanto pueda, sin vaciar la cola.
+     */
+    @Override
+    public void cerrar() {
+        salida.cerrar();
+        cerrando = true;
+        bucle.solicitarEscritura(this);
+    }
+
+    @Override
+    protected void ejecutarEnLector(Runnable tarea) {
+        bucle.ejecutar(tarea);
+    }
+
+    /**
+     * Procesa lo retenido mientras se reservaba el nombre y vuelve a leer del canal. Si lo
+     * retenido trae otro nombre, la sesión vuelve a esperar con el resto. Solo lo llama el bucle.
+     */
+    @Override
+    protected void reanudarEntrada() {
+        if (!lecturaRetenida || cerrada) return;
+        lecturaRetenida = false;
+        ByteBuffer pendiente = retenidos;
+        retenidos = null;
+        try {
+            if (pendiente != null) {
+                pendiente.flip();
+                if (descompresor != null) {
+                    if (!procesar(pendiente, true)) return; // Ya se retuvo descomprimido.
+                } else {
+                    if (!procesar(pendiente, false)) return;
+                    if (descompresor != null && pendiente.hasRemaining()) {
+                        descomprimir(pendiente);
+                    }
+                }
+            }
+            if (!cerrada && !lecturaRetenida && !lecturaPausada) {
+                clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+                pausarSiHaceFalta();
+            }
+        } catch (ProtocoloException e) {
+            errorDeProtocolo(e);
+            cerrarAhora();
+        }
+    }
+
+    @Override
+    protected void activarDescompresion() {
+        descompresor = Compresion.nuevoDescompresor();
+        descomprimidos = ByteBuffer.allocate(lectura.capacity());
+    }
+
+    /**
+     * Lee los bytes disponibles y procesa cada línea o trama completa. Solo lo llama el bucle.
+     */
+    void leer() {
+        try {
+            lectura.clear();
+            int leidos = canal.read(lectura);
+            if (leidos < 0) {
+                cerrarAhora();
+                return;
+            }
+            servidor.getMetricas().bytesLeidos(leidos);
+            lectura.flip();
+            // La compresión puede activarse a mitad del búfer leído: el resto ya llega comprimido.
+            if (descompresor == null && !procesar(lectura, false)) {
+                return;
+            }
+            if (descompresor != null && lectura.hasRemaining()) {
+                descomprimir(lectura);
+            }
+            if (!cerrada) {
+                pausarSiHaceFalta();
+            }
+        } catch (ProtocoloException e) {
+            errorDeProtocolo(e);
+            cerrarAhora();
+        } catch (IOException e) {
+            conexionPerdida();
+            cerrarAhora();
+        }
+    }
+
+    /**
+     * Deja de leer del cliente mientras tenga deuda con sus límites de envío.
+     * Lo que ya se leyó se ha procesado entero; el resto espera en el socket.
+     */
+    private void pausarSiHaceFalta() {
+        long espera = esperaPorLimite();
+        if (espera > 0) {
+            reanudarEn = System.nanoTime() + espera;
+            lecturaPausada = true;
+            clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+            bucle.pausar(this);
+        }
+    }
+
+    /**
+     * Vuelve a leer del cliente al vencer la pausa, o la prolonga si la deuda sigue
+     * (por ejemplo, la del presupuesto global). Solo lo llama el bucle.
+     */
+    void reanudar() {
+        if (cerrada || !lecturaPausada) return;
+        lecturaPausada = false;
+        pausarSiHaceFalta();
+        if (!lecturaPausada && !lecturaRetenida) {
+            clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    long getReanudarEn() {
+        return reanudarEn;
+    }
+
+    /**
+     * Procesa las líneas o tramas contenidas en los bytes indicados.
+     *
+     * @param datos           Bytes recibidos, ya descomprimidos si hace falta.
+     * @param descomprimiendo true si vienen del descompresor; si no, se para al activarse este.
+     * @return false si la sesión se cerró.
+     */
+    private boolean procesar(ByteBuffer datos, boolean descomprimiendo) throws ProtocoloException {
+        while (datos.hasRemaining() && (descomprimiendo || descompresor == null)) {
+            if (isRegistroEnCurso()) {
+                return retener(datos);
+            }
+            // El formato puede cambiar tras la negociación, a mitad del búfer leído.
+            if (entradaBinaria) {
+                if (decodificador.alimentar(datos, trama) && !procesarTrama(trama)) {
+                    cerrarAhora();
+                    return false;
+                }
+                continue;
+            }
+            byte b = datos.get();
+            if (b == '\n') {
+                int fin = longitudLinea;
+                if (fin > 0 && linea[fin - 1] == '\r') fin--;
+                String texto = new String(linea, 0, fin, CHARSET);
+                longitudLinea = 0;
+                if (!procesarLinea(texto)) {
+                    cerrarAhora();
+                    return false;
+                }
+            } else {
+                if (longitudLinea == MAX_LINEA) {
+                    servidor.registrarEvento("Línea demasiado larga, se cierra la conexión de " + nombreUsuario);
+                    anotarMotivoCierre("linea_larga");
+                    cerrarAhora();
+                    return false;
+                }
+                if (longitudLinea == linea.length) {
+                    linea = Arrays.copyOf(linea, Math.min(linea.length * 2, MAX_LINEA));
+                }
+                linea[longitudLinea++] = b;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Guarda lo que queda por procesar mientras se reserva el nombre y deja de leer del canal,
+     * para que lo que el cliente envió tras el nombre se procese después y en orden.
+     *
+     * @param datos Bytes pendientes, ya descomprimidos si hace falta.
+     * @return false si el cliente envió demasiado antes de registrarse y se cerró la sesión.
+     */
+    private boolean retener(ByteBuffer datos) {
+        if (!lecturaRetenida) {
+            lecturaRetenida = true;
+            clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (retenidos == null) {
+            retenidos = ByteBuffer.allocate(Math.min(MAX_RETENIDOS, Math.max(datos.remaining(), 1024)));
+        }
+        if (retenidos.remaining() < datos.remaining()) {
+            int necesarios = retenidos.position() + datos.remaining();
+            if (necesarios > MAX_RETENIDOS) {
+                servidor.registrarEvento("Demasiados datos antes de registrarse, se cierra la conexión de "
+                        + nombreUsuario);
+                anotarMotivoCierre("retenidos");
+                cerrarAhora();
+                return false;
+            }
+            ByteBuffer mayor = ByteBuffer.allocate(Math.min(MAX_RETENIDOS, Math.max(necesarios, retenidos.capacity() * 2)));
+            retenidos.flip();
+            mayor.put(retenidos);
+            retenidos = mayor;
+        }
+        retenidos.put(datos);
+        return true;
+    }
+
+    /**
+     * Descomprime y procesa los bytes leídos. El descompresor los consume todos antes de
+     * volver, porque el búfer de lectura se reutiliza en la siguiente lectura.
+     */
+    private void descomprimir(ByteBuffer datos) throws ProtocoloException {
+        long inicio = System.nanoTime();
+        long nanosProceso = 0;
+        long producidos = 0;
+        int comprimidos = datos.remaining();
+        descompresor.setInput(datos);
+        try {
+            while (true) {
+                descomprimidos.clear();
+                int cantidad = descompresor.inflate(descomprimidos);
+                if (cantidad == 0) {
+                    if (descompresor.needsInput()) break;
+                    throw new ProtocoloException("Flujo comprimido terminado o no válido");
+                }
+                producidos += cantidad;
+                descomprimidos.flip();
+                long antes = System.nanoTime();
+                boolean abierta = procesar(descomprimidos, true);
+                nanosProceso += System.nanoTime() - antes;
+                if (!abierta) break;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocoloException("Datos comprimidos no válidos: " + e.getMessage());
+        } finally {
+            servidor.getEstadisticasCompresion().registrarDescompresion(comprimidos, producidos,
+                    System.nanoTime() - inicio - nanosProceso);
+        }
+    }
+
+    /**
+     * Escribe todo lo que admita el canal sin bloquear. Solo lo llama el bucle.
+     * Los mensajes pendientes se copian por tandas en el búfer del bucle y se escriben
+     * con una sola llamada, sin reservar memoria por destinatario.
+     */
+    void escribir() {
+        if (cerrada) return;
+        if (cerrando) {
+            cerrarAhora();
+            return;
+        }
+        escrituraSolicitada.set(false);
+        ByteBuffer buffer = bucle.getBufferEscritura();
+        try {
+            if (compresor != null) {
+                escribirComprimido(compresor);
+                return;
+            }
+            while (true) {
+                buffer.clear();
+                if (salida.copiar(buffer, desplazamiento) == 0) break;
+                buffer.flip();
+                int escritos = canal.write(buffer);
+                desplazamiento = salida.consumir(desplazamiento + escritos);
+                if (buffer.hasRemaining()) {
+                    // El búfer de envío del socket está lleno: esperar a OP_WRITE.
+                    actualizarInteres(true);
+                    return;
+                }
+            }
+            actualizarInteres(false);
+        } catch (IOException e) {
+            conexionPerdida();
+            cerrarAhora();
+        }
+    }
+
+    /**
+     * Escritura de una sesión comprimida: cada vez que se termina un lote se sacan todos los
+     * mensajes pendientes y se comprimen juntos, con un solo vaciado síncrono al final.
+     */
+    private void escribirComprimido(CompresorSalida compresor) throws IOException {
+        EstadisticasSalida estadisticas = servidor.getEstadisticasSalida();
+        while (true) {
+            if (comprimidosPendientes == null || !comprimidosPendientes.hasRemaining()) {
+                for (byte[] mensaje : loteComprimido) {
+                    estadisticas.registrarEscrito(mensaje);
+                }
+                loteComprimido.clear();
+                if (salida.extraerTodos(loteComprimido) == 0) {
+                    comprimidosPendientes = null;
+                    actualizarInteres(false);
+                    return;
+                }
+                // Lo que quedara a medias del primer mensaje sin comprimir sale ahora.
+                comprimidosPendientes = ByteBuffer.wrap(compresor.procesar(loteComprimido, desplazamiento), 0,
+                        compresor.getLongitud());
+                desplazamiento = 0;
+            }
+            canal.write(comprimidosPendientes);
+            if (comprimidosPendientes.hasRemaining()) {
+                actualizarInteres(true);
+                return;
+            }
+        }
+    }
+
+    private void actualizarInteres(boolean escritura) {
+        clave.interestOps((lecturaPausada || lecturaRetenida ? 0 : SelectionKey.OP_READ)
+                | (escritura ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Cierra el canal y da de baja al usuario. Solo lo llama el bucle.
+     */
+    void cerrarAhora() {
+        if (cerrada) return;
+        cerrada = true;
+        cerrando = true;
+        salida.cerrar();
+        clave.cancel();
+        if (compresor != null) {
+            compresor.liberar();
+        }
+        if (descompresor != null) {
+            descompresor.end();
+        }
+        try {
+            canal.close();
+        } catch (IOException e) {
+            servidor.registrarEvento("Error cerrando conexión con " + nombreUsuario + ": " + e.getMessage());
+        }
+        finalizarSesion();
+    }
+}
@@ -0,0 +1,778 @@
+package servidor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocolo.TipoTrama;
+import registro.RegistroEventos;
+import registro.TipoEvento;
+
+/**
+ * Transferencias de archivos entre usuarios, por un carril aparte del chat.
+ * <p>
+ * La oferta, la respuesta y los avisos viajan por la conexión del chat como mensajes
+ * {@link TipoTrama#TRANSFERENCIA}; los bytes del archivo, no. Al aceptarse una oferta, cada
+ * extremo abre una conexión propia al puerto de transferencias ("chat.transferencia.puerto"),
+ * envía su token en una línea y a partir de ahí solo viajan bytes. El servidor hace de relevo:
+ * lo que llega del remitente lo escribe en archivos de paso con
+ * {@link FileChannel#transferFrom} y se lo pasa al receptor con {@link FileChannel#transferTo}
+ * (sendfile en Linux), así que el archivo nunca está entero en el heap ni pasa por las colas,
+ * los hilos o los bucles de eventos del chat.
+ * <p>
+ * El remitente puede ir como mucho una ventana ("chat.transferencia.ventanaMb") por delante del
+ * receptor. Cuando la alcanza, su hilo deja de leer y TCP le frena hasta que el receptor avance.
+ * El paso se trocea en segmentos de un cuarto de ventana que se borran en cuanto el receptor los
+ * ha recibido, así que un archivo de 2 GB ocupa en disco poco más que la ventana y va al ritmo
+ * del más lento. Los segmentos nunca se reescriben: sendfile deja en las colas de los sockets
+ * referencias a las páginas del archivo, no copias, y reescribirlas cambiaría bytes ya
+ * "enviados"; borrar el archivo, en cambio, no las toca. Un cubo de tokens opcional
+ * ("chat.transferencia.kbPorSegundo") reparte además un ancho de banda total entre todas.
+ * <p>
+ * Las transferencias son locales a un nodo: el destinatario tiene que estar conectado a este
+ * servidor y haber negociado la capacidad "transferencia".
+ */
+public class Transferencias {
+
+    /** Bytes que se mueven de una vez entre un socket y un segmento de paso. */
+    private static final int TROZO = 64 * 1024;
+    /** Longitud máxima de la línea con el token con la que empieza cada conexión. */
+    private static final int MAX_LINEA_TOKEN = 64;
+    private static final int ESPERA_TOKEN_MS = 10_000;
+    private static final String EXTENSION = ".paso";
+
+    private final ServidorChat servidor;
+    private final RuedaTemporizadores rueda;
+    private final int puerto;
+    private final Path directorio;
+    private final long maxBytes;
+    private final int ventana;
+    private final int tamSegmento;
+    private final int maxActivas;
+    private final long esperaMs;
+    private final long inactividadMs;
+    /** Ancho de banda total de las subidas; null si no hay límite. */
+    private final CuboTokens limite;
+    private final SecureRandom generadorTokens = new SecureRandom();
+
+    /** Cada transferencia está dos veces: con su token de subida y con el de bajada. */
+    private final Map<String, Transferencia> porToken = new ConcurrentHashMap<>();
+    private final ReentrantLock lockAltas = new ReentrantLock();
+    /** Transferencias ofrecidas o en curso. Con lockAltas. */
+    private int activas = 0;
+    /** Conexiones atendidas a la vez: dos por transferencia y unas pocas en espera del token. */
+    private final Semaphore conexiones;
+
+    private volatile boolean enMarcha = false;
+    private ServerSocketChannel canalServidor;
+    private ExecutorService hilos;
+
+    // **Contadores**
+    private final LongAdder ofrecidas = new LongAdder();
+    private final LongAdder completadas = new LongAdder();
+    private final LongAdder rechazadas = new LongAdder();
+    private final LongAdder fallidas = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /** Una transferencia, desde la oferta hasta que termina bien o mal. */
+    private final class Transferencia {
+        final String tokenSubida;
+        final String tokenBajada;
+        final String remitente;
+        final String destinatario;
+        final String archivo;
+        final long tamano;
+        final RuedaTemporizadores.Temporizador plazo;
+
+        // **Con lock**
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition cambio = lock.newCondition();
+        boolean aceptada = false;
+        boolean terminada = false;
+        long recibidos = 0;
+        long enviados = 0;
+        /** Segmentos de paso por número; el de la posición p es p / tamSegmento. */
+        final Map<Long, FileChannel> segmentos = new HashMap<>();
+        SocketChannel subida;
+        SocketChannel bajada;
+
+        Transferencia(String remitente, String destinatario, String archivo, long tamano) {
+            this.tokenSubida = generarToken();
+            this.tokenBajada = generarToken();
+            this.remitente = remitente;
+            this.destinatario = destinatario;
+            this.archivo = archivo;
+            this.tamano = tamano;
+            this.plazo = new RuedaTemporizadores.Temporizador(() -> fallar(this, "se agotó el tiempo de espera"));
+        }
+    }
+
+    /**
+     * Constructor del gestor de transferencias.
+     *
+     * @param servidor Servidor local.
+     * @param config   Configuración ("chat.transferencia.*").
+     * @param rueda    Rueda de temporizadores del servidor; sin ella no hay transferencias.
+     */
+    Transferencias(ServidorChat servidor, ConfiguracionServidor config, RuedaTemporizadores rueda) {
+        this.servidor = servidor;
+        this.rueda = rueda;
+        this.puerto = rueda != null ? config.getPuertoTransferencias() : 0;
+        this.directorio = Paths.get(config.getDirectorioTransferencias());
+        this.maxBytes = config.getMaxBytesTransferencia();
+        this.ventana = config.getVentanaTransferencia();
+        this.tamSegmento = Math.max(TROZO, ventana / 4);
+        this.maxActivas = config.getMaxTransferencias();
+        this.esperaMs = config.getEsperaTransferenciaMs();
+        this.inactividadMs = config.getInactividadTransferenciaMs();
+        long porSegundo = config.getBytesPorSegundoTransferencias();
+        this.limite = porSegundo > 0 ? new CuboTokens(porSegundo, TROZO) : null;
+        this.conexiones = new Semaphore(2 * maxActivas + 8);
+    }
+
+    /**
+     * Vacía el directorio de paso y abre el puerto de transferencias. Con el puerto a 0 no hace nada.
+     */
+    void iniciar() {
+        if (puerto <= 0) return;
+        try {
+            Files.createDirectories(directorio);
+            borrarRestos();
+            canalServidor = ServerSocketChannel.open();
+            canalServidor.bind(new InetSocketAddress(puerto));
+        } catch (IOException e) {
+            cerrarCanal(canalServidor);
+            servidor.registrarError("No se pudo abrir el puerto de transferencias " + puerto, e);
+            return;
+        }
+        hilos = Executors.newCachedThreadPool(tarea -> {
+            Thread hilo = new Thread(tarea, "chat-transferencia");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        enMarcha = true;
+        Thread hilo = new Thread(this::aceptar, "chat-transferencias");
+        hilo.setDaemon(true);
+        hilo.start();
+        servidor.registrarEvento("Transferencias de archivos por el puerto " + puerto + ", paso en "
+                + directorio.toAbsolutePath() + " (ventana " + ventana / (1024 * 1024) + " MB)");
+    }
+
+    /**
+     * Cierra el puerto y da por fallidas las transferencias pendientes.
+     */
+    void detener() {
+        if (!enMarcha) return;
+        enMarcha = false;
+        cerrarCanal(canalServidor);
+        for (Transferencia t : new HashSet<>(porToken.values())) {
+            fallar(t, "el servidor se detiene");
+        }
+        hilos.shutdownNow();
+    }
+
+    /**
+     * Borra los archivos de paso que dejara una ejecución anterior interrumpida.
+     */
+    private void borrarRestos() throws IOException {
+        try (DirectoryStream<Path> restos = Files.newDirectoryStream(directorio, "*" + EXTENSION)) {
+            for (Path resto : restos) {
+                Files.deleteIfExists(resto);
+            }
+        }
+    }
+
+    private void aceptar() {
+        while (enMarcha) {
+            try {
+                SocketChannel canal = canalServidor.accept();
+                if (!conexiones.tryAcquire()) {
+                    cerrarCanal(canal);
+                    continue;
+                }
+                try {
+                    hilos.execute(() -> {
+                        try {
+                            atenderConexion(canal);
+                        } finally {
+                            conexiones.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    conexiones.release();
+                    cerrarCanal(canal);
+                }
+            } catch (IOException e) {
+                if (enMarcha) {
+                    servidor.registrarError("Error aceptando una transferencia", e);
+                }
+            }
+        }
+    }
+
+    // **Órdenes de los clientes, por la conexión del chat**
+
+    /**
+     * Atiende una orden "[Transferencia]" de un cliente que negoció la capacidad:
+     * "ofrecer tamaño destinatario archivo", "aceptar token", "rechazar token" o "cancelar token".
+     *
+     * @param sesion Sesión que envía la orden.
+     * @param orden  Carga del mensaje.
+     */
+    void atender(SesionCliente sesion, String orden) {
+        String[] partes = orden.trim().split(" ", 2);
+        String argumentos = partes.length == 2 ? partes[1].trim() : "";
+        switch (partes[0]) {
+            case "ofrecer":
+                ofrecer(sesion, argumentos);
+                break;
+            case "aceptar":
+                aceptar(sesion, argumentos);
+                break;
+            case "rechazar":
+                rechazar(sesion, argumentos);
+                break;
+            case "cancelar":
+                cancelar(sesion, argumentos);
+                break;
+            default:
+                sesion.enviar("Orden de transferencia desconocida: " + partes[0]);
+        }
+    }
+
+    /**
+     * Registra una oferta y se la pasa al destinatario. Si no es posible, el remitente recibe
+     * "fallida - motivo": las respuestas a sus ofertas llegan en el orden en que las hizo.
+     */
+    private void ofrecer(SesionCliente sesion, String argumentos) {
+        String[] partes = argumentos.split(" ", 3);
+        long tamano = -1;
+        if (partes.length == 3) {
+            try {
+                tamano = Long.parseLong(partes[0]);
+            } catch (NumberFormatException e) {
+                // Se responde como formato incorrecto.
+            }
+        }
+        if (tamano < 0) {
+            sesion.enviar(aviso("fallida - formato incorrecto, usa: ofrecer tamaño destinatario archivo"));
+            return;
+        }
+        String remitente = sesion.getNombreUsuario();
+        String destinatario = partes[1];
+        String archivo = nombreArchivo(partes[2]);
+        SesionCliente receptor = servidor.getClientes().get(destinatario);
+        String motivo = null;
+        if (archivo.isEmpty()) {
+            motivo = "falta el nombre del archivo";
+        } else if (tamano > maxBytes) {
+            motivo = "el archivo pasa del máximo de " + maxBytes / (1024 * 1024) + " MB";
+        } else if (destinatario.equals(remitente)) {
+            motivo = "no puedes enviarte un archivo a ti mismo";
+        } else if (receptor == null) {
+            motivo = destinatario + " no está conectado a este servidor";
+        } else if (!receptor.tiene(Capacidad.TRANSFERENCIA)) {
+            motivo = destinatario + " no puede recibir archivos";
+        }
+        Transferencia t = null;
+        if (motivo == null) {
+            t = registrar(remitente, destinatario, archivo, tamano);
+            if (t == null) {
+                motivo = "hay demasiadas transferencias en curso, prueba más tarde";
+            }
+        }
+        if (motivo != null) {
+            sesion.enviar(aviso("fallida - " + motivo));
+            return;
+        }
+        vigilar(t, esperaMs);
+        ofrecidas.increment();
+        anotar(t, "ofrecida");
+        sesion.enviar(aviso("ofrecida " + t.tokenSubida + " " + tamano + " " + destinatario + " " + archivo));
+        receptor.enviar(aviso("oferta " + t.tokenBajada + " " + tamano + " " + remitente + " " + archivo));
+    }
+
+    /**
+     * Da de alta una transferencia si no se pasa del máximo.
+     *
+     * @return La transferencia, o null si ya hay demasiadas.
+     */
+    private Transferencia registrar(String remitente, String destinatario, String archivo, long tamano) {
+        lockAltas.lock();
+        try {
+            if (activas >= maxActivas) return null;
+            activas++;
+        } finally {
+            lockAltas.unlock();
+        }
+        Transferencia t = new Transferencia(remitente, destinatario, archivo, tamano);
+        porToken.put(t.tokenSubida, t);
+        porToken.put(t.tokenBajada, t);
+        return t;
+    }
+
+    /**
+     * El destinatario acepta: ambos reciben "aceptada token puerto" y pueden conectarse.
+     */
+    private void aceptar(SesionCliente sesion, String token) {
+        Transferencia t = buscar(sesion, token, false);
+        if (t == null) return;
+        t.lock.lock();
+        try {
+            if (t.terminada || t.aceptada) return;
+            t.aceptada = true;
+        } finally {
+            t.lock.unlock();
+        }
+        vigilar(t, inactividadMs);
+        avisar(t.remitente, "aceptada " + t.tokenSubida + " " + puerto);
+        sesion.enviar(aviso("aceptada " + t.tokenBajada + " " + puerto));
+    }
+
+    private void rechazar(SesionCliente sesion, String token) {
+        Transferencia t = buscar(sesion, token, false);
+        if (t == null || !terminar(t)) return;
+        rechazadas.increment();
+        anotar(t, "rechazada");
+        avisar(t.remitente, "rechazada " + t.tokenSubida);
+    }
+
+    private void cancelar(SesionCliente sesion, String token) {
+        Transferencia t = buscar(sesion, token, true);
+        if (t != null) {
+            fallar(t, "cancelada por " + sesion.getNombreUsuario());
+        }
+    }
+
+    /**
+     * Busca la transferencia de un token comprobando que pertenece a quien lo presenta.
+     *
+     * @param remitenteAdmitido Si el remitente puede usar aquí su token de subida.
+     * @return La transferencia, o null (y un aviso) si no existe o no es suya.
+     */
+    private Transferencia buscar(SesionCliente sesion, String token, boolean remitenteAdmitido) {
+        Transferencia t = porToken.get(token);
+        String usuario = sesion.getNombreUsuario();
+        if (t != null && ((token.equals(t.tokenBajada) && t.destinatario.equals(usuario))
+                || (remitenteAdmitido && token.equals(t.tokenSubida) && t.remitente.equals(usuario)))) {
+            return t;
+        }
+        sesion.enviar(aviso("fallida " + (token.isEmpty() ? "-" : token) + " la transferencia no existe o ya terminó"));
+        return null;
+    }
+
+    // **Conexiones del puerto de transferencias**
+
+    /**
+     * Lee el token y pasa la conexión a la subida o a la bajada de su transferencia. Un token
+     * desconocido o ya usado se cierra sin más.
+     */
+    private void atenderConexion(SocketChannel canal) {
+        Transferencia t = null;
+        try {
+            canal.socket().setSoTimeout(ESPERA_TOKEN_MS);
+            String token = leerToken(canal.socket().getInputStream());
+            t = token == null ? null : porToken.get(token);
+            if (t == null || !vincular(t, canal, token.equals(t.tokenSubida))) {
+                t = null;
+                cerrarCanal(canal);
+                return;
+            }
+            vigilar(t, inactividadMs);
+            if (token.equals(t.tokenSubida)) {
+                recibir(t, canal);
+            } else {
+                enviar(t, canal);
+            }
+        } catch (IOException e) {
+            cerrarCanal(canal);
+            if (t != null) {
+                fallar(t, "se cortó la conexión");
+            }
+        } catch (InterruptedException e) {
+            cerrarCanal(canal);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lee la primera línea byte a byte, para no consumir nada de lo que viene detrás.
+     *
+     * @return El token, o null si la línea es demasiado larga.
+     */
+    private static String leerToken(InputStream entrada) throws IOException {
+        byte[] linea = new byte[MAX_LINEA_TOKEN];
+        for (int i = 0; i < linea.length; i++) {
+            int b = entrada.read();
+            if (b < 0) throw new EOFException("Conexión cerrada antes del token");
+            if (b == '\n') {
+                return new String(linea, 0, i > 0 && linea[i - 1] == '\r' ? i - 1 : i, StandardCharsets.US_ASCII);
+            }
+            linea[i] = (byte) b;
+        }
+        return null;
+    }
+
+    /**
+     * Asigna la conexión a su lado de una transferencia aceptada, si ese lado aún no tiene una.
+     */
+    private static boolean vincular(Transferencia t, SocketChannel canal, boolean subida) {
+        t.lock.lock();
+        try {
+            if (t.terminada || !t.aceptada || (subida ? t.subida : t.bajada) != null) return false;
+            if (subida) {
+                t.subida = canal;
+            } else {
+                t.bajada = canal;
+            }
+            return true;
+        } finally {
+            t.lock.unlock();
+        }
+    }
+
+    /**
+     * Copia la subida del remitente en los segmentos de paso, sin adelantarse al receptor más
+     * de la ventana.
+     */
+    private void recibir(Transferencia t, SocketChannel canal) throws IOException, InterruptedException {
+        while (true) {
+            long numero;
+            FileChannel segmento;
+            long desde;
+            long cantidad;
+            t.lock.lock();
+            try {
+                while (!t.terminada && t.recibidos < t.tamano && t.recibidos - t.enviados >= ventana) {
+                    t.cambio.await();
+                }
+                if (t.terminada || t.recibidos == t.tamano) return;
+                numero = t.recibidos / tamSegmento;
+                segmento = t.segmentos.get(numero);
+                desde = t.recibidos % tamSegmento;
+                cantidad = Math.min(Math.min(TROZO, t.tamano - t.recibidos),
+                        Math.min(tamSegmento - desde, ventana - (t.recibidos - t.enviados)));
+            } finally {
+                t.lock.unlock();
+            }
+            if (segmento == null && (segmento = crearSegmento(t, numero)) == null) return;
+            pagar(t, cantidad);
+            long leidos = segmento.transferFrom(canal, desde, cantidad);
+            if (leidos == 0) {
+                throw new EOFException("El remitente cerró la conexión antes de tiempo");
+            }
+            t.lock.lock();
+            try {
+                t.recibidos += leidos;
+                t.cambio.signalAll();
+            } finally {
+                t.lock.unlock();
+            }
+            vigilar(t, inactividadMs);
+        }
+    }
+
+    /**
+     * Pasa al receptor lo que ya está en los segmentos y borra cada uno al acabarlo; cuando el
+     * receptor lo tiene todo, la transferencia termina.
+     */
+    private void enviar(Transferencia t, SocketChannel canal) throws IOException, InterruptedException {
+        while (true) {
+            FileChannel segmento;
+            long desde;
+            long cantidad;
+            t.lock.lock();
+            try {
+                while (!t.terminada && t.enviados == t.recibidos && t.enviados < t.tamano) {
+                    t.cambio.await();
+                }
+                if (t.terminada) return;
+                if (t.enviados == t.tamano) break;
+                segmento = t.segmentos.get(t.enviados / tamSegmento);
+                desde = t.enviados % tamSegmento;
+                cantidad = Math.min(t.recibidos - t.enviados, tamSegmento - desde);
+            } finally {
+                t.lock.unlock();
+            }
+            long escritos = segmento.transferTo(desde, cantidad, canal);
+            t.lock.lock();
+            try {
+                t.enviados += escritos;
+                if (t.enviados % tamSegmento == 0 || t.enviados == t.tamano) {
+                    cerrarCanal(t.segmentos.remove((t.enviados - 1) / tamSegmento));
+                }
+                t.cambio.signalAll();
+            } finally {
+                t.lock.unlock();
+            }
+            bytes.add(escritos);
+            vigilar(t, inactividadMs);
+        }
+        completar(t);
+    }
+
+    /**
+     * Crea el siguiente segmento de paso, que se borra al cerrarlo. Solo lo llama el hilo de subida.
+     *
+     * @return El segmento, o null si la transferencia terminó o ha fallado al crearlo.
+     */
+    private FileChannel crearSegmento(Transferencia t, long numero) {
+        FileChannel segmento;
+        try {
+            segmento = FileChannel.open(directorio.resolve(t.tokenBajada + "-" + numero + EXTENSION),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            servidor.registrarError("No se pudo crear un segmento de paso", e);
+            fallar(t, "el servidor no pudo guardar la transferencia");
+            return null;
+        }
+        t.lock.lock();
+        try {
+            if (!t.terminada) {
+                t.segmentos.put(numero, segmento);
+                return segmento;
+            }
+        } finally {
+            t.lock.unlock();
+        }
+        cerrarCanal(segmento);
+        return null;
+    }
+
+    /**
+     * Retira del cubo global lo que se va a leer y, si queda deuda, la paga esperando. Mientras
+     * espera, el plazo de inactividad se alarga lo mismo.
+     */
+    private void pagar(Transferencia t, long cantidad) throws InterruptedException {
+        if (limite == null) return;
+        long ahora = System.nanoTime();
+        limite.retirar(cantidad, Double.MAX_VALUE, ahora);
+        long espera = limite.esperaNanos(ahora);
+        if (espera > 0) {
+            if (inactividadMs > 0) {
+                rueda.programar(t.plazo, inactividadMs + TimeUnit.NANOSECONDS.toMillis(espera));
+            }
+            TimeUnit.NANOSECONDS.sleep(espera);
+        }
+    }
+
+    // **Fin de una transferencia**
+
+    private void completar(Transferencia t) {
+        if (!terminar(t)) return;
+        completadas.increment();
+        anotar(t, "completada");
+        avisar(t.remitente, "completada " + t.tokenSubida);
+        avisar(t.destinatario, "completada " + t.tokenBajada);
+    }
+
+    private void fallar(Transferencia t, String motivo) {
+        if (!terminar(t)) return;
+        fallidas.increment();
+        anotar(t, "fallida");
+        avisar(t.remitente, "fallida " + t.tokenSubida + " " + motivo);
+        avisar(t.destinatario, "fallida " + t.tokenBajada + " " + motivo);
+    }
+
+    /**
+     * Anota en el registro un paso de una transferencia. El detalle ("resultado destinatario") solo
+     * se construye si el evento está activo: un evento desactivado cuesta una comparación.
+     */
+    private void anotar(Transferencia t, String resultado) {
+        RegistroEventos registro = servidor.getRegistro();
+        if (registro.activo(TipoEvento.TRANSFERENCIA)) {
+            registro.registrar(TipoEvento.TRANSFERENCIA, t.remitente, resultado + " " + t.destinatario, t.tamano);
+        }
+    }
+
+    /**
+     * Marca la transferencia como terminada, despierta a sus hilos, cierra sus conexiones y su
+     * segmentos de paso (que se borran al cerrarse) y libera su plaza.
+     *
+     * @return false si ya estaba terminada.
+     */
+    private boolean terminar(Transferencia t) {
+        t.lock.lock();
+        try {
+            if (t.terminada) return false;
+            t.terminada = true;
+            t.cambio.signalAll();
+            cerrarCanal(t.subida);
+            cerrarCanal(t.bajada);
+            for (FileChannel segmento : t.segmentos.values()) {
+                cerrarCanal(segmento);
+            }
+            t.segmentos.clear();
+        } finally {
+            t.lock.unlock();
+        }
+        rueda.cancelar(t.plazo);
+        porToken.remove(t.tokenSubida);
+        porToken.remove(t.tokenBajada);
+        lockAltas.lock();
+        try {
+            activas--;
+        } finally {
+            lockAltas.unlock();
+        }
+        return true;
+    }
+
+    // **Utilidades**
+
+    /**
+     * Programa el plazo de una transferencia; con 0 milisegundos no caduca.
+     */
+    private void vigilar(Transferencia t, long ms) {
+        if (ms > 0) {
+            rueda.programar(t.plazo, ms);
+        } else {
+            rueda.cancelar(t.plazo);
+        }
+    }
+
+    private void avisar(String usuario, String carga) {
+        SesionCliente sesion = servidor.getClientes().get(usuario);
+        if (sesion != null) {
+            sesion.enviar(aviso(carga));
+        }
+    }
+
+    private static Mensaje aviso(String carga) {
+        return new Mensaje(TipoTrama.TRANSFERENCIA, carga, 0);
+    }
+
+    /**
+     * Deja solo el nombre del archivo: sin rutas ni caracteres de control, y como mucho 255 caracteres.
+     */
+    private static String nombreArchivo(String archivo) {
+        String nombre = archivo.replaceAll("[\\\\/\\p{Cntrl}]", "_").trim();
+        return nombre.length() > 255 ? nombre.substring(0, 255) : nombre;
+    }
+
+    private String generarToken() {
+        byte[] aleatorio = new byte[16];
+        generadorTokens.nextBytes(aleatorio);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(aleatorio);
+    }
+
+    private static void cerrarCanal(Channel canal) {
+        if (canal == null) return;
+        try {
+            canal.close();
+        } catch (IOException e) {
+            // Nada más que hacer.
+        }
+    }
+
+    // **Consultas**
+
+    /**
+     * Indica si el puerto de transferencias está abierto; si no, no se concede la capacidad.
+     *
+     * @return true si se admiten transferencias.
+     */
+    public boolean isActiva() {
+        return enMarcha;
+    }
+
+    /**
+     * Puerto de transferencias configurado.
+     *
+     * @return Puerto, o 0 si las transferencias están desactivadas.
+     */
+    public int getPuerto() {
+        return puerto;
+    }
+
+    /**
+     * Transferencias ofrecidas o en curso.
+     *
+     * @return Número de transferencias sin terminar.
+     */
+    public int getActivas() {
+        lockAltas.lock();
+        try {
+            return activas;
+        } finally {
+            lockAltas.unlock();
+        }
+    }
+
+    /**
+     * Ofertas admitidas y pasadas al destinatario.
+     *
+     * @return Total de ofertas.
+     */
+    public long getOfrecidas() {
+        return ofrecidas.sum();
+    }
+
+    /**
+     * Transferencias que llegaron enteras al receptor.
+     *
+     * @return Total de completadas.
+     */
+    public long getCompletadas() {
+        return completadas.sum();
+    }
+
+    /**
+     * Ofertas que el destinatario rechazó.
+     *
+     * @return Total de rechazadas.
+     */
+    public long getRechazadas() {
+        return rechazadas.sum();
+    }
+
+    /**
+     * Transferencias canceladas, caducadas o cortadas.
+     *
+     * @return Total de fallidas.
+     */
+    public long getFallidas() {
+        return fallidas.sum();
+    }
+
+    /**
+     * Bytes entregados a los receptores.
+     *
+     * @return Bytes enviados por el puerto de transferencias.
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "activas=" + getActivas() + ", ofrecidas=" + getOfrecidas() + ", completadas=" + getCompletadas()
+                + ", rechazadas=" + getRechazadas() + ", fallidas=" + getFallidas() + ", bytes=" + getBytes();
+    }
+}
@@ -106,6 +106,14 @@ public class EstilosUI {
         area.setBorder(BorderFactory.createLineBorder(Color.DARK_GRAY, 1));
     }
 
+    //  **LISTAS DE LOG ESTILIZADAS**
+    public static void estilizarLista(JList<?> lista, boolean oscuro) {
+        lista.setFont(FUENTE_TEXTO);
+        lista.setForeground(oscuro ? COLOR_TEXTO_OSCURO : COLOR_TEXTO_CLARO);
+        lista.setBackground(oscuro ? new Color(30, 30, 30) : new Color(230, 230, 230));
+        lista.setBorder(BorderFactory.createLineBorder(Color.DARK_GRAY, 1));
+    }
+
     //  **ETIQUETAS ESTILIZADAS**
     public static void estilizarEtiqueta(JLabel etiqueta) {
         etiqueta.setFont(FUENTE_TEXTO);
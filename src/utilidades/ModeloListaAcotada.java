@@ -0,0 +1,98 @@
+package utilidades;
+
+import java.util.List;
+import javax.swing.AbstractListModel;
+
+/**
+ * Modelo de {@link javax.swing.JList} con capacidad fija, respaldado por un búfer circular.
+ * Al llegar al máximo, cada línea nueva desplaza a la más antigua, así que la memoria
+ * no crece por mucho tiempo que la ventana siga abierta.
+ * <p>
+ * Como cualquier modelo Swing, solo debe usarse desde el hilo de eventos (EDT). Las líneas
+ * se añaden por lotes para notificar a la lista con un solo par de eventos por lote.
+ */
+public class ModeloListaAcotada extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 6237814453190524527L;
+
+    private final String[] lineas;
+    private int inicio = 0;
+    private int tamano = 0;
+    private long descartadas = 0;
+
+    /**
+     * Constructor del modelo.
+     *
+     * @param capacidad Número máximo de líneas que se conservan.
+     */
+    public ModeloListaAcotada(int capacidad) {
+        this.lineas = new String[Math.max(1, capacidad)];
+    }
+
+    /**
+     * Añade un lote de líneas al final, descartando las más antiguas si no caben.
+     *
+     * @param nuevas Líneas en orden.
+     */
+    public void anadirTodas(List<String> nuevas) {
+        if (nuevas.isEmpty()) return;
+        int capacidad = lineas.length;
+        // De un lote mayor que la capacidad solo sobreviven las últimas líneas.
+        int desde = Math.max(0, nuevas.size() - capacidad);
+        int entran = nuevas.size() - desde;
+        int sobran = Math.max(0, tamano + entran - capacidad);
+
+        if (sobran > 0) {
+            for (int i = 0; i < sobran; i++) {
+                lineas[(inicio + i) % capacidad] = null;
+            }
+            inicio = (inicio + sobran) % capacidad;
+            tamano -= sobran;
+            descartadas += sobran;
+            fireIntervalRemoved(this, 0, sobran - 1);
+        }
+        descartadas += desde;
+
+        int primera = tamano;
+        for (int i = desde; i < nuevas.size(); i++) {
+            lineas[(inicio + tamano) % capacidad] = nuevas.get(i);
+            tamano++;
+        }
+        fireIntervalAdded(this, primera, tamano - 1);
+    }
+
+    /**
+     * Vacía el modelo sin contar las líneas como descartadas.
+     */
+    public void vaciar() {
+        if (tamano == 0) return;
+        int anterior = tamano;
+        java.util.Arrays.fill(lineas, null);
+        inicio = 0;
+        tamano = 0;
+        fireIntervalRemoved(this, 0, anterior - 1);
+    }
+
+    /**
+     * Líneas que salieron del modelo para dejar sitio a otras más recientes.
+     *
+     * @return Número de líneas descartadas.
+     */
+    public long getDescartadas() {
+        return descartadas;
+    }
+
+    public int getCapacidad() {
+        return lineas.length;
+    }
+
+    @Override
+    public int getSize() {
+        return tamano;
+    }
+
+    @Override
+    public String getElementAt(int indice) {
+        return lineas[(inicio + indice) % lineas.length];
+    }
+}
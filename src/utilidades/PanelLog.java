@@ -0,0 +1,168 @@
+package utilidades;
+
+import java.awt.BorderLayout;
+import java.awt.event.MouseEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.swing.*;
+
+/**
+ * Vista de log de capacidad fija para ventanas que reciben líneas a ritmo alto.
+ * <p>
+ * Cualquier hilo puede añadir líneas: solo se guardan en una cola de pendientes, también acotada.
+ * Un {@link Timer} de Swing vacía esa cola en el EDT como mucho una vez por intervalo,
+ * así que el coste en el EDT depende de la frecuencia de refresco y no del número de líneas.
+ * Las líneas se muestran en una {@link JList} sobre un {@link ModeloListaAcotada}
+ * con altura de celda fija, que solo pinta las filas visibles. Las líneas que no caben
+ * a lo ancho se pueden leer enteras en la ayuda emergente.
+ */
+public class PanelLog extends JPanel {
+
+    private static final long serialVersionUID = -4120381129470216093L;
+
+    /** Ancho fijo de fila en píxeles; las líneas más largas se recortan. */
+    private static final int ANCHO_FILA = 1600;
+
+    private final ModeloListaAcotada modelo;
+    private final JList<String> lista;
+    private final JScrollPane scroll;
+    private final JLabel etiquetaDescartadas;
+    private final Timer temporizador;
+
+    // **Líneas pendientes de pasar al EDT (protegidas por el lock)**
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<String> pendientes = new ArrayDeque<>();
+    private long descartadasPendientes = 0;
+    private long descartadasMostradas = -1;
+
+    /**
+     * Constructor del panel. Debe llamarse desde el EDT.
+     *
+     * @param capacidad    Líneas que conserva la vista (y máximo de pendientes entre refrescos).
+     * @param intervaloMs  Intervalo mínimo entre refrescos de la vista.
+     * @param oscuro       true para el tema oscuro.
+     */
+    public PanelLog(int capacidad, int intervaloMs, boolean oscuro) {
+        super(new BorderLayout());
+        modelo = new ModeloListaAcotada(capacidad);
+        lista = new JList<>(modelo) {
+            private static final long serialVersionUID = 2291736023409915842L;
+
+            @Override
+            public String getToolTipText(MouseEvent evento) {
+                int indice = locationToIndex(evento.getPoint());
+                return indice < 0 ? null : modelo.getElementAt(indice);
+            }
+        };
+        ToolTipManager.sharedInstance().registerComponent(lista);
+        lista.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        EstilosUI.estilizarLista(lista, oscuro);
+        // Con tamaño de celda fijo la lista no mide cada fila: solo calcula y pinta las visibles.
+        lista.setFixedCellHeight(lista.getFontMetrics(lista.getFont()).getHeight() + 2);
+        lista.setFixedCellWidth(ANCHO_FILA);
+
+        scroll = new JScrollPane(lista);
+        add(scroll, BorderLayout.CENTER);
+
+        etiquetaDescartadas = new JLabel(" ");
+        EstilosUI.estilizarEtiqueta(etiquetaDescartadas);
+        add(etiquetaDescartadas, BorderLayout.SOUTH);
+
+        temporizador = new Timer(Math.max(1, intervaloMs), e -> refrescar());
+        temporizador.setCoalesce(true);
+        temporizador.start();
+    }
+
+    /**
+     * Añade una línea. Se puede llamar desde cualquier hilo.
+     *
+     * @param linea Texto de la línea.
+     */
+    public void anadir(String linea) {
+        lock.lock();
+        try {
+            encolar(linea);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Añade varias líneas con una sola adquisición del lock. Se puede llamar desde cualquier hilo.
+     *
+     * @param lineas Líneas en orden.
+     */
+    public void anadirTodas(List<String> lineas) {
+        lock.lock();
+        try {
+            for (String linea : lineas) {
+                encolar(linea);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void encolar(String linea) {
+        // Si el EDT no da abasto, las pendientes más antiguas nunca llegarían a verse.
+        if (pendientes.size() >= modelo.getCapacidad()) {
+            pendientes.pollFirst();
+            descartadasPendientes++;
+        }
+        pendientes.addLast(linea);
+    }
+
+    /**
+     * Pasa las líneas pendientes a la vista. Lo ejecuta el temporizador en el EDT.
+     */
+    private void refrescar() {
+        List<String> lote;
+        long descartadas;
+        lock.lock();
+        try {
+            lote = pendientes.isEmpty() ? List.of() : new ArrayList<>(pendientes);
+            pendientes.clear();
+            descartadas = descartadasPendientes;
+        } finally {
+            lock.unlock();
+        }
+
+        if (!lote.isEmpty()) {
+            // Solo se sigue el final si el usuario no se ha desplazado hacia arriba.
+            JScrollBar barra = scroll.getVerticalScrollBar();
+            boolean alFinal = barra.getValue() + barra.getVisibleAmount() >= barra.getMaximum() - lista.getFixedCellHeight();
+            modelo.anadirTodas(lote);
+            if (alFinal) {
+                lista.ensureIndexIsVisible(modelo.getSize() - 1);
+            }
+        }
+
+        long total = descartadas + modelo.getDescartadas();
+        if (total != descartadasMostradas) {
+            descartadasMostradas = total;
+            etiquetaDescartadas.setText(total == 0 ? " " : "Líneas descartadas de la vista: " + total);
+        }
+    }
+
+    /**
+     * Vacía la vista. Debe llamarse desde el EDT.
+     */
+    public void vaciar() {
+        lock.lock();
+        try {
+            pendientes.clear();
+        } finally {
+            lock.unlock();
+        }
+        modelo.vaciar();
+    }
+
+    /**
+     * Detiene el temporizador de refresco, por ejemplo al cerrar la ventana.
+     */
+    public void detener() {
+        temporizador.stop();
+    }
+}